@@ -0,0 +1,135 @@
+package dashteacup.pman;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Load test for {@link PMAgent}: a number of clients, each with its own
+ * connection, look up random titles of a generated vault as fast as they
+ * can. Reports requests per second and the latency percentiles of single
+ * lookups, with the cost of a lookup that derives the key, as every tool
+ * did without an agent, for comparison.
+ *
+ * Run it from the project root with something like:
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar dashteacup.pman.AgentLoadBenchmark 64 2000 100000
+ * </pre>
+ * The optional arguments are the number of clients (default 16), lookups
+ * per client (default 2000) and entries in the vault (default 100000).
+ */
+public class AgentLoadBenchmark {
+
+    /**
+     * Password used for the benchmark file.
+     */
+    private static final String password = "agent";
+
+    /**
+     * Run the benchmark.
+     * @param args optional clients, lookups per client and entries.
+     * @throws Exception if saving, serving or looking up fails.
+     */
+    public static void main(String[] args) throws Exception {
+        final int clients = (args.length > 0) ? Integer.parseInt(args[0]) : 16;
+        final int lookups = (args.length > 1) ? Integer.parseInt(args[1]) : 2000;
+        int count = (args.length > 2) ? Integer.parseInt(args[2]) : 100000;
+        String vault = EntryIndexBenchmark.vault(count);
+        final List<String> titles = new ArrayList<String>(count);
+        for (Entry entry : EntryIndex.parse(vault)) {
+            titles.add(entry.getTitle());
+        }
+
+        Path directory = Files.createTempDirectory("pmanagent");
+        File file = directory.resolve("vault.pman").toFile();
+        final Path socket = directory.resolve("agent.sock");
+        PasswordManager pm = new PasswordManager(vault);
+        pm.savePasswordFile(file.getPath(), password.toCharArray());
+
+        long start = System.nanoTime();
+        pm.lookupEntries(file, password.toCharArray(), titles.get(0));
+        System.out.printf("lookup without an agent (derives the key): %.1f ms%n",
+                (System.nanoTime() - start) / 1e6);
+
+        PMAgent agent = new PMAgent(file, socket, PMAgent.defaultIdleMillis);
+        agent.unlock(password.toCharArray());
+        agent.startInBackground();
+
+        final long[][] latencies = new long[clients][lookups];
+        final Exception[] failure = new Exception[1];
+        final CountDownLatch ready = new CountDownLatch(clients);
+        final CountDownLatch go = new CountDownLatch(1);
+        Thread[] threads = new Thread[clients];
+        for (int c = 0; c < clients; c++) {
+            final int client = c;
+            threads[c] = new Thread() {
+                @Override
+                public void run() {
+                    Random random = new Random(client);
+                    try (PMAgentClient connection = new PMAgentClient(socket)) {
+                        // Warm up the connection and the agent's thread.
+                        connection.get(titles.get(random.nextInt(titles.size())));
+                        ready.countDown();
+                        go.await();
+                        for (int i = 0; i < lookups; i++) {
+                            String title = titles.get(random.nextInt(titles.size()));
+                            long sent = System.nanoTime();
+                            PMAgent.Reply reply = connection.get(title);
+                            latencies[client][i] = System.nanoTime() - sent;
+                            if (reply.status != PMAgent.statusOk) {
+                                throw new IllegalStateException("No entry for " + title);
+                            }
+                        }
+                    }
+                    catch (Exception e) {
+                        synchronized (failure) {
+                            failure[0] = e;
+                        }
+                    }
+                }
+            };
+            threads[c].start();
+        }
+        ready.await();
+        start = System.nanoTime();
+        go.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        agent.close();
+        file.delete();
+        Files.deleteIfExists(socket);
+        Files.delete(directory);
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+
+        long[] all = new long[clients * lookups];
+        for (int c = 0; c < clients; c++) {
+            System.arraycopy(latencies[c], 0, all, c * lookups, lookups);
+        }
+        Arrays.sort(all);
+        System.out.printf("%d clients x %d lookups, %d entries, %d processors%n",
+                clients, lookups, count, Runtime.getRuntime().availableProcessors());
+        System.out.printf("%.0f requests/s, latency p50 %.3f ms, p99 %.3f ms, max %.3f ms%n",
+                all.length / (elapsed / 1e9), percentile(all, 0.50) / 1e6,
+                percentile(all, 0.99) / 1e6, all[all.length - 1] / 1e6);
+    }
+
+    /**
+     * Read a percentile off sorted latencies.
+     * @param sorted latencies
+     * @param fraction of the latencies at or below the result
+     * @return the latency
+     */
+    private static long percentile(long[] sorted, double fraction) {
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+}
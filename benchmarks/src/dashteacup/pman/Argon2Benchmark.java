@@ -0,0 +1,116 @@
+package dashteacup.pman;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+
+/**
+ * Measures the cost of unlocking a file whose key is derived with
+ * {@link Argon2id}. For each memory setting and lane count it times opening
+ * a small file, which is almost all key derivation, and reports the peak
+ * heap used while doing it so the memory cost can be checked against what
+ * the setting asks for.
+ *
+ * Run it from the project root with something like:
+ * <pre>
+ * java -Xmx2g -cp benchmarks/target/benchmarks.jar dashteacup.pman.Argon2Benchmark 16M,64M,256M 3
+ * </pre>
+ * The optional arguments are a comma separated list of memory settings
+ * (default 8M,32M,64M,256M) and the number of passes (default 3). Lane
+ * counts from 1 up to the number of processors are tried, doubling each
+ * time.
+ */
+public class Argon2Benchmark {
+
+    /**
+     * Password used for the benchmark files.
+     */
+    private static final String password = "memory hard";
+
+    /**
+     * Run the benchmark.
+     * @param args optional memory settings and number of passes.
+     * @throws Exception if saving or opening fails.
+     */
+    public static void main(String[] args) throws Exception {
+        String[] memories = ((args.length > 0) ? args[0] : "8M,32M,64M,256M").split(",");
+        int passes = (args.length > 1) ? Integer.parseInt(args[1]) : 3;
+        int processors = Runtime.getRuntime().availableProcessors();
+        final File file = File.createTempFile("pmanargon2", ".pman");
+        file.deleteOnExit();
+        String fileName = file.getAbsolutePath();
+
+        Benchmark bench = new Benchmark(1, 5);
+        Benchmark.printHeader();
+        StringBuilder summary = new StringBuilder();
+        for (String memory : memories) {
+            int memoryKiB = (int) (Benchmark.parseSize(memory) / 1024);
+            for (int lanes = 1; lanes <= Math.min(processors, memoryKiB / 8); lanes *= 2) {
+                KeyDerivation derivation = new KeyDerivation(KeyDerivation.ARGON2ID,
+                        passes, memoryKiB, lanes);
+                PasswordManager pm = new PasswordManager("benchmark");
+                pm.setKeyDerivation(derivation);
+                pm.savePasswordFile(fileName, password.toCharArray());
+
+                System.gc();
+                long heapBefore = heapUsed();
+                resetPeakHeap();
+                long unlock = bench.measure("unlock " + derivation, new Benchmark.Task() {
+                    @Override
+                    public void run() throws Exception {
+                        PasswordManager openpm = new PasswordManager();
+                        openpm.openPasswordFile(file, password.toCharArray());
+                    }
+                });
+                long peak = peakHeap() - heapBefore;
+                summary.append(String.format("%-40s unlock %8.1f ms, peak heap +%s%n",
+                        derivation, unlock / 1000000.0, Benchmark.formatBytes(peak)));
+            }
+        }
+        System.out.print(summary);
+        System.out.println("calibrated: " + KeyDerivation.calibrate(KeyDerivation.ARGON2ID,
+                KeyDerivation.defaultTargetMillis));
+        file.delete();
+    }
+
+    /**
+     * Reset the peak usage of every heap memory pool.
+     */
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    /**
+     * Get the heap currently in use.
+     * @return bytes used across the heap memory pools
+     */
+    private static long heapUsed() {
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                used += pool.getUsage().getUsed();
+            }
+        }
+        return used;
+    }
+
+    /**
+     * Get the peak heap use since {@link #resetPeakHeap()}. The pools peak
+     * at different times, so this overstates the true peak a little.
+     * @return bytes, the sum of each heap pool's peak
+     */
+    private static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+}
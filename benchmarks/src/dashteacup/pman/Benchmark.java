@@ -0,0 +1,230 @@
+package dashteacup.pman;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Small benchmark harness for the stand alone benchmarks that print their
+ * own tables, such as thread count scaling, which JMH's rows don't suit.
+ * Everything runs in one JVM, so compare rows of one run rather than rows
+ * measured in different orders. Each benchmark gets a number of warmup runs so the JIT can settle,
+ * then a number of measured runs. Along with the time per operation it
+ * reports the bytes allocated by every thread, the benchmark's and the
+ * worker pools' alike, and the garbage collections that happened while
+ * measuring, so changes that cut copies of the vault out of the heap show up
+ * in the numbers. Allocations of threads that end during the measured runs
+ * are missed, so tasks that start their own threads read low.
+ */
+public class Benchmark {
+
+    /**
+     * A single operation to be timed.
+     */
+    public interface Task {
+        /**
+         * Run the operation once.
+         * @throws Exception if the operation fails. This stops the benchmark.
+         */
+        void run() throws Exception;
+    }
+
+    /**
+     * Format used when printing a result row.
+     */
+    private static final String rowFormat = "%-40s %12s %12s %12s %8s %8s%n";
+
+    /**
+     * Number of unmeasured runs done before timing starts.
+     */
+    private final int warmupRuns;
+
+    /**
+     * Number of runs used to compute the result.
+     */
+    private final int measuredRuns;
+
+    /**
+     * Create a new benchmark harness.
+     * @param warmupRuns number of unmeasured runs before timing starts.
+     * @param measuredRuns number of timed runs.
+     */
+    public Benchmark(int warmupRuns, int measuredRuns) {
+        if (measuredRuns < 1) {
+            throw new IllegalArgumentException("Need at least one measured run.");
+        }
+        this.warmupRuns = warmupRuns;
+        this.measuredRuns = measuredRuns;
+    }
+
+    /**
+     * Print the column names for the rows printed by {@link #measure}.
+     */
+    public static void printHeader() {
+        System.out.printf(rowFormat, "benchmark", "avg ms/op", "min ms/op",
+                "alloc/op", "gc", "gc ms");
+    }
+
+    /**
+     * Run and time a task, printing one result row.
+     * @param name shown in the results.
+     * @param task to be timed.
+     * @return the average time per operation in nanoseconds.
+     * @throws Exception if the task fails.
+     */
+    public long measure(String name, Task task) throws Exception {
+        for (int i = 0; i < warmupRuns; i++) {
+            task.run();
+        }
+        long[] times = new long[measuredRuns];
+        long gcCountBefore = totalCollections();
+        long gcTimeBefore = totalCollectionTime();
+        Map<Long, Long> allocatedBefore = allocatedBytes();
+        for (int i = 0; i < measuredRuns; i++) {
+            long start = System.nanoTime();
+            task.run();
+            times[i] = System.nanoTime() - start;
+        }
+        long allocated = allocatedSince(allocatedBefore);
+        long gcCount = totalCollections() - gcCountBefore;
+        long gcTime = totalCollectionTime() - gcTimeBefore;
+
+        long total = 0;
+        for (long time : times) {
+            total += time;
+        }
+        long average = total / measuredRuns;
+        Arrays.sort(times);
+        System.out.printf(rowFormat, name,
+                formatMillis(average),
+                formatMillis(times[0]),
+                allocated < 0 ? "n/a" : formatBytes(allocated / measuredRuns),
+                Long.toString(gcCount),
+                Long.toString(gcTime));
+        return average;
+    }
+
+    /**
+     * Parse a size such as "512", "64K", "16M" or "1G" into a byte count.
+     * @param size to parse.
+     * @return the number of bytes.
+     */
+    public static long parseSize(String size) {
+        String trimmed = size.trim().toUpperCase();
+        long multiplier = 1;
+        char suffix = trimmed.charAt(trimmed.length() - 1);
+        if (suffix == 'K') {
+            multiplier = 1024L;
+        }
+        else if (suffix == 'M') {
+            multiplier = 1024L * 1024;
+        }
+        else if (suffix == 'G') {
+            multiplier = 1024L * 1024 * 1024;
+        }
+        if (multiplier != 1) {
+            trimmed = trimmed.substring(0, trimmed.length() - 1);
+        }
+        return Long.parseLong(trimmed) * multiplier;
+    }
+
+    /**
+     * Format a byte count for display.
+     * @param bytes to format.
+     * @return a short human readable size.
+     */
+    public static String formatBytes(long bytes) {
+        if (bytes >= 1024L * 1024 * 1024) {
+            return String.format("%.1fG", bytes / (1024.0 * 1024 * 1024));
+        }
+        if (bytes >= 1024L * 1024) {
+            return String.format("%.1fM", bytes / (1024.0 * 1024));
+        }
+        if (bytes >= 1024L) {
+            return String.format("%.1fK", bytes / 1024.0);
+        }
+        return bytes + "B";
+    }
+
+    /**
+     * Format a time in nanoseconds as milliseconds.
+     * @param nanos to format.
+     * @return the time in milliseconds.
+     */
+    private static String formatMillis(long nanos) {
+        return String.format("%.3f", nanos / 1000000.0);
+    }
+
+    /**
+     * Get the number of bytes allocated so far by each live thread.
+     * @return the allocated bytes by thread id, or null if the JVM can't
+     * tell us.
+     */
+    private static Map<Long, Long> allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+            if (sunBean.isThreadAllocatedMemorySupported()) {
+                long[] ids = sunBean.getAllThreadIds();
+                long[] bytes = sunBean.getThreadAllocatedBytes(ids);
+                Map<Long, Long> allocated = new HashMap<Long, Long>();
+                for (int i = 0; i < ids.length; i++) {
+                    // -1 for threads that ended since the ids were taken.
+                    if (bytes[i] >= 0) {
+                        allocated.put(ids[i], bytes[i]);
+                    }
+                }
+                return allocated;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the number of bytes allocated by all threads since an earlier
+     * count. Threads started since then count from zero.
+     * @param before the earlier count from {@link #allocatedBytes()}
+     * @return the allocated bytes or -1 if the JVM can't tell us.
+     */
+    private static long allocatedSince(Map<Long, Long> before) {
+        Map<Long, Long> after = allocatedBytes();
+        if (before == null || after == null) {
+            return -1;
+        }
+        long total = 0;
+        for (Map.Entry<Long, Long> thread : after.entrySet()) {
+            Long earlier = before.get(thread.getKey());
+            total += thread.getValue() - ((earlier != null) ? earlier : 0);
+        }
+        return total;
+    }
+
+    /**
+     * Get the number of garbage collections run so far by all collectors.
+     * @return the collection count.
+     */
+    private static long totalCollections() {
+        long count = 0;
+        List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+        for (GarbageCollectorMXBean collector : collectors) {
+            count += Math.max(0, collector.getCollectionCount());
+        }
+        return count;
+    }
+
+    /**
+     * Get the time spent so far in garbage collection by all collectors.
+     * @return the collection time in milliseconds.
+     */
+    private static long totalCollectionTime() {
+        long time = 0;
+        List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+        for (GarbageCollectorMXBean collector : collectors) {
+            time += Math.max(0, collector.getCollectionTime());
+        }
+        return time;
+    }
+}
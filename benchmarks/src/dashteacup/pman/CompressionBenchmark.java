@@ -0,0 +1,120 @@
+package dashteacup.pman;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Measures what compressing segments costs and saves: the file size, full
+ * save time and open time of each corpus with and without compression. The
+ * corpora are the text files in testfiles, each repeated up to the payload
+ * size, and a vault of generated entries. Opens include deriving the key,
+ * which is timed on its own too.
+ *
+ * Run it from the project root with something like:
+ * <pre>
+ * java -Xmx2g -cp benchmarks/target/benchmarks.jar dashteacup.pman.CompressionBenchmark 16M
+ * </pre>
+ * The optional argument is the payload size (default 16M).
+ */
+public class CompressionBenchmark {
+
+    /**
+     * Password used for the benchmark files.
+     */
+    private static final String password = "compress";
+
+    /**
+     * Directory holding the text corpora.
+     */
+    private static final String corpusDirectory = "testfiles";
+
+    /**
+     * Run the benchmark.
+     * @param args optional payload size.
+     * @throws Exception if saving or opening fails.
+     */
+    public static void main(String[] args) throws Exception {
+        long size = Benchmark.parseSize((args.length > 0) ? args[0] : "16M");
+        Map<String, String> corpora = new LinkedHashMap<String, String>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get(corpusDirectory), "*.txt")) {
+            for (Path file : files) {
+                corpora.put(file.getFileName().toString(), Payloads.text(file, size));
+            }
+        }
+        // About 120 characters per generated entry.
+        corpora.put("generated vault", EntryIndexBenchmark.vault((int) (size / 120)));
+
+        Benchmark bench = new Benchmark(1, 5);
+        Benchmark.printHeader();
+        final byte[] salt = new byte[16];
+        bench.measure("kdf " + KeyDerivation.legacy(), new Benchmark.Task() {
+            @Override
+            public void run() throws Exception {
+                KeyDerivation.legacy().deriveKey(password.toCharArray(), salt);
+            }
+        });
+        for (Map.Entry<String, String> corpus : corpora.entrySet()) {
+            String label = " " + corpus.getKey() + " " + Benchmark.formatBytes(corpus.getValue().length());
+            long plainSize = 0;
+            for (boolean compressed : new boolean[] { false, true }) {
+                long fileSize = benchmarkCorpus(bench, (compressed ? "deflate" : "plain") + label,
+                        corpus.getValue(), compressed);
+                if (compressed) {
+                    System.out.printf("file size%s: %s plain, %s compressed (%.1f%%)%n", label,
+                            Benchmark.formatBytes(plainSize), Benchmark.formatBytes(fileSize),
+                            100.0 * fileSize / plainSize);
+                }
+                plainSize = fileSize;
+            }
+        }
+    }
+
+    /**
+     * Time full saves and opens of one corpus.
+     * @param bench to measure with
+     * @param label for the rows
+     * @param text of the corpus
+     * @param compressed true to compress the segments
+     * @return the size of the saved file in bytes
+     * @throws Exception if saving or opening fails.
+     */
+    private static long benchmarkCorpus(Benchmark bench, String label, String text,
+            boolean compressed) throws Exception {
+        final File[] files = { File.createTempFile("pmancompress", ".pman"),
+            File.createTempFile("pmancompress", ".pman") };
+        for (File file : files) {
+            file.deleteOnExit();
+        }
+        final PasswordManager pm = new PasswordManager(text);
+        pm.setKeyDerivation(KeyDerivation.legacy());
+        pm.setCompressionEnabled(compressed);
+        pm.savePasswordFile(files[1].getAbsolutePath(), password.toCharArray());
+        // Alternating between two files makes every save a full rewrite.
+        bench.measure("save " + label, new Benchmark.Task() {
+            private int next;
+
+            @Override
+            public void run() throws IOException {
+                next = 1 - next;
+                pm.savePasswordFile(files[next].getAbsolutePath());
+            }
+        });
+        bench.measure("open " + label, new Benchmark.Task() {
+            @Override
+            public void run() throws Exception {
+                new PasswordManager().openPasswordFile(files[0], password.toCharArray());
+            }
+        });
+        long fileSize = files[0].length();
+        for (File file : files) {
+            file.delete();
+        }
+        return fileSize;
+    }
+}
@@ -0,0 +1,95 @@
+package dashteacup.pman;
+
+import java.util.Random;
+
+/**
+ * Measures building and searching an {@link EntryIndex} over a large vault
+ * of generated entries: the initial build done when a file is opened, the
+ * update after editing one entry, and substring and prefix searches that
+ * match one entry, a few, and a lot of them.
+ *
+ * Run it from the project root with something like:
+ * <pre>
+ * java -Xmx2g -cp benchmarks/target/benchmarks.jar dashteacup.pman.EntryIndexBenchmark 100000
+ * </pre>
+ * The optional argument is the number of entries (default 100000).
+ */
+public class EntryIndexBenchmark {
+
+    /**
+     * Words the generated entries are made of.
+     */
+    private static final String[] words = { "bank", "mail", "shop", "cloud", "forum",
+        "games", "travel", "work", "school", "music", "video", "news", "photo", "chat" };
+
+    /**
+     * Run the benchmark.
+     * @param args optional number of entries.
+     * @throws Exception if a task fails.
+     */
+    public static void main(String[] args) throws Exception {
+        int count = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+        final String vault = vault(count);
+        final int middle = vault.indexOf("User: user" + (count / 2) + "\n");
+        final String edited = vault.substring(0, middle) + "User: edited" + vault.substring(middle + 5);
+        Benchmark bench = new Benchmark(2, 10);
+        Benchmark.printHeader();
+        bench.measure("build " + count + " entries", new Benchmark.Task() {
+            @Override
+            public void run() {
+                new EntryIndex().update(vault);
+            }
+        });
+        final EntryIndex index = new EntryIndex();
+        index.update(vault);
+        bench.measure("update after 1 entry edit", new Benchmark.Task() {
+            private boolean toggle;
+
+            @Override
+            public void run() {
+                toggle = !toggle;
+                index.update(toggle ? edited : vault);
+            }
+        });
+        index.update(vault);
+        String[][] searches = {
+            { "substring 1 match", "user" + (count / 3) + "@" },
+            { "substring few", "-" + (count / 100) + "\nuser" },
+            { "substring many", "cloud" },
+            { "prefix 1 match", "user" + (count / 7) },
+            { "prefix 2 chars", "ph" }
+        };
+        for (final String[] search : searches) {
+            int matches = index.search(search[1]).size();
+            bench.measure("search " + search[0] + " (" + matches + ")", new Benchmark.Task() {
+                @Override
+                public void run() {
+                    index.searchPrefix(search[1]);
+                    index.search(search[1]);
+                }
+            });
+        }
+    }
+
+    /**
+     * Generate a vault.
+     * @param count number of entries
+     * @return the vault text
+     */
+    static String vault(int count) {
+        Random random = new Random(14);
+        StringBuilder text = new StringBuilder(count * 120);
+        for (int i = 0; i < count; i++) {
+            String first = words[random.nextInt(words.length)];
+            String second = words[random.nextInt(words.length)];
+            text.append(first).append('-').append(second).append('-').append(i / 10).append('\n');
+            text.append("User: user").append(i).append('\n');
+            text.append("Email: user").append(i).append("@").append(second).append(".example.com\n");
+            text.append("URL: https://").append(first).append(".example.com/login\n");
+            text.append("Password: ").append(Long.toHexString(random.nextLong())).append('\n');
+            text.append("Tags: ").append(first).append(", ").append(second).append('\n');
+            text.append('\n');
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,87 @@
+package dashteacup.pman;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Measures finding one entry by title in a large vault with a
+ * {@link LookupIndex}, against opening the whole file and searching it.
+ * Both include deriving the key, which is timed on its own as well so the
+ * rest of the lookup can be read off. A fixed, cheap KDF cost is used so
+ * the key derivation doesn't hide the difference.
+ *
+ * Run it from the project root with something like:
+ * <pre>
+ * java -Xmx2g -cp benchmarks/target/benchmarks.jar dashteacup.pman.LookupIndexBenchmark 100000
+ * </pre>
+ * The optional argument is the number of entries (default 100000).
+ */
+public class LookupIndexBenchmark {
+
+    /**
+     * Password used for the benchmark files.
+     */
+    private static final String password = "lookup";
+
+    /**
+     * Run the benchmark.
+     * @param args optional number of entries.
+     * @throws Exception if saving, opening or looking up fails.
+     */
+    public static void main(String[] args) throws Exception {
+        int count = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+        String vault = EntryIndexBenchmark.vault(count);
+        // The title of an entry in the middle of the vault.
+        int start = vault.indexOf("User: user" + (count / 2) + "\n");
+        start = vault.lastIndexOf("\n\n", start) + 2;
+        final String title = vault.substring(start, vault.indexOf('\n', start));
+        final File indexed = File.createTempFile("pmanlookup", ".pman");
+        final File plain = File.createTempFile("pmanlookup", ".pman");
+        indexed.deleteOnExit();
+        plain.deleteOnExit();
+
+        final PasswordManager pm = new PasswordManager(vault);
+        pm.setKeyDerivation(KeyDerivation.legacy());
+        pm.savePasswordFile(plain.getAbsolutePath(), password.toCharArray());
+        pm.setLookupIndexEnabled(true);
+        pm.savePasswordFile(indexed.getAbsolutePath(), password.toCharArray());
+
+        Benchmark bench = new Benchmark(3, 20);
+        Benchmark.printHeader();
+        final byte[] salt = new byte[16];
+        bench.measure("kdf " + KeyDerivation.legacy(), new Benchmark.Task() {
+            @Override
+            public void run() throws Exception {
+                KeyDerivation.legacy().deriveKey(password.toCharArray(), salt);
+            }
+        });
+        String label = " " + count + " entries";
+        bench.measure("lookup with index" + label, new Benchmark.Task() {
+            @Override
+            public void run() throws Exception {
+                check(pm.lookupEntries(indexed, password.toCharArray(), title));
+            }
+        });
+        bench.measure("open and search" + label, new Benchmark.Task() {
+            @Override
+            public void run() throws Exception {
+                check(pm.lookupEntries(plain, password.toCharArray(), title));
+            }
+        });
+        System.out.printf("index adds %s to a %s file%n",
+                Benchmark.formatBytes(indexed.length() - plain.length()),
+                Benchmark.formatBytes(plain.length()));
+        indexed.delete();
+        plain.delete();
+    }
+
+    /**
+     * Make sure a lookup found the entry.
+     * @param found entries
+     */
+    private static void check(List<Entry> found) {
+        if (found.size() != 1) {
+            throw new IllegalStateException("Lookup found " + found.size() + " entries.");
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package dashteacup.pman;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Times opening a workspace of password files that share a password, one
+ * after another as the open dialog used to, against opening them all at
+ * once with a {@link VaultUnlocker}. The files are saved with the key
+ * derivation cost calibrated for this machine, so each takes about as long
+ * to open as a real one would.
+ *
+ * Run it from the project root with something like:
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar dashteacup.pman.MultiOpenBenchmark 20 1000
+ * </pre>
+ * The optional arguments are the number of files (default 20) and entries
+ * in each (default 1000).
+ */
+public class MultiOpenBenchmark {
+
+    /**
+     * Password used for the benchmark files.
+     */
+    private static final String password = "workspace";
+
+    /**
+     * Run the benchmark.
+     * @param args optional number of files and entries per file.
+     * @throws Exception if saving or opening fails.
+     */
+    public static void main(String[] args) throws Exception {
+        int count = (args.length > 0) ? Integer.parseInt(args[0]) : 20;
+        int entries = (args.length > 1) ? Integer.parseInt(args[1]) : 1000;
+        Path directory = Files.createTempDirectory("pmanworkspace");
+        List<File> files = new ArrayList<File>(count);
+        for (int i = 0; i < count; i++) {
+            File file = directory.resolve("vault" + i + ".pman").toFile();
+            PasswordManager pm = new PasswordManager(EntryIndexBenchmark.vault(entries));
+            pm.savePasswordFile(file.getPath(), password.toCharArray());
+            files.add(file);
+        }
+
+        // Warm up both ways of opening.
+        new PasswordManager().openPasswordFile(files.get(0), password.toCharArray());
+        new VaultUnlocker().openAll(files.subList(0, 1), password.toCharArray(), null);
+
+        long start = System.nanoTime();
+        for (File file : files) {
+            new PasswordManager().openPasswordFile(file, password.toCharArray());
+        }
+        double sequential = (System.nanoTime() - start) / 1e6;
+
+        start = System.nanoTime();
+        List<VaultUnlocker.Result> results =
+                new VaultUnlocker().openAll(files, password.toCharArray(), null);
+        double parallel = (System.nanoTime() - start) / 1e6;
+        for (VaultUnlocker.Result result : results) {
+            if (!result.succeeded()) {
+                throw result.getFailure();
+            }
+        }
+
+        System.out.printf("%d files x %d entries, %d processors%n", count, entries,
+                Runtime.getRuntime().availableProcessors());
+        System.out.printf("one at a time: %8.0f ms (%.0f ms per file)%n", sequential, sequential / count);
+        System.out.printf("all at once:   %8.0f ms (%.1fx)%n", parallel, sequential / parallel);
+        for (File file : files) {
+            file.delete();
+        }
+        Files.delete(directory);
+    }
+}
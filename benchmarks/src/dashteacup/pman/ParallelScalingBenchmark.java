@@ -0,0 +1,86 @@
+package dashteacup.pman;
+
+import java.io.File;
+
+/**
+ * Measures how saving and opening a {@link PasswordManager#SEGMENTED_FORMAT}
+ * file scales with the number of crypto threads. For each thread count from
+ * 1 up to the number of processors (doubling each time) it times a save with
+ * the cached key and an open, then prints the speedup over one thread. The
+ * saves alternate between two files, so each one rewrites and re-encrypts
+ * the whole file rather than updating an unchanged file in place.
+ *
+ * Run it from the project root with something like:
+ * <pre>
+ * java -Xmx2g -cp benchmarks/target/benchmarks.jar dashteacup.pman.ParallelScalingBenchmark 256M
+ * </pre>
+ * The optional arguments are the payload size (default 64M) and the largest
+ * thread count to try (default the number of processors).
+ */
+public class ParallelScalingBenchmark {
+
+    /**
+     * Password used for the benchmark file.
+     */
+    private static final String password = "scaling";
+
+    /**
+     * Run the benchmark.
+     * @param args optional payload size such as "256M" and thread count.
+     * @throws Exception if saving or opening fails.
+     */
+    public static void main(String[] args) throws Exception {
+        long size = Benchmark.parseSize(args.length > 0 ? args[0] : "64M");
+        int processors = (args.length > 1) ? Integer.parseInt(args[1])
+                : Runtime.getRuntime().availableProcessors();
+        final File file = File.createTempFile("pmanscaling", ".pman");
+        file.deleteOnExit();
+        final File otherFile = File.createTempFile("pmanscaling", ".pman");
+        otherFile.deleteOnExit();
+        final String[] fileNames = { file.getAbsolutePath(), otherFile.getAbsolutePath() };
+        final PasswordManager pm = new PasswordManager(Payloads.text(size));
+        // Fixed KDF cost so the opens measure the crypto threads, not the
+        // calibrated key derivation.
+        pm.setKeyDerivation(KeyDerivation.legacy());
+        pm.savePasswordFile(fileNames[0], password.toCharArray());
+
+        Benchmark bench = new Benchmark(2, 5);
+        Benchmark.printHeader();
+        long baseSave = 0;
+        long baseOpen = 0;
+        StringBuilder summary = new StringBuilder();
+        for (int threads = 1; threads <= processors; threads *= 2) {
+            final int parallelism = threads;
+            pm.setParallelism(parallelism);
+            String label = " " + Benchmark.formatBytes(size) + " x" + threads;
+            long save = bench.measure("save cached key" + label, new Benchmark.Task() {
+                private int saves;
+
+                @Override
+                public void run() throws Exception {
+                    pm.savePasswordFile(fileNames[saves++ % 2]);
+                }
+            });
+            long open = bench.measure("open" + label, new Benchmark.Task() {
+                @Override
+                public void run() throws Exception {
+                    PasswordManager openpm = new PasswordManager();
+                    openpm.setParallelism(parallelism);
+                    openpm.openPasswordFile(file, password.toCharArray());
+                }
+            });
+            if (threads == 1) {
+                baseSave = save;
+                baseOpen = open;
+            }
+            summary.append(String.format("threads %2d: save speedup %.2fx, open speedup %.2fx%n",
+                    threads, (double) baseSave / save, (double) baseOpen / open));
+            if (threads < processors && threads * 2 > processors) {
+                threads = processors / 2;
+            }
+        }
+        System.out.print(summary);
+        file.delete();
+        otherFile.delete();
+    }
+}
@@ -0,0 +1,346 @@
+package dashteacup.pman;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH benchmarks for the {@link PasswordManager} open/save paths and the key
+ * derivation function. Every payload size and file format is measured in a
+ * JVM of its own, so the JIT's profile of one doesn't skew the next.
+ *
+ * Build the benchmarks as described in benchmarks/pom.xml and run them from
+ * the project root, with the GC profiler reporting allocations per
+ * operation:
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar dashteacup.pman.PasswordManagerBenchmark
+ * java -cp benchmarks/target/benchmarks.jar dashteacup.pman.PasswordManagerBenchmark -p size=1K,500M
+ * </pre>
+ * The arguments are JMH options. Payloads are built by repeating
+ * testfiles/largeTextFile.txt. Sizes in the hundreds of megabytes need a
+ * heap several times that size; the forks get 4G.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class PasswordManagerBenchmark {
+
+    /**
+     * Password used for all the benchmark files.
+     */
+    private static final String password = "benchmark";
+
+    /**
+     * A payload held by a password manager, for the whole-array crypto
+     * methods.
+     */
+    @State(Scope.Benchmark)
+    public static class Payload {
+        /**
+         * Size of the payload, such as "1K" or "16M".
+         */
+        @Param({ "1K", "64K", "1M", "16M" })
+        public String size;
+
+        PasswordManager pm;
+        String content;
+        byte[] cipherText;
+
+        /**
+         * Build the payload and encrypt it once for decryptText.
+         * @throws Exception if the sample text can't be read.
+         */
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            content = Payloads.text(size);
+            pm = new PasswordManager(content);
+            // Keep the rows comparable between machines, and with runs from
+            // before the KDF cost was calibrated.
+            pm.setKeyDerivation(KeyDerivation.legacy());
+            cipherText = pm.encryptContent(content, password.toCharArray());
+        }
+    }
+
+    /**
+     * A payload saved to a scratch file in one of the file formats.
+     */
+    @State(Scope.Benchmark)
+    public static class SavedFile {
+        /**
+         * Size of the payload, such as "1K" or "16M".
+         */
+        @Param({ "1K", "64K", "1M", "16M" })
+        public String size;
+
+        /**
+         * File format and crypto engine: "v1" for the
+         * {@link PasswordManager#LEGACY_FORMAT}, "v2" for the
+         * {@link PasswordManager#SEGMENTED_FORMAT} with AES-GCM and "v2-ctr"
+         * for it with AES-CTR and HMAC.
+         */
+        @Param({ "v1", "v2", "v2-ctr" })
+        public String format;
+
+        PasswordManager pm;
+        File file;
+        String fileName;
+        /**
+         * A second scratch file, for saves that have to rewrite the whole
+         * file.
+         */
+        File otherFile;
+        String[] fileNames;
+        int saves;
+
+        /**
+         * Build the payload and save it to a scratch file.
+         * @throws Exception if the file can't be written.
+         */
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            file = File.createTempFile("pmanbench", ".pman");
+            fileName = file.getAbsolutePath();
+            otherFile = File.createTempFile("pmanbench", ".pman");
+            fileNames = new String[] { fileName, otherFile.getAbsolutePath() };
+            pm = new PasswordManager(Payloads.text(size));
+            pm.setKeyDerivation(KeyDerivation.legacy());
+            if (format.equals("v1")) {
+                pm.setFormatVersion(PasswordManager.LEGACY_FORMAT);
+            }
+            else if (format.equals("v2-ctr")) {
+                pm.setCryptoEngine(PasswordManager.AES_CTR_HMAC_ENGINE);
+            }
+            pm.savePasswordFile(fileName, password.toCharArray());
+        }
+
+        /**
+         * Delete the scratch files.
+         */
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            file.delete();
+            otherFile.delete();
+        }
+    }
+
+    /**
+     * A payload saved to a scratch {@link PasswordManager#SEGMENTED_FORMAT}
+     * file, edited by one character before each save. The edit is made
+     * outside the timed part, so only the save is measured.
+     */
+    @State(Scope.Benchmark)
+    public static class EditedFile {
+        /**
+         * Size of the payload, such as "1K" or "16M".
+         */
+        @Param({ "1K", "64K", "1M", "16M" })
+        public String size;
+
+        PasswordManager pm;
+        File file;
+        String fileName;
+        String original;
+        String edited;
+        boolean toggle;
+
+        /**
+         * Build the payload and save it to a scratch file.
+         * @throws Exception if the file can't be written.
+         */
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            file = File.createTempFile("pmanbench", ".pman");
+            fileName = file.getAbsolutePath();
+            original = Payloads.text(size);
+            int middle = original.length() / 2;
+            edited = original.substring(0, middle) + "#" + original.substring(middle + 1);
+            pm = new PasswordManager(original);
+            pm.setKeyDerivation(KeyDerivation.legacy());
+            pm.savePasswordFile(fileName, password.toCharArray());
+        }
+
+        /**
+         * Edit the middle character, or put it back.
+         */
+        @Setup(Level.Invocation)
+        public void edit() {
+            toggle = !toggle;
+            pm.setText(toggle ? edited : original);
+        }
+
+        /**
+         * Delete the scratch file.
+         */
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            file.delete();
+        }
+    }
+
+    /**
+     * A key derivation function at one iteration count.
+     */
+    @State(Scope.Benchmark)
+    public static class Derivation {
+        /**
+         * PBKDF2 iteration count.
+         */
+        @Param({ "1000", "6000", "60000", "310000" })
+        public int iterations;
+
+        /**
+         * A JCA PBKDF2 algorithm, or "Pbkdf2Sha256" for {@link Pbkdf2Sha256}.
+         */
+        @Param({ "PBKDF2WithHmacSHA1", "PBKDF2WithHmacSHA256", "Pbkdf2Sha256" })
+        public String algorithm;
+
+        final byte[] salt = "1234567890123456".getBytes();
+        final byte[] passwordBytes = password.getBytes();
+        SecretKeyFactory factory;
+
+        /**
+         * Look up the JCA algorithm.
+         * @throws Exception if the JCA doesn't support it.
+         */
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            if (!algorithm.equals("Pbkdf2Sha256")) {
+                factory = SecretKeyFactory.getInstance(algorithm);
+            }
+        }
+    }
+
+    /**
+     * Run the benchmarks with the GC profiler.
+     * @param args JMH options, such as "-p size=500M". Without a benchmark
+     * name pattern all of this class's benchmarks are run.
+     * @throws Exception if the options are wrong or a benchmark fails.
+     */
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions options = new CommandLineOptions(args);
+        OptionsBuilder builder = new OptionsBuilder();
+        builder.parent(options).addProfiler(GCProfiler.class);
+        if (options.getIncludes().isEmpty()) {
+            builder.include(PasswordManagerBenchmark.class.getSimpleName());
+        }
+        new Runner(builder.build()).run();
+    }
+
+    /**
+     * Time encrypting the payload into a byte array.
+     */
+    @Benchmark
+    public void encryptContent(Payload payload, Blackhole sink) {
+        sink.consume(payload.pm.encryptContent(payload.content, password.toCharArray()));
+    }
+
+    /**
+     * Time decrypting the payload from a byte array.
+     */
+    @Benchmark
+    public void decryptText(Payload payload, Blackhole sink) throws Exception {
+        sink.consume(payload.pm.decryptText(payload.cipherText, password.toCharArray()));
+    }
+
+    /**
+     * Time saving the file with the password, deriving the key each time.
+     */
+    @Benchmark
+    public void savePasswordFile(SavedFile saved) throws Exception {
+        saved.pm.savePasswordFile(saved.fileName, password.toCharArray());
+    }
+
+    /**
+     * Time saving the whole file with the key cached by the last save. The
+     * saves alternate between two files, since saving an unchanged
+     * {@link PasswordManager#SEGMENTED_FORMAT} file over itself doesn't
+     * encrypt anything.
+     */
+    @Benchmark
+    public void savePasswordFileCachedKey(SavedFile saved) throws Exception {
+        saved.pm.savePasswordFile(saved.fileNames[saved.saves++ % 2]);
+    }
+
+    /**
+     * Time opening the file.
+     */
+    @Benchmark
+    public void openPasswordFile(SavedFile saved, Blackhole sink) throws Exception {
+        PasswordManager pm = new PasswordManager();
+        pm.openPasswordFile(saved.file, password.toCharArray(), false);
+        sink.consume(pm);
+    }
+
+    /**
+     * Time opening the file memory mapped. Only {@link PasswordManager#LEGACY_FORMAT}
+     * files are read differently; the other rows match
+     * {@link #openPasswordFile}.
+     */
+    @Benchmark
+    public void openPasswordFileMapped(SavedFile saved, Blackhole sink) throws Exception {
+        PasswordManager pm = new PasswordManager();
+        pm.openPasswordFile(saved.file, password.toCharArray(), true);
+        sink.consume(pm);
+    }
+
+    /**
+     * Time rejecting a wrong password.
+     */
+    @Benchmark
+    public void openPasswordFileWrongPassword(SavedFile saved, Blackhole sink) throws Exception {
+        try {
+            new PasswordManager().openPasswordFile(saved.file, "wrong".toCharArray(), false);
+        }
+        catch (BadPasswordException e) {
+            // Expected; the time to reject the password is what's measured.
+            sink.consume(e);
+        }
+    }
+
+    /**
+     * Time saving the file after a one character edit, with the cached key.
+     */
+    @Benchmark
+    public void savePasswordFileOneCharEdit(EditedFile edited) throws Exception {
+        edited.pm.savePasswordFile(edited.fileName);
+    }
+
+    /**
+     * Time deriving a key on its own.
+     */
+    @Benchmark
+    public void keyDerivation(Derivation derivation, Blackhole sink) throws Exception {
+        if (derivation.factory == null) {
+            sink.consume(Pbkdf2Sha256.deriveKey(derivation.passwordBytes, derivation.salt,
+                    derivation.iterations, 32));
+        }
+        else {
+            PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), derivation.salt,
+                    derivation.iterations, 256);
+            sink.consume(derivation.factory.generateSecret(spec).getEncoded());
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package dashteacup.pman;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Builds text payloads of a given size for the benchmarks.
+ */
+public class Payloads {
+
+    /**
+     * Text file repeated to build payloads.
+     */
+    private static final String sourceText = "testfiles/largeTextFile.txt";
+
+    /**
+     * Private constructor since this only has static methods.
+     */
+    private Payloads() {}
+
+    /**
+     * Build a text payload of the given size out of the sample text file.
+     * @param size of the payload such as "1K" or "16M", parsed by
+     * {@link Benchmark#parseSize}.
+     * @return the payload.
+     * @throws IOException if the sample text can't be read.
+     */
+    public static String text(String size) throws IOException {
+        return text(Benchmark.parseSize(size));
+    }
+
+    /**
+     * Build a text payload of the given size out of the sample text file.
+     * @param size of the payload in characters.
+     * @return the payload.
+     * @throws IOException if the sample text can't be read.
+     */
+    public static String text(long size) throws IOException {
+        return text(Paths.get(sourceText), size);
+    }
+
+    /**
+     * Build a text payload of the given size by repeating a text file.
+     * @param source text file to repeat.
+     * @param size of the payload in characters.
+     * @return the payload.
+     * @throws IOException if the text file can't be read.
+     */
+    public static String text(Path source, long size) throws IOException {
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Payload too large: " + size);
+        }
+        String sample = new String(Files.readAllBytes(source));
+        StringBuilder builder = new StringBuilder((int) size);
+        while (builder.length() < size) {
+            int remaining = (int) size - builder.length();
+            builder.append(sample, 0, Math.min(remaining, sample.length()));
+        }
+        return builder.toString();
+    }
+}
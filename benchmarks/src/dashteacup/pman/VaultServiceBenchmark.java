@@ -0,0 +1,132 @@
+package dashteacup.pman;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how reads of a {@link VaultService} scale with threads: each
+ * reader looks up random titles in the current snapshot for a fixed time,
+ * first with no writes and then with a writer changing an entry as fast as
+ * the service takes it. Also times publishing a snapshot, which every batch
+ * of changes costs the writer, against parsing the whole vault.
+ *
+ * Run it from the project root with something like:
+ * <pre>
+ * java -Xmx2g -cp benchmarks/target/benchmarks.jar dashteacup.pman.VaultServiceBenchmark 100000
+ * </pre>
+ * The optional argument is the number of entries (default 100000). Reader
+ * counts go up to twice the number of processors.
+ */
+public class VaultServiceBenchmark {
+
+    /**
+     * Password used for the benchmark file.
+     */
+    private static final String password = "service";
+
+    /**
+     * How long each reader count is measured for.
+     */
+    private static final long runMillis = 2000;
+
+    /**
+     * Run the benchmark.
+     * @param args optional number of entries.
+     * @throws Exception if saving, opening or reading fails.
+     */
+    public static void main(String[] args) throws Exception {
+        int count = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+        final String vault = EntryIndexBenchmark.vault(count);
+        final List<String> titles = new ArrayList<String>(count);
+        for (Entry entry : EntryIndex.parse(vault)) {
+            titles.add(entry.getTitle());
+        }
+        File file = File.createTempFile("pmanservice", ".pman");
+        file.deleteOnExit();
+        PasswordManager pm = new PasswordManager(vault);
+        pm.setKeyDerivation(KeyDerivation.legacy());
+        pm.savePasswordFile(file.getPath(), password.toCharArray());
+
+        Benchmark bench = new Benchmark(2, 10);
+        Benchmark.printHeader();
+        final VaultService.Snapshot parsed = new VaultService.Snapshot(0, vault);
+        bench.measure("parse snapshot " + count + " entries", new Benchmark.Task() {
+            @Override
+            public void run() {
+                new VaultService.Snapshot(0, vault);
+            }
+        });
+        final String edited = EntryIndex.putEntry(vault, titles.get(count / 2), "User: someone else");
+        bench.measure("publish one edit " + count + " entries", new Benchmark.Task() {
+            @Override
+            public void run() {
+                new VaultService.Snapshot(parsed, 1, edited);
+            }
+        });
+
+        final VaultService service = new VaultService(file, password.toCharArray());
+        int processors = Runtime.getRuntime().availableProcessors();
+        System.out.printf("%d processors%n%8s %16s %16s %10s%n", processors,
+                "readers", "reads/s", "reads/s writing", "snapshots");
+        for (int readers = 1; readers <= 2 * processors; readers *= 2) {
+            double quiet = readRate(service, titles, readers, false)[0];
+            double[] busy = readRate(service, titles, readers, true);
+            System.out.printf("%8d %16.0f %16.0f %10.0f%n", readers, quiet, busy[0], busy[1]);
+        }
+        service.close();
+        file.delete();
+    }
+
+    /**
+     * Run readers for a while and count their lookups.
+     * @param service to read
+     * @param titles to look up
+     * @param readers number of reader threads
+     * @param writing true to change an entry continuously meanwhile
+     * @return lookups per second, and snapshots published during the run
+     * @throws Exception if a reader or the writer fails.
+     */
+    private static double[] readRate(final VaultService service, final List<String> titles,
+            int readers, boolean writing) throws Exception {
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong lookups = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(readers);
+        long firstVersion = service.snapshot().getVersion();
+        for (int r = 0; r < readers; r++) {
+            final int seed = r;
+            new Thread() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    long found = 0;
+                    while (running.get()) {
+                        String title = titles.get(random.nextInt(titles.size()));
+                        found += service.snapshot().lookup(title).size();
+                    }
+                    lookups.addAndGet(found);
+                    done.countDown();
+                }
+            }.start();
+        }
+        long start = System.nanoTime();
+        long end = start + runMillis * 1000000;
+        int change = 0;
+        while (System.nanoTime() < end) {
+            if (writing) {
+                service.put("Benchmark counter", Integer.toString(change++)).get();
+            }
+            else {
+                Thread.sleep(50);
+            }
+        }
+        running.set(false);
+        done.await();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        return new double[] { lookups.get() / seconds, service.snapshot().getVersion() - firstVersion };
+    }
+}
@@ -0,0 +1,127 @@
+package dashteacup.pman;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * AES-CTR encryption with an HMAC-SHA256 tag over the additional data, nonce
+ * and cipher text (encrypt-then-MAC). Unlike GCM its tag doesn't depend on
+ * carry-less multiplication, so it's the faster choice on processors with
+ * AES instructions but without fast CLMUL.
+ *
+ * The file's key isn't used with AES-CTR or to compute tags. Separate
+ * encryption and MAC keys are derived from it by MACing fixed labels, the
+ * same way the key check key is, so the file's key only ever keys those
+ * derivations. The derived keys are cached with the session's
+ * {@link FileKey.Subkeys}, so they're derived once per key rather than once
+ * per segment.
+ */
+final class AesCtrHmacEngine extends CryptoEngine {
+
+    /**
+     * JCA transformation used for encryption.
+     */
+    private static final String transformation = "AES/CTR/NoPadding";
+
+    /**
+     * MAC algorithm used for the tags.
+     */
+    private static final String macAlgorithm = "HmacSHA256";
+
+    /**
+     * Label MACed under the file's key to derive the encryption key.
+     */
+    private static final String cipherKeyLabel = "PMCtrCipherKey01";
+
+    /**
+     * Label MACed under the file's key to derive the MAC key.
+     */
+    private static final String macKeyLabel = "PMCtrMacKey00001";
+
+    @Override
+    int getId() {
+        return AES_CTR_HMAC;
+    }
+
+    @Override
+    public String toString() {
+        return "aes-ctr-hmac";
+    }
+
+    @Override
+    void encrypt(SecretKeySpec key, byte[] nonce, ByteBuffer additionalData,
+            ByteBuffer plainBuffer, ByteBuffer cipherBuffer) throws GeneralSecurityException {
+        Cipher cipher = init(Cipher.ENCRYPT_MODE, key, nonce);
+        ByteBuffer cipherText = cipherBuffer.duplicate();
+        crypt(cipher, plainBuffer, cipherBuffer, true);
+        cipherText.limit(cipherBuffer.position());
+        cipherBuffer.put(tag(key, nonce, additionalData, cipherText));
+    }
+
+    @Override
+    void decrypt(SecretKeySpec key, byte[] nonce, ByteBuffer additionalData,
+            ByteBuffer cipherBuffer, ByteBuffer plainBuffer) throws GeneralSecurityException {
+        if (cipherBuffer.remaining() < tagLength) {
+            throw new AEADBadTagException("Message is shorter than its tag.");
+        }
+        ByteBuffer cipherText = cipherBuffer.duplicate();
+        cipherText.limit(cipherBuffer.limit() - tagLength);
+        byte[] expected = new byte[tagLength];
+        ByteBuffer tagBuffer = cipherBuffer.duplicate();
+        tagBuffer.position(cipherText.limit());
+        tagBuffer.get(expected);
+        if (!MessageDigest.isEqual(expected, tag(key, nonce, additionalData, cipherText.duplicate()))) {
+            throw new AEADBadTagException("Tag mismatch.");
+        }
+        Cipher cipher = init(Cipher.DECRYPT_MODE, key, nonce);
+        crypt(cipher, cipherText, plainBuffer, true);
+        cipherBuffer.position(cipherBuffer.limit());
+    }
+
+    /**
+     * Initialize the current thread's CTR cipher. The counter block is the
+     * nonce followed by a 32 bit block counter starting at zero, which is
+     * plenty for the largest segment.
+     * @param mode {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}
+     * @param key the file's key
+     * @param nonce of the message
+     * @return the cipher
+     * @throws GeneralSecurityException if the JCA doesn't support AES-CTR.
+     */
+    private static Cipher init(int mode, SecretKeySpec key, byte[] nonce)
+            throws GeneralSecurityException {
+        byte[] counter = Arrays.copyOf(nonce, 16);
+        Cipher cipher = cipher(transformation);
+        cipher.init(mode, FileKey.subkey(key, cipherKeyLabel, key.getAlgorithm()),
+                new IvParameterSpec(counter));
+        return cipher;
+    }
+
+    /**
+     * Compute a message's tag.
+     * @param key the file's key
+     * @param nonce of the message
+     * @param additionalData of the message, a fixed length for every
+     * message of a file
+     * @param cipherText of the message, read to its limit
+     * @return the first {@link CryptoEngine#tagLength} bytes of the MAC
+     * @throws GeneralSecurityException if the JCA doesn't support HMAC-SHA256.
+     */
+    private static byte[] tag(SecretKeySpec key, byte[] nonce, ByteBuffer additionalData,
+            ByteBuffer cipherText) throws GeneralSecurityException {
+        Mac mac = mac(macAlgorithm);
+        mac.init(FileKey.subkey(key, macKeyLabel, macAlgorithm));
+        mac.update(additionalData.duplicate());
+        mac.update(nonce);
+        mac.update(cipherText);
+        return Arrays.copyOf(mac.doFinal(), tagLength);
+    }
+}
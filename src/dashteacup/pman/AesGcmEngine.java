@@ -0,0 +1,60 @@
+package dashteacup.pman;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * AES-GCM, the engine segmented files have always used.
+ */
+final class AesGcmEngine extends CryptoEngine {
+
+    /**
+     * JCA transformation used.
+     */
+    private static final String transformation = "AES/GCM/NoPadding";
+
+    @Override
+    int getId() {
+        return AES_GCM;
+    }
+
+    @Override
+    public String toString() {
+        return "aes-gcm";
+    }
+
+    @Override
+    void encrypt(SecretKeySpec key, byte[] nonce, ByteBuffer additionalData,
+            ByteBuffer plainBuffer, ByteBuffer cipherBuffer) throws GeneralSecurityException {
+        Cipher cipher = init(Cipher.ENCRYPT_MODE, key, nonce, additionalData);
+        cipher.doFinal(plainBuffer, cipherBuffer);
+    }
+
+    @Override
+    void decrypt(SecretKeySpec key, byte[] nonce, ByteBuffer additionalData,
+            ByteBuffer cipherBuffer, ByteBuffer plainBuffer) throws GeneralSecurityException {
+        Cipher cipher = init(Cipher.DECRYPT_MODE, key, nonce, additionalData);
+        cipher.doFinal(cipherBuffer, plainBuffer);
+    }
+
+    /**
+     * Initialize the current thread's GCM cipher.
+     * @param mode {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}
+     * @param key the file's key
+     * @param nonce of the message
+     * @param additionalData of the message
+     * @return the cipher
+     * @throws GeneralSecurityException if the JCA doesn't support AES-GCM.
+     */
+    private static Cipher init(int mode, SecretKeySpec key, byte[] nonce,
+            ByteBuffer additionalData) throws GeneralSecurityException {
+        Cipher cipher = cipher(transformation);
+        cipher.init(mode, key, new GCMParameterSpec(tagLength * 8, nonce));
+        cipher.updateAAD(additionalData.duplicate());
+        return cipher;
+    }
+}
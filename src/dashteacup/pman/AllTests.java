@@ -8,7 +8,10 @@ import org.junit.runners.Suite.SuiteClasses;
  * Test suite for running all the tests in my Password Manager project.
  */
 @RunWith(Suite.class)
-@SuiteClasses({ JavaEncryptionSettingsTest.class, PasswordManagerTest.class })
+@SuiteClasses({ JavaEncryptionSettingsTest.class, PasswordManagerTest.class,
+    Pbkdf2Sha256Test.class, Argon2idTest.class, EntryIndexTest.class, SealedTextTest.class,
+    PagedTextTest.class, PMCommandLineTest.class, VaultMigrationTest.class,
+    PMAgentTest.class, VaultServiceTest.class, VaultUnlockerTest.class })
 public class AllTests {
 
 }
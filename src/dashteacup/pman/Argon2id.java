@@ -0,0 +1,606 @@
+package dashteacup.pman;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * The Argon2id memory hard key derivation function (RFC 9106, version 0x13).
+ * Deriving a key fills the given amount of memory with blocks that each
+ * depend on earlier ones, so guessing passwords needs that much memory per
+ * guess as well as time, which takes away most of a GPU's advantage.
+ *
+ * The memory is split into lanes that are filled independently within each
+ * quarter (slice) of a pass, so the lanes run on separate threads. Blocks
+ * are kept in a single long array, 128 longs per 1 KiB block, which keeps
+ * the garbage collector out of the way however many blocks there are.
+ */
+final class Argon2id {
+
+    /**
+     * Argon2 version implemented.
+     */
+    private static final int version = 0x13;
+
+    /**
+     * Argon2 type number of Argon2id.
+     */
+    private static final int argon2idType = 2;
+
+    /**
+     * Number of longs in a 1 KiB block.
+     */
+    private static final int blockLongs = 128;
+
+    /**
+     * Number of slices, or synchronization points, per pass.
+     */
+    private static final int slices = 4;
+
+    /**
+     * Length of the initial hash H0 in bytes.
+     */
+    private static final int initialHashLength = 64;
+
+    /**
+     * Most lanes allowed.
+     */
+    static final int maximumLanes = 255;
+
+    /**
+     * Not instantiable.
+     */
+    private Argon2id() {
+    }
+
+    /**
+     * Derive a key from a password.
+     * @param password the password bytes
+     * @param salt to add to the password, at least 8 bytes
+     * @param secret optional key (K in RFC 9106), or null
+     * @param associatedData optional associated data (X), or null
+     * @param passes number of passes over the memory (t)
+     * @param memoryKiB amount of memory to fill in KiB (m), at least 8 per
+     * lane
+     * @param lanes number of lanes (p)
+     * @param keyLength length of the key to derive in bytes, at least 4
+     * @return the derived key
+     * @throws InvalidPasswordFileException if the memory can't be allocated.
+     */
+    static byte[] deriveKey(byte[] password, byte[] salt, byte[] secret,
+            byte[] associatedData, int passes, int memoryKiB, int lanes, int keyLength)
+            throws InvalidPasswordFileException {
+        ForkJoinPool pool = (lanes > 1 && ForkJoinPool.getCommonPoolParallelism() > 1)
+                ? ForkJoinPool.commonPool() : null;
+        return deriveKey(password, salt, secret, associatedData, passes, memoryKiB, lanes,
+                keyLength, pool);
+    }
+
+    /**
+     * Derive a key from a password, filling the lanes on a given pool.
+     * @param password the password bytes
+     * @param salt to add to the password, at least 8 bytes
+     * @param secret optional key (K in RFC 9106), or null
+     * @param associatedData optional associated data (X), or null
+     * @param passes number of passes over the memory (t)
+     * @param memoryKiB amount of memory to fill in KiB (m), at least 8 per
+     * lane
+     * @param lanes number of lanes (p)
+     * @param keyLength length of the key to derive in bytes, at least 4
+     * @param pool to fill the lanes on, or null to fill them all on the
+     * calling thread
+     * @return the derived key
+     * @throws InvalidPasswordFileException if the memory can't be allocated.
+     */
+    static byte[] deriveKey(byte[] password, byte[] salt, byte[] secret,
+            byte[] associatedData, int passes, int memoryKiB, int lanes, int keyLength,
+            ForkJoinPool pool) throws InvalidPasswordFileException {
+        if (passes < 1) {
+            throw new IllegalArgumentException("Need at least one pass.");
+        }
+        if (lanes < 1 || lanes > maximumLanes) {
+            throw new IllegalArgumentException("Invalid lane count: " + lanes);
+        }
+        if (memoryKiB < 8 * lanes) {
+            throw new IllegalArgumentException("Need at least 8 KiB of memory per lane.");
+        }
+        if (salt.length < 8 || keyLength < 4) {
+            throw new IllegalArgumentException("Salt or key too short.");
+        }
+        byte[] noBytes = new byte[0];
+        byte[] initialHash = initialHash(password, salt,
+                (secret != null) ? secret : noBytes,
+                (associatedData != null) ? associatedData : noBytes,
+                passes, memoryKiB, lanes, keyLength);
+
+        final Memory memory;
+        try {
+            memory = new Memory(passes, memoryKiB, lanes, pool);
+        }
+        catch (OutOfMemoryError e) {
+            // The memory cost comes from a header that isn't authenticated
+            // yet, so running out is the file's problem, not the program's.
+            Arrays.fill(initialHash, (byte) 0);
+            throw new InvalidPasswordFileException("Not enough memory for the key derivation: "
+                    + memoryKiB + " KiB");
+        }
+        memory.fillFirstBlocks(initialHash);
+        Arrays.fill(initialHash, (byte) 0);
+        try {
+            for (int pass = 0; pass < passes; pass++) {
+                for (int slice = 0; slice < slices; slice++) {
+                    memory.fillSlice(pass, slice);
+                }
+            }
+            return memory.finish(keyLength);
+        }
+        finally {
+            memory.wipe();
+        }
+    }
+
+    /**
+     * Compute H0, the hash of all the inputs and parameters.
+     * @param password the password bytes
+     * @param salt to add to the password
+     * @param secret key, possibly empty
+     * @param associatedData possibly empty
+     * @param passes number of passes
+     * @param memoryKiB memory size in KiB
+     * @param lanes number of lanes
+     * @param keyLength length of the derived key
+     * @return H0
+     */
+    private static byte[] initialHash(byte[] password, byte[] salt, byte[] secret,
+            byte[] associatedData, int passes, int memoryKiB, int lanes, int keyLength) {
+        Blake2b hash = new Blake2b(initialHashLength);
+        hash.updateInt(lanes);
+        hash.updateInt(keyLength);
+        hash.updateInt(memoryKiB);
+        hash.updateInt(passes);
+        hash.updateInt(version);
+        hash.updateInt(argon2idType);
+        hash.updateInt(password.length);
+        hash.update(password);
+        hash.updateInt(salt.length);
+        hash.update(salt);
+        hash.updateInt(secret.length);
+        hash.update(secret);
+        hash.updateInt(associatedData.length);
+        hash.update(associatedData);
+        byte[] result = new byte[initialHashLength];
+        hash.digest(result, 0);
+        return result;
+    }
+
+    /**
+     * The variable length hash function H' built on BLAKE2b.
+     * @param outputLength length of the output in bytes
+     * @param input first part of the message
+     * @param extra optional second part of the message, or null
+     * @return the hash
+     */
+    static byte[] variableHash(int outputLength, byte[] input, byte[] extra) {
+        byte[] output = new byte[outputLength];
+        Blake2b hash = new Blake2b(Math.min(outputLength, Blake2b.maximumOutputLength));
+        hash.updateInt(outputLength);
+        hash.update(input);
+        if (extra != null) {
+            hash.update(extra);
+        }
+        if (outputLength <= Blake2b.maximumOutputLength) {
+            hash.digest(output, 0);
+            return output;
+        }
+        // Chain 64 byte hashes, keeping the first half of each, and finish
+        // with a hash of whatever length is left.
+        byte[] chain = new byte[Blake2b.maximumOutputLength];
+        hash.digest(chain, 0);
+        int half = Blake2b.maximumOutputLength / 2;
+        int position = 0;
+        System.arraycopy(chain, 0, output, position, half);
+        position += half;
+        while (outputLength - position > Blake2b.maximumOutputLength) {
+            chain = Blake2b.hash(Blake2b.maximumOutputLength, chain);
+            System.arraycopy(chain, 0, output, position, half);
+            position += half;
+        }
+        byte[] last = Blake2b.hash(outputLength - position, chain);
+        System.arraycopy(last, 0, output, position, last.length);
+        Arrays.fill(chain, (byte) 0);
+        Arrays.fill(last, (byte) 0);
+        return output;
+    }
+
+    /**
+     * The memory being filled, with the parameters that shape it.
+     */
+    private static final class Memory {
+
+        /**
+         * All the blocks, lane after lane.
+         */
+        private final long[] blocks;
+
+        /**
+         * Number of passes.
+         */
+        private final int passes;
+
+        /**
+         * Number of lanes.
+         */
+        private final int lanes;
+
+        /**
+         * Total number of blocks (m').
+         */
+        private final int blockCount;
+
+        /**
+         * Number of blocks in each lane (q).
+         */
+        private final int laneLength;
+
+        /**
+         * Number of blocks in each segment of a lane.
+         */
+        private final int segmentLength;
+
+        /**
+         * Pool running the lanes, or null to run them all on the calling
+         * thread.
+         */
+        private final ForkJoinPool pool;
+
+        /**
+         * Set up the memory.
+         * @param passes number of passes
+         * @param memoryKiB memory size in KiB
+         * @param lanes number of lanes
+         * @param pool to fill the lanes on, or null
+         */
+        Memory(int passes, int memoryKiB, int lanes, ForkJoinPool pool) {
+            this.passes = passes;
+            this.lanes = lanes;
+            segmentLength = memoryKiB / (slices * lanes);
+            laneLength = segmentLength * slices;
+            blockCount = laneLength * lanes;
+            blocks = new long[blockCount * blockLongs];
+            this.pool = pool;
+        }
+
+        /**
+         * Compute the first two blocks of each lane from H0.
+         * @param initialHash H0
+         */
+        void fillFirstBlocks(byte[] initialHash) {
+            byte[] extra = new byte[8];
+            for (int lane = 0; lane < lanes; lane++) {
+                for (int column = 0; column < 2; column++) {
+                    writeInt(extra, 0, column);
+                    writeInt(extra, 4, lane);
+                    byte[] block = variableHash(blockLongs * 8, initialHash, extra);
+                    int base = (lane * laneLength + column) * blockLongs;
+                    for (int i = 0; i < blockLongs; i++) {
+                        blocks[base + i] = readLong(block, 8 * i);
+                    }
+                    Arrays.fill(block, (byte) 0);
+                }
+            }
+        }
+
+        /**
+         * Fill one slice of every lane. Lanes only read blocks of other
+         * lanes from earlier slices, so they can be filled at the same time.
+         * @param pass number of the current pass
+         * @param slice number of the slice in the pass
+         */
+        void fillSlice(final int pass, final int slice) {
+            if (pool == null) {
+                for (int lane = 0; lane < lanes; lane++) {
+                    fillSegment(pass, slice, lane);
+                }
+                return;
+            }
+            // Joins wait uninterruptibly: a cancelled open is noticed after the
+            // key is derived, and the pool can't be left filling freed memory.
+            ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[lanes];
+            for (int lane = 0; lane < lanes; lane++) {
+                final int laneNumber = lane;
+                tasks[lane] = pool.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        fillSegment(pass, slice, laneNumber);
+                    }
+                });
+            }
+            for (ForkJoinTask<?> task : tasks) {
+                task.join();
+            }
+        }
+
+        /**
+         * Fill one segment: the blocks of one lane in one slice.
+         * @param pass number of the current pass
+         * @param slice number of the slice in the pass
+         * @param lane number of the lane
+         */
+        private void fillSegment(int pass, int slice, int lane) {
+            long[] scratch = new long[blockLongs];
+            // Argon2id picks reference blocks independently of the data for
+            // the first half of the first pass, like Argon2i, and from the
+            // data after that, like Argon2d.
+            boolean dataIndependent = (pass == 0 && slice < slices / 2);
+            long[] addresses = null;
+            long[] addressInput = null;
+            long[] zero = null;
+            if (dataIndependent) {
+                addresses = new long[blockLongs];
+                addressInput = new long[blockLongs];
+                zero = new long[blockLongs];
+                addressInput[0] = pass;
+                addressInput[1] = lane;
+                addressInput[2] = slice;
+                addressInput[3] = blockCount;
+                addressInput[4] = passes;
+                addressInput[5] = argon2idType;
+            }
+            int start = 0;
+            if (pass == 0 && slice == 0) {
+                // The first two blocks came from H0.
+                start = 2;
+                if (dataIndependent) {
+                    nextAddresses(addressInput, addresses, zero, scratch);
+                }
+            }
+            int laneStart = lane * laneLength;
+            for (int index = start; index < segmentLength; index++) {
+                int current = laneStart + slice * segmentLength + index;
+                // The block before a lane's first is the lane's last.
+                int previous = (current == laneStart) ? laneStart + laneLength - 1 : current - 1;
+                long pseudoRandom;
+                if (dataIndependent) {
+                    if (index % blockLongs == 0) {
+                        nextAddresses(addressInput, addresses, zero, scratch);
+                    }
+                    pseudoRandom = addresses[index % blockLongs];
+                }
+                else {
+                    pseudoRandom = blocks[previous * blockLongs];
+                }
+                int refLane = (int) ((pseudoRandom >>> 32) % lanes);
+                if (pass == 0 && slice == 0) {
+                    refLane = lane;
+                }
+                int refIndex = referenceIndex(pass, slice, index, refLane == lane, pseudoRandom & 0xffffffffL);
+                int reference = refLane * laneLength + refIndex;
+                fillBlock(blocks, previous * blockLongs, blocks, reference * blockLongs,
+                        blocks, current * blockLongs, pass > 0, scratch);
+            }
+        }
+
+        /**
+         * Choose the position of the reference block within its lane.
+         * @param pass number of the current pass
+         * @param slice number of the current slice
+         * @param index of the block being filled within its segment
+         * @param sameLane true if the reference is in the lane being filled
+         * @param j1 low 32 bits of the pseudo random value
+         * @return the reference block's index within its lane
+         */
+        private int referenceIndex(int pass, int slice, int index, boolean sameLane, long j1) {
+            long areaSize;
+            if (pass == 0) {
+                if (sameLane) {
+                    areaSize = slice * segmentLength + index - 1;
+                }
+                else {
+                    areaSize = slice * segmentLength + ((index == 0) ? -1 : 0);
+                }
+            }
+            else {
+                if (sameLane) {
+                    areaSize = laneLength - segmentLength + index - 1;
+                }
+                else {
+                    areaSize = laneLength - segmentLength + ((index == 0) ? -1 : 0);
+                }
+            }
+            long x = (j1 * j1) >>> 32;
+            long y = (areaSize * x) >>> 32;
+            long relative = areaSize - 1 - y;
+            long startPosition = 0;
+            if (pass != 0 && slice != slices - 1) {
+                startPosition = (slice + 1) * segmentLength;
+            }
+            return (int) ((startPosition + relative) % laneLength);
+        }
+
+        /**
+         * XOR the last block of every lane and hash the result into the key.
+         * @param keyLength length of the key in bytes
+         * @return the key
+         */
+        byte[] finish(int keyLength) {
+            long[] last = new long[blockLongs];
+            for (int lane = 0; lane < lanes; lane++) {
+                int base = (lane * laneLength + laneLength - 1) * blockLongs;
+                for (int i = 0; i < blockLongs; i++) {
+                    last[i] ^= blocks[base + i];
+                }
+            }
+            byte[] bytes = new byte[blockLongs * 8];
+            for (int i = 0; i < blockLongs; i++) {
+                writeLong(bytes, 8 * i, last[i]);
+            }
+            byte[] key = variableHash(keyLength, bytes, null);
+            Arrays.fill(last, 0);
+            Arrays.fill(bytes, (byte) 0);
+            return key;
+        }
+
+        /**
+         * Overwrite all the blocks.
+         */
+        void wipe() {
+            Arrays.fill(blocks, 0);
+        }
+    }
+
+    /**
+     * Generate the next block of pseudo random values for data independent
+     * addressing: G(0, G(0, input)) with the input's counter incremented.
+     * @param input the address input block
+     * @param addresses receives the values
+     * @param zero a block of zeros
+     * @param scratch working space
+     */
+    private static void nextAddresses(long[] input, long[] addresses, long[] zero, long[] scratch) {
+        input[6]++;
+        fillBlock(zero, 0, input, 0, addresses, 0, false, scratch);
+        fillBlock(zero, 0, addresses, 0, addresses, 0, false, scratch);
+    }
+
+    /**
+     * The compression function G applied to two blocks, written to (or with
+     * xorInto, XORed into) a third. The output may overlap the second input.
+     * @param x array holding the first input block
+     * @param xOffset of the first input block
+     * @param y array holding the second input block
+     * @param yOffset of the second input block
+     * @param out array holding the output block
+     * @param outOffset of the output block
+     * @param xorInto true to XOR the result into the output's old contents
+     * @param r working space for one block
+     */
+    private static void fillBlock(long[] x, int xOffset, long[] y, int yOffset,
+            long[] out, int outOffset, boolean xorInto, long[] r) {
+        for (int i = 0; i < blockLongs; i++) {
+            r[i] = x[xOffset + i] ^ y[yOffset + i];
+        }
+        // Keep R = X ^ Y in the output so Z can be built in r.
+        if (xorInto) {
+            for (int i = 0; i < blockLongs; i++) {
+                out[outOffset + i] ^= r[i];
+            }
+        }
+        else {
+            System.arraycopy(r, 0, out, outOffset, blockLongs);
+        }
+        // Rows: each group of 16 consecutive longs.
+        for (int row = 0; row < 8; row++) {
+            int b = 16 * row;
+            permute(r, b, b + 1, b + 2, b + 3, b + 4, b + 5, b + 6, b + 7,
+                    b + 8, b + 9, b + 10, b + 11, b + 12, b + 13, b + 14, b + 15);
+        }
+        // Columns: pairs of longs taken from each row.
+        for (int column = 0; column < 8; column++) {
+            int b = 2 * column;
+            permute(r, b, b + 1, b + 16, b + 17, b + 32, b + 33, b + 48, b + 49,
+                    b + 64, b + 65, b + 80, b + 81, b + 96, b + 97, b + 112, b + 113);
+        }
+        for (int i = 0; i < blockLongs; i++) {
+            out[outOffset + i] ^= r[i];
+        }
+    }
+
+    /**
+     * The permutation P: one BLAKE2b round without message words, using the
+     * multiplication hardened mixing function.
+     * @param v block being permuted
+     * @param v0 index of the 1st of the 16 longs
+     * @param v1 index of the 2nd long
+     * @param v2 index of the 3rd long
+     * @param v3 index of the 4th long
+     * @param v4 index of the 5th long
+     * @param v5 index of the 6th long
+     * @param v6 index of the 7th long
+     * @param v7 index of the 8th long
+     * @param v8 index of the 9th long
+     * @param v9 index of the 10th long
+     * @param v10 index of the 11th long
+     * @param v11 index of the 12th long
+     * @param v12 index of the 13th long
+     * @param v13 index of the 14th long
+     * @param v14 index of the 15th long
+     * @param v15 index of the 16th long
+     */
+    private static void permute(long[] v, int v0, int v1, int v2, int v3, int v4, int v5,
+            int v6, int v7, int v8, int v9, int v10, int v11, int v12, int v13, int v14, int v15) {
+        mix(v, v0, v4, v8, v12);
+        mix(v, v1, v5, v9, v13);
+        mix(v, v2, v6, v10, v14);
+        mix(v, v3, v7, v11, v15);
+        mix(v, v0, v5, v10, v15);
+        mix(v, v1, v6, v11, v12);
+        mix(v, v2, v7, v8, v13);
+        mix(v, v3, v4, v9, v14);
+    }
+
+    /**
+     * Argon2's mixing function GB, BLAKE2b's G with each addition replaced
+     * by a + b + 2 * lo(a) * lo(b).
+     * @param v block holding the words
+     * @param a index of the first word
+     * @param b index of the second word
+     * @param c index of the third word
+     * @param d index of the fourth word
+     */
+    private static void mix(long[] v, int a, int b, int c, int d) {
+        long va = v[a];
+        long vb = v[b];
+        long vc = v[c];
+        long vd = v[d];
+        va = va + vb + 2 * (va & 0xffffffffL) * (vb & 0xffffffffL);
+        vd = Long.rotateRight(vd ^ va, 32);
+        vc = vc + vd + 2 * (vc & 0xffffffffL) * (vd & 0xffffffffL);
+        vb = Long.rotateRight(vb ^ vc, 24);
+        va = va + vb + 2 * (va & 0xffffffffL) * (vb & 0xffffffffL);
+        vd = Long.rotateRight(vd ^ va, 16);
+        vc = vc + vd + 2 * (vc & 0xffffffffL) * (vd & 0xffffffffL);
+        vb = Long.rotateRight(vb ^ vc, 63);
+        v[a] = va;
+        v[b] = vb;
+        v[c] = vc;
+        v[d] = vd;
+    }
+
+    /**
+     * Write a 32 bit little endian integer.
+     * @param bytes to write to
+     * @param offset of the integer
+     * @param value to write
+     */
+    private static void writeInt(byte[] bytes, int offset, int value) {
+        for (int i = 0; i < 4; i++) {
+            bytes[offset + i] = (byte) (value >>> (8 * i));
+        }
+    }
+
+    /**
+     * Write a 64 bit little endian integer.
+     * @param bytes to write to
+     * @param offset of the integer
+     * @param value to write
+     */
+    private static void writeLong(byte[] bytes, int offset, long value) {
+        for (int i = 0; i < 8; i++) {
+            bytes[offset + i] = (byte) (value >>> (8 * i));
+        }
+    }
+
+    /**
+     * Read a 64 bit little endian integer.
+     * @param bytes to read from
+     * @param offset of the integer
+     * @return the value
+     */
+    private static long readLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 7; i >= 0; i--) {
+            value = (value << 8) | (bytes[offset + i] & 0xffL);
+        }
+        return value;
+    }
+}
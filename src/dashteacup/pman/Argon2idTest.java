@@ -0,0 +1,131 @@
+package dashteacup.pman;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+/**
+ * Tests for the hand written {@link Argon2id} and the {@link Blake2b} it's
+ * built on.
+ */
+public class Argon2idTest {
+
+    /**
+     * Turn a hex string into bytes.
+     * @param hex string with an even number of digits
+     * @return the bytes
+     */
+    private static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    /**
+     * Make an array of one repeated byte.
+     * @param value of every byte
+     * @param length of the array
+     * @return the array
+     */
+    private static byte[] repeated(int value, int length) {
+        byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte) value);
+        return bytes;
+    }
+
+    @Test
+    public void blake2bAbc() {
+        // RFC 7693 appendix A.
+        byte[] expected = fromHex("ba80a53f981c4d0d6a2797b69f12f6e94c212f14685ac4b74b12bb6fdbffa2d1"
+                + "7d87c5392aab792dc252d5de4533cc9518d38aa8dbf1925ab92386edd4009923");
+        assertArrayEquals(expected, Blake2b.hash(64, "abc".getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    @Test
+    public void rfc9106Argon2id() {
+        // RFC 9106 section 5.3.
+        byte[] expected = fromHex("0d640df58d78766c08c037a34a8b53c9d01ef0452d75b65eb52520e96b01e659");
+        try {
+            byte[] tag = Argon2id.deriveKey(repeated(1, 32), repeated(2, 16), repeated(3, 8),
+                    repeated(4, 12), 3, 32, 4, 32);
+            assertArrayEquals(expected, tag);
+        }
+        catch (InvalidPasswordFileException e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void lanesDontChangeWithThreads() {
+        // The same lanes filled on one thread or several give the same key,
+        // and more than 128 blocks per segment exercise address generation.
+        // The common pool may have a single thread on a small machine, so a
+        // pool with a thread per lane is tried as well.
+        byte[] password = "password".getBytes(StandardCharsets.US_ASCII);
+        byte[] salt = repeated(7, 16);
+        ForkJoinPool singleThread = new ForkJoinPool(1);
+        ForkJoinPool threadPerLane = new ForkJoinPool(4);
+        try {
+            byte[] sequential = Argon2id.deriveKey(password, salt, null, null, 2, 4096, 4, 32,
+                    singleThread);
+            byte[] common = Argon2id.deriveKey(password, salt, null, null, 2, 4096, 4, 32,
+                    ForkJoinPool.commonPool());
+            assertArrayEquals(sequential, common);
+            byte[] parallel = Argon2id.deriveKey(password, salt, null, null, 2, 4096, 4, 32,
+                    threadPerLane);
+            assertArrayEquals(sequential, parallel);
+            byte[] oneLane = Argon2id.deriveKey(password, salt, null, null, 2, 4096, 1, 32);
+            assertEquals(false, Arrays.equals(sequential, oneLane));
+        }
+        catch (InvalidPasswordFileException e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+        finally {
+            singleThread.shutdown();
+            threadPerLane.shutdown();
+        }
+    }
+
+    @Test
+    public void headerParametersRoundTrip() {
+        KeyDerivation derivation = new KeyDerivation(KeyDerivation.ARGON2ID, 3, 65536, 4);
+        try {
+            KeyDerivation read = KeyDerivation.fromHeader(derivation.getHeaderAlgorithm(),
+                    derivation.getIterations());
+            assertEquals(derivation, read);
+        }
+        catch (InvalidPasswordFileException e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+        int[][] corrupt = {
+            { KeyDerivation.ARGON2ID | (4 << 8) | (31 << 16), 3 },
+            // 1 GiB, and 256 MiB for more passes than calibration gives it.
+            { KeyDerivation.ARGON2ID | (4 << 8) | (20 << 16), 1 },
+            { KeyDerivation.ARGON2ID | (4 << 8) | (18 << 16), 64 },
+            { KeyDerivation.ARGON2ID | (4 << 8) | (16 << 16), 1000 },
+            { KeyDerivation.ARGON2ID | (0 << 8) | (16 << 16), 3 },
+            { KeyDerivation.ARGON2ID | (4 << 8) | (16 << 16), 0 },
+            { KeyDerivation.PBKDF2_SHA256 | (4 << 8), 10000 }
+        };
+        for (int[] header : corrupt) {
+            try {
+                KeyDerivation.fromHeader(header[0], header[1]);
+                fail("Accepted a corrupt KDF header: " + Integer.toHexString(header[0]));
+            }
+            catch (InvalidPasswordFileException e) {
+                // expected
+            }
+        }
+    }
+}
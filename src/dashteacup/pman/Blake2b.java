@@ -0,0 +1,228 @@
+package dashteacup.pman;
+
+import java.util.Arrays;
+
+/**
+ * The BLAKE2b hash function (RFC 7693), unkeyed, with any output length from
+ * 1 to 64 bytes. It's only here because {@link Argon2id} is built on it and
+ * the JCA doesn't provide it.
+ */
+final class Blake2b {
+
+    /**
+     * Largest output length in bytes.
+     */
+    static final int maximumOutputLength = 64;
+
+    /**
+     * Size of a message block in bytes.
+     */
+    private static final int blockLength = 128;
+
+    /**
+     * BLAKE2b initialization vector (RFC 7693 section 2.6).
+     */
+    private static final long[] initializationVector = {
+        0x6a09e667f3bcc908L, 0xbb67ae8584caa73bL, 0x3c6ef372fe94f82bL, 0xa54ff53a5f1d36f1L,
+        0x510e527fade682d1L, 0x9b05688c2b3e6c1fL, 0x1f83d9abfb41bd6bL, 0x5be0cd19137e2179L
+    };
+
+    /**
+     * Message word schedule for each round (RFC 7693 section 2.7).
+     */
+    private static final int[][] sigma = {
+        { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15 },
+        { 14, 10, 4, 8, 9, 15, 13, 6, 1, 12, 0, 2, 11, 7, 5, 3 },
+        { 11, 8, 12, 0, 5, 2, 15, 13, 10, 14, 3, 6, 7, 1, 9, 4 },
+        { 7, 9, 3, 1, 13, 12, 11, 14, 2, 6, 5, 10, 4, 0, 15, 8 },
+        { 9, 0, 5, 7, 2, 4, 10, 15, 14, 1, 11, 12, 6, 8, 3, 13 },
+        { 2, 12, 6, 10, 0, 11, 8, 3, 4, 13, 7, 5, 15, 14, 1, 9 },
+        { 12, 5, 1, 15, 14, 13, 4, 10, 0, 7, 6, 3, 9, 2, 8, 11 },
+        { 13, 11, 7, 14, 12, 1, 3, 9, 5, 0, 15, 4, 8, 6, 2, 10 },
+        { 6, 15, 14, 9, 11, 3, 0, 8, 12, 2, 13, 7, 1, 4, 10, 5 },
+        { 10, 2, 8, 4, 7, 6, 1, 5, 15, 11, 9, 14, 3, 12, 13, 0 },
+        { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15 },
+        { 14, 10, 4, 8, 9, 15, 13, 6, 1, 12, 0, 2, 11, 7, 5, 3 }
+    };
+
+    /**
+     * Chained hash state.
+     */
+    private final long[] state;
+
+    /**
+     * Bytes waiting to be compressed. The last block is only compressed once
+     * the hash is finished, since it's flagged differently.
+     */
+    private final byte[] buffer;
+
+    /**
+     * Number of bytes in the buffer.
+     */
+    private int buffered;
+
+    /**
+     * Number of bytes compressed so far.
+     */
+    private long counter;
+
+    /**
+     * Length of the hash in bytes.
+     */
+    private final int outputLength;
+
+    /**
+     * Scratch space for the words of the block being compressed.
+     */
+    private final long[] message;
+
+    /**
+     * Scratch space for the compression function's working vector.
+     */
+    private final long[] work;
+
+    /**
+     * Start a new hash.
+     * @param outputLength length of the hash in bytes, 1 to 64
+     */
+    Blake2b(int outputLength) {
+        if (outputLength < 1 || outputLength > maximumOutputLength) {
+            throw new IllegalArgumentException("Invalid BLAKE2b output length: " + outputLength);
+        }
+        this.outputLength = outputLength;
+        state = initializationVector.clone();
+        // Parameter block: digest length, no key, fanout and depth 1.
+        state[0] ^= 0x01010000L ^ outputLength;
+        buffer = new byte[blockLength];
+        message = new long[16];
+        work = new long[16];
+    }
+
+    /**
+     * Add bytes to the message.
+     * @param data holding the bytes
+     * @param offset of the first byte
+     * @param length number of bytes
+     */
+    void update(byte[] data, int offset, int length) {
+        while (length > 0) {
+            if (buffered == blockLength) {
+                counter += blockLength;
+                compress(buffer, 0, false);
+                buffered = 0;
+            }
+            int count = Math.min(length, blockLength - buffered);
+            System.arraycopy(data, offset, buffer, buffered, count);
+            buffered += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Add all of an array to the message.
+     * @param data to add
+     */
+    void update(byte[] data) {
+        update(data, 0, data.length);
+    }
+
+    /**
+     * Add a 32 bit little endian integer to the message.
+     * @param value to add
+     */
+    void updateInt(int value) {
+        byte[] bytes = { (byte) value, (byte) (value >>> 8), (byte) (value >>> 16), (byte) (value >>> 24) };
+        update(bytes, 0, 4);
+    }
+
+    /**
+     * Finish the hash. The object can't be used after this.
+     * @param output receives the hash
+     * @param offset of the hash in the output
+     */
+    void digest(byte[] output, int offset) {
+        counter += buffered;
+        Arrays.fill(buffer, buffered, blockLength, (byte) 0);
+        compress(buffer, 0, true);
+        for (int i = 0; i < outputLength; i++) {
+            output[offset + i] = (byte) (state[i / 8] >>> (8 * (i % 8)));
+        }
+        Arrays.fill(buffer, (byte) 0);
+        Arrays.fill(state, 0);
+        Arrays.fill(message, 0);
+        Arrays.fill(work, 0);
+    }
+
+    /**
+     * Hash a whole message.
+     * @param outputLength length of the hash in bytes
+     * @param data the message
+     * @return the hash
+     */
+    static byte[] hash(int outputLength, byte[] data) {
+        Blake2b hash = new Blake2b(outputLength);
+        hash.update(data);
+        byte[] output = new byte[outputLength];
+        hash.digest(output, 0);
+        return output;
+    }
+
+    /**
+     * The BLAKE2b compression function F (RFC 7693 section 3.2).
+     * @param block holding the message block
+     * @param offset of the block
+     * @param last true for the final block
+     */
+    private void compress(byte[] block, int offset, boolean last) {
+        for (int i = 0; i < 16; i++) {
+            long word = 0;
+            for (int j = 7; j >= 0; j--) {
+                word = (word << 8) | (block[offset + 8 * i + j] & 0xffL);
+            }
+            message[i] = word;
+        }
+        long[] v = work;
+        System.arraycopy(state, 0, v, 0, 8);
+        System.arraycopy(initializationVector, 0, v, 8, 8);
+        v[12] ^= counter;
+        if (last) {
+            v[14] = ~v[14];
+        }
+        for (int round = 0; round < 12; round++) {
+            int[] s = sigma[round];
+            mix(v, 0, 4, 8, 12, message[s[0]], message[s[1]]);
+            mix(v, 1, 5, 9, 13, message[s[2]], message[s[3]]);
+            mix(v, 2, 6, 10, 14, message[s[4]], message[s[5]]);
+            mix(v, 3, 7, 11, 15, message[s[6]], message[s[7]]);
+            mix(v, 0, 5, 10, 15, message[s[8]], message[s[9]]);
+            mix(v, 1, 6, 11, 12, message[s[10]], message[s[11]]);
+            mix(v, 2, 7, 8, 13, message[s[12]], message[s[13]]);
+            mix(v, 3, 4, 9, 14, message[s[14]], message[s[15]]);
+        }
+        for (int i = 0; i < 8; i++) {
+            state[i] ^= v[i] ^ v[i + 8];
+        }
+    }
+
+    /**
+     * The BLAKE2b mixing function G.
+     * @param v working vector
+     * @param a index of the first word
+     * @param b index of the second word
+     * @param c index of the third word
+     * @param d index of the fourth word
+     * @param x first message word
+     * @param y second message word
+     */
+    private static void mix(long[] v, int a, int b, int c, int d, long x, long y) {
+        v[a] = v[a] + v[b] + x;
+        v[d] = Long.rotateRight(v[d] ^ v[a], 32);
+        v[c] = v[c] + v[d];
+        v[b] = Long.rotateRight(v[b] ^ v[c], 24);
+        v[a] = v[a] + v[b] + y;
+        v[d] = Long.rotateRight(v[d] ^ v[a], 16);
+        v[c] = v[c] + v[d];
+        v[b] = Long.rotateRight(v[b] ^ v[c], 63);
+    }
+}
@@ -0,0 +1,123 @@
+package dashteacup.pman;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+
+/**
+ * Helper methods shared by the password file readers and writers for moving
+ * whole buffers to and from a {@link FileChannel}, and for the temporary
+ * files that replace password files.
+ */
+class ChannelIO {
+
+    /**
+     * Size of the marker fields (headers and footers) in bytes.
+     */
+    private static final int markerSize = 16;
+
+    /**
+     * Private constructor since this only has static methods.
+     */
+    private ChannelIO() {}
+
+    /**
+     * Check one block of a buffer against a marker field such as a file
+     * header. The buffer is moved past the block.
+     * @param buffer positioned at the start of the block
+     * @param marker expected contents of the block. Should always be 16
+     * characters long.
+     * @return true if the block matches the marker, false otherwise.
+     */
+    static boolean matchesMarker(ByteBuffer buffer, String marker) {
+        byte[] expected = marker.getBytes();
+        boolean matches = true;
+        for (int i = 0; i < markerSize; i++) {
+            matches &= (buffer.get() == expected[i]);
+        }
+        return matches;
+    }
+
+    /**
+     * Fill a buffer from a file channel starting at a given position.
+     * @param channel to read from
+     * @param buffer to be filled up to its limit
+     * @param position in the file to start reading at
+     * @throws IOException if the end of the file is reached early or the read
+     * fails.
+     */
+    static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        long current = position;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, current);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of password file.");
+            }
+            current += read;
+        }
+    }
+
+    /**
+     * Write the remaining contents of a buffer to a file channel at its
+     * current position.
+     * @param channel to write to
+     * @param buffer whose remaining bytes are written
+     * @throws IOException if the write fails.
+     */
+    static void writeFully(FileChannel channel, ByteBuffer buffer)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Write the remaining contents of a buffer to a file channel starting at
+     * a given position. Doesn't move the channel's position, so several
+     * threads can write to different parts of a file at once.
+     * @param channel to write to
+     * @param buffer whose remaining bytes are written
+     * @param position in the file to start writing at
+     * @throws IOException if the write fails.
+     */
+    static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        long current = position;
+        while (buffer.hasRemaining()) {
+            current += channel.write(buffer, current);
+        }
+    }
+
+    /**
+     * Give a temporary file the permissions, and if possible the owner and
+     * group, of the file it's going to replace, so replacing a private file
+     * doesn't leave it readable by others. Does nothing on file systems
+     * without POSIX permissions.
+     * @param original file being replaced
+     * @param temporary file that will replace it
+     * @throws IOException if the permissions can't be read or set.
+     */
+    static void copyPermissions(Path original, Path temporary) throws IOException {
+        PosixFileAttributeView view = Files.getFileAttributeView(temporary,
+                PosixFileAttributeView.class);
+        if (view == null) {
+            return;
+        }
+        PosixFileAttributes attributes = Files.readAttributes(original,
+                PosixFileAttributes.class);
+        view.setPermissions(attributes.permissions());
+        try {
+            view.setGroup(attributes.group());
+            view.setOwner(attributes.owner());
+        }
+        catch (IOException e) {
+            // Only root can give a file away; the new file keeps our owner.
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package dashteacup.pman;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Authenticated encryption used on the segments and table of a
+ * {@link SegmentedFile}. Each engine has an id that's stored in the file's
+ * parameter block, so files written with any engine can be read back and
+ * new engines can be added without touching the file layout or the callers.
+ * Every engine uses the same nonce and tag lengths.
+ *
+ * Looking up a Cipher or Mac in the JCA providers costs more than encrypting
+ * a small segment, so instances are pooled per thread and reused. The JCA's
+ * AES implementation is compiled to the processor's AES instructions where
+ * there are any, for both GCM and CTR.
+ */
+abstract class CryptoEngine {
+
+    /**
+     * Id of {@link AesGcmEngine}. Zero, so files written before engines were
+     * recorded read as GCM.
+     */
+    static final int AES_GCM = 0;
+
+    /**
+     * Id of {@link AesCtrHmacEngine}.
+     */
+    static final int AES_CTR_HMAC = 1;
+
+    /**
+     * Length of the nonces in bytes.
+     */
+    static final int nonceLength = 12;
+
+    /**
+     * Length of the authentication tags in bytes.
+     */
+    static final int tagLength = 16;
+
+    /**
+     * The engines, by id.
+     */
+    private static final CryptoEngine[] engines = { new AesGcmEngine(), new AesCtrHmacEngine() };
+
+    /**
+     * Each thread's Cipher instances, by transformation.
+     */
+    private static final ThreadLocal<Map<String, Cipher>> ciphers = new ThreadLocal<Map<String, Cipher>>() {
+        @Override
+        protected Map<String, Cipher> initialValue() {
+            return new HashMap<String, Cipher>();
+        }
+    };
+
+    /**
+     * Each thread's Mac instances, by algorithm.
+     */
+    private static final ThreadLocal<Map<String, Mac>> macs = new ThreadLocal<Map<String, Mac>>() {
+        @Override
+        protected Map<String, Mac> initialValue() {
+            return new HashMap<String, Mac>();
+        }
+    };
+
+    /**
+     * Size of the arrays {@link #crypt} stages off heap buffers through.
+     */
+    private static final int stagingSize = 4 * 1024;
+
+    /**
+     * Each thread's staging arrays for {@link #crypt}: input, then output
+     * with room for a padding block.
+     */
+    private static final ThreadLocal<byte[][]> staging = new ThreadLocal<byte[][]>() {
+        @Override
+        protected byte[][] initialValue() {
+            return new byte[][] { new byte[stagingSize], new byte[stagingSize + 2 * 16] };
+        }
+    };
+
+    /**
+     * Get an engine by id.
+     * @param id of the engine, such as {@link #AES_GCM}
+     * @return the engine
+     * @throws IllegalArgumentException if there's no engine with the id.
+     */
+    static CryptoEngine forId(int id) {
+        if (id < 0 || id >= engines.length) {
+            throw new IllegalArgumentException("Unknown crypto engine: " + id);
+        }
+        return engines[id];
+    }
+
+    /**
+     * Get the id stored in file headers for this engine.
+     * @return the id
+     */
+    abstract int getId();
+
+    /**
+     * Encrypt and authenticate a message.
+     * @param key the file's key
+     * @param nonce unique to this message under the key
+     * @param additionalData authenticated but not encrypted. Its position
+     * isn't changed.
+     * @param plainBuffer the plain text, read to its limit
+     * @param cipherBuffer receives the cipher text followed by the tag
+     * @throws GeneralSecurityException if the JCA doesn't have an algorithm
+     * or the output doesn't fit.
+     */
+    abstract void encrypt(SecretKeySpec key, byte[] nonce, ByteBuffer additionalData,
+            ByteBuffer plainBuffer, ByteBuffer cipherBuffer) throws GeneralSecurityException;
+
+    /**
+     * Authenticate and decrypt a message.
+     * @param key the file's key
+     * @param nonce the message was encrypted with
+     * @param additionalData the message was encrypted with. Its position
+     * isn't changed.
+     * @param cipherBuffer the cipher text followed by the tag, read to its
+     * limit
+     * @param plainBuffer receives the plain text
+     * @throws AEADBadTagException if the message fails authentication.
+     * @throws GeneralSecurityException if the JCA doesn't have an algorithm
+     * or the output doesn't fit.
+     */
+    abstract void decrypt(SecretKeySpec key, byte[] nonce, ByteBuffer additionalData,
+            ByteBuffer cipherBuffer, ByteBuffer plainBuffer) throws GeneralSecurityException;
+
+    /**
+     * Run a streaming cipher, such as CTR or CBC, over a buffer. Given an off
+     * heap buffer the JCA copies all of it into temporary arrays that are
+     * never cleared, so in that case the data goes through the current
+     * thread's small staging arrays instead, which are wiped afterwards.
+     * GCM handles off heap buffers itself and shouldn't be used with this,
+     * since it holds back the whole plain text until the final call.
+     * @param cipher initialized for the message
+     * @param input read to its limit
+     * @param output receives the result
+     * @param finish true for the last part of the message
+     * @throws GeneralSecurityException if the cipher fails, for example on
+     * bad padding.
+     */
+    static void crypt(Cipher cipher, ByteBuffer input, ByteBuffer output, boolean finish)
+            throws GeneralSecurityException {
+        if (input.hasArray() && output.hasArray()) {
+            if (finish) {
+                cipher.doFinal(input, output);
+            }
+            else {
+                cipher.update(input, output);
+            }
+            return;
+        }
+        byte[][] arrays = staging.get();
+        byte[] in = arrays[0];
+        byte[] out = arrays[1];
+        try {
+            while (input.hasRemaining()) {
+                int count = Math.min(in.length, input.remaining());
+                input.get(in, 0, count);
+                output.put(out, 0, cipher.update(in, 0, count, out, 0));
+            }
+            if (finish) {
+                output.put(out, 0, cipher.doFinal(out, 0));
+            }
+        }
+        finally {
+            Arrays.fill(in, (byte) 0);
+            Arrays.fill(out, (byte) 0);
+        }
+    }
+
+    /**
+     * Get the current thread's Cipher for a transformation. It must be
+     * initialized before each use.
+     * @param transformation such as "AES/GCM/NoPadding"
+     * @return the pooled cipher
+     * @throws GeneralSecurityException if the JCA doesn't support the
+     * transformation.
+     */
+    static Cipher cipher(String transformation) throws GeneralSecurityException {
+        Map<String, Cipher> pool = ciphers.get();
+        Cipher cipher = pool.get(transformation);
+        if (cipher == null) {
+            cipher = Cipher.getInstance(transformation);
+            pool.put(transformation, cipher);
+        }
+        return cipher;
+    }
+
+    /**
+     * Get the current thread's Mac for an algorithm. It must be initialized
+     * before each use.
+     * @param algorithm such as "HmacSHA256"
+     * @return the pooled MAC
+     * @throws GeneralSecurityException if the JCA doesn't support the
+     * algorithm.
+     */
+    static Mac mac(String algorithm) throws GeneralSecurityException {
+        Map<String, Mac> pool = macs.get();
+        Mac mac = pool.get(algorithm);
+        if (mac == null) {
+            mac = Mac.getInstance(algorithm);
+            pool.put(algorithm, mac);
+        }
+        return mac;
+    }
+}
@@ -0,0 +1,292 @@
+package dashteacup.pman;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * One credential in a vault. A vault is still plain text: each entry is a
+ * block of lines separated from the next by a blank line, so files written
+ * before entries existed read as entries too. Lines like "User: alice" fill
+ * in the matching field, the first other line is the title and the rest are
+ * notes:
+ * <pre>
+ * Example Bank
+ * User: alice
+ * URL: https://bank.example.com
+ * Password: hunter2
+ * Tags: finance, personal
+ * Security questions are in the safe.
+ * </pre>
+ */
+final class Entry {
+
+    /**
+     * Field names recognized in front of a colon or equals sign, and the
+     * field each one fills.
+     */
+    private static final String[][] fieldNames = {
+        { "title", "title" }, { "name", "title" },
+        { "user", "username" }, { "username", "username" }, { "login", "username" },
+        { "email", "username" },
+        { "url", "url" }, { "site", "url" }, { "website", "url" },
+        { "password", "secret" }, { "pass", "secret" }, { "secret", "secret" },
+        { "pin", "secret" },
+        { "tags", "tags" }, { "tag", "tags" },
+        { "notes", "notes" }, { "note", "notes" }
+    };
+
+    /**
+     * The entry's block of text, exactly as it appears in the vault.
+     */
+    private final String source;
+
+    /**
+     * Title of the entry.
+     */
+    private final String title;
+
+    /**
+     * User name or login.
+     */
+    private final String username;
+
+    /**
+     * Address of the site or service.
+     */
+    private final String url;
+
+    /**
+     * The password, PIN or other secret.
+     */
+    private final String secret;
+
+    /**
+     * Anything else in the block.
+     */
+    private final String notes;
+
+    /**
+     * Tags, in the order given.
+     */
+    private final List<String> tags;
+
+    /**
+     * Offset of the block in the vault text. An entry moved by an edit
+     * before it is copied with {@link #movedTo(int)}.
+     */
+    private final int start;
+
+    /**
+     * Parse an entry from a block of text.
+     * @param source the block, without the blank lines around it
+     * @param start offset of the block in the vault text
+     */
+    Entry(String source, int start) {
+        this.source = source;
+        this.start = start;
+        String parsedTitle = "";
+        String parsedUsername = "";
+        String parsedUrl = "";
+        String parsedSecret = "";
+        StringBuilder parsedNotes = new StringBuilder();
+        List<String> parsedTags = new ArrayList<String>();
+        for (String line : source.split("\n")) {
+            String trimmed = line.trim();
+            String field = fieldOf(trimmed);
+            String value = (field == null) ? trimmed
+                    : trimmed.substring(separatorIndex(trimmed) + 1).trim();
+            if (field == null && parsedTitle.isEmpty()) {
+                field = "title";
+            }
+            else if (field == null) {
+                field = "notes";
+            }
+            if (field.equals("title")) {
+                parsedTitle = value;
+            }
+            else if (field.equals("username")) {
+                parsedUsername = value;
+            }
+            else if (field.equals("url")) {
+                parsedUrl = value;
+            }
+            else if (field.equals("secret")) {
+                parsedSecret = value;
+            }
+            else if (field.equals("tags")) {
+                for (String tag : value.split("[,\\s]+")) {
+                    if (!tag.isEmpty()) {
+                        parsedTags.add(tag);
+                    }
+                }
+            }
+            else {
+                if (parsedNotes.length() > 0) {
+                    parsedNotes.append('\n');
+                }
+                parsedNotes.append(value);
+            }
+        }
+        title = parsedTitle;
+        username = parsedUsername;
+        url = parsedUrl;
+        secret = parsedSecret;
+        notes = parsedNotes.toString();
+        tags = Collections.unmodifiableList(parsedTags);
+    }
+
+    /**
+     * Copy an entry to another place in the vault text without parsing it
+     * again.
+     * @param other entry to copy
+     * @param start offset of the copy in the vault text
+     */
+    private Entry(Entry other, int start) {
+        this.source = other.source;
+        this.start = start;
+        this.title = other.title;
+        this.username = other.username;
+        this.url = other.url;
+        this.secret = other.secret;
+        this.notes = other.notes;
+        this.tags = other.tags;
+    }
+
+    /**
+     * Find the field a line fills.
+     * @param line trimmed line of an entry
+     * @return the field's name, or null if the line doesn't name one
+     */
+    private static String fieldOf(String line) {
+        int end = separatorIndex(line);
+        if (end <= 0) {
+            return null;
+        }
+        String name = line.substring(0, end).trim().toLowerCase(Locale.ROOT);
+        for (String[] fieldName : fieldNames) {
+            if (fieldName[0].equals(name)) {
+                return fieldName[1];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find the character separating a field name from its value.
+     * @param line trimmed line of an entry
+     * @return index of the first ':' or '=', or -1 if neither is in the line
+     */
+    private static int separatorIndex(String line) {
+        int colon = line.indexOf(':');
+        int equals = line.indexOf('=');
+        if (colon < 0 || equals < 0) {
+            return Math.max(colon, equals);
+        }
+        return Math.min(colon, equals);
+    }
+
+    /**
+     * Get the entry's block of text.
+     * @return the text exactly as it appears in the vault
+     */
+    String getSource() {
+        return source;
+    }
+
+    /**
+     * Get the offset of the entry in the vault text.
+     * @return offset of the block's first character
+     */
+    int getStart() {
+        return start;
+    }
+
+    /**
+     * Get the offset just past the end of the entry in the vault text.
+     * @return offset after the block's last character
+     */
+    int getEnd() {
+        return start + source.length();
+    }
+
+    /**
+     * Get a copy of the entry at another offset, leaving this one where it
+     * is, for entries that other threads may be reading.
+     * @param newStart offset of the copy in the vault text
+     * @return the copy, or this entry if it's already there
+     */
+    Entry movedTo(int newStart) {
+        return (newStart == start) ? this : new Entry(this, newStart);
+    }
+
+    /**
+     * Get the entry's title.
+     * @return the title, or an empty string
+     */
+    String getTitle() {
+        return title;
+    }
+
+    /**
+     * Get the entry's user name.
+     * @return the user name, or an empty string
+     */
+    String getUsername() {
+        return username;
+    }
+
+    /**
+     * Get the entry's URL.
+     * @return the URL, or an empty string
+     */
+    String getUrl() {
+        return url;
+    }
+
+    /**
+     * Get the entry's secret.
+     * @return the password or other secret, or an empty string
+     */
+    String getSecret() {
+        return secret;
+    }
+
+    /**
+     * Get the entry's notes.
+     * @return the lines that aren't other fields, or an empty string
+     */
+    String getNotes() {
+        return notes;
+    }
+
+    /**
+     * Get the entry's tags.
+     * @return an unmodifiable list of tags
+     */
+    List<String> getTags() {
+        return tags;
+    }
+
+    /**
+     * Build the text searches look through: every field but the secret,
+     * lower cased.
+     * @return the searchable text, fields separated by newlines
+     */
+    String searchText() {
+        StringBuilder text = new StringBuilder(title.length() + username.length()
+                + url.length() + notes.length() + 16);
+        text.append(title).append('\n').append(username).append('\n').append(url);
+        for (String tag : tags) {
+            text.append('\n').append(tag);
+        }
+        text.append('\n').append(notes);
+        return text.toString().toLowerCase(Locale.ROOT);
+    }
+
+    @Override
+    public String toString() {
+        return username.isEmpty() ? title : title + " (" + username + ")";
+    }
+}
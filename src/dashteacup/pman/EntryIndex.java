@@ -0,0 +1,742 @@
+package dashteacup.pman;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Splits vault text into {@link Entry entries} and indexes them for case
+ * insensitive substring and prefix searches. Every three character sequence
+ * (trigram) of an entry's searchable text maps to the entries containing it,
+ * so a search only has to check the entries on the shortest list of its
+ * query's trigrams. Queries too short to have a trigram use the one and two
+ * character prefixes of words instead.
+ *
+ * Updating the index with edited text only parses the entries between the
+ * first and last characters that changed, with {@link #reparse}, which
+ * {@link VaultService.Snapshot} uses too; entries before and after them keep
+ * their place in the index, and so do unchanged ones in between, so an edit
+ * costs about as much as the entries it touched. Entries that moved are
+ * copied to their new offsets rather than changed, so the ones already
+ * handed out stay as they were. Secrets are never indexed.
+ */
+class EntryIndex {
+
+    /**
+     * Sorts entries into the order they appear in the vault.
+     */
+    private static final Comparator<Entry> byPosition = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry first, Entry second) {
+            return Integer.compare(first.getStart(), second.getStart());
+        }
+    };
+
+    /**
+     * Indexed entries by slot. Null for free slots.
+     */
+    private Entry[] entries;
+
+    /**
+     * Searchable text of each slot's entry.
+     */
+    private String[] searchTexts;
+
+    /**
+     * Slots freed by removed entries, reused before new ones are made.
+     */
+    private final Deque<Integer> freeSlots;
+
+    /**
+     * Number of slots in use, including free ones.
+     */
+    private int slotCount;
+
+    /**
+     * The text the index was last updated with.
+     */
+    private String text;
+
+    /**
+     * Slot of each entry, in vault order.
+     */
+    private int[] orderedSlots;
+
+    /**
+     * Slots of the entries containing each gram. See {@link #gram}.
+     */
+    private final Map<Long, IntList> postings;
+
+    /**
+     * All the entries in vault order.
+     */
+    private List<Entry> ordered;
+
+    /**
+     * Create an empty index.
+     */
+    EntryIndex() {
+        entries = new Entry[16];
+        searchTexts = new String[16];
+        freeSlots = new ArrayDeque<Integer>();
+        text = "";
+        orderedSlots = new int[0];
+        postings = new HashMap<Long, IntList>();
+        ordered = Collections.emptyList();
+    }
+
+    /**
+     * The entries of an edited text, worked out from the entries of the
+     * text before the edit. The old entries before {@link #kept} are
+     * unchanged and in the same place, and the ones from {@link #reused} on
+     * are unchanged but moved by {@link #delta}. The rest are parsed again.
+     */
+    static final class Reparse {
+        /**
+         * Number of old entries at the start of the text left as they were.
+         */
+        final int kept;
+
+        /**
+         * Index of the first old entry that moved without changing. It and
+         * every old entry after it are in the new text.
+         */
+        final int reused;
+
+        /**
+         * How far the reused entries moved.
+         */
+        final int delta;
+
+        /**
+         * Entries parsed from the new text between the kept and the reused
+         * ones, in vault order.
+         */
+        final List<Entry> parsed;
+
+        /**
+         * Describe an edited text's entries.
+         * @param kept number of old entries left as they were
+         * @param reused index of the first old entry moved by delta
+         * @param delta how far the reused entries moved
+         * @param parsed entries in between, in vault order
+         */
+        Reparse(int kept, int reused, int delta, List<Entry> parsed) {
+            this.kept = kept;
+            this.reused = reused;
+            this.delta = delta;
+            this.parsed = parsed;
+        }
+    }
+
+    /**
+     * Parse the entries of an edited text, only between the first and last
+     * characters that changed.
+     * @param old text before the edit
+     * @param oldEntries of the old text, in vault order
+     * @param text after the edit
+     * @return which old entries the new text shares, and its other entries
+     */
+    static Reparse reparse(String old, List<Entry> oldEntries, String text) {
+        int prefix = commonPrefix(old, text);
+        int suffix = commonSuffix(old, text, prefix);
+        int delta = text.length() - old.length();
+
+        // An entry is unchanged if everything up to the blank line that
+        // ends it is.
+        int kept = 0;
+        while (kept + 1 < oldEntries.size() && oldEntries.get(kept + 1).getStart() <= prefix) {
+            kept++;
+        }
+        // Parsing only looks ahead, so from the unchanged end of the text
+        // on, the old entries are the new ones, moved.
+        int reused = oldEntries.size();
+        List<Entry> parsed = new ArrayList<Entry>();
+        int position = (kept > 0) ? oldEntries.get(kept - 1).getEnd() + 1 : 0;
+        for (int start = nextEntry(text, position); start < text.length();) {
+            int found = (start - delta >= old.length() - suffix)
+                    ? entryAt(oldEntries, start - delta) : -1;
+            if (found >= 0) {
+                reused = found;
+                break;
+            }
+            int end = entryEnd(text, start);
+            parsed.add(new Entry(text.substring(start, end), start));
+            start = nextEntry(text, end + 1);
+        }
+        return new Reparse(kept, reused, delta, parsed);
+    }
+
+    /**
+     * Bring the index up to date with the vault text. Entries that are
+     * still in the text are kept, and only new ones are indexed.
+     * @param newText the whole vault
+     */
+    void update(CharSequence newText) {
+        String updated = newText.toString();
+        if (updated.equals(text)) {
+            return;
+        }
+        List<Entry> oldEntries = ordered;
+        Reparse edit = reparse(text, oldEntries, updated);
+        List<Entry> newOrder = new ArrayList<Entry>(oldEntries.size() + 1);
+        IntList newSlots = new IntList();
+        for (int i = 0; i < edit.kept; i++) {
+            newOrder.add(oldEntries.get(i));
+            newSlots.add(orderedSlots[i]);
+        }
+
+        // Entries in between whose text didn't change, such as ones between
+        // two edits, keep their slots too.
+        Map<String, List<Integer>> unmatched = new HashMap<String, List<Integer>>();
+        for (int i = edit.kept; i < edit.reused; i++) {
+            addSlot(unmatched, oldEntries.get(i).getSource(), orderedSlots[i]);
+        }
+        int[] slots = new int[edit.parsed.size()];
+        for (int i = 0; i < slots.length; i++) {
+            List<Integer> oldSlots = unmatched.get(edit.parsed.get(i).getSource());
+            slots[i] = (oldSlots != null && !oldSlots.isEmpty())
+                    ? oldSlots.remove(oldSlots.size() - 1) : -1;
+        }
+        // Whatever wasn't matched is gone from the text.
+        for (List<Integer> oldSlots : unmatched.values()) {
+            for (int slot : oldSlots) {
+                remove(slot);
+            }
+        }
+        for (int i = 0; i < slots.length; i++) {
+            Entry entry = edit.parsed.get(i);
+            if (slots[i] >= 0) {
+                entries[slots[i]] = entries[slots[i]].movedTo(entry.getStart());
+            }
+            else {
+                slots[i] = add(entry);
+            }
+            newOrder.add(entries[slots[i]]);
+            newSlots.add(slots[i]);
+        }
+        for (int i = edit.reused; i < oldEntries.size(); i++) {
+            int slot = orderedSlots[i];
+            entries[slot] = oldEntries.get(i).movedTo(oldEntries.get(i).getStart() + edit.delta);
+            newOrder.add(entries[slot]);
+            newSlots.add(slot);
+        }
+        text = updated;
+        ordered = Collections.unmodifiableList(newOrder);
+        orderedSlots = Arrays.copyOf(newSlots.values, newSlots.size);
+    }
+
+    /**
+     * Count the characters two texts start with in common.
+     * @param old text
+     * @param text compared with the old text
+     * @return length of the longest common prefix
+     */
+    static int commonPrefix(String old, String text) {
+        int limit = Math.min(old.length(), text.length());
+        int prefix = 0;
+        while (prefix < limit && old.charAt(prefix) == text.charAt(prefix)) {
+            prefix++;
+        }
+        return prefix;
+    }
+
+    /**
+     * Count the characters two texts end with in common, not counting any
+     * of their common prefix.
+     * @param old text
+     * @param text compared with the old text
+     * @param prefix length of their common prefix
+     * @return length of the longest common suffix that doesn't overlap the
+     * prefix in either text
+     */
+    static int commonSuffix(String old, String text, int prefix) {
+        int limit = Math.min(old.length(), text.length()) - prefix;
+        int suffix = 0;
+        while (suffix < limit && old.charAt(old.length() - 1 - suffix)
+                == text.charAt(text.length() - 1 - suffix)) {
+            suffix++;
+        }
+        return suffix;
+    }
+
+    /**
+     * Find the entry starting at an offset.
+     * @param entries in vault order
+     * @param start offset in the text
+     * @return the entry's index, or -1 if no entry starts there
+     */
+    static int entryAt(List<Entry> entries, int start) {
+        int low = 0;
+        int high = entries.size() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int found = entries.get(middle).getStart();
+            if (found == start) {
+                return middle;
+            }
+            if (found < start) {
+                low = middle + 1;
+            }
+            else {
+                high = middle - 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Split vault text into entries without indexing them, for when only
+     * their positions are needed.
+     * @param text the whole vault
+     * @return the entries in vault order
+     */
+    static List<Entry> parse(CharSequence text) {
+        List<Entry> parsed = new ArrayList<Entry>();
+        for (int start = nextEntry(text, 0); start < text.length();) {
+            int end = entryEnd(text, start);
+            parsed.add(new Entry(text.subSequence(start, end).toString(), start));
+            start = nextEntry(text, end + 1);
+        }
+        return parsed;
+    }
+
+    /**
+     * Put an entry in a vault's text, replacing the first entry with the
+     * same title or adding it at the end.
+     * @param text of the vault
+     * @param title of the entry
+     * @param lines of the entry after its title, possibly none
+     * @return the new text of the vault
+     * @throws IllegalArgumentException if the title is blank or the lines
+     * have a blank line in them, which would split the entry in two.
+     */
+    static String putEntry(String text, String title, String lines) {
+        List<Entry> entries = parse(text);
+        return putEntry(text, entries, indexOf(entries, title), title, lines);
+    }
+
+    /**
+     * Put an entry in a vault's text that has already been parsed.
+     * @param text of the vault
+     * @param entries of the text, in vault order
+     * @param index of the entry to replace, or -1 to add one at the end
+     * @param title of the entry
+     * @param lines of the entry after its title, possibly none
+     * @return the new text of the vault
+     * @throws IllegalArgumentException if the title is blank or the lines
+     * have a blank line in them, which would split the entry in two.
+     */
+    static String putEntry(String text, List<Entry> entries, int index, String title, String lines) {
+        String body = lines.trim();
+        if (title.trim().isEmpty()) {
+            throw new IllegalArgumentException("An entry needs a title.");
+        }
+        if (body.matches("(?s).*\n[ \t]*\n.*")) {
+            throw new IllegalArgumentException("An entry can't have blank lines in it.");
+        }
+        String block = body.isEmpty() ? title.trim() : title.trim() + "\n" + body;
+        if (index >= 0) {
+            Entry entry = entries.get(index);
+            return text.substring(0, entry.getStart()) + block + text.substring(entry.getEnd());
+        }
+        StringBuilder added = new StringBuilder(text.length() + block.length() + 3).append(text);
+        if (added.length() > 0) {
+            while (added.length() < 2 || added.charAt(added.length() - 1) != '\n'
+                    || added.charAt(added.length() - 2) != '\n') {
+                added.append('\n');
+            }
+        }
+        return added.append(block).append('\n').toString();
+    }
+
+    /**
+     * Take the first entry with a title out of a vault's text, along with
+     * the blank lines after it.
+     * @param text of the vault
+     * @param title of the entry, ignoring case and surrounding white space
+     * @return the new text of the vault, or the same text if no entry has
+     * the title
+     */
+    static String removeEntry(String text, String title) {
+        List<Entry> entries = parse(text);
+        return removeEntry(text, entries, indexOf(entries, title));
+    }
+
+    /**
+     * Take an entry out of a vault's text that has already been parsed.
+     * @param text of the vault
+     * @param entries of the text, in vault order
+     * @param index of the entry to remove, or -1 for none
+     * @return the new text of the vault, or the same text if the index is -1
+     */
+    static String removeEntry(String text, List<Entry> entries, int index) {
+        if (index < 0) {
+            return text;
+        }
+        Entry entry = entries.get(index);
+        if (index + 1 < entries.size()) {
+            return text.substring(0, entry.getStart()) + text.substring(entries.get(index + 1).getStart());
+        }
+        // The last entry takes the blank lines before it instead.
+        int cut = (index > 0) ? entries.get(index - 1).getEnd() + 1 : 0;
+        return text.substring(0, Math.min(cut, entry.getStart()));
+    }
+
+    /**
+     * Find the first entry with a title.
+     * @param entries in vault order
+     * @param title ignoring case and surrounding white space
+     * @return the entry's index, or -1 if none has the title
+     */
+    private static int indexOf(List<Entry> entries, String title) {
+        String name = LookupIndex.normalize(title);
+        for (int i = 0; i < entries.size(); i++) {
+            if (LookupIndex.normalize(entries.get(i).getTitle()).equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Get every entry.
+     * @return an unmodifiable list of the entries in vault order
+     */
+    List<Entry> getEntries() {
+        return ordered;
+    }
+
+    /**
+     * Get the number of entries.
+     * @return the entry count
+     */
+    int size() {
+        return ordered.size();
+    }
+
+    /**
+     * Find the entries containing some text in any field but the secret.
+     * Queries shorter than three characters match the starts of words.
+     * @param query to look for, ignoring case
+     * @return the matching entries in vault order. Every entry for an empty
+     * query.
+     */
+    List<Entry> search(String query) {
+        String lower = query.toLowerCase(Locale.ROOT);
+        if (lower.isEmpty()) {
+            return ordered;
+        }
+        if (lower.length() < 3) {
+            return searchPrefix(query);
+        }
+        return matching(lower, false);
+    }
+
+    /**
+     * Find the entries with a word starting with some text, in any field but
+     * the secret.
+     * @param prefix to look for, ignoring case
+     * @return the matching entries in vault order. Every entry for an empty
+     * prefix.
+     */
+    List<Entry> searchPrefix(String prefix) {
+        String lower = prefix.toLowerCase(Locale.ROOT);
+        if (lower.isEmpty()) {
+            return ordered;
+        }
+        return matching(lower, true);
+    }
+
+    /**
+     * Check the candidates from the query's shortest posting list.
+     * @param query lower cased, not empty
+     * @param wordStart true if the query has to start a word
+     * @return the matching entries in vault order
+     */
+    private List<Entry> matching(String query, boolean wordStart) {
+        IntList candidates = null;
+        if (query.length() < 3) {
+            candidates = postings.get(gram(query, 0, query.length()));
+        }
+        else {
+            for (int i = 0; i + 3 <= query.length(); i++) {
+                IntList list = postings.get(gram(query, i, 3));
+                if (list == null) {
+                    return Collections.emptyList();
+                }
+                if (candidates == null || list.size < candidates.size) {
+                    candidates = list;
+                }
+            }
+        }
+        if (candidates == null) {
+            return Collections.emptyList();
+        }
+        List<Entry> results = new ArrayList<Entry>();
+        for (int i = 0; i < candidates.size; i++) {
+            int slot = candidates.values[i];
+            if (contains(searchTexts[slot], query, wordStart)) {
+                results.add(entries[slot]);
+            }
+        }
+        Collections.sort(results, byPosition);
+        return results;
+    }
+
+    /**
+     * Check if text contains a query.
+     * @param text to look in
+     * @param query to look for
+     * @param wordStart true if the query has to start a word
+     * @return true if the text contains the query
+     */
+    private static boolean contains(String text, String query, boolean wordStart) {
+        int found = text.indexOf(query);
+        if (!wordStart) {
+            return found >= 0;
+        }
+        while (found >= 0) {
+            if (isWordStart(text, found)) {
+                return true;
+            }
+            found = text.indexOf(query, found + 1);
+        }
+        return false;
+    }
+
+    /**
+     * Put an entry in a free slot and index it.
+     * @param entry to add
+     * @return the entry's slot
+     */
+    private int add(Entry entry) {
+        int slot;
+        if (!freeSlots.isEmpty()) {
+            slot = freeSlots.pop();
+        }
+        else {
+            if (slotCount == entries.length) {
+                entries = Arrays.copyOf(entries, 2 * slotCount);
+                searchTexts = Arrays.copyOf(searchTexts, 2 * slotCount);
+            }
+            slot = slotCount++;
+        }
+        entries[slot] = entry;
+        searchTexts[slot] = entry.searchText();
+        for (long key : grams(searchTexts[slot])) {
+            IntList list = postings.get(key);
+            if (list == null) {
+                list = new IntList();
+                postings.put(key, list);
+            }
+            list.add(slot);
+        }
+        return slot;
+    }
+
+    /**
+     * Take an entry out of the index and free its slot.
+     * @param slot of the entry
+     */
+    private void remove(int slot) {
+        for (long key : grams(searchTexts[slot])) {
+            IntList list = postings.get(key);
+            list.remove(slot);
+            if (list.size == 0) {
+                postings.remove(key);
+            }
+        }
+        entries[slot] = null;
+        searchTexts[slot] = null;
+        freeSlots.push(slot);
+    }
+
+    /**
+     * Find the distinct grams of an entry's searchable text: every trigram,
+     * and the first one and two characters of every word.
+     * @param text searchable text
+     * @return the grams, each once
+     */
+    private static long[] grams(String text) {
+        long[] keys = new long[3 * text.length()];
+        int count = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (i + 3 <= text.length()) {
+                keys[count++] = gram(text, i, 3);
+            }
+            if (isWordStart(text, i)) {
+                keys[count++] = gram(text, i, 1);
+                if (i + 2 <= text.length()) {
+                    keys[count++] = gram(text, i, 2);
+                }
+            }
+        }
+        Arrays.sort(keys, 0, count);
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (distinct == 0 || keys[i] != keys[distinct - 1]) {
+                keys[distinct++] = keys[i];
+            }
+        }
+        return Arrays.copyOf(keys, distinct);
+    }
+
+    /**
+     * Pack up to three characters into a gram key, along with their count
+     * so a word prefix never collides with a trigram.
+     * @param text holding the characters
+     * @param start of the first character
+     * @param length number of characters, 1 to 3
+     * @return the key
+     */
+    private static long gram(String text, int start, int length) {
+        long key = length;
+        for (int i = 0; i < length; i++) {
+            key = (key << 16) | text.charAt(start + i);
+        }
+        return key;
+    }
+
+    /**
+     * Check if a character starts a word.
+     * @param text holding the character
+     * @param index of the character
+     * @return true if it's a letter or digit after anything else
+     */
+    private static boolean isWordStart(String text, int index) {
+        return Character.isLetterOrDigit(text.charAt(index))
+                && (index == 0 || !Character.isLetterOrDigit(text.charAt(index - 1)));
+    }
+
+    /**
+     * Skip blank lines to the start of the next entry.
+     * @param text the whole vault
+     * @param start of a line
+     * @return the start of the next entry, or the text's length if there
+     * are no more
+     */
+    static int nextEntry(CharSequence text, int start) {
+        while (start < text.length()) {
+            int end = lineEnd(text, start);
+            if (!isBlank(text, start, end)) {
+                return start;
+            }
+            start = end + 1;
+        }
+        return text.length();
+    }
+
+    /**
+     * Find the end of an entry, which runs until the next blank line.
+     * @param text the whole vault
+     * @param start of the entry's first line
+     * @return the end of the entry's last line
+     */
+    static int entryEnd(CharSequence text, int start) {
+        int end = lineEnd(text, start);
+        int position = end + 1;
+        while (position < text.length()) {
+            int lineEnd = lineEnd(text, position);
+            if (isBlank(text, position, lineEnd)) {
+                break;
+            }
+            end = lineEnd;
+            position = lineEnd + 1;
+        }
+        return end;
+    }
+
+    /**
+     * Find the end of a line.
+     * @param text holding the line
+     * @param start of the line
+     * @return index of the line's newline, or the text's length for the last
+     * line
+     */
+    private static int lineEnd(CharSequence text, int start) {
+        int end = start;
+        while (end < text.length() && text.charAt(end) != '\n') {
+            end++;
+        }
+        return end;
+    }
+
+    /**
+     * Check if a line is blank.
+     * @param text holding the line
+     * @param start of the line
+     * @param end of the line
+     * @return true if the line is empty or only white space
+     */
+    private static boolean isBlank(CharSequence text, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (!Character.isWhitespace(text.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Add a slot to the slots holding an entry text.
+     * @param slots by entry text
+     * @param source the entry's text
+     * @param slot to add
+     */
+    private static void addSlot(Map<String, List<Integer>> slots, String source, int slot) {
+        List<Integer> list = slots.get(source);
+        if (list == null) {
+            list = new ArrayList<Integer>(1);
+            slots.put(source, list);
+        }
+        list.add(slot);
+    }
+
+    /**
+     * A growable list of ints, in no particular order.
+     */
+    private static final class IntList {
+
+        /**
+         * The values, valid up to size.
+         */
+        int[] values = new int[4];
+
+        /**
+         * Number of values.
+         */
+        int size;
+
+        /**
+         * Add a value.
+         * @param value to add
+         */
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, 2 * size);
+            }
+            values[size++] = value;
+        }
+
+        /**
+         * Remove a value, moving the last value into its place.
+         * @param value to remove
+         */
+        void remove(int value) {
+            for (int i = 0; i < size; i++) {
+                if (values[i] == value) {
+                    values[i] = values[--size];
+                    return;
+                }
+            }
+        }
+    }
+}
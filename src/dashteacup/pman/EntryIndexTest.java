@@ -0,0 +1,146 @@
+package dashteacup.pman;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests for parsing vault text into {@link Entry entries} and searching them
+ * with an {@link EntryIndex}.
+ */
+public class EntryIndexTest {
+
+    /**
+     * A small vault with three entries.
+     */
+    private static final String vault = "Example Bank\n"
+            + "User: alice\n"
+            + "URL: https://bank.example.com\n"
+            + "Password: hunter2\n"
+            + "Tags: finance, personal\n"
+            + "Security questions are in the safe.\n"
+            + "\n"
+            + "Mail\n"
+            + "login = alice@mail.example.org\n"
+            + "pass = correct horse\n"
+            + "\n"
+            + "\n"
+            + "Wifi at home\n"
+            + "PIN: 4242";
+
+    @Test
+    public void parsesFields() {
+        EntryIndex index = new EntryIndex();
+        index.update(vault);
+        List<Entry> entries = index.getEntries();
+        assertEquals(3, entries.size());
+        Entry bank = entries.get(0);
+        assertEquals("Example Bank", bank.getTitle());
+        assertEquals("alice", bank.getUsername());
+        assertEquals("https://bank.example.com", bank.getUrl());
+        assertEquals("hunter2", bank.getSecret());
+        assertEquals(Arrays.asList("finance", "personal"), bank.getTags());
+        assertEquals("Security questions are in the safe.", bank.getNotes());
+        assertEquals(0, bank.getStart());
+        Entry mail = entries.get(1);
+        assertEquals("alice@mail.example.org", mail.getUsername());
+        assertEquals("correct horse", mail.getSecret());
+        assertEquals(vault.indexOf("Mail"), mail.getStart());
+        assertEquals(vault.indexOf("\n", vault.indexOf("pass")), mail.getEnd());
+        assertEquals("4242", entries.get(2).getSecret());
+    }
+
+    @Test
+    public void searchesSubstringsAndPrefixes() {
+        EntryIndex index = new EntryIndex();
+        index.update(vault);
+        List<Entry> entries = index.getEntries();
+        assertEquals(Arrays.asList(entries.get(0), entries.get(1)), index.search("ALICE"));
+        assertEquals(Arrays.asList(entries.get(0)), index.search("questions are"));
+        assertEquals(Arrays.asList(entries.get(1)), index.search("mail.exa"));
+        // Short queries and prefix searches match the start of words.
+        assertEquals(Arrays.asList(entries.get(2)), index.search("wi"));
+        assertEquals(Arrays.asList(entries.get(0)), index.searchPrefix("fin"));
+        assertEquals(0, index.searchPrefix("ank").size());
+        assertEquals(Arrays.asList(entries.get(0)), index.search("ank"));
+        // Secrets aren't searchable.
+        assertEquals(0, index.search("hunter2").size());
+        assertEquals(0, index.search("horse").size());
+        assertEquals(3, index.search("").size());
+    }
+
+    @Test
+    public void updateKeepsUnchangedEntries() {
+        EntryIndex index = new EntryIndex();
+        index.update(vault);
+        Entry bank = index.getEntries().get(0);
+        Entry wifi = index.getEntries().get(2);
+        String edited = "New entry\nUser: bob\n\n" + vault.replace("Mail\n", "Webmail\n");
+        index.update(edited);
+        List<Entry> entries = index.getEntries();
+        assertEquals(4, entries.size());
+        assertEquals("New entry", entries.get(0).getTitle());
+        // Moved entries are copies that aren't parsed again, and the ones
+        // handed out earlier stay where they were.
+        assertSame(bank.getSource(), entries.get(1).getSource());
+        assertEquals(edited.indexOf("Example Bank"), entries.get(1).getStart());
+        assertEquals(0, bank.getStart());
+        assertEquals("Webmail", entries.get(2).getTitle());
+        assertSame(wifi.getSource(), entries.get(3).getSource());
+        assertEquals(edited.indexOf("Wifi at home"), entries.get(3).getStart());
+        assertEquals(1, index.search("mail").size());
+        assertEquals(Arrays.asList(entries.get(2)), index.search("webmail"));
+        assertEquals(Arrays.asList(entries.get(0)), index.search("bob"));
+        assertEquals(Arrays.asList(entries.get(3)), index.search("home"));
+
+        index.update("Wifi at home\nPIN: 4242\n\nWifi at home\nPIN: 4242\n");
+        assertEquals(2, index.size());
+        assertSame(wifi.getSource(), index.getEntries().get(0).getSource());
+        assertEquals(2, index.search("home").size());
+        assertEquals(0, index.search("alice").size());
+    }
+
+    @Test
+    public void updateMatchesParsing() {
+        // Every edit, wherever it is, leaves the same entries as parsing the
+        // edited text from scratch.
+        String[] inserts = { "x", "\n", "\n\n", "Extra\nUser: carol\n\n" };
+        for (int at = 0; at <= vault.length(); at++) {
+            for (String insert : inserts) {
+                String edited = vault.substring(0, at) + insert + vault.substring(at);
+                String cut = vault.substring(0, at) + vault.substring(Math.min(vault.length(), at + 3));
+                for (String text : new String[] { edited, cut }) {
+                    EntryIndex index = new EntryIndex();
+                    index.update(vault);
+                    index.update(text);
+                    List<Entry> expected = EntryIndex.parse(text);
+                    List<Entry> entries = index.getEntries();
+                    assertEquals(expected.size(), entries.size());
+                    for (int i = 0; i < expected.size(); i++) {
+                        assertEquals(expected.get(i).getSource(), entries.get(i).getSource());
+                        assertEquals(expected.get(i).getStart(), entries.get(i).getStart());
+                    }
+                    EntryIndex fresh = new EntryIndex();
+                    fresh.update(text);
+                    for (String query : new String[] { "alice", "mail", "ex", "home" }) {
+                        assertEquals(fresh.search(query).size(), index.search(query).size());
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void passwordManagerFindsEntries() {
+        PasswordManager pm = new PasswordManager(vault);
+        assertEquals(2, pm.findEntries("alice").size());
+        pm.setText(vault + "\n\nAnother\nUser: alice");
+        assertEquals(3, pm.findEntries("alice").size());
+        assertTrue(pm.findEntries("nobody").isEmpty());
+    }
+}
@@ -0,0 +1,147 @@
+package dashteacup.pman;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A file's key as handed to the {@link CryptoEngine engines}, along with the
+ * sub-keys derived from it. A sub-key is the HMAC-SHA256 of a fixed label
+ * under the file's key, and is used wherever the file's key would otherwise
+ * have been used with a second algorithm. Each is derived the first time
+ * it's asked for and kept until {@link Subkeys#wipe()}, so engines that
+ * need one for every segment don't pay two extra HMACs per segment for it.
+ *
+ * A {@link SessionKey} makes a new one for each open or save, and they all
+ * share the session's {@link Subkeys}, which it wipes when it's destroyed.
+ * The JCA copies the key into every {@link SecretKeySpec} and offers no way
+ * to clear that copy, so these are never kept past the operation they were
+ * made for; the only long lived copy of the key is the session's own array.
+ * Plain {@link SecretKeySpec}s still work with
+ * {@link #subkey(SecretKeySpec, String, String)}; their sub-keys are just
+ * derived again every time.
+ */
+final class FileKey extends SecretKeySpec {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * MAC algorithm sub-keys are derived with.
+     */
+    private static final String derivationAlgorithm = "HmacSHA256";
+
+    /**
+     * Sub-keys shared with the other file keys of the same session.
+     */
+    private final transient Subkeys subkeys;
+
+    /**
+     * Create a file key. The array is copied.
+     * @param key raw bytes of the file's key
+     * @param algorithm the key is meant for, such as "AES"
+     * @param subkeys cache of the key's sub-keys
+     */
+    FileKey(byte[] key, String algorithm, Subkeys subkeys) {
+        super(key, algorithm);
+        this.subkeys = subkeys;
+    }
+
+    /**
+     * Get a sub-key of a key, from the key's cache if it's a FileKey.
+     * @param key the file's key
+     * @param label naming the sub-key
+     * @param algorithm the sub-key is meant for
+     * @return the sub-key
+     * @throws GeneralSecurityException if the JCA doesn't support
+     * HMAC-SHA256.
+     * @throws IllegalStateException if the key has been wiped.
+     */
+    static SecretKeySpec subkey(SecretKeySpec key, String label, String algorithm)
+            throws GeneralSecurityException {
+        if (key instanceof FileKey) {
+            return ((FileKey) key).subkey(label, algorithm);
+        }
+        byte[] raw = derive(key, label);
+        try {
+            return new SecretKeySpec(raw, algorithm);
+        }
+        finally {
+            Arrays.fill(raw, (byte) 0);
+        }
+    }
+
+    /**
+     * Get one of this key's sub-keys, deriving it if it hasn't been yet.
+     * Safe to call from several threads at once.
+     * @param label naming the sub-key
+     * @param algorithm the sub-key is meant for
+     * @return the sub-key
+     * @throws GeneralSecurityException if the JCA doesn't support
+     * HMAC-SHA256.
+     * @throws IllegalStateException if the key has been wiped.
+     */
+    SecretKeySpec subkey(String label, String algorithm) throws GeneralSecurityException {
+        Map<String, byte[]> cache = subkeys.derived;
+        if (cache == null) {
+            throw new IllegalStateException("File key has been wiped.");
+        }
+        byte[] raw = cache.get(label);
+        if (raw == null) {
+            raw = derive(this, label);
+            byte[] other = cache.putIfAbsent(label, raw);
+            if (other != null) {
+                // Another thread got there first.
+                Arrays.fill(raw, (byte) 0);
+                raw = other;
+            }
+        }
+        return new SecretKeySpec(raw, algorithm);
+    }
+
+    /**
+     * Derive a sub-key.
+     * @param key the file's key
+     * @param label naming the sub-key
+     * @return the sub-key's bytes. The caller should clear them.
+     * @throws GeneralSecurityException if the JCA doesn't support
+     * HMAC-SHA256.
+     */
+    private static byte[] derive(SecretKeySpec key, String label)
+            throws GeneralSecurityException {
+        Mac mac = CryptoEngine.mac(derivationAlgorithm);
+        mac.init(key);
+        return mac.doFinal(label.getBytes());
+    }
+
+    /**
+     * The sub-keys of one session's key, derived the first time they're
+     * asked for.
+     */
+    static final class Subkeys {
+
+        /**
+         * Raw bytes of the sub-keys derived so far, by label. Null once
+         * wiped.
+         */
+        private volatile Map<String, byte[]> derived = new ConcurrentHashMap<String, byte[]>();
+
+        /**
+         * Overwrite the sub-keys derived so far. No more can be derived
+         * after this.
+         */
+        void wipe() {
+            Map<String, byte[]> cache = derived;
+            derived = null;
+            if (cache != null) {
+                for (byte[] raw : cache.values()) {
+                    Arrays.fill(raw, (byte) 0);
+                }
+                cache.clear();
+            }
+        }
+    }
+}
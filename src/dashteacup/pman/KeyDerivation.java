@@ -0,0 +1,546 @@
+package dashteacup.pman;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * The password based key derivation function (KDF) used for a password file,
+ * along with its cost. Segmented files store both in their header, so the
+ * cost can be raised for new files without breaking old ones. The cost of
+ * new files is calibrated to take about the same time on every machine.
+ *
+ * Argon2id also has a memory cost and a number of lanes. Both are packed
+ * into the upper bytes of the header's KDF id, and its number of passes goes
+ * where PBKDF2's iteration count does, so the header layout stays the same.
+ */
+class KeyDerivation {
+
+    /**
+     * Id of PBKDF2 with HMAC-SHA1, the only KDF used by version 1 files.
+     */
+    static final int PBKDF2_SHA1 = 1;
+
+    /**
+     * Id of PBKDF2 with HMAC-SHA256. Used for new files.
+     */
+    static final int PBKDF2_SHA256 = 2;
+
+    /**
+     * Id of Argon2id, a memory hard KDF that can be chosen for new files.
+     */
+    static final int ARGON2ID = 3;
+
+    /**
+     * Number of PBKDF2 iterations used by version 1 files.
+     */
+    static final int legacyIterations = 6000;
+
+    /**
+     * Fewest iterations calibration will choose. New files are never weaker
+     * than version 1 files, however slow the machine.
+     */
+    static final int minimumIterations = legacyIterations;
+
+    /**
+     * Most iterations accepted from a file header, so a corrupt header can't
+     * hang the application.
+     */
+    static final int maximumIterations = 50000000;
+
+    /**
+     * Time it should take to unlock a new file on this machine.
+     */
+    static final long defaultTargetMillis = 250;
+
+    /**
+     * Most Argon2id passes calibration chooses, and so the most accepted from
+     * a file header.
+     */
+    static final int maximumPasses = 64;
+
+    /**
+     * Most memory Argon2id may use in KiB, 256 MiB. A larger memory cost in a
+     * header is taken to be corruption rather than allocated. Calibration
+     * itself never goes over {@link #defaultMemoryKiB}.
+     */
+    static final int maximumMemoryKiB = 256 * 1024;
+
+    /**
+     * Memory calibration gives Argon2id when the heap allows it, in KiB.
+     * 64 MiB is the second recommended setting of RFC 9106.
+     */
+    static final int defaultMemoryKiB = 64 * 1024;
+
+    /**
+     * Most memory Argon2id may fill over all its passes in KiB: the most
+     * passes calibration chooses over the most memory it gives. The header
+     * isn't authenticated until the key is derived, so this bounds the time
+     * a corrupt or hostile one can take.
+     */
+    static final long maximumWorkKiB = (long) maximumPasses * defaultMemoryKiB;
+
+    /**
+     * Least memory calibration gives Argon2id however small the heap is, in
+     * KiB.
+     */
+    static final int minimumMemoryKiB = 8 * 1024;
+
+    /**
+     * Most lanes calibration gives Argon2id. More lanes only help if there
+     * are cores to run them, and cost an attacker nothing extra.
+     */
+    static final int defaultLanes = 4;
+
+    /**
+     * Length of the derived keys in bits.
+     */
+    private static final int keyLength = 256;
+
+    /**
+     * Names of the KDFs by id, used when printing them.
+     */
+    private static final String[] algorithmNames = { null, "pbkdf2-sha1", "pbkdf2-sha256", "argon2id" };
+
+    /**
+     * Name of the JCA's PBKDF2 with HMAC-SHA1 implementation.
+     */
+    private static final String pbkdf2Sha1Algorithm = "PBKDF2WithHmacSHA1";
+
+    /**
+     * Name of the JCA's PBKDF2 with HMAC-SHA256 implementation. Older JREs
+     * don't have it.
+     */
+    private static final String pbkdf2Sha256Algorithm = "PBKDF2WithHmacSHA256";
+
+    /**
+     * Iterations run for each timing when choosing between the JCA's
+     * PBKDF2-HMAC-SHA256 and {@link Pbkdf2Sha256}.
+     */
+    private static final int engineTrialIterations = 5000;
+
+    /**
+     * Iterations run for each timing while calibrating. Large enough to time
+     * accurately, small enough not to hold up the first save.
+     */
+    private static final int calibrationIterations = 20000;
+
+    /**
+     * Number of timings taken while calibrating. The fastest one is used,
+     * since slower ones mostly measure the JIT and the scheduler.
+     */
+    private static final int calibrationRuns = 3;
+
+    /**
+     * Calibrated iteration counts are rounded to a multiple of this.
+     */
+    private static final int iterationStep = 1000;
+
+    /**
+     * Costs calibrated for this machine by {@link #calibrated(int)}, by KDF
+     * id.
+     */
+    private static final KeyDerivation[] calibrated = new KeyDerivation[algorithmNames.length];
+
+    /**
+     * True if the JCA's PBKDF2-HMAC-SHA256 is faster than
+     * {@link Pbkdf2Sha256} on this JVM. Null until it has been timed.
+     */
+    private static Boolean jcaSha256Faster;
+
+    /**
+     * Id of the KDF.
+     */
+    private final int algorithm;
+
+    /**
+     * Number of iterations the KDF runs, or for Argon2id the number of
+     * passes over its memory.
+     */
+    private final int iterations;
+
+    /**
+     * Memory Argon2id fills in KiB. Zero for PBKDF2.
+     */
+    private final int memoryKiB;
+
+    /**
+     * Number of Argon2id lanes, which can be filled in parallel. Zero for
+     * PBKDF2.
+     */
+    private final int lanes;
+
+    /**
+     * Create a PBKDF2 key derivation.
+     * @param algorithm id of the KDF, {@link #PBKDF2_SHA1} or
+     * {@link #PBKDF2_SHA256}
+     * @param iterations the KDF runs
+     */
+    KeyDerivation(int algorithm, int iterations) {
+        this(algorithm, iterations, 0, 0);
+    }
+
+    /**
+     * Create a key derivation.
+     * @param algorithm id of the KDF, such as {@link #ARGON2ID}
+     * @param iterations the KDF runs, or Argon2id's passes
+     * @param memoryKiB Argon2id's memory cost, a power of two. Zero for
+     * PBKDF2.
+     * @param lanes Argon2id's number of lanes. Zero for PBKDF2.
+     */
+    KeyDerivation(int algorithm, int iterations, int memoryKiB, int lanes) {
+        if (algorithm == ARGON2ID) {
+            if (iterations < 1 || iterations > maximumPasses) {
+                throw new IllegalArgumentException("Invalid pass count: " + iterations);
+            }
+            if (lanes < 1 || lanes > Argon2id.maximumLanes) {
+                throw new IllegalArgumentException("Invalid lane count: " + lanes);
+            }
+            if (Integer.bitCount(memoryKiB) != 1 || memoryKiB > maximumMemoryKiB
+                    || memoryKiB < 8 * lanes) {
+                throw new IllegalArgumentException("Invalid memory cost: " + memoryKiB + " KiB");
+            }
+            if ((long) memoryKiB * iterations > maximumWorkKiB) {
+                throw new IllegalArgumentException("Invalid cost: " + iterations
+                        + " passes over " + memoryKiB + " KiB");
+            }
+        }
+        else if (algorithm == PBKDF2_SHA1 || algorithm == PBKDF2_SHA256) {
+            if (iterations < 1 || iterations > maximumIterations) {
+                throw new IllegalArgumentException("Invalid iteration count: " + iterations);
+            }
+            if (memoryKiB != 0 || lanes != 0) {
+                throw new IllegalArgumentException("PBKDF2 has no memory cost.");
+            }
+        }
+        else {
+            throw new IllegalArgumentException("Unknown key derivation function: " + algorithm);
+        }
+        this.algorithm = algorithm;
+        this.iterations = iterations;
+        this.memoryKiB = memoryKiB;
+        this.lanes = lanes;
+    }
+
+    /**
+     * Get the key derivation used by version 1 files.
+     * @return PBKDF2 with HMAC-SHA1 at 6000 iterations
+     */
+    static KeyDerivation legacy() {
+        return new KeyDerivation(PBKDF2_SHA1, legacyIterations);
+    }
+
+    /**
+     * Create the key derivation described by a file header. Zeros stand for
+     * the version 1 function and cost.
+     * @param algorithm id of the KDF from the header, with any packed
+     * parameters as written by {@link #getHeaderAlgorithm()}
+     * @param iterations from the header
+     * @return the key derivation
+     * @throws InvalidPasswordFileException if the header names an unknown
+     * KDF or an unreasonable cost.
+     */
+    static KeyDerivation fromHeader(int algorithm, int iterations)
+            throws InvalidPasswordFileException {
+        if (algorithm == 0 && iterations == 0) {
+            return legacy();
+        }
+        try {
+            int id = algorithm & 0xff;
+            if (id == ARGON2ID) {
+                int lanes = (algorithm >>> 8) & 0xff;
+                int memoryLog = algorithm >>> 16;
+                if (memoryLog > 30) {
+                    throw new IllegalArgumentException("Invalid memory cost.");
+                }
+                return new KeyDerivation(id, iterations, 1 << memoryLog, lanes);
+            }
+            return new KeyDerivation(algorithm, iterations);
+        }
+        catch (IllegalArgumentException e) {
+            throw new InvalidPasswordFileException(e.getMessage());
+        }
+    }
+
+    /**
+     * Get the key derivation for new files, calibrated the first time it's
+     * needed to take about {@link #defaultTargetMillis} on this machine.
+     * @return the calibrated key derivation
+     */
+    static KeyDerivation calibrated() {
+        return calibrated(PBKDF2_SHA256);
+    }
+
+    /**
+     * Get a KDF's cost for new files, calibrated the first time it's needed
+     * to take about {@link #defaultTargetMillis} on this machine.
+     * @param algorithm id of the KDF
+     * @return the calibrated key derivation
+     */
+    static synchronized KeyDerivation calibrated(int algorithm) {
+        if (calibrated[algorithm] == null) {
+            calibrated[algorithm] = calibrate(algorithm, defaultTargetMillis);
+        }
+        return calibrated[algorithm];
+    }
+
+    /**
+     * Time a KDF on this machine and choose the cost that makes deriving a
+     * key take about the given time. PBKDF2's run time is proportional to
+     * its iteration count, so a short timing is simply scaled up.
+     * @param algorithm id of the KDF
+     * @param targetMillis time deriving a key should take
+     * @return the key derivation, never cheaper than version 1 files
+     */
+    static KeyDerivation calibrate(int algorithm, long targetMillis) {
+        long target = targetMillis * 1000000L;
+        if (algorithm == ARGON2ID) {
+            return calibrateArgon2id(target);
+        }
+        long fastest = fastestRun(new KeyDerivation(algorithm, calibrationIterations));
+        long scaled = calibrationIterations * target / Math.max(1, fastest);
+        scaled = (scaled / iterationStep) * iterationStep;
+        scaled = Math.max(minimumIterations, Math.min(maximumIterations, scaled));
+        return new KeyDerivation(algorithm, (int) scaled);
+    }
+
+    /**
+     * Choose Argon2id's cost. Memory is what makes guessing expensive, so it
+     * gets as much as the heap can spare up to {@link #defaultMemoryKiB},
+     * halved while a single pass takes longer than the target. The rest of
+     * the time goes to extra passes.
+     * @param target time deriving a key should take in nanoseconds
+     * @return the key derivation
+     */
+    private static KeyDerivation calibrateArgon2id(long target) {
+        int lanes = Math.min(defaultLanes, Runtime.getRuntime().availableProcessors());
+        long spare = Runtime.getRuntime().maxMemory() / 4 / 1024;
+        int memory = defaultMemoryKiB;
+        while (memory > minimumMemoryKiB && memory > spare) {
+            memory /= 2;
+        }
+        long fastest = fastestRun(new KeyDerivation(ARGON2ID, 1, memory, lanes));
+        while (fastest > target && memory > minimumMemoryKiB) {
+            memory /= 2;
+            fastest /= 2;
+        }
+        long passes = Math.max(1, Math.min(maximumPasses, target / Math.max(1, fastest)));
+        return new KeyDerivation(ARGON2ID, (int) passes, memory, lanes);
+    }
+
+    /**
+     * Time a key derivation a few times.
+     * @param probe the key derivation to time
+     * @return the fastest time in nanoseconds
+     */
+    private static long fastestRun(KeyDerivation probe) {
+        byte[] salt = new byte[16];
+        long fastest = Long.MAX_VALUE;
+        for (int i = 0; i < calibrationRuns; i++) {
+            long start = System.nanoTime();
+            byte[] key;
+            try {
+                key = probe.deriveKey("calibration".toCharArray(), salt);
+            }
+            catch (InvalidPasswordFileException e) {
+                // Calibration only asks for memory the heap can spare.
+                throw new IllegalStateException(e.getMessage(), e);
+            }
+            fastest = Math.min(fastest, System.nanoTime() - start);
+            Arrays.fill(key, (byte) 0);
+        }
+        return fastest;
+    }
+
+    /**
+     * Derive a key from a password.
+     * @param password to derive the key from. The caller should clear it.
+     * @param salt to add to the password
+     * @return the raw key bytes. The caller should clear them when done.
+     * @throws InvalidPasswordFileException if there isn't enough memory for
+     * Argon2id's memory cost.
+     */
+    byte[] deriveKey(char[] password, byte[] salt) throws InvalidPasswordFileException {
+        if (algorithm == ARGON2ID) {
+            byte[] passwordBytes = encodePassword(password);
+            try {
+                return Argon2id.deriveKey(passwordBytes, salt, null, null,
+                        iterations, memoryKiB, lanes, keyLength / 8);
+            }
+            finally {
+                Arrays.fill(passwordBytes, (byte) 0);
+            }
+        }
+        if (algorithm == PBKDF2_SHA256 && !jcaSha256IsFaster()) {
+            return deriveWithPbkdf2Sha256(password, salt, iterations);
+        }
+        String name = (algorithm == PBKDF2_SHA1) ? pbkdf2Sha1Algorithm : pbkdf2Sha256Algorithm;
+        byte[] key = null;
+        try {
+            key = deriveWithJca(name, password, salt, iterations);
+        }
+        catch (GeneralSecurityException e) {
+            e.printStackTrace();
+            System.exit(PMExitCode.JCA_ALGORITHM_ERROR);
+        }
+        return key;
+    }
+
+    /**
+     * Derive a key with one of the JCA's PBKDF2 implementations.
+     * @param name of the JCA algorithm
+     * @param password to derive the key from
+     * @param salt to add to the password
+     * @param count number of iterations
+     * @return the raw key bytes
+     * @throws GeneralSecurityException if the JCA doesn't have the algorithm.
+     */
+    private static byte[] deriveWithJca(String name, char[] password, byte[] salt, int count)
+            throws GeneralSecurityException {
+        PBEKeySpec baseKey = new PBEKeySpec(password, salt, count, keyLength);
+        try {
+            SecretKeyFactory factory = SecretKeyFactory.getInstance(name);
+            return factory.generateSecret(baseKey).getEncoded();
+        }
+        finally {
+            baseKey.clearPassword();
+        }
+    }
+
+    /**
+     * Derive a key with {@link Pbkdf2Sha256}.
+     * @param password to derive the key from
+     * @param salt to add to the password
+     * @param count number of iterations
+     * @return the raw key bytes
+     */
+    private static byte[] deriveWithPbkdf2Sha256(char[] password, byte[] salt, int count) {
+        byte[] passwordBytes = encodePassword(password);
+        try {
+            return Pbkdf2Sha256.deriveKey(passwordBytes, salt, count, keyLength / 8);
+        }
+        finally {
+            Arrays.fill(passwordBytes, (byte) 0);
+        }
+    }
+
+    /**
+     * Encode a password as UTF-8, the same encoding the JCA's PBKDF2 uses.
+     * @param password to encode
+     * @return the password bytes. The caller should clear them.
+     */
+    private static byte[] encodePassword(char[] password) {
+        ByteBuffer encoded = StandardCharsets.UTF_8.encode(CharBuffer.wrap(password));
+        byte[] passwordBytes = new byte[encoded.remaining()];
+        encoded.get(passwordBytes);
+        Arrays.fill(encoded.array(), (byte) 0);
+        return passwordBytes;
+    }
+
+    /**
+     * Decide which PBKDF2-HMAC-SHA256 implementation to use, timing both the
+     * first time. Both give the same keys. {@link Pbkdf2Sha256} does half
+     * the compressions per iteration and allocates nothing, so it's faster
+     * on most JVMs, but the JCA's can win where the JIT compiles SHA-256 to
+     * the processor's SHA instructions.
+     * @return true to use the JCA's implementation
+     */
+    static synchronized boolean jcaSha256IsFaster() {
+        if (jcaSha256Faster == null) {
+            char[] password = "engine trial".toCharArray();
+            byte[] salt = new byte[16];
+            long jcaFastest = Long.MAX_VALUE;
+            long ownFastest = Long.MAX_VALUE;
+            try {
+                for (int i = 0; i < calibrationRuns; i++) {
+                    long start = System.nanoTime();
+                    deriveWithJca(pbkdf2Sha256Algorithm, password, salt, engineTrialIterations);
+                    jcaFastest = Math.min(jcaFastest, System.nanoTime() - start);
+                    start = System.nanoTime();
+                    deriveWithPbkdf2Sha256(password, salt, engineTrialIterations);
+                    ownFastest = Math.min(ownFastest, System.nanoTime() - start);
+                }
+            }
+            catch (GeneralSecurityException e) {
+                // No PBKDF2WithHmacSHA256 in this JRE.
+                jcaFastest = Long.MAX_VALUE;
+            }
+            jcaSha256Faster = (jcaFastest < ownFastest);
+        }
+        return jcaSha256Faster;
+    }
+
+    /**
+     * Get the id of the KDF.
+     * @return the id stored in file headers
+     */
+    int getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Get the id of the KDF as stored in a file header, with Argon2id's lane
+     * count in the second byte and the base 2 log of its memory cost in the
+     * upper half.
+     * @return the packed id
+     */
+    int getHeaderAlgorithm() {
+        if (algorithm != ARGON2ID) {
+            return algorithm;
+        }
+        return algorithm | (lanes << 8) | (Integer.numberOfTrailingZeros(memoryKiB) << 16);
+    }
+
+    /**
+     * Get the number of iterations the KDF runs.
+     * @return the iteration count, or Argon2id's number of passes
+     */
+    int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * Get the memory Argon2id fills.
+     * @return the memory cost in KiB, zero for PBKDF2
+     */
+    int getMemoryKiB() {
+        return memoryKiB;
+    }
+
+    /**
+     * Get the number of Argon2id lanes.
+     * @return the lane count, zero for PBKDF2
+     */
+    int getLanes() {
+        return lanes;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof KeyDerivation)) {
+            return false;
+        }
+        KeyDerivation that = (KeyDerivation) other;
+        return algorithm == that.algorithm && iterations == that.iterations
+                && memoryKiB == that.memoryKiB && lanes == that.lanes;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * (31 * algorithm + iterations) + memoryKiB) + lanes;
+    }
+
+    @Override
+    public String toString() {
+        if (algorithm == ARGON2ID) {
+            return algorithmNames[algorithm] + " t=" + iterations + " m=" + memoryKiB
+                    + "KiB p=" + lanes;
+        }
+        return algorithmNames[algorithm] + " x" + iterations;
+    }
+}
@@ -0,0 +1,290 @@
+package dashteacup.pman;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The optional lookup index of a {@link SegmentedFile}, which finds an entry
+ * by its title without decrypting the whole file. Each entry gets a record
+ * of where its text is: which segment it starts in, how far into it and how
+ * long it is. Records are found by a blinded name, a MAC of the lower cased
+ * title under a key derived from the file's key, so the titles themselves
+ * are never stored.
+ *
+ * Records are grouped into buckets by blinded name, and each bucket is
+ * encrypted on its own, so a lookup only decrypts the bucket directory, one
+ * small bucket and the segments holding the entry.
+ */
+final class LookupIndex {
+
+    /**
+     * Length of a blinded name in bytes.
+     */
+    static final int blindLength = 16;
+
+    /**
+     * Size of an encoded record: blinded name, entry start, segment, offset
+     * in the segment and length.
+     */
+    static final int recordSize = blindLength + 4 * 4;
+
+    /**
+     * Number of records aimed for in each bucket.
+     */
+    private static final int recordsPerBucket = 64;
+
+    /**
+     * MAC algorithm used to blind names and derive the blinding key.
+     */
+    private static final String macAlgorithm = "HmacSHA256";
+
+    /**
+     * Label MACed under the file's key to derive the blinding key.
+     */
+    private static final String keyLabel = "PMLookupIndexKey";
+
+    /**
+     * Orders records by blinded name.
+     */
+    private static final Comparator<Record> byBlind = new Comparator<Record>() {
+        @Override
+        public int compare(Record first, Record second) {
+            for (int i = 0; i < blindLength; i++) {
+                int difference = (first.blind[i] & 0xff) - (second.blind[i] & 0xff);
+                if (difference != 0) {
+                    return difference;
+                }
+            }
+            return Integer.compare(first.start, second.start);
+        }
+    };
+
+    /**
+     * Where one entry's text is in the file.
+     */
+    static final class Record {
+        /**
+         * Blinded title of the entry.
+         */
+        final byte[] blind;
+
+        /**
+         * Offset of the entry in the whole text, in characters.
+         */
+        final int start;
+
+        /**
+         * Index in the segment table of the segment the entry starts in.
+         */
+        final int segment;
+
+        /**
+         * Offset of the entry in its first segment's text, in characters.
+         */
+        final int offset;
+
+        /**
+         * Length of the entry in characters. It may run on into the
+         * following segments.
+         */
+        final int length;
+
+        /**
+         * Create a record.
+         * @param blind blinded title
+         * @param start offset of the entry in the text
+         * @param segment index of the first segment
+         * @param offset of the entry in the first segment's text
+         * @param length of the entry
+         */
+        Record(byte[] blind, int start, int segment, int offset, int length) {
+            this.blind = blind;
+            this.start = start;
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Not instantiable.
+     */
+    private LookupIndex() {
+    }
+
+    /**
+     * Put a name in the form that's blinded, so lookups ignore case and
+     * surrounding white space.
+     * @param name an entry title
+     * @return the normalized name
+     */
+    static String normalize(String name) {
+        return name.trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Blind a name.
+     * @param key the file's key
+     * @param name an entry title
+     * @return the blinded name
+     */
+    static byte[] blind(SecretKeySpec key, String name) {
+        return blindWith(blindingKey(key), name);
+    }
+
+    /**
+     * Make a record for each entry of the text just written.
+     * @param key the file's key
+     * @param entries of the text, in order
+     * @param map of the text to the file's segments, which are in the same
+     * order as the file's segment table
+     * @return the records
+     */
+    static List<Record> build(SecretKeySpec key, List<Entry> entries, SegmentMap map) {
+        SecretKeySpec blindingKey = blindingKey(key);
+        List<SegmentMap.Piece> pieces = map.getPieces();
+        List<Record> records = new ArrayList<Record>(entries.size());
+        int segment = 0;
+        int segmentStart = 0;
+        for (Entry entry : entries) {
+            while (segment < pieces.size() - 1
+                    && segmentStart + pieces.get(segment).length <= entry.getStart()) {
+                segmentStart += pieces.get(segment).length;
+                segment++;
+            }
+            records.add(new Record(blindWith(blindingKey, entry.getTitle()), entry.getStart(),
+                    segment, entry.getStart() - segmentStart, entry.getSource().length()));
+        }
+        return records;
+    }
+
+    /**
+     * Choose how many buckets to split a number of records into.
+     * @param records number of records
+     * @return the bucket count, at least one
+     */
+    static int bucketCount(int records) {
+        return Math.max(1, (records + recordsPerBucket - 1) / recordsPerBucket);
+    }
+
+    /**
+     * Find the bucket a blinded name belongs in.
+     * @param blind the blinded name
+     * @param buckets number of buckets
+     * @return index of the bucket
+     */
+    static int bucketOf(byte[] blind, int buckets) {
+        long prefix = ByteBuffer.wrap(blind).getInt() & 0xffffffffL;
+        return (int) (prefix % buckets);
+    }
+
+    /**
+     * Encode the records into buckets.
+     * @param records to encode
+     * @param buckets number of buckets
+     * @return one buffer per bucket, ready to be read, records sorted by
+     * blinded name
+     */
+    static ByteBuffer[] encodeBuckets(List<Record> records, int buckets) {
+        List<List<Record>> grouped = new ArrayList<List<Record>>(buckets);
+        for (int i = 0; i < buckets; i++) {
+            grouped.add(new ArrayList<Record>());
+        }
+        for (Record record : records) {
+            grouped.get(bucketOf(record.blind, buckets)).add(record);
+        }
+        ByteBuffer[] encoded = new ByteBuffer[buckets];
+        for (int i = 0; i < buckets; i++) {
+            List<Record> bucket = grouped.get(i);
+            Collections.sort(bucket, byBlind);
+            ByteBuffer buffer = ByteBuffer.allocate(bucket.size() * recordSize);
+            for (Record record : bucket) {
+                buffer.put(record.blind);
+                buffer.putInt(record.start);
+                buffer.putInt(record.segment);
+                buffer.putInt(record.offset);
+                buffer.putInt(record.length);
+            }
+            buffer.flip();
+            encoded[i] = buffer;
+        }
+        return encoded;
+    }
+
+    /**
+     * Find the records for a blinded name in a decrypted bucket.
+     * @param bucket the bucket's records
+     * @param blind the blinded name
+     * @return the matching records, possibly none
+     * @throws InvalidPasswordFileException if the bucket is malformed.
+     */
+    static List<Record> find(ByteBuffer bucket, byte[] blind) throws InvalidPasswordFileException {
+        if (bucket.remaining() % recordSize != 0) {
+            throw new InvalidPasswordFileException("Invalid lookup index bucket.");
+        }
+        List<Record> found = new ArrayList<Record>(1);
+        byte[] recordBlind = new byte[blindLength];
+        while (bucket.hasRemaining()) {
+            bucket.get(recordBlind);
+            int start = bucket.getInt();
+            int segment = bucket.getInt();
+            int offset = bucket.getInt();
+            int length = bucket.getInt();
+            if (Arrays.equals(recordBlind, blind)) {
+                if (start < 0 || segment < 0 || offset < 0 || length < 0) {
+                    throw new InvalidPasswordFileException("Invalid lookup index record.");
+                }
+                found.add(new Record(blind, start, segment, offset, length));
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Derive the blinding key from the file's key.
+     * @param key the file's key
+     * @return the blinding key
+     */
+    private static SecretKeySpec blindingKey(SecretKeySpec key) {
+        SecretKeySpec blindingKey = null;
+        try {
+            blindingKey = FileKey.subkey(key, keyLabel, macAlgorithm);
+        }
+        catch (GeneralSecurityException e) {
+            e.printStackTrace();
+            System.exit(PMExitCode.JCA_ALGORITHM_ERROR);
+        }
+        return blindingKey;
+    }
+
+    /**
+     * Blind a name with the blinding key.
+     * @param blindingKey derived from the file's key
+     * @param name an entry title
+     * @return the blinded name
+     */
+    private static byte[] blindWith(SecretKeySpec blindingKey, String name) {
+        byte[] blind = null;
+        try {
+            Mac mac = CryptoEngine.mac(macAlgorithm);
+            mac.init(blindingKey);
+            byte[] normalized = normalize(name).getBytes(StandardCharsets.UTF_8);
+            blind = Arrays.copyOf(mac.doFinal(normalized), blindLength);
+        }
+        catch (GeneralSecurityException e) {
+            e.printStackTrace();
+            System.exit(PMExitCode.JCA_ALGORITHM_ERROR);
+        }
+        return blind;
+    }
+}
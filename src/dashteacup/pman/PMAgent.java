@@ -0,0 +1,727 @@
+package dashteacup.pman;
+
+import java.io.Console;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import jdk.net.ExtendedSocketOptions;
+
+/**
+ * Holds a vault unlocked in a long running process, like ssh-agent holds
+ * keys, so tools looking up entries don't each pay for deriving the key.
+ * The vault is opened once and kept as {@link SealedText}, encrypted under
+ * a key of this process, with a map from titles to where their entries are.
+ * Lookups are served over a Unix domain socket only the owner can use, and
+ * connections from other users are dropped before anything is read.
+ * After a time without lookups the vault is locked: its text is wiped and
+ * lookups are refused until it's unlocked again, through the socket.
+ *
+ * Run it with something like:
+ * <pre>
+ * java -cp bin dashteacup.pman.PMAgent FILE SOCKET [IDLE_SECONDS]
+ * </pre>
+ * The password comes from the PMAN_PASSWORD environment variable or the
+ * terminal. The agent serves the vault as it was when unlocked; unlocking it
+ * again picks up changes to the file.
+ *
+ * Requests and replies are binary, in network byte order. A request is an
+ * operation byte, a two byte length and that many bytes of UTF-8 argument.
+ * A reply is a status byte, a four byte length and that many bytes of UTF-8
+ * text. A connection can carry any number of requests, answered in order.
+ * <pre>
+ *   {@link #opPing}    (no argument)  status only: ok or locked
+ *   {@link #opGet}     title          the entries with the title, each
+ *                                     followed by a blank line
+ *   {@link #opList}    (no argument)  the titles, one per line
+ *   {@link #opLock}    (no argument)  wipe the vault
+ *   {@link #opUnlock}  password       open the file again
+ * </pre>
+ */
+public class PMAgent {
+
+    /**
+     * Operation asking whether the agent is unlocked.
+     */
+    static final byte opPing = 1;
+
+    /**
+     * Operation looking up entries by title.
+     */
+    static final byte opGet = 2;
+
+    /**
+     * Operation listing the titles.
+     */
+    static final byte opList = 3;
+
+    /**
+     * Operation locking the agent.
+     */
+    static final byte opLock = 4;
+
+    /**
+     * Operation unlocking the agent with a password.
+     */
+    static final byte opUnlock = 5;
+
+    /**
+     * Reply status of a request that worked.
+     */
+    static final byte statusOk = 0;
+
+    /**
+     * Reply status of a lookup that found nothing.
+     */
+    static final byte statusNotFound = 1;
+
+    /**
+     * Reply status of a lookup while the agent is locked.
+     */
+    static final byte statusLocked = 2;
+
+    /**
+     * Reply status of an unlock with the wrong password.
+     */
+    static final byte statusBadPassword = 3;
+
+    /**
+     * Reply status of a request the agent doesn't understand.
+     */
+    static final byte statusBadRequest = 4;
+
+    /**
+     * Reply status of an unlock that couldn't read the file.
+     */
+    static final byte statusFileError = 5;
+
+    /**
+     * Bytes before a request's argument.
+     */
+    static final int requestHeaderSize = 3;
+
+    /**
+     * Bytes before a reply's text.
+     */
+    static final int replyHeaderSize = 5;
+
+    /**
+     * Longest argument a request can carry.
+     */
+    static final int maximumArgument = 0xffff;
+
+    /**
+     * Idle time after which the agent locks itself if none is given.
+     */
+    static final long defaultIdleMillis = 15 * 60 * 1000;
+
+    /**
+     * Makes daemon threads, so the agent's threads never keep the process
+     * alive on their own.
+     */
+    private static final ThreadFactory daemonThreads = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = Executors.defaultThreadFactory().newThread(task);
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    /**
+     * A reply to a request.
+     */
+    static final class Reply {
+        /**
+         * Status of the reply, such as {@link #statusOk}.
+         */
+        final byte status;
+
+        /**
+         * Text of the reply.
+         */
+        final String text;
+
+        /**
+         * Create a reply.
+         * @param status of the reply
+         * @param text of the reply, or null for none
+         */
+        Reply(byte status, String text) {
+            this.status = status;
+            this.text = (text == null) ? "" : text;
+        }
+    }
+
+    /**
+     * An unlocked vault.
+     */
+    private static final class Vault {
+        /**
+         * The vault's text. Lookups read it with
+         * {@link SealedText#concurrentSubSequence} under the read lock of
+         * {@link #access}, so they run at the same time.
+         */
+        final SealedText text;
+
+        /**
+         * Held for reading while the text is read, and for writing while
+         * it's destroyed.
+         */
+        final ReadWriteLock access = new ReentrantReadWriteLock();
+
+        /**
+         * Start and end offsets of the entries in the text, by normalized
+         * title.
+         */
+        final Map<String, int[]> ranges;
+
+        /**
+         * The entries' titles, in vault order.
+         */
+        final String titles;
+
+        /**
+         * Index a vault's text.
+         * @param text of the vault
+         */
+        Vault(String text) {
+            List<Entry> entries = EntryIndex.parse(text);
+            Map<String, int[]> found = new HashMap<String, int[]>(2 * entries.size());
+            StringBuilder names = new StringBuilder();
+            for (Entry entry : entries) {
+                String name = LookupIndex.normalize(entry.getTitle());
+                int[] previous = found.get(name);
+                int length = (previous == null) ? 0 : previous.length;
+                int[] range = (previous == null) ? new int[2] : Arrays.copyOf(previous, length + 2);
+                range[length] = entry.getStart();
+                range[length + 1] = entry.getEnd();
+                found.put(name, range);
+                names.append(entry.getTitle()).append('\n');
+            }
+            this.text = new SealedText(text);
+            this.ranges = found;
+            this.titles = names.toString();
+        }
+    }
+
+    /**
+     * The password file served.
+     */
+    private final File file;
+
+    /**
+     * Path of the socket.
+     */
+    private final Path socketPath;
+
+    /**
+     * Time without lookups after which the vault is locked.
+     */
+    private final long idleMillis;
+
+    /**
+     * The unlocked vault, or null while locked.
+     */
+    private volatile Vault vault;
+
+    /**
+     * When the vault was last unlocked or looked in, from
+     * {@link System#nanoTime()}.
+     */
+    private volatile long lastUsed;
+
+    /**
+     * User the agent runs as, who owns the socket. Clients connecting as
+     * anyone else are refused.
+     */
+    private UserPrincipal owner;
+
+    /**
+     * Channel accepting clients, once started.
+     */
+    private ServerSocketChannel server;
+
+    /**
+     * Threads serving clients, one per connection.
+     */
+    private ExecutorService clients;
+
+    /**
+     * Thread locking the vault when it's been idle.
+     */
+    private ScheduledExecutorService idleTimer;
+
+    /**
+     * Create an agent. It's locked until {@link #unlock(char[])} is called.
+     * @param file password file to serve
+     * @param socketPath path to create the socket at
+     * @param idleMillis time without lookups before the vault is locked
+     */
+    PMAgent(File file, Path socketPath, long idleMillis) {
+        if (idleMillis <= 0) {
+            throw new IllegalArgumentException("The idle timeout must be positive.");
+        }
+        this.file = file;
+        this.socketPath = socketPath;
+        this.idleMillis = idleMillis;
+    }
+
+    /**
+     * Runner method
+     * @param args the file, the socket path and optionally the idle timeout
+     * in seconds
+     */
+    public static void main(String[] args) {
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("Usage: PMAgent FILE SOCKET [IDLE_SECONDS]");
+            System.exit(PMExitCode.USAGE_ERROR);
+        }
+        long idle = defaultIdleMillis;
+        if (args.length == 3) {
+            try {
+                idle = Long.parseLong(args[2]) * 1000;
+            }
+            catch (NumberFormatException e) {
+                idle = 0;
+            }
+            if (idle <= 0) {
+                System.err.println("IDLE_SECONDS must be a positive number of seconds: " + args[2]);
+                System.exit(PMExitCode.USAGE_ERROR);
+            }
+        }
+        final PMAgent agent = new PMAgent(new File(args[0]), Paths.get(args[1]), idle);
+        char[] password;
+        String value = System.getenv(PMCommandLine.passwordVariable);
+        if (value != null) {
+            password = value.toCharArray();
+        }
+        else {
+            Console console = System.console();
+            password = (console == null) ? null : console.readPassword("Password for %s: ", args[0]);
+            if (password == null) {
+                System.err.println("No password given. Set " + PMCommandLine.passwordVariable + ".");
+                System.exit(PMExitCode.USAGE_ERROR);
+            }
+        }
+        try {
+            agent.unlock(password);
+            agent.start();
+        }
+        catch (BadPasswordException e) {
+            System.err.println("Invalid password for file: " + args[0]);
+            System.exit(PMExitCode.BAD_PASSWORD);
+        }
+        catch (InvalidPasswordFileException e) {
+            System.err.println("Password file: " + args[0] + " is not a properly formatted .pman file. "
+                    + e.getMessage());
+            System.exit(PMExitCode.INVALID_FILE);
+        }
+        catch (IOException e) {
+            System.err.println("Error starting the agent: " + e.getMessage());
+            System.exit(PMExitCode.IO_ERROR);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                agent.close();
+            }
+        });
+        System.out.println("Agent for " + args[0] + " listening on " + args[1]);
+        agent.acceptClients();
+    }
+
+    /**
+     * Open the file, replacing the vault served.
+     * @param password of the file. The array is cleared by this method.
+     * @throws BadPasswordException if the password is wrong.
+     * @throws InvalidPasswordFileException if the file is improperly formatted.
+     * @throws IOException if the file can't be read.
+     */
+    synchronized void unlock(char[] password)
+            throws BadPasswordException, InvalidPasswordFileException, IOException {
+        PasswordManager pm = new PasswordManager();
+        pm.openPasswordFile(file, password);
+        pm.clearSessionKey();
+        Vault unlocked = new Vault(pm.getText());
+        pm.setText("");
+        lock();
+        lastUsed = System.nanoTime();
+        vault = unlocked;
+    }
+
+    /**
+     * Wipe the vault served. Lookups are refused until it's unlocked again.
+     */
+    synchronized void lock() {
+        Vault locked = vault;
+        vault = null;
+        if (locked != null) {
+            locked.access.writeLock().lock();
+            try {
+                locked.text.destroy();
+            }
+            finally {
+                locked.access.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Check if a vault is being served.
+     * @return true if the agent is unlocked
+     */
+    boolean isUnlocked() {
+        return vault != null;
+    }
+
+    /**
+     * Find the entries with a title.
+     * @param title to look for, ignoring case and surrounding white space
+     * @return the entries' text, each followed by a blank line, or null if
+     * there are none
+     * @throws IllegalStateException if the agent is locked.
+     */
+    String lookup(String title) {
+        Vault current = vault;
+        if (current == null) {
+            throw new IllegalStateException("The agent is locked.");
+        }
+        lastUsed = System.nanoTime();
+        int[] range = current.ranges.get(LookupIndex.normalize(title));
+        if (range == null) {
+            return null;
+        }
+        StringBuilder entries = new StringBuilder();
+        // Reading a destroyed text throws IllegalStateException too.
+        current.access.readLock().lock();
+        try {
+            for (int i = 0; i < range.length; i += 2) {
+                entries.append(current.text.concurrentSubSequence(range[i], range[i + 1]))
+                        .append("\n\n");
+            }
+        }
+        finally {
+            current.access.readLock().unlock();
+        }
+        return entries.toString();
+    }
+
+    /**
+     * Get the titles of the entries.
+     * @return the titles, one per line
+     * @throws IllegalStateException if the agent is locked.
+     */
+    String titles() {
+        Vault current = vault;
+        if (current == null) {
+            throw new IllegalStateException("The agent is locked.");
+        }
+        lastUsed = System.nanoTime();
+        return current.titles;
+    }
+
+    /**
+     * Create the socket, readable and writable only by its owner, and start
+     * the idle timer. Clients are checked against the socket's owner too,
+     * since one could connect between creating the socket and setting its
+     * permissions. Clients are accepted by {@link #acceptClients()}.
+     * @throws IOException if the socket can't be created, or another agent
+     * is listening on it.
+     */
+    synchronized void start() throws IOException {
+        if (Files.exists(socketPath)) {
+            // Left behind by an agent that was killed, unless one answers.
+            boolean answered;
+            try {
+                SocketChannel probe = SocketChannel.open(UnixDomainSocketAddress.of(socketPath));
+                probe.close();
+                answered = true;
+            }
+            catch (IOException e) {
+                answered = false;
+            }
+            if (answered) {
+                throw new IOException("An agent is already listening on " + socketPath);
+            }
+            Files.delete(socketPath);
+        }
+        server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        server.bind(UnixDomainSocketAddress.of(socketPath));
+        owner = Files.getOwner(socketPath);
+        try {
+            Files.setPosixFilePermissions(socketPath, PosixFilePermissions.fromString("rw-------"));
+        }
+        catch (UnsupportedOperationException e) {
+            // Not a POSIX file system. The socket is as private as its directory.
+        }
+        clients = clientExecutor();
+        idleTimer = Executors.newSingleThreadScheduledExecutor(daemonThreads);
+        long period = Math.max(1, Math.min(idleMillis / 4, 1000));
+        idleTimer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                if (vault != null && System.nanoTime() - lastUsed >= idleMillis * 1000000) {
+                    lock();
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Accept clients until the agent is closed, serving each on its own
+     * thread.
+     */
+    void acceptClients() {
+        while (true) {
+            final SocketChannel client;
+            try {
+                client = server.accept();
+            }
+            catch (AsynchronousCloseException e) {
+                return;
+            }
+            catch (ClosedChannelException e) {
+                return;
+            }
+            catch (IOException e) {
+                System.err.println("Error accepting a client: " + e.getMessage());
+                continue;
+            }
+            clients.execute(new Runnable() {
+                @Override
+                public void run() {
+                    serve(client);
+                }
+            });
+        }
+    }
+
+    /**
+     * Start accepting clients on a thread of their own.
+     * @throws IOException if the socket can't be created.
+     */
+    void startInBackground() throws IOException {
+        start();
+        Thread acceptor = daemonThreads.newThread(new Runnable() {
+            @Override
+            public void run() {
+                acceptClients();
+            }
+        });
+        acceptor.start();
+    }
+
+    /**
+     * Stop serving, lock the vault and delete the socket.
+     */
+    synchronized void close() {
+        lock();
+        try {
+            if (server != null) {
+                server.close();
+                Files.deleteIfExists(socketPath);
+            }
+        }
+        catch (IOException e) {
+            System.err.println("Error closing the agent: " + e.getMessage());
+        }
+        if (clients != null) {
+            clients.shutdownNow();
+            idleTimer.shutdownNow();
+        }
+    }
+
+    /**
+     * Answer a client's requests until it disconnects.
+     * @param channel connected to the client
+     */
+    private void serve(SocketChannel channel) {
+        ByteBuffer header = ByteBuffer.allocate(requestHeaderSize);
+        // Arguments can be passwords.
+        ByteBuffer argument = PlainBuffer.allocate(maximumArgument);
+        try {
+            if (!fromOwner(channel)) {
+                return;
+            }
+            while (true) {
+                header.clear();
+                if (!readFully(channel, header, true)) {
+                    return;
+                }
+                header.flip();
+                byte op = header.get();
+                argument.clear();
+                argument.limit(header.getShort() & 0xffff);
+                readFully(channel, argument, false);
+                argument.flip();
+                writeReply(channel, handle(op, argument));
+                PlainBuffer.wipe(argument);
+            }
+        }
+        catch (IOException e) {
+            // The client went away mid request; nothing to tell it.
+        }
+        finally {
+            PlainBuffer.wipe(argument);
+            try {
+                channel.close();
+            }
+            catch (IOException e) {
+                // Already gone.
+            }
+        }
+    }
+
+    /**
+     * Check that a client runs as the same user as the agent.
+     * @param channel connected to the client
+     * @return true if the client is the owner, or the platform can't tell
+     * who the client is and the socket's permissions have to do
+     * @throws IOException if the client's credentials can't be read.
+     */
+    private boolean fromOwner(SocketChannel channel) throws IOException {
+        try {
+            return owner.equals(channel.getOption(ExtendedSocketOptions.SO_PEERCRED).user());
+        }
+        catch (UnsupportedOperationException e) {
+            // No SO_PEERCRED, as on Windows.
+            return true;
+        }
+    }
+
+    /**
+     * Carry out one request.
+     * @param op the operation
+     * @param argument of the request
+     * @return the reply
+     */
+    private Reply handle(byte op, ByteBuffer argument) {
+        try {
+            if (op == opPing && !argument.hasRemaining()) {
+                return new Reply(isUnlocked() ? statusOk : statusLocked, "");
+            }
+            if (op == opGet) {
+                String found = lookup(StandardCharsets.UTF_8.newDecoder().decode(argument).toString());
+                return (found == null) ? new Reply(statusNotFound, "") : new Reply(statusOk, found);
+            }
+            if (op == opList && !argument.hasRemaining()) {
+                return new Reply(statusOk, titles());
+            }
+            if (op == opLock && !argument.hasRemaining()) {
+                lock();
+                return new Reply(statusOk, "");
+            }
+            if (op == opUnlock) {
+                CharBuffer chars = PlainBuffer.decoder(StandardCharsets.UTF_8).decode(argument);
+                char[] password = Arrays.copyOf(chars.array(), chars.remaining());
+                PlainBuffer.wipe(chars);
+                unlock(password);
+                return new Reply(statusOk, "");
+            }
+            return new Reply(statusBadRequest, "Unknown request.");
+        }
+        catch (IllegalStateException e) {
+            return new Reply(statusLocked, "");
+        }
+        catch (CharacterCodingException e) {
+            return new Reply(statusBadRequest, "Arguments must be UTF-8.");
+        }
+        catch (BadPasswordException e) {
+            return new Reply(statusBadPassword, "");
+        }
+        catch (InvalidPasswordFileException e) {
+            return new Reply(statusFileError, e.getMessage());
+        }
+        catch (IOException e) {
+            return new Reply(statusFileError, e.getMessage());
+        }
+    }
+
+    /**
+     * Send a reply.
+     * @param channel connected to the client
+     * @param reply to send
+     * @throws IOException if the client can't be written to.
+     */
+    private static void writeReply(SocketChannel channel, Reply reply) throws IOException {
+        byte[] text = reply.text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(replyHeaderSize + text.length);
+        buffer.put(reply.status).putInt(text.length).put(text);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        Arrays.fill(text, (byte) 0);
+        Arrays.fill(buffer.array(), (byte) 0);
+    }
+
+    /**
+     * Fill a buffer from a channel.
+     * @param channel to read from
+     * @param buffer to fill to its limit
+     * @param endAllowed true if the channel may end before anything is read
+     * @return false if the channel ended before anything was read
+     * @throws IOException if the channel ends part way or the read fails.
+     */
+    static boolean readFully(ReadableByteChannel channel, ByteBuffer buffer, boolean endAllowed)
+            throws IOException {
+        int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                if (endAllowed && buffer.position() == start) {
+                    return false;
+                }
+                throw new EOFException("Connection closed part way through a message.");
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Make the executor serving clients: a virtual thread per client on
+     * JVMs that have them, otherwise a pooled platform thread per client.
+     * @return the executor
+     */
+    private static ExecutorService clientExecutor() {
+        try {
+            Method virtual = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) virtual.invoke(null);
+        }
+        catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(daemonThreads);
+        }
+        catch (RuntimeException e) {
+            // Virtual threads are a preview feature that isn't enabled.
+            return Executors.newCachedThreadPool(daemonThreads);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package dashteacup.pman;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Connection to a {@link PMAgent}. Requests are sent one at a time, each
+ * waiting for its reply; open several clients to make requests at once.
+ */
+class PMAgentClient implements Closeable {
+
+    /**
+     * Channel connected to the agent.
+     */
+    private final SocketChannel channel;
+
+    /**
+     * Reused for reply headers.
+     */
+    private final ByteBuffer header = ByteBuffer.allocate(PMAgent.replyHeaderSize);
+
+    /**
+     * Connect to an agent.
+     * @param socketPath the agent listens on
+     * @throws IOException if no agent is listening there.
+     */
+    PMAgentClient(Path socketPath) throws IOException {
+        channel = SocketChannel.open(UnixDomainSocketAddress.of(socketPath));
+    }
+
+    /**
+     * Look up the entries with a title.
+     * @param title to look for
+     * @return the reply, holding the entries if the status is
+     * {@link PMAgent#statusOk}
+     * @throws IOException if the agent can't be reached.
+     */
+    PMAgent.Reply get(String title) throws IOException {
+        return send(PMAgent.opGet, title.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * List the titles of the entries.
+     * @return the reply, holding the titles one per line if the status is
+     * {@link PMAgent#statusOk}
+     * @throws IOException if the agent can't be reached.
+     */
+    PMAgent.Reply list() throws IOException {
+        return send(PMAgent.opList, new byte[0]);
+    }
+
+    /**
+     * Check if the agent is unlocked.
+     * @return true if it's serving a vault
+     * @throws IOException if the agent can't be reached.
+     */
+    boolean isUnlocked() throws IOException {
+        return send(PMAgent.opPing, new byte[0]).status == PMAgent.statusOk;
+    }
+
+    /**
+     * Lock the agent.
+     * @throws IOException if the agent can't be reached.
+     */
+    void lock() throws IOException {
+        send(PMAgent.opLock, new byte[0]);
+    }
+
+    /**
+     * Unlock the agent.
+     * @param password of the agent's file. The array is cleared by this
+     * method.
+     * @return the reply, with status {@link PMAgent#statusBadPassword} if
+     * the password is wrong
+     * @throws IOException if the agent can't be reached.
+     */
+    PMAgent.Reply unlock(char[] password) throws IOException {
+        ByteBuffer encoded = PlainBuffer.encoder(StandardCharsets.UTF_8).encode(CharBuffer.wrap(password));
+        byte[] bytes = Arrays.copyOf(encoded.array(), encoded.limit());
+        Arrays.fill(encoded.array(), (byte) 0);
+        Arrays.fill(password, '0');
+        try {
+            return send(PMAgent.opUnlock, bytes);
+        }
+        finally {
+            Arrays.fill(bytes, (byte) 0);
+        }
+    }
+
+    /**
+     * Send a request and wait for its reply.
+     * @param op the operation
+     * @param argument of the request
+     * @return the reply
+     * @throws IOException if the agent can't be reached.
+     * @throws IllegalArgumentException if the argument is too long.
+     */
+    PMAgent.Reply send(byte op, byte[] argument) throws IOException {
+        if (argument.length > PMAgent.maximumArgument) {
+            throw new IllegalArgumentException("Request is too long.");
+        }
+        ByteBuffer request = ByteBuffer.allocate(PMAgent.requestHeaderSize + argument.length);
+        request.put(op).putShort((short) argument.length).put(argument);
+        request.flip();
+        try {
+            while (request.hasRemaining()) {
+                channel.write(request);
+            }
+        }
+        finally {
+            Arrays.fill(request.array(), (byte) 0);
+        }
+        header.clear();
+        PMAgent.readFully(channel, header, false);
+        header.flip();
+        byte status = header.get();
+        ByteBuffer text = ByteBuffer.allocate(header.getInt());
+        PMAgent.readFully(channel, text, false);
+        String reply = new String(text.array(), StandardCharsets.UTF_8);
+        Arrays.fill(text.array(), (byte) 0);
+        return new PMAgent.Reply(status, reply);
+    }
+
+    /**
+     * Disconnect from the agent.
+     * @throws IOException if the connection can't be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
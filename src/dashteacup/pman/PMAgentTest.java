@@ -0,0 +1,67 @@
+package dashteacup.pman;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.junit.Test;
+
+/**
+ * Tests for serving lookups from a {@link PMAgent}.
+ */
+public class PMAgentTest {
+
+    private static final String vault = "Mail\nuser: ann\n\nBank\nuser: bob\n\nmail\nuser: \u00e5sa\n";
+
+    @Test
+    public void servesLookupsUntilLocked() {
+        String filename = "testfiles/agent.pman";
+        Path socket = Paths.get("testfiles/agent.sock");
+        PasswordManager pm = new PasswordManager(vault);
+        pm.setKeyDerivation(new KeyDerivation(KeyDerivation.PBKDF2_SHA256, 1000));
+        PMAgent agent = new PMAgent(new File(filename), socket, 1000);
+        try {
+            pm.savePasswordFile(filename, "agent".toCharArray());
+            agent.unlock("agent".toCharArray());
+            agent.startInBackground();
+            try (PMAgentClient client = new PMAgentClient(socket);
+                    PMAgentClient other = new PMAgentClient(socket)) {
+                assertTrue(client.isUnlocked());
+                PMAgent.Reply reply = client.get(" MAIL ");
+                assertEquals(PMAgent.statusOk, reply.status);
+                assertEquals("Mail\nuser: ann\n\nmail\nuser: \u00e5sa\n\n", reply.text);
+                assertEquals("Bank\nuser: bob\n\n", other.get("bank").text);
+                assertEquals(PMAgent.statusNotFound, client.get("Shop").status);
+                assertEquals("Mail\nBank\nmail\n", other.list().text);
+                assertEquals(PMAgent.statusBadRequest, client.send((byte) 99, new byte[0]).status);
+
+                client.lock();
+                assertFalse(other.isUnlocked());
+                assertEquals(PMAgent.statusLocked, other.get("Bank").status);
+                assertEquals(PMAgent.statusBadPassword, other.unlock("wrong".toCharArray()).status);
+                assertEquals(PMAgent.statusOk, other.unlock("agent".toCharArray()).status);
+                assertEquals(PMAgent.statusOk, client.get("Bank").status);
+
+                // Idle for longer than the timeout.
+                for (int i = 0; i < 50 && client.isUnlocked(); i++) {
+                    Thread.sleep(100);
+                }
+                assertFalse(client.isUnlocked());
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+        finally {
+            agent.close();
+            new File(filename).delete();
+        }
+        assertFalse(socket.toFile().exists());
+    }
+}
@@ -0,0 +1,485 @@
+package dashteacup.pman;
+
+import java.io.BufferedReader;
+import java.io.Console;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Command line front end for scripts and machines without a display. It
+ * only uses the model, so Swing and AWT are never loaded. Usage:
+ * <pre>
+ * java -cp bin dashteacup.pman.PMCommandLine COMMAND FILE [ARGUMENTS]
+ *
+ *   get FILE TITLE          print the entries with a title
+ *   field FILE FIELD TITLE  print one field (title, user, url, password,
+ *                           notes or tags) of the first entry with a title
+ *   set FILE TITLE          replace the first entry with a title, or add one,
+ *                           with the lines read from standard input
+ *   list FILE               print the title of every entry
+ *   cat FILE                print the whole file
+ *   rekey FILE              save the file under a new password
+ *   index FILE on|off       add or drop the file's lookup index
+ *   batch FILE              run commands read from standard input
+ * </pre>
+ * The password is taken from the PMAN_PASSWORD environment variable, or
+ * asked for on the terminal if it isn't set; rekey's new password likewise
+ * from PMAN_NEW_PASSWORD. set and batch create the file if it doesn't exist.
+ * get only decrypts the entries it prints if the file has a lookup index,
+ * which only version 2 files can have.
+ *
+ * Batch mode derives the key once, runs one command per line and saves the
+ * file once at the end if anything was set, so a script can do many
+ * operations for the cost of one. Its commands are the ones above without
+ * the file name: "get TITLE", "field FIELD TITLE", "set TITLE" followed by
+ * the entry's lines and a line holding just ".", "list" and "cat". Blank
+ * lines and lines starting with # are skipped. A command that fails is
+ * reported and the rest still run.
+ *
+ * The exit status is 0 on success or one of the {@link PMExitCode}s.
+ */
+public class PMCommandLine {
+
+    /**
+     * Environment variable holding the file's password.
+     */
+    static final String passwordVariable = "PMAN_PASSWORD";
+
+    /**
+     * Environment variable holding the new password for rekey.
+     */
+    static final String newPasswordVariable = "PMAN_NEW_PASSWORD";
+
+    /**
+     * Line ending an entry's lines in batch mode.
+     */
+    private static final String endOfEntry = ".";
+
+    /**
+     * Summary of the commands printed when they're used wrongly.
+     */
+    private static final String usage = "Usage: PMCommandLine COMMAND FILE [ARGUMENTS]\n"
+            + "  get FILE TITLE\n"
+            + "  field FILE FIELD TITLE\n"
+            + "  set FILE TITLE < entry\n"
+            + "  list FILE\n"
+            + "  cat FILE\n"
+            + "  rekey FILE\n"
+            + "  index FILE on|off\n"
+            + "  batch FILE < commands\n"
+            + "Passwords come from " + passwordVariable + " and " + newPasswordVariable
+            + " or the terminal.";
+
+    /**
+     * Where entries and batch commands are read from.
+     */
+    private final BufferedReader in;
+
+    /**
+     * Where results are printed.
+     */
+    private final PrintStream out;
+
+    /**
+     * Where errors are reported.
+     */
+    private final PrintStream err;
+
+    /**
+     * Environment variables the passwords may be in.
+     */
+    private final Map<String, String> environment;
+
+    /**
+     * Create a command line.
+     * @param in standard input
+     * @param out standard output
+     * @param err standard error
+     * @param environment variables the passwords may be in
+     */
+    PMCommandLine(BufferedReader in, PrintStream out, PrintStream err,
+            Map<String, String> environment) {
+        this.in = in;
+        this.out = out;
+        this.err = err;
+        this.environment = environment;
+    }
+
+    /**
+     * Runner method
+     * @param args the command, file and its arguments
+     */
+    public static void main(String[] args) {
+        PMCommandLine commandLine = new PMCommandLine(
+                new BufferedReader(new InputStreamReader(System.in)),
+                System.out, System.err, System.getenv());
+        int status = commandLine.run(args);
+        System.out.flush();
+        System.exit(status);
+    }
+
+    /**
+     * Run one command.
+     * @param args the command, file and its arguments
+     * @return 0 on success, otherwise a {@link PMExitCode}
+     */
+    int run(String[] args) {
+        if (args.length < 2) {
+            err.println(usage);
+            return PMExitCode.USAGE_ERROR;
+        }
+        String command = args[0];
+        File file = new File(args[1]);
+        try {
+            if (command.equals("get") && args.length == 3) {
+                List<Entry> found = new PasswordManager().lookupEntries(file,
+                        readPassword(passwordVariable, "Password for " + file.getName()), args[2]);
+                return printEntries(args[2], found);
+            }
+            if (command.equals("field") && args.length == 4) {
+                checkField(args[2]);
+                List<Entry> found = new PasswordManager().lookupEntries(file,
+                        readPassword(passwordVariable, "Password for " + file.getName()), args[3]);
+                return printField(args[2], args[3], found);
+            }
+            if (command.equals("set") && args.length == 3) {
+                PasswordManager pm = open(file, true);
+                pm.setText(EntryIndex.putEntry(pm.getText(), args[2], readEntry(false)));
+                pm.savePasswordFile(file.getPath());
+                return 0;
+            }
+            if (command.equals("list") && args.length == 2) {
+                list(open(file, false));
+                return 0;
+            }
+            if (command.equals("cat") && args.length == 2) {
+                out.print(open(file, false).getText());
+                return 0;
+            }
+            if (command.equals("rekey") && args.length == 2) {
+                PasswordManager pm = open(file, false);
+                pm.rekeyPasswordFile(file.getPath(), readNewPassword());
+                return 0;
+            }
+            if (command.equals("index") && args.length == 3 && args[2].matches("on|off")) {
+                PasswordManager pm = open(file, false);
+                if (pm.getFormatVersion() == PasswordManager.LEGACY_FORMAT) {
+                    throw new IllegalArgumentException("Only version 2 files can have a lookup index.");
+                }
+                pm.setLookupIndexEnabled(args[2].equals("on"));
+                pm.savePasswordFile(file.getPath());
+                return 0;
+            }
+            if (command.equals("batch") && args.length == 2) {
+                return batch(file);
+            }
+            err.println(usage);
+            return PMExitCode.USAGE_ERROR;
+        }
+        catch (IllegalArgumentException e) {
+            err.println(e.getMessage());
+            return PMExitCode.USAGE_ERROR;
+        }
+        catch (BadPasswordException e) {
+            err.println("Invalid password for file: " + file);
+            return PMExitCode.BAD_PASSWORD;
+        }
+        catch (InvalidPasswordFileException e) {
+            err.println("Password file: " + file + " is not a properly formatted .pman file. "
+                    + e.getMessage());
+            return PMExitCode.INVALID_FILE;
+        }
+        catch (IOException e) {
+            err.println("Error reading or writing file: " + file + ": " + e.getMessage());
+            return PMExitCode.IO_ERROR;
+        }
+    }
+
+    /**
+     * Run the commands read from standard input against one file.
+     * @param file to open, or create if it doesn't exist
+     * @return 0 if every command worked, otherwise the status of the last
+     * one that failed
+     * @throws BadPasswordException if the password is wrong.
+     * @throws InvalidPasswordFileException if the file is improperly formatted.
+     * @throws IOException if the file or the commands can't be read, or the
+     * file can't be saved.
+     */
+    private int batch(File file)
+            throws BadPasswordException, InvalidPasswordFileException, IOException {
+        PasswordManager pm = open(file, true);
+        String text = pm.getText();
+        List<Entry> entries = null;
+        Map<String, List<Entry>> titles = null;
+        boolean changed = false;
+        int status = 0;
+        String line;
+        while ((line = in.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            int space = line.indexOf(' ');
+            String command = (space < 0) ? line : line.substring(0, space);
+            String argument = (space < 0) ? "" : line.substring(space + 1).trim();
+            try {
+                if (command.equals("set") && !argument.isEmpty()) {
+                    text = EntryIndex.putEntry(text, argument, readEntry(true));
+                    entries = null;
+                    titles = null;
+                    changed = true;
+                    continue;
+                }
+                if (titles == null) {
+                    entries = EntryIndex.parse(text);
+                    titles = titleMap(entries);
+                }
+                if (command.equals("get") && !argument.isEmpty()) {
+                    status = result(status, printEntries(argument, lookup(titles, argument)));
+                }
+                else if (command.equals("field") && argument.indexOf(' ') > 0) {
+                    String field = argument.substring(0, argument.indexOf(' '));
+                    String title = argument.substring(field.length() + 1).trim();
+                    checkField(field);
+                    status = result(status, printField(field, title, lookup(titles, title)));
+                }
+                else if (command.equals("list") && argument.isEmpty()) {
+                    // In vault order, like the list command.
+                    for (Entry entry : entries) {
+                        out.println(entry.getTitle());
+                    }
+                }
+                else if (command.equals("cat") && argument.isEmpty()) {
+                    out.print(text);
+                }
+                else {
+                    throw new IllegalArgumentException("Unknown batch command: " + line);
+                }
+            }
+            catch (IllegalArgumentException e) {
+                err.println(e.getMessage());
+                status = PMExitCode.USAGE_ERROR;
+            }
+        }
+        if (changed) {
+            pm.setText(text);
+            pm.savePasswordFile(file.getPath());
+        }
+        return status;
+    }
+
+    /**
+     * Keep a failure's status over a success.
+     * @param status so far
+     * @param next status of the latest command
+     * @return the status to keep
+     */
+    private static int result(int status, int next) {
+        return (next != 0) ? next : status;
+    }
+
+    /**
+     * Open a file, asking for its password.
+     * @param file to open
+     * @param create true to create an empty file if it doesn't exist
+     * @return the opened file, with its key cached for saving
+     * @throws BadPasswordException if the password is wrong.
+     * @throws InvalidPasswordFileException if the file is improperly formatted.
+     * @throws IOException if the file can't be read or created.
+     */
+    private PasswordManager open(File file, boolean create)
+            throws BadPasswordException, InvalidPasswordFileException, IOException {
+        char[] password = readPassword(passwordVariable, "Password for " + file.getName());
+        PasswordManager pm = new PasswordManager();
+        if (create && !file.exists()) {
+            pm.savePasswordFile(file.getPath(), password);
+        }
+        else {
+            pm.openPasswordFile(file, password);
+            if (pm.getUnreadableLength() > 0) {
+                // There's no one to ask, so keep the unreadable part.
+                err.println("Warning: the last " + pm.getUnreadableLength() + " bytes of " + file
+                        + " couldn't be read, so it was opened as of an earlier save. Saving it keeps a copy as "
+                        + PasswordManager.damagedCopy(file.toPath()) + ".");
+            }
+        }
+        return pm;
+    }
+
+    /**
+     * Get a password from the environment, or from the terminal if it isn't
+     * set there.
+     * @param variable holding the password
+     * @param prompt shown on the terminal
+     * @return the password
+     * @throws IllegalArgumentException if there's no password to be had.
+     */
+    private char[] readPassword(String variable, String prompt) {
+        String value = environment.get(variable);
+        if (value != null) {
+            return value.toCharArray();
+        }
+        Console console = System.console();
+        if (console == null) {
+            throw new IllegalArgumentException("No terminal to ask for a password. Set " + variable + ".");
+        }
+        char[] password = console.readPassword("%s: ", prompt);
+        if (password == null) {
+            throw new IllegalArgumentException("No password given.");
+        }
+        return password;
+    }
+
+    /**
+     * Get the new password for rekey, asking for it twice on the terminal
+     * if it isn't in the environment.
+     * @return the new password
+     * @throws IllegalArgumentException if there's no password to be had or
+     * the two don't match.
+     */
+    private char[] readNewPassword() {
+        if (environment.containsKey(newPasswordVariable)) {
+            return environment.get(newPasswordVariable).toCharArray();
+        }
+        char[] password = readPassword(newPasswordVariable, "New password");
+        char[] again = readPassword(newPasswordVariable, "New password again");
+        boolean match = Arrays.equals(password, again);
+        Arrays.fill(again, '0');
+        if (!match) {
+            Arrays.fill(password, '0');
+            throw new IllegalArgumentException("The new passwords don't match.");
+        }
+        return password;
+    }
+
+    /**
+     * Read the lines of an entry from standard input.
+     * @param untilEnd true to stop at a line holding just ".", false to read
+     * to the end of the input
+     * @return the lines, each ending in a line break
+     * @throws IOException if standard input can't be read.
+     */
+    private String readEntry(boolean untilEnd) throws IOException {
+        StringBuilder entry = new StringBuilder();
+        String line;
+        while ((line = in.readLine()) != null && !(untilEnd && line.equals(endOfEntry))) {
+            entry.append(line).append('\n');
+        }
+        return entry.toString();
+    }
+
+    /**
+     * Group a vault's entries by their normalized titles.
+     * @param parsed entries of the vault, in vault order
+     * @return the entries with each title, in vault order
+     */
+    private static Map<String, List<Entry>> titleMap(List<Entry> parsed) {
+        Map<String, List<Entry>> titles = new HashMap<String, List<Entry>>();
+        for (Entry entry : parsed) {
+            String name = LookupIndex.normalize(entry.getTitle());
+            List<Entry> entries = titles.get(name);
+            if (entries == null) {
+                entries = new ArrayList<Entry>(1);
+                titles.put(name, entries);
+            }
+            entries.add(entry);
+        }
+        return titles;
+    }
+
+    /**
+     * Find the entries with a title.
+     * @param titles from {@link #titleMap}
+     * @param title to look for
+     * @return the entries, possibly none
+     */
+    private static List<Entry> lookup(Map<String, List<Entry>> titles, String title) {
+        List<Entry> entries = titles.get(LookupIndex.normalize(title));
+        return (entries == null) ? new ArrayList<Entry>() : entries;
+    }
+
+    /**
+     * Print the title of every entry in a file.
+     * @param pm holding the opened file
+     */
+    private void list(PasswordManager pm) {
+        for (Entry entry : EntryIndex.parse(pm.getText())) {
+            out.println(entry.getTitle());
+        }
+    }
+
+    /**
+     * Print entries, with a blank line after each.
+     * @param title the entries were looked up by
+     * @param entries found
+     * @return 0, or {@link PMExitCode#NOT_FOUND} if there are none
+     */
+    private int printEntries(String title, List<Entry> entries) {
+        if (entries.isEmpty()) {
+            err.println("No entry titled: " + title);
+            return PMExitCode.NOT_FOUND;
+        }
+        for (Entry entry : entries) {
+            out.println(entry.getSource());
+            out.println();
+        }
+        return 0;
+    }
+
+    /**
+     * Print one field of the first entry found.
+     * @param field name, checked with {@link #checkField}
+     * @param title the entries were looked up by
+     * @param entries found
+     * @return 0, or {@link PMExitCode#NOT_FOUND} if there are none
+     */
+    private int printField(String field, String title, List<Entry> entries) {
+        if (entries.isEmpty()) {
+            err.println("No entry titled: " + title);
+            return PMExitCode.NOT_FOUND;
+        }
+        Entry entry = entries.get(0);
+        if (field.equals("title")) {
+            out.println(entry.getTitle());
+        }
+        else if (field.equals("user")) {
+            out.println(entry.getUsername());
+        }
+        else if (field.equals("url")) {
+            out.println(entry.getUrl());
+        }
+        else if (field.equals("password")) {
+            out.println(entry.getSecret());
+        }
+        else if (field.equals("notes")) {
+            out.println(entry.getNotes());
+        }
+        else {
+            StringBuilder tags = new StringBuilder();
+            for (String tag : entry.getTags()) {
+                tags.append((tags.length() > 0) ? ", " : "").append(tag);
+            }
+            out.println(tags);
+        }
+        return 0;
+    }
+
+    /**
+     * Make sure a field name is one {@link #printField} knows.
+     * @param field name
+     * @throws IllegalArgumentException if it isn't.
+     */
+    private static void checkField(String field) {
+        if (!field.matches("title|user|url|password|notes|tags")) {
+            throw new IllegalArgumentException("Unknown field: " + field
+                    + ". Use title, user, url, password, notes or tags.");
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package dashteacup.pman;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests for the headless {@link PMCommandLine}.
+ */
+public class PMCommandLineTest {
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream err = new ByteArrayOutputStream();
+    private final Map<String, String> environment = new HashMap<String, String>();
+
+    /**
+     * Run a command, starting with an empty output.
+     * @param input read from standard input
+     * @param args the command and its arguments
+     * @return the exit status
+     */
+    private int run(String input, String... args) {
+        out.reset();
+        err.reset();
+        PMCommandLine commandLine = new PMCommandLine(new BufferedReader(new StringReader(input)),
+                new PrintStream(out, true), new PrintStream(err, true), environment);
+        return commandLine.run(args);
+    }
+
+    /**
+     * Check if a file has a lookup index.
+     * @param filename of the file, with the password in the environment
+     * @return true if it has one
+     */
+    private boolean indexed(String filename) {
+        PasswordManager pm = new PasswordManager();
+        try {
+            pm.openPasswordFile(filename,
+                    environment.get(PMCommandLine.passwordVariable).toCharArray());
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+        return pm.isLookupIndexEnabled();
+    }
+
+    @Test
+    public void setsAndGetsEntries() {
+        String filename = "testfiles/commandline.pman";
+        new File(filename).delete();
+        environment.put(PMCommandLine.passwordVariable, "cli password");
+
+        assertEquals(0, run("user: ann\npassword: one\n", "set", filename, "Mail"));
+        assertEquals(0, run("user: bob\n", "set", filename, "Bank"));
+        assertEquals(0, run("user: ann\npassword: two\n", "set", filename, "mail"));
+        assertEquals(0, run("", "list", filename));
+        assertEquals("mail\nBank\n", out.toString());
+        assertEquals(0, run("", "field", filename, "password", "MAIL"));
+        assertEquals("two\n", out.toString());
+        assertEquals(0, run("", "get", filename, "Bank"));
+        assertEquals("Bank\nuser: bob\n\n", out.toString());
+        assertEquals(0, run("", "cat", filename));
+        assertEquals("mail\nuser: ann\npassword: two\n\nBank\nuser: bob\n", out.toString());
+
+        assertEquals(0, run("", "index", filename, "on"));
+        assertEquals(0, run("", "get", filename, "Bank"));
+        assertEquals("Bank\nuser: bob\n\n", out.toString());
+        assertTrue(indexed(filename));
+        assertEquals(0, run("", "index", filename, "off"));
+        assertFalse(indexed(filename));
+        assertEquals(PMExitCode.USAGE_ERROR, run("", "index", filename, "maybe"));
+
+        assertEquals(PMExitCode.NOT_FOUND, run("", "get", filename, "Shop"));
+        assertEquals(PMExitCode.USAGE_ERROR, run("", "field", filename, "pin", "Mail"));
+        assertEquals(PMExitCode.USAGE_ERROR, run("a\n\nb\n", "set", filename, "Shop"));
+        assertEquals(PMExitCode.USAGE_ERROR, run("", "frobnicate", filename));
+
+        environment.put(PMCommandLine.passwordVariable, "wrong");
+        assertEquals(PMExitCode.BAD_PASSWORD, run("", "list", filename));
+        assertEquals(PMExitCode.IO_ERROR, run("", "cat", "testfiles/missing.pman"));
+    }
+
+    @Test
+    public void runsBatchesAndRekeys() {
+        String filename = "testfiles/commandlinebatch.pman";
+        new File(filename).delete();
+        environment.put(PMCommandLine.passwordVariable, "batch password");
+
+        String commands = "# Add two entries and read them back\n"
+                + "set Mail\nuser: ann\npassword: one\n.\n"
+                + "set Bank\npassword: two\n.\n"
+                + "\n"
+                + "field password Mail\n"
+                + "get Shop\n"
+                + "field user Bank\n"
+                + "list\n";
+        assertEquals(PMExitCode.NOT_FOUND, run(commands, "batch", filename));
+        assertEquals("one\n\nMail\nBank\n", out.toString());
+        assertTrue(err.toString().contains("Shop"));
+
+        environment.put(PMCommandLine.newPasswordVariable, "new password");
+        assertEquals(0, run("", "rekey", filename));
+        assertEquals(PMExitCode.BAD_PASSWORD, run("", "list", filename));
+        environment.put(PMCommandLine.passwordVariable, "new password");
+        assertEquals(0, run("list\ncat\n", "batch", filename));
+        assertEquals(PMExitCode.USAGE_ERROR, run("bogus\n", "batch", filename));
+        assertEquals(0, run("", "field", filename, "password", "Bank"));
+        assertEquals("two\n", out.toString());
+    }
+
+    @Test
+    public void batchListsInVaultOrder() {
+        String filename = "testfiles/commandlinebatch.pman";
+        environment.put(PMCommandLine.passwordVariable, "batch password");
+        PasswordManager pm = new PasswordManager("Mail\nuser: ann\n\nBank\nuser: bob\n\nmail\nuser: cat\n");
+        pm.setKeyDerivation(new KeyDerivation(KeyDerivation.PBKDF2_SHA256, 1000));
+        try {
+            pm.savePasswordFile(filename, "batch password".toCharArray());
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+
+        assertEquals(0, run("", "list", filename));
+        assertEquals("Mail\nBank\nmail\n", out.toString());
+        assertEquals(0, run("list\nget mail\nlist\n", "batch", filename));
+        assertEquals("Mail\nBank\nmail\n"
+                + "Mail\nuser: ann\n\nmail\nuser: cat\n\n"
+                + "Mail\nBank\nmail\n", out.toString());
+    }
+}
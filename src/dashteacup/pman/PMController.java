@@ -2,12 +2,24 @@ package dashteacup.pman;
 
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import java.io.File;
-import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
 
 import javax.swing.JFileChooser;
 import javax.swing.JOptionPane;
 import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 
 /**
  * Controller class for the Password Management (PM) Application.
@@ -36,6 +48,45 @@ public class PMController {
      */
     private File currentFile;
 
+    /**
+     * Files unlocked together by opening several at once, by absolute file.
+     * Opening one of them again switches to it without asking for the
+     * password. The model being edited stays in here while it's shown.
+     */
+    private Map<File, PasswordManager> unlocked;
+
+    /**
+     * Entries of the text being edited, indexed for the search field. It's
+     * brought up to date with the text area when a search runs.
+     */
+    private EntryIndex searchIndex;
+
+    /**
+     * The {@link #editGeneration} of the text {@link #searchIndex} was last
+     * brought up to date with, so typing in the search field doesn't
+     * re-index text that hasn't changed.
+     */
+    private long indexedGeneration;
+
+    /**
+     * Number of changes made to the text area's text, counted by its
+     * document events.
+     */
+    private long editGeneration;
+
+    /**
+     * The {@link #editGeneration} at which the text area last held the
+     * model's text, when it was opened, created or saved.
+     */
+    private long savedGeneration;
+
+    /**
+     * Fingerprint of the model's text as of {@link #savedGeneration}, used
+     * to spot edits that were undone by hand without decrypting the model's
+     * text to compare with.
+     */
+    private Fingerprint savedText;
+
     /**
      * Runner method
      * @param args not currently used
@@ -57,7 +108,11 @@ public class PMController {
         model = new PasswordManager();
         fileChooser = new JFileChooser(defaultDirectory);
         fileChooser.setFileFilter(new PmanFileFilter());
+        fileChooser.setMultiSelectionEnabled(true);
         currentFile = null;
+        unlocked = new HashMap<File, PasswordManager>();
+        searchIndex = new EntryIndex();
+        indexedGeneration = -1;
         addListeners();
     }
 
@@ -65,9 +120,15 @@ public class PMController {
      * Restore the application to its initial state with no file open.
      */
     public void resetController() {
+        model.clearSessionKey();
+        for (PasswordManager other : unlocked.values()) {
+            other.clearSessionKey();
+        }
+        unlocked.clear();
         model = new PasswordManager();
         view.hideTextArea();
         currentFile = null;
+        markSaved(editGeneration, new Fingerprint(""));
     }
 
     /**
@@ -79,6 +140,8 @@ public class PMController {
         view.addCloseFileListener(new CloseFileAction());
         view.addSaveFileListener(new SaveFileAction());
         view.addSaveAsFileListener(new SaveAsFileAction());
+        view.addSearchListener(new SearchAction());
+        view.addTextChangeListener(new TextChangeAction());
     }
 
     /**
@@ -87,17 +150,19 @@ public class PMController {
     private class NewFileAction implements ActionListener {
         @Override
         public void actionPerformed(ActionEvent e) {
-            int choice = JOptionPane.NO_OPTION;
-            if (bufferHasChanged()) {
-                choice = handleUnsavedChanges();
-            }
-            if (choice == JOptionPane.NO_OPTION || choice == JOptionPane.YES_OPTION) {
-                model = new PasswordManager();
-                view.setText("");
-                view.showTextArea();
-                // We don't actually have a file object for this thing yet.
-                currentFile = null;
-            }
+            handleUnsavedChanges(new Runnable() {
+                @Override
+                public void run() {
+                    releaseModel();
+                    model = new PasswordManager();
+                    view.setText("");
+                    view.showTextArea();
+                    markSaved(editGeneration, new Fingerprint(""));
+                    runSearch();
+                    // We don't actually have a file object for this thing yet.
+                    currentFile = null;
+                }
+            });
         }
     }
 
@@ -107,35 +172,40 @@ public class PMController {
     private class OpenFileAction implements ActionListener {
         @Override
         public void actionPerformed(ActionEvent event) {
-            //TODO:unsaved changes
             int returnStatus = fileChooser.showOpenDialog(view.getMainWindow());
             if (returnStatus == JFileChooser.APPROVE_OPTION) {
-                File file = fileChooser.getSelectedFile();
-                char[] password = view.showPasswordDialog();
-                if (password == null) {
-                    // User cancelled the password dialog. Do nothing.
-                    return;
-                }
-                try {
-                    model.openPasswordFile(file, password);
-                    view.showTextArea();
-                    view.setText(model.getText());
-                    currentFile = file;
-                }
-                catch (BadPasswordException e) {
-                    view.showMessageDialog("Invalid password for file: " + file.getName());
-                    resetController();
-                }
-                catch (InvalidPasswordFileException e) {
-                    System.err.println(e.getMessage());
-                    view.showMessageDialog("Password file: " + file.getName() + " is not a properly formatted .pman file.");
-                    resetController();
+                File[] selected = fileChooser.getSelectedFiles();
+                if (selected.length == 0) {
+                    // A name typed into the dialog isn't in the selection.
+                    selected = new File[] { fileChooser.getSelectedFile() };
                 }
-                catch (IOException e) {
-                    view.showMessageDialog("Error writing file: " + file.getName());
-                    e.printStackTrace();
-                    resetController();
+                final File[] files = selected;
+                final File file = files[0].getAbsoluteFile();
+                if (files.length == 1 && unlocked.containsKey(file)) {
+                    handleUnsavedChanges(new Runnable() {
+                        @Override
+                        public void run() {
+                            new SwitchWorker(file, unlocked.get(file)).start();
+                        }
+                    });
+                    return;
                 }
+                handleUnsavedChanges(new Runnable() {
+                    @Override
+                    public void run() {
+                        char[] password = view.showPasswordDialog();
+                        if (password == null) {
+                            // User cancelled the password dialog. Do nothing.
+                            return;
+                        }
+                        if (files.length == 1) {
+                            new OpenWorker(file, password).start();
+                        }
+                        else {
+                            new MultiOpenWorker(Arrays.asList(files), password).start();
+                        }
+                    }
+                });
             }
             // Do nothing if they cancel the open dialog.
         }
@@ -147,13 +217,12 @@ public class PMController {
     private class CloseFileAction implements ActionListener {
         @Override
         public void actionPerformed(ActionEvent event) {
-            int choice = JOptionPane.NO_OPTION;
-            if (bufferHasChanged()) {
-                choice = handleUnsavedChanges();
-            }
-            if (choice == JOptionPane.NO_OPTION || choice == JOptionPane.YES_OPTION) {
-                resetController();
-            }
+            handleUnsavedChanges(new Runnable() {
+                @Override
+                public void run() {
+                    resetController();
+                }
+            });
         }
     }
 
@@ -165,12 +234,10 @@ public class PMController {
         public void actionPerformed(ActionEvent event) {
             if (bufferHasChanged()) {
                 if (fileIsLoaded()) {
-                    // ignore return value
-                    saveBufferToCurrentFile();
+                    saveBufferToCurrentFile(null);
                 }
                 else {
-                    // ignore return value
-                    saveBufferAsFile();
+                    saveBufferAsFile(null);
                 }
             }
             // If the buffer hasn't changed then do nothing.
@@ -183,19 +250,114 @@ public class PMController {
     private class SaveAsFileAction implements ActionListener {
         @Override
         public void actionPerformed(ActionEvent event) {
-            // ignore return value
-            saveBufferAsFile();
+            saveBufferAsFile(null);
+        }
+    }
+
+    /**
+     * Put an opened model in the editor in place of the current one.
+     * @param file the model was opened from
+     * @param opened the model
+     * @param text of the model
+     * @param index of the model's entries
+     * @param fingerprint of the model's text
+     */
+    private void showModel(File file, PasswordManager opened, String text, EntryIndex index,
+            Fingerprint fingerprint) {
+        releaseModel();
+        model = opened;
+        view.showTextArea();
+        view.setText(text);
+        markSaved(editGeneration, fingerprint);
+        currentFile = file;
+        searchIndex = index;
+        indexedGeneration = editGeneration;
+        runSearch();
+    }
+
+    /**
+     * If the end of a file that was just opened couldn't be read, ask the
+     * user whether the next save may drop it. Otherwise a copy of the file
+     * is kept when it's saved.
+     * @param file that was opened
+     * @param opened the file's model
+     */
+    private void checkUnreadableEnd(File file, PasswordManager opened) {
+        if (opened.getUnreadableLength() == 0) {
+            return;
+        }
+        String message = "The last " + opened.getUnreadableLength() + " bytes of " + file.getName()
+                + " couldn't be read, so it was opened as it was after an earlier save.\n"
+                + "If a save was interrupted, that's expected and they can be dropped.\n"
+                + "Drop them? If not, a copy of the file is kept as "
+                + PasswordManager.damagedCopy(file.toPath()).getFileName() + " when it's saved.";
+        if (view.showConfirmDialog(message, "File was damaged")) {
+            opened.discardUnreadableEnd();
         }
     }
 
+    /**
+     * Wipe the key of the model being replaced in the editor, unless it's
+     * one of the {@link #unlocked} files and can be switched back to.
+     */
+    private void releaseModel() {
+        if (currentFile == null || unlocked.get(currentFile.getAbsoluteFile()) != model) {
+            model.clearSessionKey();
+        }
+    }
+
+    /**
+     * Search the entries of the text being edited for what's in the search
+     * field, and show the matches.
+     */
+    private void runSearch() {
+        String query = view.getSearchText().trim();
+        if (query.isEmpty()) {
+            view.showSearchResults(null);
+            return;
+        }
+        if (indexedGeneration != editGeneration) {
+            searchIndex.update(view.getText());
+            indexedGeneration = editGeneration;
+        }
+        List<Entry> results = searchIndex.search(query);
+        view.showSearchResults(results);
+    }
+
     /**
      * Determine if the currently loaded text buffer has changed from the file's
-     * originally loaded contents.
+     * originally loaded contents. This only counts edits, so it doesn't have
+     * to look at the text, but it takes text that was edited and then put
+     * back to be changed.
      * @return true if the buffer has changed, false otherwise.
      */
     private boolean bufferHasChanged() {
-        // view.getText will not be null
-        return ! (view.getText().equals(model.getText()));
+        return editGeneration != savedGeneration;
+    }
+
+    /**
+     * Determine if a changed buffer's text is back to the model's text after
+     * all, so the user needn't be asked about saving it. The text is only
+     * digested if its hash matches.
+     * @return true if the text is the same as the model's, false otherwise.
+     */
+    private boolean bufferMatchesModel() {
+        if (!savedText.matches(view.getText())) {
+            return false;
+        }
+        markSaved(editGeneration, savedText);
+        return true;
+    }
+
+    /**
+     * Record that the text area held the model's text as of an edit.
+     * @param generation of the text area's text, from {@link #editGeneration}
+     * @param fingerprint of the model's text
+     */
+    private void markSaved(long generation, Fingerprint fingerprint) {
+        savedGeneration = generation;
+        savedText = fingerprint;
+        view.setModified(bufferHasChanged());
     }
 
     /**
@@ -207,72 +369,677 @@ public class PMController {
     }
 
     /**
-     * Save the text buffer to the currently loaded file.
-     * @return YES_OPTION if the user saves the changes,
-     * CANCEL_OPTION if the user cancels the action.
+     * Save the text buffer to the currently loaded file. The save runs in
+     * the background.
+     * @param afterSave run once the file has been saved, or null. It isn't
+     * run if the user cancels or the save fails.
      */
-    private int saveBufferToCurrentFile() {
+    private void saveBufferToCurrentFile(Runnable afterSave) {
         // Sanity check. I shouldn't call this without having a file loaded.
         if (!fileIsLoaded()) {
-            return JOptionPane.CANCEL_OPTION;
+            return;
         }
 
-        model.setText(view.getText());
+        // The text area is locked while saving, so this is what gets saved.
+        // It's handed to the model by the worker, since finding what changed
+        // means reading the model's whole text.
+        String text = view.getText();
+        long generation = editGeneration;
+        String filename = currentFile.getAbsolutePath();
+        // Reuse the key from the last open/save so we don't have to ask
+        // for the password (and derive the key) every time. The password
+        // itself is never kept around.
+        if (model.hasSessionKey()) {
+            new SaveWorker(filename, text, generation, null, null, afterSave).start();
+            return;
+        }
         char[] password = view.showPasswordDialog();
         // Make sure the user didn't cancel the password dialog.
         if (password != null) {
-            String filename = currentFile.getAbsolutePath();
-            try {
-                // TODO: At present I'm making it get a new password
-                // every time I save the file. I should probably
-                // figure out some way to hold on to the key used to
-                // encrypt the file so I can reuse that in a current
-                // instance. I will NOT save the password itself,
-                // that's bad.
-                model.savePasswordFile(filename, password);
-                return JOptionPane.YES_OPTION;
-            }
-            catch (IOException e) {
-                view.showMessageDialog("Error writing file: " + filename);
-                e.printStackTrace();
-            }
+            new SaveWorker(filename, text, generation, password, null, afterSave).start();
         }
-        return JOptionPane.CANCEL_OPTION;
     }
 
     /**
      * Save the text buffer to a file selected by the user.
-     * @return YES_OPTION if the user saves the changes,
-     * CANCEL_OPTION if the user cancels the action.
+     * @param afterSave run once the file has been saved, or null. It isn't
+     * run if the user cancels or the save fails.
      */
-    private int saveBufferAsFile() {
+    private void saveBufferAsFile(Runnable afterSave) {
         int returnStatus = fileChooser.showSaveDialog(view.getMainWindow());
         if (returnStatus == JFileChooser.APPROVE_OPTION) {
-            currentFile = fileChooser.getSelectedFile();
-            return saveBufferToCurrentFile();
+            File target = fileChooser.getSelectedFile();
+            // Ask for a password for the new file instead of silently reusing
+            // the old file's key. The old file stays loaded, key and all,
+            // until the new one is written.
+            char[] password = view.showPasswordDialog();
+            if (password != null) {
+                new SaveWorker(target.getAbsolutePath(), view.getText(), editGeneration, password,
+                        target, afterSave).start();
+            }
         }
-        return JOptionPane.CANCEL_OPTION;
     }
 
     /**
-     * Display a dialog asking the user if they want to save their changes
-     * and if so, lets them.
-     * @return YES_OPTION if the user chooses to save the changes,
-     * NO_OPTION if the user decides not to save the changes,
-     * CANCEL_OPTION if the user cancels the action.
+     * If the text buffer has unsaved changes, ask the user if they want to
+     * save them and if so, lets them. Then carry on with the action that
+     * would lose the changes, unless the user cancels.
+     * @param next the action to carry on with. It runs once the changes are
+     * saved or the user decides not to save them.
      */
-    private int handleUnsavedChanges() {
+    private void handleUnsavedChanges(Runnable next) {
+        if (!bufferHasChanged() || bufferMatchesModel()) {
+            next.run();
+            return;
+        }
         int choice = view.unsavedChangesDialog();
         if (choice == JOptionPane.YES_OPTION) {
             if (fileIsLoaded()) {
-                return saveBufferToCurrentFile();
+                saveBufferToCurrentFile(next);
             }
             else {
-                return saveBufferAsFile();
+                saveBufferAsFile(next);
             }
         }
-        return choice;
+        else if (choice == JOptionPane.NO_OPTION) {
+            next.run();
+        }
     }
 
-}
+    /**
+     * Counts the changes made to the text area's text and marks the title
+     * once there are unsaved ones.
+     */
+    private class TextChangeAction implements DocumentListener {
+        @Override
+        public void insertUpdate(DocumentEvent event) {
+            editGeneration++;
+            view.setModified(true);
+        }
+
+        @Override
+        public void removeUpdate(DocumentEvent event) {
+            editGeneration++;
+            view.setModified(true);
+        }
+
+        @Override
+        public void changedUpdate(DocumentEvent event) {
+            // Attribute changes don't change the text.
+        }
+    }
+
+    /**
+     * Reruns the search whenever the search field changes.
+     */
+    private class SearchAction implements DocumentListener {
+        @Override
+        public void insertUpdate(DocumentEvent event) {
+            runSearch();
+        }
+
+        @Override
+        public void removeUpdate(DocumentEvent event) {
+            runSearch();
+        }
+
+        @Override
+        public void changedUpdate(DocumentEvent event) {
+            runSearch();
+        }
+    }
+
+    /**
+     * Runs a file operation off the event dispatch thread so the window
+     * keeps responding while the key is derived and the file is encrypted or
+     * decrypted. A progress dialog is shown and the file actions are locked
+     * until the work is done. The result is handed back on the event
+     * dispatch thread.
+     * @param <T> type of the operation's result
+     */
+    private abstract class FileWorker<T> extends SwingWorker<T, Void>
+            implements ProgressListener {
+
+        /**
+         * Dialog showing the progress of the work.
+         */
+        private ProgressDialog dialog;
+
+        /**
+         * Message shown in the progress dialog.
+         */
+        private final String message;
+
+        /**
+         * True if the user may cancel the work.
+         */
+        private final boolean cancellable;
+
+        /**
+         * Create a new worker.
+         * @param message shown in the progress dialog.
+         * @param cancellable true to give the progress dialog a cancel
+         * button.
+         */
+        FileWorker(String message, boolean cancellable) {
+            this.message = message;
+            this.cancellable = cancellable;
+        }
+
+        /**
+         * Lock the view, show the progress dialog and start the work in
+         * the background.
+         */
+        void start() {
+            ActionListener cancelAction = null;
+            if (cancellable) {
+                cancelAction = new ActionListener() {
+                    @Override
+                    public void actionPerformed(ActionEvent e) {
+                        // Interrupts the worker thread, which stops the
+                        // operation at the next segment or buffer.
+                        cancel(true);
+                    }
+                };
+            }
+            view.setBusy(true);
+            dialog = view.showProgressDialog(message, cancelAction);
+            addPropertyChangeListener(new PropertyChangeListener() {
+                @Override
+                public void propertyChange(PropertyChangeEvent event) {
+                    if ("progress".equals(event.getPropertyName())) {
+                        dialog.setProgress((Integer) event.getNewValue());
+                    }
+                }
+            });
+            execute();
+        }
+
+        @Override
+        public void progressChanged(long done, long total) {
+            // Thread safe, and coalesces updates the EDT hasn't seen yet.
+            setProgress((int) Math.min(100, 100 * done / total));
+        }
+
+        @Override
+        protected void done() {
+            dialog.close();
+            view.setBusy(false);
+            if (isCancelled()) {
+                return;
+            }
+            try {
+                succeeded(get());
+            }
+            catch (ExecutionException e) {
+                failed(e.getCause());
+            }
+            catch (InterruptedException e) {
+                // The work is already done, so get() can't block.
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Called on the event dispatch thread when the work is finished.
+         * @param result of the work.
+         */
+        protected abstract void succeeded(T result);
+
+        /**
+         * Called on the event dispatch thread when the work failed.
+         * @param cause the exception thrown by the work.
+         */
+        protected abstract void failed(Throwable cause);
+    }
+
+    /**
+     * Opens a password file in the background. The file is opened into a
+     * new model, so the current file stays loaded if the open fails or is
+     * cancelled.
+     */
+    private class OpenWorker extends FileWorker<PasswordManager> {
+
+        /**
+         * File being opened.
+         */
+        private final File file;
 
+        /**
+         * Password for the file. Cleared once the key is derived.
+         */
+        private final char[] password;
+
+        /**
+         * Text of the opened file, read in the background along with the
+         * open.
+         */
+        private String text;
+
+        /**
+         * Entries of the opened file, indexed in the background along with
+         * the open.
+         */
+        private EntryIndex index;
+
+        /**
+         * Fingerprint of the opened file's text.
+         */
+        private Fingerprint fingerprint;
+
+        /**
+         * Create a worker to open a file.
+         * @param file to be opened.
+         * @param password for the file.
+         */
+        OpenWorker(File file, char[] password) {
+            super("Opening " + file.getName() + "...", true);
+            this.file = file;
+            this.password = password;
+        }
+
+        @Override
+        protected PasswordManager doInBackground() throws Exception {
+            PasswordManager opened = new PasswordManager();
+            opened.setProgressListener(this);
+            opened.openPasswordFile(file, password);
+            opened.setProgressListener(null);
+            text = opened.getText();
+            index = new EntryIndex();
+            index.update(text);
+            fingerprint = new Fingerprint(text);
+            if (isCancelled()) {
+                // Nobody will use this model, so don't leave its key around.
+                opened.clearSessionKey();
+            }
+            return opened;
+        }
+
+        @Override
+        protected void succeeded(PasswordManager opened) {
+            if (unlocked.containsKey(file)) {
+                // Opened again with a password; drop the old copy.
+                unlocked.get(file).clearSessionKey();
+                unlocked.put(file, opened);
+            }
+            showModel(file, opened, text, index, fingerprint);
+            checkUnreadableEnd(file, opened);
+        }
+
+        @Override
+        protected void failed(Throwable cause) {
+            if (cause instanceof BadPasswordException) {
+                view.showMessageDialog("Invalid password for file: " + file.getName());
+            }
+            else if (cause instanceof InvalidPasswordFileException) {
+                System.err.println(cause.getMessage());
+                view.showMessageDialog("Password file: " + file.getName() + " is not a properly formatted .pman file.");
+            }
+            else {
+                view.showMessageDialog("Error reading file: " + file.getName());
+                cause.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Switches the editor to one of the {@link #unlocked} files, reading
+     * its text and indexing its entries in the background. Nothing is
+     * decrypted from disk, so it can't be cancelled.
+     */
+    private class SwitchWorker extends FileWorker<PasswordManager> {
+
+        /**
+         * File being switched to.
+         */
+        private final File file;
+
+        /**
+         * The file's model.
+         */
+        private final PasswordManager opened;
+
+        /**
+         * Text of the file, read in the background.
+         */
+        private String text;
+
+        /**
+         * Entries of the file, indexed in the background.
+         */
+        private EntryIndex index;
+
+        /**
+         * Fingerprint of the file's text.
+         */
+        private Fingerprint fingerprint;
+
+        /**
+         * Create a worker to switch to an unlocked file.
+         * @param file to switch to.
+         * @param opened the file's model.
+         */
+        SwitchWorker(File file, PasswordManager opened) {
+            super("Opening " + file.getName() + "...", false);
+            this.file = file;
+            this.opened = opened;
+        }
+
+        @Override
+        protected PasswordManager doInBackground() throws Exception {
+            // The view is locked until done(), so nothing else touches the
+            // model meanwhile.
+            text = opened.getText();
+            index = new EntryIndex();
+            index.update(text);
+            fingerprint = new Fingerprint(text);
+            return opened;
+        }
+
+        @Override
+        protected void succeeded(PasswordManager opened) {
+            showModel(file, opened, text, index, fingerprint);
+        }
+
+        @Override
+        protected void failed(Throwable cause) {
+            view.showMessageDialog("Error opening file: " + file.getName());
+            cause.printStackTrace();
+        }
+    }
+
+    /**
+     * Opens several password files with one password in the background,
+     * deriving their keys at the same time. The first one that opens is
+     * shown and the rest are kept {@link #unlocked}. Files that don't open
+     * are listed with the reason.
+     */
+    private class MultiOpenWorker extends FileWorker<List<VaultUnlocker.Result>> {
+
+        /**
+         * Files being opened.
+         */
+        private final List<File> files;
+
+        /**
+         * Password for the files. Cleared once the keys are derived.
+         */
+        private final char[] password;
+
+        /**
+         * Text of the first file that opened, read in the background along
+         * with the open.
+         */
+        private String text;
+
+        /**
+         * Entries of the first file that opened, indexed in the background
+         * along with the open.
+         */
+        private EntryIndex index;
+
+        /**
+         * Fingerprint of the first file's text.
+         */
+        private Fingerprint fingerprint;
+
+        /**
+         * Create a worker to open files.
+         * @param files to be opened.
+         * @param password for the files.
+         */
+        MultiOpenWorker(List<File> files, char[] password) {
+            super("Opening " + files.size() + " files...", true);
+            this.files = new ArrayList<File>(files.size());
+            for (File file : files) {
+                this.files.add(file.getAbsoluteFile());
+            }
+            this.password = password;
+        }
+
+        @Override
+        protected List<VaultUnlocker.Result> doInBackground() throws Exception {
+            List<VaultUnlocker.Result> results = new VaultUnlocker().openAll(files, password, this);
+            for (VaultUnlocker.Result result : results) {
+                if (result.succeeded()) {
+                    text = result.getModel().getText();
+                    index = new EntryIndex();
+                    index.update(text);
+                    fingerprint = new Fingerprint(text);
+                    break;
+                }
+            }
+            if (isCancelled()) {
+                for (VaultUnlocker.Result result : results) {
+                    if (result.succeeded()) {
+                        result.getModel().clearSessionKey();
+                    }
+                }
+            }
+            return results;
+        }
+
+        @Override
+        protected void succeeded(List<VaultUnlocker.Result> results) {
+            StringBuilder failures = new StringBuilder();
+            VaultUnlocker.Result first = null;
+            for (VaultUnlocker.Result result : results) {
+                File file = result.getFile();
+                if (!result.succeeded()) {
+                    failures.append("\n").append(file.getName()).append(": ")
+                            .append(describeFailure(result.getFailure()));
+                    continue;
+                }
+                PasswordManager previous = unlocked.put(file, result.getModel());
+                if (previous != null && previous != model) {
+                    previous.clearSessionKey();
+                }
+                if (first == null) {
+                    first = result;
+                }
+            }
+            if (first != null) {
+                showModel(first.getFile(), first.getModel(), text, index, fingerprint);
+            }
+            for (VaultUnlocker.Result result : results) {
+                if (result.succeeded()) {
+                    checkUnreadableEnd(result.getFile(), result.getModel());
+                }
+            }
+            if (failures.length() > 0) {
+                view.showMessageDialog("Some files could not be opened:" + failures);
+            }
+        }
+
+        /**
+         * Describe why a file didn't open.
+         * @param cause the exception opening it threw.
+         * @return the description.
+         */
+        private String describeFailure(Exception cause) {
+            if (cause instanceof BadPasswordException) {
+                return "invalid password";
+            }
+            if (cause instanceof InvalidPasswordFileException) {
+                return "not a properly formatted .pman file";
+            }
+            cause.printStackTrace();
+            return "error reading file";
+        }
+
+        @Override
+        protected void failed(Throwable cause) {
+            view.showMessageDialog("Error opening files.");
+            cause.printStackTrace();
+        }
+    }
+
+    /**
+     * Saves the model to a file in the background. Saves can't be
+     * cancelled, since stopping part way would leave a broken file.
+     */
+    private class SaveWorker extends FileWorker<Fingerprint> {
+
+        /**
+         * Name of the file being written.
+         */
+        private final String filename;
+
+        /**
+         * Text to save.
+         */
+        private final String text;
+
+        /**
+         * {@link #editGeneration} of the text being saved.
+         */
+        private final long generation;
+
+        /**
+         * Password to encrypt the file with, or null to use the model's
+         * cached key.
+         */
+        private final char[] password;
+
+        /**
+         * File the model is being moved to by Save As, or null if it's
+         * saved to the current file.
+         */
+        private final File saveAs;
+
+        /**
+         * Run once the file is saved, or null.
+         */
+        private final Runnable afterSave;
+
+        /**
+         * Create a worker to save a file.
+         * @param filename of the file to be written.
+         * @param text to save.
+         * @param generation of the text being saved.
+         * @param password for the file, or null to use the cached key.
+         * @param saveAs the file the model moves to once it's saved, or null
+         * to save the current file.
+         * @param afterSave run once the file is saved, or null.
+         */
+        SaveWorker(String filename, String text, long generation, char[] password,
+                File saveAs, Runnable afterSave) {
+            super("Saving " + new File(filename).getName() + "...", false);
+            this.filename = filename;
+            this.text = text;
+            this.generation = generation;
+            this.password = password;
+            this.saveAs = saveAs;
+            this.afterSave = afterSave;
+        }
+
+        @Override
+        protected Fingerprint doInBackground() throws Exception {
+            // The view is locked until done(), so nothing else touches the
+            // model while it's being saved.
+            model.setText(text);
+            model.setProgressListener(this);
+            try {
+                if (password == null) {
+                    model.savePasswordFile(filename);
+                }
+                else {
+                    model.savePasswordFile(filename, password);
+                }
+            }
+            finally {
+                model.setProgressListener(null);
+            }
+            return new Fingerprint(text);
+        }
+
+        @Override
+        protected void succeeded(Fingerprint saved) {
+            if (saveAs != null) {
+                // The model belongs to the new file and its key now.
+                unlocked.values().remove(model);
+                currentFile = saveAs;
+            }
+            markSaved(generation, saved);
+            if (afterSave != null) {
+                afterSave.run();
+            }
+        }
+
+        @Override
+        protected void failed(Throwable cause) {
+            if (saveAs != null) {
+                // The key may already be the new file's, which must not be
+                // used to save the old one.
+                model.clearSessionKey();
+            }
+            view.showMessageDialog("Error writing file: " + filename);
+            cause.printStackTrace();
+        }
+    }
+
+    /**
+     * Recognizes a text again without keeping it: its hash, which is cheap
+     * to compare, and a SHA-256 digest for when the hashes match.
+     */
+    private static final class Fingerprint {
+
+        /**
+         * The text's {@link String#hashCode()}.
+         */
+        private final int hash;
+
+        /**
+         * SHA-256 of the text's characters.
+         */
+        private final byte[] digest;
+
+        /**
+         * Take a text's fingerprint.
+         * @param text to fingerprint
+         */
+        Fingerprint(String text) {
+            hash = text.hashCode();
+            digest = digest(text);
+        }
+
+        /**
+         * Determine if a text is the one fingerprinted.
+         * @param text to check
+         * @return true if it is, false otherwise.
+         */
+        boolean matches(String text) {
+            return text.hashCode() == hash && MessageDigest.isEqual(digest, digest(text));
+        }
+
+        /**
+         * Digest a text's characters a buffer at a time, so no encoded copy
+         * of the whole text is made.
+         * @param text to digest
+         * @return the SHA-256 of its UTF-16 characters
+         */
+        private static byte[] digest(String text) {
+            MessageDigest sha = null;
+            try {
+                sha = MessageDigest.getInstance("SHA-256");
+            }
+            catch (GeneralSecurityException e) {
+                e.printStackTrace();
+                System.exit(PMExitCode.JCA_ALGORITHM_ERROR);
+            }
+            byte[] buffer = new byte[8192];
+            for (int start = 0; start < text.length(); start += buffer.length / 2) {
+                int end = Math.min(text.length(), start + buffer.length / 2);
+                for (int i = start; i < end; i++) {
+                    char c = text.charAt(i);
+                    buffer[2 * (i - start)] = (byte) (c >>> 8);
+                    buffer[2 * (i - start) + 1] = (byte) c;
+                }
+                sha.update(buffer, 0, 2 * (end - start));
+            }
+            Arrays.fill(buffer, (byte) 0);
+            return sha.digest();
+        }
+    }
+
+}
@@ -17,6 +17,31 @@ public class PMExitCode {
      */
     public static final int JCA_ALGORITHM_ERROR = 1;
 
+    /**
+     * The command line was given a command or arguments it doesn't know.
+     */
+    public static final int USAGE_ERROR = 2;
+
+    /**
+     * The password didn't open the file.
+     */
+    public static final int BAD_PASSWORD = 3;
+
+    /**
+     * The file isn't a properly formatted password file.
+     */
+    public static final int INVALID_FILE = 4;
+
+    /**
+     * The file couldn't be read or written.
+     */
+    public static final int IO_ERROR = 5;
+
+    /**
+     * An entry asked for on the command line isn't in the file.
+     */
+    public static final int NOT_FOUND = 6;
+
     /**
      * Private constructor since this only has public static fields and should
      * never be instantiated.
@@ -2,30 +2,49 @@ package dashteacup.pman;
 
 import java.awt.BorderLayout;
 import java.awt.Color;
+import java.awt.FlowLayout;
 import java.awt.Insets;
 import java.awt.Toolkit;
+import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
+import java.awt.event.MouseWheelEvent;
+import java.awt.event.MouseWheelListener;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.swing.ImageIcon;
 import javax.swing.JButton;
 import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JList;
 import javax.swing.JMenu;
 import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JScrollBar;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
+import javax.swing.JTextField;
 import javax.swing.JToolBar;
 import javax.swing.KeyStroke;
 import javax.swing.UIManager;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.event.ListSelectionEvent;
+import javax.swing.event.ListSelectionListener;
 
 /**
  * View class for the Password Management (PM) application.
  */
 public class PMView {
 
+    /**
+     * Title of the main window.
+     */
+    private static final String windowTitle = "CS242 Password Manager";
+
     /**
      * The main window for this application.
      */
@@ -77,10 +96,83 @@ public class PMView {
     private JButton saveAsButton;
 
     /**
-     * Text area where the password file will be displayed.
+     * Text area where the password file will be displayed, a page at a
+     * time.
      */
     private JTextArea textArea;
 
+    /**
+     * Scroll pane holding the text area.
+     */
+    private JScrollPane textScrollPane;
+
+    /**
+     * The whole text, split into the pages shown in the text area.
+     */
+    private PagedText pages;
+
+    /**
+     * Index of the page in the text area.
+     */
+    private int currentPage;
+
+    /**
+     * True if the page in the text area has been edited since it was shown.
+     */
+    private boolean pageEdited;
+
+    /**
+     * True while another page is being put in the text area, which isn't an
+     * edit.
+     */
+    private boolean switchingPage;
+
+    /**
+     * Listeners told when the text changes.
+     */
+    private List<DocumentListener> textChangeListeners;
+
+    /**
+     * Bar with the page buttons, hidden when the text fits on one page.
+     */
+    private JPanel pageBar;
+
+    /**
+     * Button showing the previous page.
+     */
+    private JButton previousPageButton;
+
+    /**
+     * Button showing the next page.
+     */
+    private JButton nextPageButton;
+
+    /**
+     * Label showing which page is in the text area.
+     */
+    private JLabel pageLabel;
+
+    /**
+     * Field the user types searches into.
+     */
+    private JTextField searchField;
+
+    /**
+     * Entries matching the current search. Selecting one selects it in the
+     * text area.
+     */
+    private JList<Entry> searchResults;
+
+    /**
+     * Scroll pane holding the search results, hidden when there's no search.
+     */
+    private JScrollPane searchResultsPane;
+
+    /**
+     * True if the title shows the text has unsaved changes.
+     */
+    private boolean modified;
+
     /**
      * Constructor builds the view
      */
@@ -95,11 +187,15 @@ public class PMView {
             // It's not a big deal if you can't access the system look and feel
             System.err.println("Couldn't get native look and feel.");
         }
-        mainWindow = new JFrame("CS242 Password Manager");
+        mainWindow = new JFrame(windowTitle);
         setUpMenu();
         JPanel panel = new JPanel(new BorderLayout());
         setUpToolbar(panel);
         setUpTextArea(panel);
+        setUpPageBar(panel);
+        setUpSearchResults(panel);
+        // At start up you should have nothing loaded.
+        hideTextArea();
         mainWindow.add(panel);
         mainWindow.pack();
         mainWindow.setVisible(true);
@@ -115,27 +211,100 @@ public class PMView {
     }
 
     /**
-     * Displays a string in the main window's text area.
+     * Displays a string at the end of the text, showing the last page.
      * @param text to be added
      */
     public void addText(String text) {
+        showPage(pages.pageCount() - 1);
         textArea.append(text);
     }
 
     /**
-     * Set the main windows text area to display the given source text.
+     * Set the text to display. Only its first page is put in the text
+     * area, so this takes about as long for a huge text as a small one.
      * @param text to be shown.
      */
     public void setText(String text) {
-        textArea.setText(text);
+        pages = new PagedText(text);
+        currentPage = 0;
+        textArea.setText(pages.getPage(0));
+        textArea.setCaretPosition(0);
+        pageEdited = false;
+        updatePageBar();
     }
 
     /**
-     * Get the current contents of the text area.
+     * Get the whole text, including the edits made to the page in the text
+     * area.
      * @return text area contents.
      */
     public String getText() {
-        return textArea.getText();
+        savePage();
+        return pages.toString();
+    }
+
+    /**
+     * Write the edits made to the page in the text area back to the whole
+     * text.
+     */
+    private void savePage() {
+        if (pageEdited) {
+            pages.setPage(currentPage, textArea.getText());
+            pageEdited = false;
+        }
+    }
+
+    /**
+     * Put a page in the text area, keeping the edits made to the one it
+     * replaces.
+     * @param page index
+     */
+    private void showPage(int page) {
+        if (page == currentPage) {
+            return;
+        }
+        savePage();
+        currentPage = page;
+        switchingPage = true;
+        try {
+            textArea.setText(pages.getPage(page));
+            textArea.setCaretPosition(0);
+        }
+        finally {
+            switchingPage = false;
+        }
+        updatePageBar();
+    }
+
+    /**
+     * Select part of the whole text, showing the page it starts on. The
+     * selection stops at the end of that page.
+     * @param start of the selection in the whole text
+     * @param end of the selection in the whole text
+     */
+    private void selectText(int start, int end) {
+        savePage();
+        start = Math.min(start, pages.length());
+        showPage(pages.pageAt(start));
+        int pageStart = pages.pageStart(currentPage);
+        int pageEnd = pages.pageEnd(currentPage);
+        textArea.requestFocusInWindow();
+        textArea.select(start - pageStart, Math.min(end, pageEnd) - pageStart);
+    }
+
+    /**
+     * Show or hide the page bar and bring it up to date with the page in the
+     * text area.
+     */
+    private void updatePageBar() {
+        int count = pages.pageCount();
+        pageLabel.setText("Page " + (currentPage + 1) + " of " + count);
+        previousPageButton.setEnabled(textArea.isEnabled() && currentPage > 0);
+        nextPageButton.setEnabled(textArea.isEnabled() && currentPage < count - 1);
+        if (pageBar.isVisible() != (count > 1)) {
+            pageBar.setVisible(count > 1);
+            mainWindow.validate();
+        }
     }
 
     /**
@@ -145,7 +314,8 @@ public class PMView {
     public void hideTextArea() {
         textArea.setEditable(false);
         textArea.setBackground(Color.GRAY);
-        textArea.setText("");
+        setText("");
+        searchField.setText("");
     }
 
     /**
@@ -158,6 +328,41 @@ public class PMView {
         textArea.requestFocusInWindow();
     }
 
+    /**
+     * Mark the title of the main window to show whether the text has
+     * unsaved changes.
+     * @param modified true if there are unsaved changes.
+     */
+    public void setModified(boolean modified) {
+        if (this.modified != modified) {
+            this.modified = modified;
+            mainWindow.setTitle(modified ? "*" + windowTitle : windowTitle);
+        }
+    }
+
+    /**
+     * Get the text typed in the search field.
+     * @return the search, possibly empty
+     */
+    public String getSearchText() {
+        return searchField.getText();
+    }
+
+    /**
+     * Show the entries matching a search beside the text area, or hide the
+     * results if there's no search.
+     * @param entries to list, or null to hide the results
+     */
+    void showSearchResults(List<Entry> entries) {
+        boolean show = (entries != null);
+        searchResults.setListData((entries == null) ? new Entry[0]
+                : entries.toArray(new Entry[entries.size()]));
+        if (searchResultsPane.isVisible() != show) {
+            searchResultsPane.setVisible(show);
+            mainWindow.validate();
+        }
+    }
+
     /**
      * Show a message dialog box attached to the main window of the application.
      * @param message to be displayed to the user.
@@ -176,6 +381,52 @@ public class PMView {
         return dialog.getPasswordFromUser();
     }
 
+    /**
+     * Show a dialog with the progress of a file being opened or saved.
+     * @param message describing the work being done.
+     * @param cancelAction run if the user cancels, or null if the work can't
+     * be cancelled.
+     * @return the dialog, so it can be updated and closed later.
+     */
+    public ProgressDialog showProgressDialog(String message, ActionListener cancelAction) {
+        ProgressDialog dialog = new ProgressDialog(mainWindow, message, cancelAction);
+        dialog.show();
+        return dialog;
+    }
+
+    /**
+     * Lock or unlock the file actions and the text area while a file is
+     * being opened or saved in the background.
+     * @param busy true to lock, false to unlock.
+     */
+    public void setBusy(boolean busy) {
+        newMenu.setEnabled(!busy);
+        openMenu.setEnabled(!busy);
+        closeMenu.setEnabled(!busy);
+        saveMenu.setEnabled(!busy);
+        saveAsMenu.setEnabled(!busy);
+        newButton.setEnabled(!busy);
+        openButton.setEnabled(!busy);
+        saveButton.setEnabled(!busy);
+        saveAsButton.setEnabled(!busy);
+        textArea.setEnabled(!busy);
+        updatePageBar();
+        searchField.setEnabled(!busy);
+        // Quitting in the middle of a save would leave a half written file.
+        mainWindow.setDefaultCloseOperation(busy ? JFrame.DO_NOTHING_ON_CLOSE : JFrame.EXIT_ON_CLOSE);
+    }
+
+    /**
+     * Ask the user a yes or no question.
+     * @param message the question.
+     * @param title of the dialog.
+     * @return true if the user answered yes.
+     */
+    public boolean showConfirmDialog(String message, String title) {
+        return JOptionPane.showConfirmDialog(mainWindow, message, title, JOptionPane.YES_NO_OPTION,
+                JOptionPane.WARNING_MESSAGE) == JOptionPane.YES_OPTION;
+    }
+
     public int unsavedChangesDialog() {
         String message = "You have unsaved changes in your current file. Do you want to save?";
         String title = "Save file?";
@@ -232,6 +483,23 @@ public class PMView {
         saveAsButton.addActionListener(action);
     }
 
+    /**
+     * Adds a listener to the text area, told whenever its text changes,
+     * including when it's replaced with {@link #setText}.
+     * @param listener to be attached to the text area's document.
+     */
+    public void addTextChangeListener(DocumentListener listener) {
+        textChangeListeners.add(listener);
+    }
+
+    /**
+     * Adds a listener to the search field, told whenever the search changes.
+     * @param listener to be attached to the search field's document.
+     */
+    public void addSearchListener(DocumentListener listener) {
+        searchField.getDocument().addDocumentListener(listener);
+    }
+
     /**
      * Create the PM's menu bar.
      */
@@ -285,6 +553,10 @@ public class PMView {
         toolBar.add(openButton);
         toolBar.add(saveButton);
         toolBar.add(saveAsButton);
+        toolBar.addSeparator();
+        toolBar.add(new JLabel("Search: "));
+        searchField = new JTextField(20);
+        toolBar.add(searchField);
         panel.add(toolBar, BorderLayout.PAGE_START);
     }
 
@@ -309,12 +581,112 @@ public class PMView {
         textArea = new JTextArea(30, 40);
         textArea.setMargin(new Insets(5, 5, 5, 5));
         textArea.setLineWrap(true);
+        textChangeListeners = new ArrayList<DocumentListener>();
+        textArea.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent event) {
+                if (!switchingPage) {
+                    pageEdited = true;
+                    for (DocumentListener listener : textChangeListeners) {
+                        listener.insertUpdate(event);
+                    }
+                }
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent event) {
+                if (!switchingPage) {
+                    pageEdited = true;
+                    for (DocumentListener listener : textChangeListeners) {
+                        listener.removeUpdate(event);
+                    }
+                }
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent event) {
+                if (!switchingPage) {
+                    for (DocumentListener listener : textChangeListeners) {
+                        listener.changedUpdate(event);
+                    }
+                }
+            }
+        });
+
+        textScrollPane = new JScrollPane(textArea);
+        // Scrolling on past either end of a page moves to the next one.
+        textScrollPane.addMouseWheelListener(new MouseWheelListener() {
+            @Override
+            public void mouseWheelMoved(MouseWheelEvent event) {
+                if (!textArea.isEnabled()) {
+                    return;
+                }
+                JScrollBar bar = textScrollPane.getVerticalScrollBar();
+                if (event.getWheelRotation() > 0 && currentPage < pages.pageCount() - 1
+                        && bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum()) {
+                    showPage(currentPage + 1);
+                }
+                else if (event.getWheelRotation() < 0 && currentPage > 0
+                        && bar.getValue() <= bar.getMinimum()) {
+                    showPage(currentPage - 1);
+                    textArea.setCaretPosition(textArea.getDocument().getLength());
+                }
+            }
+        });
+        panel.add(textScrollPane, BorderLayout.CENTER);
+    }
 
-        // At start up you should have nothing loaded.
-        hideTextArea();
+    /**
+     * Create the bar for moving between pages of a text too large to show at
+     * once.
+     * @param panel to add the bar to.
+     */
+    private void setUpPageBar(JPanel panel) {
+        pageBar = new JPanel(new FlowLayout(FlowLayout.CENTER));
+        previousPageButton = new JButton("<");
+        previousPageButton.setToolTipText("Previous page");
+        previousPageButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent event) {
+                showPage(currentPage - 1);
+            }
+        });
+        nextPageButton = new JButton(">");
+        nextPageButton.setToolTipText("Next page");
+        nextPageButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent event) {
+                showPage(currentPage + 1);
+            }
+        });
+        pageLabel = new JLabel();
+        pageBar.add(previousPageButton);
+        pageBar.add(pageLabel);
+        pageBar.add(nextPageButton);
+        pageBar.setVisible(false);
+        panel.add(pageBar, BorderLayout.PAGE_END);
+    }
 
-        JScrollPane scrollPane = new JScrollPane(textArea);
-        panel.add(scrollPane, BorderLayout.CENTER);
+    /**
+     * Create the list of search results, hidden until there's a search.
+     * @param panel to add the list to.
+     */
+    private void setUpSearchResults(JPanel panel) {
+        searchResults = new JList<Entry>();
+        searchResults.setVisibleRowCount(20);
+        searchResults.addListSelectionListener(new ListSelectionListener() {
+            @Override
+            public void valueChanged(ListSelectionEvent event) {
+                Entry entry = searchResults.getSelectedValue();
+                if (entry == null || event.getValueIsAdjusting()) {
+                    return;
+                }
+                selectText(entry.getStart(), entry.getEnd());
+            }
+        });
+        searchResultsPane = new JScrollPane(searchResults);
+        searchResultsPane.setVisible(false);
+        panel.add(searchResultsPane, BorderLayout.LINE_END);
     }
 
 
@@ -0,0 +1,146 @@
+package dashteacup.pman;
+
+import java.util.Arrays;
+
+/**
+ * Text split into pages of whole lines for the editor, so only one page at
+ * a time has to be put in the text area and laid out however large the
+ * text is. Edits to the page being shown are written back when another
+ * page is shown or the whole text is wanted.
+ */
+final class PagedText {
+
+    /**
+     * Number of characters a page is filled to before it's ended at the
+     * next line break.
+     */
+    static final int pageSize = 64 * 1024;
+
+    /**
+     * The whole text.
+     */
+    private String text;
+
+    /**
+     * Offset of each page in the text, plus the text's length at the end.
+     */
+    private int[] starts;
+
+    /**
+     * Split text into pages.
+     * @param text to be paged
+     */
+    PagedText(String text) {
+        this.text = text;
+        int length = text.length();
+        int[] found = new int[length / pageSize + 2];
+        int count = 0;
+        int start = 0;
+        do {
+            found[count++] = start;
+            start = pageEnd(text, start);
+        } while (start < length);
+        found[count++] = length;
+        starts = Arrays.copyOf(found, count);
+    }
+
+    /**
+     * Find the end of a page: the line break after its first pageSize
+     * characters, or the end of the text.
+     * @param text the whole text
+     * @param start of the page
+     * @return offset just past the page
+     */
+    private static int pageEnd(String text, int start) {
+        int length = text.length();
+        if (length - start <= pageSize) {
+            return length;
+        }
+        int end = text.indexOf('\n', start + pageSize - 1);
+        return (end < 0) ? length : end + 1;
+    }
+
+    /**
+     * Get the number of pages. Even an empty text has one.
+     * @return the page count
+     */
+    int pageCount() {
+        return starts.length - 1;
+    }
+
+    /**
+     * Get where a page starts in the whole text.
+     * @param page index
+     * @return offset of the page's first character
+     */
+    int pageStart(int page) {
+        return starts[page];
+    }
+
+    /**
+     * Get where a page ends in the whole text.
+     * @param page index
+     * @return offset just past the page's last character
+     */
+    int pageEnd(int page) {
+        return starts[page + 1];
+    }
+
+    /**
+     * Find the page holding a character. The end of the text is on the last
+     * page.
+     * @param offset in the whole text
+     * @return the page index
+     */
+    int pageAt(int offset) {
+        int page = Arrays.binarySearch(starts, 0, starts.length - 1, offset);
+        if (page < 0) {
+            return -page - 2;
+        }
+        // Several pages can only start at the same place if they're empty.
+        while (page + 1 < starts.length - 1 && starts[page + 1] == offset) {
+            page++;
+        }
+        return page;
+    }
+
+    /**
+     * Get the text of a page.
+     * @param page index
+     * @return the page's text
+     */
+    String getPage(int page) {
+        return text.substring(starts[page], starts[page + 1]);
+    }
+
+    /**
+     * Replace the text of a page. The pages after it move along.
+     * @param page index
+     * @param pageText the page's new text
+     */
+    void setPage(int page, String pageText) {
+        int delta = pageText.length() - (starts[page + 1] - starts[page]);
+        text = new StringBuilder(text.length() + delta).append(text, 0, starts[page])
+                .append(pageText).append(text, starts[page + 1], text.length()).toString();
+        for (int i = page + 1; i < starts.length; i++) {
+            starts[i] += delta;
+        }
+    }
+
+    /**
+     * Get the length of the whole text.
+     * @return number of characters
+     */
+    int length() {
+        return text.length();
+    }
+
+    /**
+     * Get the whole text.
+     * @return the text
+     */
+    @Override
+    public String toString() {
+        return text;
+    }
+}
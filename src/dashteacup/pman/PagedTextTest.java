@@ -0,0 +1,66 @@
+package dashteacup.pman;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests for splitting text into editor pages with {@link PagedText}.
+ */
+public class PagedTextTest {
+
+    /**
+     * Make a text of numbered lines.
+     * @param lines number of lines
+     * @return the text
+     */
+    private static String lines(int lines) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            text.append("line ").append(i).append(" of the text\n");
+        }
+        return text.toString();
+    }
+
+    @Test
+    public void pagesHoldWholeLines() {
+        String text = lines(20000);
+        PagedText pages = new PagedText(text);
+        assertTrue(pages.pageCount() > 1);
+        StringBuilder joined = new StringBuilder();
+        for (int page = 0; page < pages.pageCount(); page++) {
+            String pageText = pages.getPage(page);
+            assertTrue(pageText.length() >= PagedText.pageSize || page == pages.pageCount() - 1);
+            assertTrue(pageText.endsWith("\n"));
+            assertEquals(page, pages.pageAt(pages.pageStart(page)));
+            assertEquals(page, pages.pageAt(pages.pageEnd(page) - 1));
+            joined.append(pageText);
+        }
+        assertEquals(text, joined.toString());
+        assertEquals(pages.pageCount() - 1, pages.pageAt(text.length()));
+
+        PagedText empty = new PagedText("");
+        assertEquals(1, empty.pageCount());
+        assertEquals("", empty.getPage(0));
+        assertEquals(0, empty.pageAt(0));
+    }
+
+    @Test
+    public void editedPagesMoveLaterPages() {
+        String text = lines(20000);
+        PagedText pages = new PagedText(text);
+        String second = pages.getPage(1);
+        int firstEnd = pages.pageEnd(0);
+        pages.setPage(0, "short\n");
+        assertEquals("short\n", pages.getPage(0));
+        assertEquals(6, pages.pageStart(1));
+        assertEquals(second, pages.getPage(1));
+        assertEquals("short\n" + text.substring(firstEnd), pages.toString());
+
+        // The character after an emptied page is on the page after it.
+        pages.setPage(1, "");
+        assertEquals(2, pages.pageAt(pages.pageStart(1)));
+        assertEquals("short\n" + text.substring(firstEnd + second.length()), pages.toString());
+    }
+}
@@ -0,0 +1,244 @@
+package dashteacup.pman;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypts and decrypts batches of segments of a {@link SegmentedFile} on
+ * several threads at once. Every segment has its own nonce and offset, so
+ * the segments of a batch are completely independent: each worker reads or
+ * writes its segment with positional channel I/O, and the caller gets the
+ * results back in segment order.
+ */
+class ParallelSegmentCipher {
+
+    /**
+     * Instance shared by all password managers, sized to the machine.
+     */
+    private static ParallelSegmentCipher shared;
+
+    /**
+     * Pool running the segment tasks. Its threads are daemons, so an idle
+     * pool doesn't keep the application alive.
+     */
+    private final ForkJoinPool pool;
+
+    /**
+     * Number of threads in the pool.
+     */
+    private final int parallelism;
+
+    /**
+     * Per-thread scratch buffer for cipher text.
+     */
+    private final ThreadLocal<ByteBuffer> cipherBuffers;
+
+    /**
+     * Create a new parallel cipher.
+     * @param parallelism number of threads to use. 1 does all the work on
+     * the calling thread.
+     */
+    ParallelSegmentCipher(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1.");
+        }
+        this.parallelism = parallelism;
+        this.pool = (parallelism > 1) ? new ForkJoinPool(parallelism) : null;
+        this.cipherBuffers = new ThreadLocal<ByteBuffer>();
+    }
+
+    /**
+     * Get the instance shared by all password managers. It uses one thread
+     * per available processor.
+     * @return the shared instance
+     */
+    static synchronized ParallelSegmentCipher getShared() {
+        if (shared == null) {
+            shared = new ParallelSegmentCipher(Runtime.getRuntime().availableProcessors());
+        }
+        return shared;
+    }
+
+    /**
+     * Get the number of threads used.
+     * @return the parallelism
+     */
+    int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Get a good number of segments to hand over at once. Enough to keep
+     * every thread busy without holding too much of the file in memory.
+     * @return the batch size in segments
+     */
+    int getBatchSize() {
+        return 2 * parallelism;
+    }
+
+    /**
+     * Encrypt a batch of segments and write them one after another starting
+     * at the channel's current position. The channel is left positioned
+     * after the last segment. In a compressed file the segments are all
+     * compressed first, since their lengths are needed to place them.
+     * @param layout of the file being written
+     * @param channel open for writing
+     * @param key the file's key
+     * @param plainBuffers the segments' plain text, each ready to be read.
+     * They're compressed in place in a compressed file.
+     * @param count number of buffers to use from the start of the array
+     * @throws IOException if a write fails.
+     */
+    void encrypt(final SegmentedFile layout, final FileChannel channel,
+            final SecretKeySpec key, final ByteBuffer[] plainBuffers, int count)
+                    throws IOException {
+        if (layout.isCompressed()) {
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(count);
+            for (int i = 0; i < count; i++) {
+                final int index = i;
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        layout.packSegment(plainBuffers[index]);
+                        return null;
+                    }
+                });
+            }
+            try {
+                runAll(tasks);
+            }
+            catch (InvalidPasswordFileException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        long offset = channel.position();
+        final SegmentedFile.Segment[] reserved = new SegmentedFile.Segment[count];
+        for (int i = 0; i < count; i++) {
+            reserved[i] = layout.reserveSegment(offset, plainBuffers[i].remaining());
+            offset += reserved[i].length;
+        }
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(count);
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    ByteBuffer cipherBuffer = cipherBuffer(reserved[index].length);
+                    layout.writeSegment(channel, key, reserved[index],
+                            plainBuffers[index], cipherBuffer);
+                    return null;
+                }
+            });
+        }
+        try {
+            runAll(tasks);
+        }
+        catch (InvalidPasswordFileException e) {
+            // Encryption never checks authentication.
+            throw new IllegalStateException(e);
+        }
+        channel.position(offset);
+    }
+
+    /**
+     * Read and decrypt a batch of consecutive segments.
+     * @param layout of the file being read, with its table already read
+     * @param channel open on the file
+     * @param key the file's key
+     * @param first index of the first segment in the batch
+     * @param plainBuffers receive the segments' plain text. Each must hold at
+     * least the segment size and is left ready to be read.
+     * @param count number of segments to decrypt
+     * @throws InvalidPasswordFileException if a segment fails authentication.
+     * @throws IOException if a read fails.
+     */
+    void decrypt(final SegmentedFile layout, final FileChannel channel,
+            final SecretKeySpec key, final int first, final ByteBuffer[] plainBuffers,
+            int count) throws InvalidPasswordFileException, IOException {
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(count);
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws InvalidPasswordFileException, IOException {
+                    int segment = first + index;
+                    ByteBuffer cipherBuffer = cipherBuffer(layout.getSegments().get(segment).length);
+                    plainBuffers[index].clear();
+                    layout.readSegment(channel, key, segment, cipherBuffer, plainBuffers[index]);
+                    plainBuffers[index].flip();
+                    return null;
+                }
+            });
+        }
+        runAll(tasks);
+    }
+
+    /**
+     * Run a list of tasks and wait for all of them. A single task, or any
+     * tasks when there's only one thread, runs on the calling thread.
+     * @param tasks to run
+     * @throws InvalidPasswordFileException if a task reports a bad segment.
+     * @throws IOException if a task fails to read or write.
+     */
+    private void runAll(List<Callable<Void>> tasks)
+            throws InvalidPasswordFileException, IOException {
+        try {
+            if (pool == null || tasks.size() == 1) {
+                for (Callable<Void> task : tasks) {
+                    task.call();
+                }
+                return;
+            }
+            for (Future<Void> result : pool.invokeAll(tasks)) {
+                result.get();
+            }
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof InvalidPasswordFileException) {
+                throw (InvalidPasswordFileException) cause;
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for segments.");
+        }
+        catch (InvalidPasswordFileException | IOException | RuntimeException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Get the current thread's cipher text buffer, growing it if needed.
+     * @param size the buffer needs to hold
+     * @return a buffer with at least the given capacity
+     */
+    private ByteBuffer cipherBuffer(int size) {
+        ByteBuffer buffer = cipherBuffers.get();
+        if (buffer == null || buffer.capacity() < size) {
+            buffer = ByteBuffer.allocate(size);
+            cipherBuffers.set(buffer);
+        }
+        return buffer;
+    }
+}
@@ -3,20 +3,31 @@ package dashteacup.pman;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
 import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
-import java.security.spec.KeySpec;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
-import javax.crypto.SecretKey;
-import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
 
 /**
@@ -25,19 +36,36 @@ import javax.crypto.spec.SecretKeySpec;
 public class PasswordManager {
 
     /**
-     * Number of times to hash the password in {@link PBEKeySpec}.
+     * Version of the original file layout: a single CBC encrypted stream
+     * between the headers and the footer.
      */
-    private static final int iterations = 6000;
+    public static final int LEGACY_FORMAT = 1;
 
     /**
-     * Length of the key to be generated by {@link PBEKeySpec}.
+     * Version of the segmented file layout described in {@link SegmentedFile}.
+     * New files are written in this format.
      */
-    private static final int keyLength = 256;
+    public static final int SEGMENTED_FORMAT = 2;
 
     /**
-     * Algorithm to be used with the JCA's PBE functionality.
+     * Key derivation function choice: PBKDF2 with HMAC-SHA256, the default.
      */
-    private static final String pbeAlgorithm = "PBKDF2WithHmacSHA1";
+    public static final int PBKDF2_KDF = KeyDerivation.PBKDF2_SHA256;
+
+    /**
+     * Key derivation function choice: the memory hard Argon2id.
+     */
+    public static final int ARGON2ID_KDF = KeyDerivation.ARGON2ID;
+
+    /**
+     * Crypto engine choice for segmented files: AES-GCM, the default.
+     */
+    public static final int AES_GCM_ENGINE = CryptoEngine.AES_GCM;
+
+    /**
+     * Crypto engine choice for segmented files: AES-CTR with HMAC-SHA256.
+     */
+    public static final int AES_CTR_HMAC_ENGINE = CryptoEngine.AES_CTR_HMAC;
 
     /**
      * Symmetric encryption algorithm used on password files.
@@ -76,12 +104,44 @@ public class PasswordManager {
     private static final String passwordFileFooter = "PMFileEndCipherT";
 
     /**
-     * Unencrypted user data of a password file.
-     * TODO: Currently I'm not worrying about keeping the file contents
-     * encrypted in memory. I may change that in the future for enhanced
-     * security.
+     * Size in bytes of the buffers used to stream a file's contents through
+     * the cipher. Must be a multiple of {@link #blockSize}.
+     */
+    private static final int streamBufferSize = 64 * 1024;
+
+    /**
+     * Files at least this many bytes long are memory mapped when opened
+     * instead of being read through a buffer.
+     */
+    private static final long mappedOpenThreshold = 16L * 1024 * 1024;
+
+    /**
+     * Size in bytes of each region of a file mapped at once when opening a
+     * mapped file. Must be a multiple of {@link #streamBufferSize}.
      */
-    private String currentFileText;
+    private static final long mappedWindowSize = 1024L * streamBufferSize;
+
+    /**
+     * Character set used to turn the user's text into bytes in the
+     * {@link #LEGACY_FORMAT}. That format has nowhere to record an encoding,
+     * so it stays the platform default that older versions wrote with.
+     * Segmented files record their own, see
+     * {@link SegmentedFile#getTextCharset()}.
+     */
+    private static final Charset legacyCharset = Charset.defaultCharset();
+
+    /**
+     * A segmented file is rewritten from scratch instead of updated in place
+     * once more than this fraction of its data area would be unused segments
+     * left over from earlier saves.
+     */
+    private static final double compactionThreshold = 0.5;
+
+    /**
+     * User data of a password file, kept encrypted in memory. Only the
+     * records read recently are held as plain text.
+     */
+    private SealedText currentFileText;
 
     /**
      * Salt for the current password file.
@@ -93,13 +153,123 @@ public class PasswordManager {
      */
     private byte[] currentFileIV;
 
+    /**
+     * Key derived from the password the current file was last opened or
+     * saved with. Null when no key is cached.
+     */
+    private SessionKey sessionKey;
+
+    /**
+     * File format the current file is saved in, either
+     * {@link #LEGACY_FORMAT} or {@link #SEGMENTED_FORMAT}.
+     */
+    private int formatVersion;
+
+    /**
+     * Encrypts and decrypts the segments of {@link #SEGMENTED_FORMAT} files
+     * on several threads.
+     */
+    private ParallelSegmentCipher segmentCipher;
+
+    /**
+     * Layout of the segmented file last opened or saved. Null if the
+     * current file isn't segmented or hasn't been opened or saved yet.
+     */
+    private SegmentedFile savedLayout;
+
+    /**
+     * Which parts of the current text still match the segments of
+     * {@link #savedLayout}. Null whenever savedLayout is.
+     */
+    private SegmentMap segmentMap;
+
+    /**
+     * Path of the file described by {@link #savedLayout}.
+     */
+    private Path savedPath;
+
+    /**
+     * Size of {@link #savedPath} right after it was opened or saved, used to
+     * notice if something else changed the file since.
+     */
+    private long savedSize;
+
+    /**
+     * Modification time of {@link #savedPath} right after it was opened or
+     * saved.
+     */
+    private FileTime savedModified;
+
+    /**
+     * Path of the file last opened if its end couldn't be read, or null.
+     * Until {@link #discardUnreadableEnd()} is called, the file is copied to
+     * {@link #damagedCopy} before it's overwritten.
+     */
+    private Path damagedPath;
+
+    /**
+     * Number of bytes at the end of {@link #damagedPath} that couldn't be
+     * read.
+     */
+    private long unreadableLength;
+
+    /**
+     * Told about the progress of opens and saves. Null if nobody is
+     * listening.
+     */
+    private ProgressListener progressListener;
+
+    /**
+     * Key derivation function and cost used when a password is given to save
+     * a segmented file. Null to use the cost calibrated for this machine.
+     */
+    private KeyDerivation newKeyDerivation;
+
+    /**
+     * Key derivation function calibrated for new keys when
+     * {@link #newKeyDerivation} is null.
+     */
+    private int newKdfAlgorithm = PBKDF2_KDF;
+
+    /**
+     * Engine used to encrypt the current file when it's saved in the
+     * {@link #SEGMENTED_FORMAT}.
+     */
+    private CryptoEngine cryptoEngine = CryptoEngine.forId(AES_GCM_ENGINE);
+
+    /**
+     * Entries of the current text, indexed for searching. Brought up to date
+     * when it's next used after the text changes.
+     */
+    private final EntryIndex entryIndex = new EntryIndex();
+
+    /**
+     * The text {@link #entryIndex} was last updated with.
+     */
+    private SealedText indexedText;
+
+    /**
+     * True to write a {@link LookupIndex} when the current file is saved in
+     * the {@link #SEGMENTED_FORMAT}.
+     */
+    private boolean lookupIndexEnabled;
+
+    /**
+     * True to compress the segments when the current file is saved in the
+     * {@link #SEGMENTED_FORMAT}.
+     */
+    private boolean compressionEnabled;
+
     /**
      * Constructor for the password manager.
      */
     public PasswordManager() {
-        currentFileText = "";
+        currentFileText = new SealedText("");
         currentFileSalt = null;
         currentFileIV = null;
+        sessionKey = null;
+        formatVersion = SEGMENTED_FORMAT;
+        segmentCipher = ParallelSegmentCipher.getShared();
     }
 
     /**
@@ -107,18 +277,21 @@ public class PasswordManager {
      * @param content of the file to be encrypted
      */
     public PasswordManager(String content) {
-        currentFileText = content;
+        currentFileText = new SealedText(content);
+        formatVersion = SEGMENTED_FORMAT;
+        segmentCipher = ParallelSegmentCipher.getShared();
         generateSalt();
     }
 
     /**
-     * Testing constructor (not intended to be called by the App)
+     * Testing constructor (not intended to be called by the App). Since an IV
+     * is given, the file is saved in the {@link #LEGACY_FORMAT}.
      * @param contents to be encrypted
      * @param salt salt added to pw used to encrypt the file
      * @param iv used for the CBC of this file
      */
     public PasswordManager(String contents, String salt, String iv) {
-        currentFileText = contents;
+        currentFileText = new SealedText(contents);
         currentFileSalt = salt.getBytes();
         if (currentFileSalt.length != blockSize) {
             throw new IllegalArgumentException("Salt must be 16 bytes long.");
@@ -127,6 +300,8 @@ public class PasswordManager {
         if (currentFileIV.length != blockSize) {
             throw new IllegalArgumentException("IV must be 16 bytes long.");
         }
+        formatVersion = LEGACY_FORMAT;
+        segmentCipher = ParallelSegmentCipher.getShared();
     }
 
     /**
@@ -138,19 +313,432 @@ public class PasswordManager {
      */
     public void savePasswordFile(String fileName, char[] password)
             throws IOException {
-        byte[] encrypted = encryptContent(currentFileText, password);
+        if (currentFileSalt == null) {
+            generateSalt();
+        }
+        // A new key can use the current cost, even if the file was written
+        // with a cheaper one. Version 1 files can only use their fixed cost.
+        KeyDerivation derivation = (formatVersion == LEGACY_FORMAT)
+                ? KeyDerivation.legacy() : getNewKeyDerivation();
+        try {
+            setSessionKey(deriveKey(password, currentFileSalt, derivation));
+        }
+        catch (InvalidPasswordFileException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        writeFile(fileName, sessionKey);
+    }
+
+    /**
+     * Save the current file under a new password. A new salt (and for the
+     * {@link #LEGACY_FORMAT} a new IV) is made and the key is derived at the
+     * current cost, so nothing is shared with the old key. The whole file is
+     * rewritten.
+     * @param fileName of file to be written
+     * @param password the new password. The password array will be cleared
+     * by this method.
+     * @throws IOException if there's an error while writing the file.
+     */
+    public void rekeyPasswordFile(String fileName, char[] password) throws IOException {
+        generateSalt();
+        currentFileIV = null;
+        savePasswordFile(fileName, password);
+    }
+
+    /**
+     * Save a password file to disk using the key cached from the last time
+     * the file was opened or saved with a password.
+     * @param fileName of file to be written
+     * @throws IOException if there's an error while writing the file.
+     * @throws IllegalStateException if no key is cached. Check
+     * {@link #hasSessionKey()} first.
+     */
+    public void savePasswordFile(String fileName) throws IOException {
+        if (!hasSessionKey()) {
+            throw new IllegalStateException("No cached key for the current file.");
+        }
+        if (canUpdateInPlace(Paths.get(fileName))) {
+            updateSegmentedFile(sessionKey);
+        }
+        else {
+            writeFile(fileName, sessionKey);
+        }
+    }
+
+    /**
+     * Write the current file in its format version.
+     * @param fileName of file to be written
+     * @param key used to encrypt the file's contents
+     * @throws IOException if there's an error while writing the file.
+     */
+    private void writeFile(String fileName, SessionKey key) throws IOException {
+        keepDamagedCopy(Paths.get(fileName));
+        if (formatVersion == LEGACY_FORMAT) {
+            writePasswordFile(fileName, key);
+        }
+        else {
+            writeSegmentedFile(fileName, key);
+        }
+    }
+
+    /**
+     * Write the current file in the {@link #SEGMENTED_FORMAT}. The text is
+     * encoded a segment at a time, and each segment is encrypted and written
+     * before the next one is encoded.
+     * @param fileName of file to be written
+     * @param key used to encrypt the file's contents
+     * @throws IOException if there's an error while writing the file.
+     */
+    private void writeSegmentedFile(String fileName, SessionKey key)
+            throws IOException {
         Path file = Paths.get(fileName);
+        SegmentedFile layout = new SegmentedFile(currentFileSalt,
+                SegmentedFile.defaultSegmentSize, key.getKeyDerivation(), cryptoEngine,
+                compressionEnabled);
+        SecretKeySpec keySpec = key.getKeySpec(encryptionAlgorithm);
+        SegmentMap map = new SegmentMap();
+        ByteBuffer[] batch = allocateBatch(layout.getSegmentSize());
+
+        // Will overwrite an existing file.
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            layout.writeHeader(channel, keySpec);
+            appendSegments(0, currentFileText.length(), layout, channel, keySpec, batch, map);
+            writeLookupIndex(layout, channel, keySpec, map);
+            layout.writeTable(channel, keySpec);
+        }
+        finally {
+            PlainBuffer.wipe(batch);
+        }
+        rememberSavedFile(file, layout, map);
+    }
+
+    /**
+     * Save only the parts of the text that changed since the file was last
+     * opened or saved. The changed parts are encrypted and appended to the
+     * file along with a new table, without rewriting what's already there,
+     * so the cost follows the size of the edit rather than the size of the
+     * file. Nothing is written if nothing changed. A save that fails part
+     * way leaves the file as it was, see {@link SegmentedFile#beginUpdate}.
+     * @param key the file was encrypted with
+     * @throws IOException if there's an error while writing the file.
+     */
+    private void updateSegmentedFile(SessionKey key) throws IOException {
+        SegmentedFile layout = savedLayout;
+        SegmentMap oldMap = segmentMap;
+        Path file = savedPath;
+        if (!oldMap.hasChanges() && layout.hasLookupIndex() == lookupIndexEnabled) {
+            return;
+        }
+        SecretKeySpec keySpec = key.getKeySpec(encryptionAlgorithm);
+        SegmentMap map = new SegmentMap();
+        ByteBuffer[] batch = allocateBatch(layout.getSegmentSize());
+        // Forget the old layout first, so a failed update can't be mistaken
+        // for a good one on the next save.
+        forgetSavedFile();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            boolean finished = false;
+            try {
+                layout.beginUpdate(channel);
+                int position = 0;
+                for (SegmentMap.Piece piece : oldMap.getPieces()) {
+                    if (piece.isChanged()) {
+                        appendSegments(position, position + piece.length, layout, channel,
+                                keySpec, batch, map);
+                    }
+                    else {
+                        layout.keepSegment(piece.segment);
+                        map.addSaved(piece.length, piece.segment);
+                    }
+                    position += piece.length;
+                }
+                writeLookupIndex(layout, channel, keySpec, map);
+                layout.writeTable(channel, keySpec);
+                finished = true;
+            }
+            finally {
+                PlainBuffer.wipe(batch);
+                if (!finished) {
+                    try {
+                        layout.abandonUpdate(channel);
+                    }
+                    catch (IOException e) {
+                        // The file still reads as it was before the update,
+                        // so the error that stopped the update is reported.
+                    }
+                }
+            }
+        }
+        rememberSavedFile(file, layout, map);
+    }
+
+    /**
+     * Write a lookup index for the current text if one is wanted. The
+     * segments have to be written already.
+     * @param layout of the file being written
+     * @param channel open for writing, positioned after the last segment
+     * @param keySpec the file's key
+     * @param map of the current text to the file's segments
+     * @throws IOException if there's an error while writing the file.
+     */
+    private void writeLookupIndex(SegmentedFile layout, FileChannel channel,
+            SecretKeySpec keySpec, SegmentMap map) throws IOException {
+        if (lookupIndexEnabled) {
+            List<Entry> entries = EntryIndex.parse(currentFileText.toString());
+            layout.writeIndex(channel, keySpec, LookupIndex.build(keySpec, entries, map));
+        }
+    }
+
+    /**
+     * Encode, encrypt and write text as new segments at the channel's
+     * position, a batch of segments at a time.
+     * @param start of the text to be written
+     * @param end of the text to be written
+     * @param layout of the file being written
+     * @param channel open for writing
+     * @param keySpec the file's key
+     * @param batch buffers to encode the segments into
+     * @param map receives a saved piece for each new segment
+     * @throws IOException if there's an error while writing the file.
+     */
+    private void appendSegments(int start, int end, SegmentedFile layout, FileChannel channel,
+            SecretKeySpec keySpec, ByteBuffer[] batch, SegmentMap map) throws IOException {
+        CharsetEncoder encoder = PlainBuffer.encoder(layout.getTextCharset());
+        // The text is decrypted into here a buffer at a time.
+        CharBuffer text = CharBuffer.allocate(streamBufferSize);
+        text.flip();
+        int position = start;
+        int[] charCounts = new int[batch.length];
+        boolean endOfText = false;
+        try {
+            while (!endOfText) {
+                // Encode a batch of segments, then encrypt them all at once.
+                // The encoder never splits a character between two segments.
+                int count = 0;
+                while (count < batch.length && !endOfText) {
+                    ByteBuffer plainBuffer = batch[count];
+                    plainBuffer.clear();
+                    plainBuffer.limit(layout.getSegmentCapacity());
+                    int segmentStart = position - text.remaining();
+                    while (true) {
+                        // At most half a surrogate pair is left after an underflow.
+                        if (text.remaining() <= 1 && position < end) {
+                            text.compact();
+                            position += currentFileText.read(position, end, text);
+                            text.flip();
+                        }
+                        boolean endOfInput = (position == end);
+                        if (encoder.encode(text, plainBuffer, endOfInput).isOverflow()) {
+                            break;
+                        }
+                        if (endOfInput) {
+                            endOfText = encoder.flush(plainBuffer).isUnderflow();
+                            break;
+                        }
+                    }
+                    plainBuffer.flip();
+                    if (plainBuffer.hasRemaining()) {
+                        charCounts[count] = position - text.remaining() - segmentStart;
+                        count++;
+                    }
+                }
+                int first = layout.getSegments().size();
+                segmentCipher.encrypt(layout, channel, keySpec, batch, count);
+                for (int i = 0; i < count; i++) {
+                    map.addSaved(charCounts[i], layout.getSegments().get(first + i));
+                }
+                reportProgress(position - text.remaining(), currentFileText.length());
+            }
+        }
+        finally {
+            PlainBuffer.wipe(text);
+        }
+    }
+
+    /**
+     * Determine if saving to a file can update it in place rather than
+     * rewriting it: it has to be the segmented file last opened or saved,
+     * untouched by anything else since, written as UTF-8 with the current
+     * compression setting, and not too full of segments left over from
+     * earlier saves.
+     * @param file about to be saved
+     * @return true if {@link #updateSegmentedFile} can be used.
+     * @throws IOException if the file's attributes can't be read.
+     */
+    private boolean canUpdateInPlace(Path file) throws IOException {
+        if (formatVersion != SEGMENTED_FORMAT || savedLayout == null
+                || unreadableLength > 0
+                || savedLayout.getEngine() != cryptoEngine
+                || !StandardCharsets.UTF_8.equals(savedLayout.getTextCharset())
+                || savedLayout.isCompressed() != compressionEnabled
+                || !file.toAbsolutePath().equals(savedPath)
+                || !Files.exists(savedPath)
+                || Files.size(savedPath) != savedSize
+                || !Files.getLastModifiedTime(savedPath).equals(savedModified)) {
+            return false;
+        }
+        long dataLength = savedLayout.dataLength();
+        long unused = dataLength - segmentMap.savedBytes();
+        return unused <= compactionThreshold * dataLength;
+    }
+
+    /**
+     * Remember the layout of a segmented file just opened or saved, so the
+     * next save can update it in place.
+     * @param file that was opened or saved
+     * @param layout of the file
+     * @param map of the current text to the file's segments
+     * @throws IOException if the file's attributes can't be read.
+     */
+    private void rememberSavedFile(Path file, SegmentedFile layout, SegmentMap map)
+            throws IOException {
+        savedPath = file.toAbsolutePath();
+        savedSize = Files.size(savedPath);
+        savedModified = Files.getLastModifiedTime(savedPath);
+        savedLayout = layout;
+        segmentMap = map;
+    }
+
+    /**
+     * Copy the file last opened to {@link #damagedCopy} if its end couldn't
+     * be read and it's about to be overwritten, so the unreadable part is
+     * kept unless {@link #discardUnreadableEnd()} said it needn't be.
+     * @param file about to be written
+     * @throws IOException if the copy can't be made. The file is left
+     * alone.
+     */
+    private void keepDamagedCopy(Path file) throws IOException {
+        if (damagedPath != null && file.toAbsolutePath().equals(damagedPath)
+                && Files.exists(damagedPath)) {
+            Files.copy(damagedPath, damagedCopy(damagedPath), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.COPY_ATTRIBUTES);
+            discardUnreadableEnd();
+        }
+    }
+
+    /**
+     * Get the path a file whose end couldn't be read is copied to before
+     * it's overwritten.
+     * @param file whose end couldn't be read
+     * @return the file's name with ".damaged" added, in the same directory
+     */
+    public static Path damagedCopy(Path file) {
+        return file.resolveSibling(file.getFileName() + ".damaged");
+    }
+
+    /**
+     * Get how much of the end of the file last opened couldn't be read. A
+     * {@link #SEGMENTED_FORMAT} file that doesn't end in a valid trailer is
+     * opened as it was after an earlier save: either the last save was cut
+     * off, and the rest can be dropped, or the end of the file was damaged
+     * and the rest may be a newer save worth recovering. Until
+     * {@link #discardUnreadableEnd()} is called, saving over the file keeps
+     * a copy of it at {@link #damagedCopy} first, and rewrites the file
+     * instead of updating it.
+     * @return the number of bytes that couldn't be read, 0 if the whole file
+     * was read or the copy has been made
+     */
+    public long getUnreadableLength() {
+        return unreadableLength;
+    }
+
+    /**
+     * Let the end of the file last opened that couldn't be read be cut off
+     * by the next save, without keeping a copy.
+     */
+    public void discardUnreadableEnd() {
+        damagedPath = null;
+        unreadableLength = 0;
+    }
+
+    /**
+     * Forget the layout of the last segmented file, so the next save
+     * rewrites the whole file.
+     */
+    private void forgetSavedFile() {
+        savedLayout = null;
+        segmentMap = null;
+        savedPath = null;
+        savedModified = null;
+    }
 
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        out.write(passwordFileHeader.getBytes());
-        out.write(currentFileSalt);
-        out.write(currentFileIV);
-        out.write(cipherTextHeader.getBytes());
-        out.write(encrypted);
-        out.write(passwordFileFooter.getBytes());
+    /**
+     * Allocate the buffers used to encode or decode a batch of segments.
+     * They're {@link PlainBuffer}s, to be wiped with
+     * {@link PlainBuffer#wipe(ByteBuffer[])}.
+     * @param segmentSize of the file
+     * @return one buffer per segment in a batch
+     */
+    private ByteBuffer[] allocateBatch(int segmentSize) {
+        ByteBuffer[] batch = new ByteBuffer[segmentCipher.getBatchSize()];
+        for (int i = 0; i < batch.length; i++) {
+            batch[i] = PlainBuffer.allocate(segmentSize);
+        }
+        return batch;
+    }
+
+    /**
+     * Write the headers, salt, iv, encrypted data and footer of a password
+     * file. The text is encoded and encrypted a buffer at a time straight to
+     * the file, so the whole encrypted file is never held in memory.
+     * @param fileName of file to be written
+     * @param key used to encrypt the file's contents
+     * @throws IOException if there's an error while writing the file.
+     */
+    private void writePasswordFile(String fileName, SessionKey key)
+            throws IOException {
+        Cipher encryptor = initEncryptor(key);
+        CharsetEncoder encoder = PlainBuffer.encoder(legacyCharset);
+        // The text is decrypted into here a buffer at a time.
+        CharBuffer text = CharBuffer.allocate(streamBufferSize);
+        text.flip();
+        int position = 0;
+        int length = currentFileText.length();
+        ByteBuffer plainBuffer = PlainBuffer.allocate(streamBufferSize);
+        ByteBuffer cipherBuffer = ByteBuffer.allocate(streamBufferSize + 2 * blockSize);
 
         // Will overwrite an existing file.
-        Files.write(file, out.toByteArray());
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName),
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(4 * blockSize);
+            header.put(passwordFileHeader.getBytes());
+            header.put(currentFileSalt);
+            header.put(currentFileIV);
+            header.put(cipherTextHeader.getBytes());
+            header.flip();
+            ChannelIO.writeFully(channel, header);
+
+            boolean endOfText = false;
+            while (!endOfText) {
+                text.compact();
+                position += currentFileText.read(position, length, text);
+                text.flip();
+                CoderResult result = encoder.encode(text, plainBuffer, position == length);
+                if (result.isUnderflow() && position == length) {
+                    encoder.flush(plainBuffer);
+                    endOfText = true;
+                }
+                plainBuffer.flip();
+                cipherBuffer.clear();
+                CryptoEngine.crypt(encryptor, plainBuffer, cipherBuffer, endOfText);
+                cipherBuffer.flip();
+                ChannelIO.writeFully(channel, cipherBuffer);
+                plainBuffer.clear();
+                reportProgress(position - text.remaining(), length);
+            }
+
+            ChannelIO.writeFully(channel, ByteBuffer.wrap(passwordFileFooter.getBytes()));
+        }
+        catch (GeneralSecurityException e) {
+            e.printStackTrace();
+            System.exit(PMExitCode.JCA_ALGORITHM_ERROR);
+        }
+        finally {
+            PlainBuffer.wipe(plainBuffer);
+            PlainBuffer.wipe(text);
+        }
     }
 
     /**
@@ -164,29 +752,72 @@ public class PasswordManager {
         if (currentFileSalt == null) {
             generateSalt();
         }
-        KeySpec baseKey = new PBEKeySpec(password, currentFileSalt, iterations, keyLength);
-        clearPasswordArray(password);
-        byte[] cipherText = null;
+        setSessionKey(deriveLegacyKey(password));
+        return encryptWithKey(content, sessionKey);
+    }
+
+    /**
+     * Encrypt text with an already derived key.
+     * @param content to be encrypted
+     * @param key derived from the user's password and the current salt
+     * @return the encrypted text
+     */
+    private byte[] encryptWithKey(String content, SessionKey key) {
+        Cipher encryptor = initEncryptor(key);
+        CharsetEncoder encoder = PlainBuffer.encoder(legacyCharset);
+        // Encoded a buffer at a time rather than into a byte array that
+        // couldn't be wiped.
+        CharBuffer text = CharBuffer.wrap(content);
+        ByteBuffer plainBuffer = PlainBuffer.allocate(streamBufferSize);
+        ByteBuffer cipherBuffer = ByteBuffer.allocate(streamBufferSize + 2 * blockSize);
+        ByteArrayOutputStream cipherText = new ByteArrayOutputStream(content.length() + 2 * blockSize);
+        try {
+            boolean endOfText = false;
+            while (!endOfText) {
+                if (encoder.encode(text, plainBuffer, true).isUnderflow()) {
+                    endOfText = encoder.flush(plainBuffer).isUnderflow();
+                }
+                plainBuffer.flip();
+                cipherBuffer.clear();
+                CryptoEngine.crypt(encryptor, plainBuffer, cipherBuffer, endOfText);
+                cipherText.write(cipherBuffer.array(), 0, cipherBuffer.position());
+                plainBuffer.clear();
+            }
+        }
+        catch (GeneralSecurityException e) {
+            e.printStackTrace();
+            System.exit(PMExitCode.JCA_ALGORITHM_ERROR);
+        }
+        finally {
+            PlainBuffer.wipe(plainBuffer);
+        }
+        return cipherText.toByteArray();
+    }
+
+    /**
+     * Create a cipher ready to encrypt the current file. A new IV is made if
+     * the file doesn't have one yet.
+     * @param key derived from the user's password and the current salt
+     * @return the initialized cipher
+     */
+    private Cipher initEncryptor(SessionKey key) {
+        Cipher encryptor = null;
         try {
-            SecretKeyFactory factory = SecretKeyFactory.getInstance(pbeAlgorithm);
-            SecretKey secret = factory.generateSecret(baseKey);
-            SecretKeySpec key = new SecretKeySpec(secret.getEncoded(), encryptionAlgorithm);
-            Cipher encryptor = Cipher.getInstance(cipherTransformation);
+            encryptor = CryptoEngine.cipher(cipherTransformation);
+            SecretKeySpec keySpec = key.getKeySpec(encryptionAlgorithm);
             if (currentFileIV == null) {
-                encryptor.init(Cipher.ENCRYPT_MODE, key);
+                encryptor.init(Cipher.ENCRYPT_MODE, keySpec);
                 currentFileIV = encryptor.getIV();
             }
             else {
-                encryptor.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(currentFileIV));
+                encryptor.init(Cipher.ENCRYPT_MODE, keySpec, new IvParameterSpec(currentFileIV));
             }
-            cipherText = encryptor.doFinal(content.getBytes());
         }
         catch (GeneralSecurityException e) {
             e.printStackTrace();
             System.exit(PMExitCode.JCA_ALGORITHM_ERROR);
         }
-        return cipherText;
-
+        return encryptor;
     }
 
     /**
@@ -195,7 +826,7 @@ public class PasswordManager {
      * @return the encrypted text
      */
     public byte[] encryptContent(char[] password) {
-        return encryptContent(currentFileText, password);
+        return encryptContent(currentFileText.toString(), password);
     }
 
     /**
@@ -208,41 +839,326 @@ public class PasswordManager {
      */
     public void openPasswordFile(File file, char[] password)
             throws InvalidPasswordFileException, BadPasswordException, IOException {
-        byte[] rawFileData = Files.readAllBytes(file.toPath());
+        openPasswordFile(file, password, file.length() >= mappedOpenThreshold);
+    }
+
+    /**
+     * Open a password file and load its data into the PasswordManager.
+     * @param file object representing the password file.
+     * @param password used to encrypt the file.
+     * @param mapFile true to memory map the file rather than read it through
+     * a buffer. Mapping keeps large files out of the heap.
+     * @throws InvalidPasswordFileException when the file is improperly formatted.
+     * @throws BadPasswordException when the user inputs an invalid password.
+     * @throws IOException when there is a problem with reading the password file.
+     */
+    void openPasswordFile(File file, char[] password, boolean mapFile)
+            throws InvalidPasswordFileException, BadPasswordException, IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (isSegmentedFile(channel)) {
+                openSegmentedFile(file.toPath(), channel, password);
+            }
+            else {
+                openLegacyFile(channel, password, mapFile);
+                discardUnreadableEnd();
+            }
+        }
+    }
+
+    /**
+     * Determine if a file is in the {@link #SEGMENTED_FORMAT} by checking its
+     * header.
+     * @param channel open on the password file
+     * @return true if the file has a version 2 header, false otherwise.
+     * @throws IOException when there is a problem reading the file.
+     */
+    private static boolean isSegmentedFile(FileChannel channel) throws IOException {
+        if (channel.size() < blockSize) {
+            return false;
+        }
+        ByteBuffer header = ByteBuffer.allocate(blockSize);
+        ChannelIO.readFully(channel, header, 0);
+        header.flip();
+        return ChannelIO.matchesMarker(header, SegmentedFile.fileHeader);
+    }
+
+    /**
+     * Open a file in the {@link #SEGMENTED_FORMAT}, decrypting and decoding
+     * it a segment at a time.
+     * @param file path of the password file
+     * @param channel open on the password file
+     * @param password used to encrypt the file. The password array will be
+     * cleared by this method.
+     * @throws InvalidPasswordFileException when the file is improperly formatted.
+     * @throws BadPasswordException when the user inputs an invalid password.
+     * @throws IOException when there is a problem with reading the password file.
+     */
+    private void openSegmentedFile(Path file, FileChannel channel, char[] password)
+            throws InvalidPasswordFileException, BadPasswordException, IOException {
+        SegmentedFile layout = SegmentedFile.readHeader(channel);
+        SessionKey key = deriveKey(password, layout.getSalt(), layout.getKeyDerivation());
+        SecretKeySpec keySpec = key.getKeySpec(encryptionAlgorithm);
+        try {
+            // Rejects a wrong password without touching the encrypted data.
+            layout.checkKey(keySpec);
+            layout.readTable(channel, keySpec);
+        }
+        catch (BadPasswordException e) {
+            key.destroy();
+            throw e;
+        }
+
+        CharsetDecoder decoder = PlainBuffer.decoder(layout.getTextCharset());
+        int segmentSize = layout.getSegmentSize();
+        ByteBuffer[] batch = allocateBatch(segmentSize);
+        SegmentMap map = new SegmentMap();
+        boolean wholeCharacters = true;
+        // Segments are decoded through here so the bytes of a character split
+        // between two segments end up together.
+        ByteBuffer plainBuffer = PlainBuffer.allocate(segmentSize + blockSize);
+        CharBuffer charBuffer = CharBuffer.allocate(streamBufferSize);
+        long plainLength = layout.plainLength();
+        // Compressed segments decode to about a full segment each.
+        long textLength = layout.isCompressed()
+                ? (long) layout.getSegments().size() * layout.getSegmentCapacity() : plainLength;
+        StringBuilder text = new StringBuilder((int) Math.min(textLength, Integer.MAX_VALUE - 8));
+        long decrypted = 0;
+        try {
+            int total = layout.getSegments().size();
+            for (int first = 0; first < total; first += batch.length) {
+                checkCancelled();
+                int count = Math.min(batch.length, total - first);
+                segmentCipher.decrypt(layout, channel, keySpec, first, batch, count);
+                for (int i = 0; i < count; i++) {
+                    int start = text.length();
+                    plainBuffer.put(batch[i]);
+                    plainBuffer.flip();
+                    decodeInto(decoder, plainBuffer, charBuffer, text, false);
+                    plainBuffer.compact();
+                    // Segments can only be reused on save if each one holds
+                    // whole characters, which is how they're written.
+                    wholeCharacters &= (plainBuffer.position() == 0);
+                    map.addSaved(text.length() - start, layout.getSegments().get(first + i));
+                    decrypted += layout.getSegments().get(first + i).plainLength();
+                }
+                reportProgress(decrypted, plainLength);
+            }
+            plainBuffer.flip();
+            decodeInto(decoder, plainBuffer, charBuffer, text, true);
+        }
+        catch (InvalidPasswordFileException | IOException e) {
+            key.destroy();
+            throw e;
+        }
+        finally {
+            PlainBuffer.wipe(batch);
+            PlainBuffer.wipe(plainBuffer);
+            PlainBuffer.wipe(charBuffer);
+        }
+
+        // Any cached key belongs to the previously loaded file.
+        clearSessionKey();
+        currentFileSalt = layout.getSalt();
+        currentFileIV = null;
+        formatVersion = SEGMENTED_FORMAT;
+        cryptoEngine = layout.getEngine();
+        lookupIndexEnabled = layout.hasLookupIndex();
+        compressionEnabled = layout.isCompressed();
+        replaceText(new SealedText(text));
+        SealedText.wipe(text);
+        setSessionKey(key);
+        unreadableLength = layout.getUnreadableLength();
+        damagedPath = (unreadableLength > 0) ? file.toAbsolutePath() : null;
+        if (wholeCharacters) {
+            rememberSavedFile(file, layout, map);
+        }
+        else {
+            forgetSavedFile();
+        }
+    }
+
+    /**
+     * Find entries in a password file by title without opening the whole
+     * file. If the file has a lookup index only the segments holding the
+     * entries are decrypted; otherwise the file is opened as usual and its
+     * entries searched. The current file is left alone either way.
+     * @param file object representing the password file.
+     * @param password used to encrypt the file. The password array will be
+     * cleared by this method.
+     * @param title of the entries, ignoring case and surrounding white space
+     * @return the entries with the title, in vault order, possibly none
+     * @throws InvalidPasswordFileException when the file is improperly formatted.
+     * @throws BadPasswordException when the user inputs an invalid password.
+     * @throws IOException when there is a problem with reading the password file.
+     */
+    List<Entry> lookupEntries(File file, char[] password, String title)
+            throws InvalidPasswordFileException, BadPasswordException, IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (isSegmentedFile(channel)) {
+                SegmentedFile layout = SegmentedFile.readHeader(channel);
+                if (layout.hasLookupIndex()) {
+                    return lookupIndexedEntries(layout, channel, password, title);
+                }
+            }
+        }
+        PasswordManager whole = new PasswordManager();
+        whole.openPasswordFile(file, password);
+        whole.clearSessionKey();
+        String name = LookupIndex.normalize(title);
+        List<Entry> found = new ArrayList<Entry>();
+        for (Entry entry : EntryIndex.parse(whole.getText())) {
+            if (LookupIndex.normalize(entry.getTitle()).equals(name)) {
+                found.add(entry);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Find entries by title through a segmented file's lookup index.
+     * @param layout read from the file's header
+     * @param channel open on the password file
+     * @param password used to encrypt the file. The password array will be
+     * cleared by this method.
+     * @param title of the entries
+     * @return the entries with the title, in vault order
+     * @throws InvalidPasswordFileException when the file is improperly formatted.
+     * @throws BadPasswordException when the user inputs an invalid password.
+     * @throws IOException when there is a problem with reading the password file.
+     */
+    private List<Entry> lookupIndexedEntries(SegmentedFile layout, FileChannel channel,
+            char[] password, String title)
+                    throws InvalidPasswordFileException, BadPasswordException, IOException {
+        SessionKey key = deriveKey(password, layout.getSalt(), layout.getKeyDerivation());
+        try {
+            SecretKeySpec keySpec = key.getKeySpec(encryptionAlgorithm);
+            layout.checkKey(keySpec);
+            layout.readTable(channel, keySpec);
+            String name = LookupIndex.normalize(title);
+            byte[] blind = LookupIndex.blind(keySpec, title);
+            List<Entry> found = new ArrayList<Entry>();
+            for (LookupIndex.Record record : layout.lookup(channel, keySpec, blind)) {
+                Entry entry = new Entry(readRecord(layout, channel, keySpec, record), record.start);
+                // Blinded names are truncated, so make sure it's the right one.
+                if (LookupIndex.normalize(entry.getTitle()).equals(name)) {
+                    found.add(entry);
+                }
+            }
+            return found;
+        }
+        finally {
+            key.destroy();
+        }
+    }
+
+    /**
+     * Decrypt the text of one lookup index record, starting at the segment
+     * the record names and stopping as soon as the entry is complete.
+     * @param layout of the file, with its table read
+     * @param channel open on the password file
+     * @param keySpec the file's key
+     * @param record locating the entry
+     * @return the entry's text
+     * @throws InvalidPasswordFileException when the record doesn't fit the
+     * file's segments or a segment fails authentication.
+     * @throws IOException when there is a problem with reading the password file.
+     */
+    private static String readRecord(SegmentedFile layout, FileChannel channel,
+            SecretKeySpec keySpec, LookupIndex.Record record)
+                    throws InvalidPasswordFileException, IOException {
+        CharsetDecoder decoder = PlainBuffer.decoder(layout.getTextCharset());
+        List<SegmentedFile.Segment> segments = layout.getSegments();
+        int segmentSize = layout.getSegmentSize();
+        ByteBuffer cipherBuffer = ByteBuffer.allocate(segmentSize + SegmentedFile.tagLength);
+        ByteBuffer plainBuffer = PlainBuffer.allocate(segmentSize);
+        CharBuffer charBuffer = CharBuffer.allocate(streamBufferSize);
+        long end = (long) record.offset + record.length;
+        StringBuilder text = new StringBuilder();
+        try {
+            // Segments hold whole characters, so each decodes on its own.
+            for (int index = record.segment; index < segments.size() && text.length() < end; index++) {
+                plainBuffer.clear();
+                layout.readSegment(channel, keySpec, index, cipherBuffer, plainBuffer);
+                plainBuffer.flip();
+                decodeInto(decoder, plainBuffer, charBuffer, text, false);
+            }
+        }
+        finally {
+            PlainBuffer.wipe(cipherBuffer);
+            PlainBuffer.wipe(plainBuffer);
+            PlainBuffer.wipe(charBuffer);
+        }
+        if (text.length() < end) {
+            throw new InvalidPasswordFileException("Lookup index record is outside the file's text.");
+        }
+        return text.substring(record.offset, (int) end);
+    }
+
+    /**
+     * Open a file in the {@link #LEGACY_FORMAT}.
+     * @param channel open on the password file
+     * @param password used to encrypt the file. The password array will be
+     * cleared by this method.
+     * @param mapFile true to memory map the file rather than read it through
+     * a buffer.
+     * @throws InvalidPasswordFileException when the file is improperly formatted.
+     * @throws BadPasswordException when the user inputs an invalid password.
+     * @throws IOException when there is a problem with reading the password file.
+     */
+    private void openLegacyFile(FileChannel channel, char[] password, boolean mapFile)
+            throws InvalidPasswordFileException, BadPasswordException, IOException {
+        long fileSize = channel.size();
 
         // Mark the locations of each component
-        int fileHeaderStart = 0 * blockSize;
-        int saltStart = 1 * blockSize;
-        int ivStart = 2 * blockSize;
-        int cipherHeaderStart = 3 * blockSize;
-        int cipherTextStart = 4 * blockSize;
-        int footerStart = rawFileData.length - blockSize;
-
-        // Verify that the file has the appropriate structure
-        if (rawFileData.length < 6 * blockSize) {
+        long fileHeaderStart = 0 * blockSize;
+        long cipherTextStart = 4 * blockSize;
+        long footerStart = fileSize - blockSize;
+
+        // Verify that the file has the appropriate structure. Only the
+        // header blocks and the footer are read for this.
+        if (fileSize < 6 * blockSize) {
             throw new InvalidPasswordFileException("File is too small to be a valid .pman file");
         }
-        String givenHeader = new String(Arrays.copyOfRange(
-                rawFileData, fileHeaderStart, fileHeaderStart + blockSize));
-        if (!passwordFileHeader.equals(givenHeader)) {
+        if ((footerStart - cipherTextStart) % blockSize != 0) {
+            throw new InvalidPasswordFileException("Cipher text is not a whole number of blocks.");
+        }
+        ByteBuffer header;
+        ByteBuffer footer;
+        if (mapFile) {
+            header = channel.map(FileChannel.MapMode.READ_ONLY, fileHeaderStart, 4 * blockSize);
+            footer = channel.map(FileChannel.MapMode.READ_ONLY, footerStart, blockSize);
+        }
+        else {
+            header = ByteBuffer.allocate(4 * blockSize);
+            ChannelIO.readFully(channel, header, fileHeaderStart);
+            header.flip();
+            footer = ByteBuffer.allocate(blockSize);
+            ChannelIO.readFully(channel, footer, footerStart);
+            footer.flip();
+        }
+        if (!ChannelIO.matchesMarker(header, passwordFileHeader)) {
             throw new InvalidPasswordFileException("Invalid file header field.");
         }
-        String givenCipherHeader = new String(Arrays.copyOfRange(
-                rawFileData, cipherHeaderStart, cipherHeaderStart + blockSize));
-        if (!cipherTextHeader.equals(givenCipherHeader)) {
+        byte[] salt = new byte[blockSize];
+        header.get(salt);
+        byte[] iv = new byte[blockSize];
+        header.get(iv);
+        if (!ChannelIO.matchesMarker(header, cipherTextHeader)) {
             throw new InvalidPasswordFileException("Invalid cipher text header field.");
         }
-        String givenFooter = new String(Arrays.copyOfRange(
-                rawFileData, footerStart, footerStart + blockSize));
-        if (!passwordFileFooter.equals(givenFooter)) {
+        if (!ChannelIO.matchesMarker(footer, passwordFileFooter)) {
             throw new InvalidPasswordFileException("Invalid file footer field.");
         }
 
-        currentFileSalt = Arrays.copyOfRange(rawFileData, saltStart, saltStart + blockSize);
-        currentFileIV = Arrays.copyOfRange(rawFileData, ivStart, ivStart + blockSize);
-        byte[] cipherText = Arrays.copyOfRange(rawFileData, cipherTextStart, footerStart);
-        byte[] decryptedText = decryptText(cipherText, password);
-        currentFileText = new String(decryptedText);
+        // Any cached key belongs to the previously loaded file.
+        clearSessionKey();
+        currentFileSalt = salt;
+        currentFileIV = iv;
+        formatVersion = LEGACY_FORMAT;
+        forgetSavedFile();
+        StringBuilder text = decryptStream(channel, cipherTextStart, footerStart, password, mapFile);
+        replaceText(new SealedText(text));
+        SealedText.wipe(text);
     }
 
     /**
@@ -272,35 +1188,363 @@ public class PasswordManager {
         if (currentFileIV == null || currentFileSalt == null) {
             throw new IllegalArgumentException("The current PM instance does not have a salt/iv");
         }
-        KeySpec baseKey = new PBEKeySpec(password, currentFileSalt, iterations, keyLength);
-        clearPasswordArray(password);
+        SessionKey key = deriveLegacyKey(password);
         byte[] plainText = null;
         try {
-            SecretKeyFactory factory = SecretKeyFactory.getInstance(pbeAlgorithm);
-            SecretKey secret = factory.generateSecret(baseKey);
-            SecretKeySpec key = new SecretKeySpec(secret.getEncoded(), encryptionAlgorithm);
-            Cipher decryptor = Cipher.getInstance(cipherTransformation);
-            decryptor.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(currentFileIV));
+            Cipher decryptor = CryptoEngine.cipher(cipherTransformation);
+            decryptor.init(Cipher.DECRYPT_MODE, key.getKeySpec(encryptionAlgorithm),
+                    new IvParameterSpec(currentFileIV));
             plainText = decryptor.doFinal(cipherText);
         }
         catch (BadPaddingException e) {
             // Almost certainly an invalid password. See:
             // http://stackoverflow.com/questions/8049872/given-final-block-not-properly-padded
+            key.destroy();
+            clearSessionKey();
             throw new BadPasswordException();
         }
         catch (GeneralSecurityException e) {
             e.printStackTrace();
             System.exit(PMExitCode.JCA_ALGORITHM_ERROR);
         }
+        // The password was right, so hold on to the key for later saves.
+        setSessionKey(key);
         return plainText;
     }
 
     /**
-     * Get the user made text of the currently loaded file.
+     * Decrypt a region of a password file a buffer at a time, decoding the
+     * plain text as it goes.
+     * @param channel open on the password file
+     * @param start offset of the first byte of cipher text
+     * @param end offset just past the last byte of cipher text
+     * @param password used to decrypt the file. This password array will be
+     * cleared by this method.
+     * @param mapFile true to read the cipher text from mapped regions of the
+     * file instead of through channel reads.
+     * @return the decrypted text, to be wiped by the caller
+     * @throws BadPasswordException when given an invalid password
+     * @throws IOException when there is a problem reading the file
+     */
+    private StringBuilder decryptStream(FileChannel channel, long start, long end,
+            char[] password, boolean mapFile) throws BadPasswordException, IOException {
+        SessionKey key = deriveLegacyKey(password);
+        CharsetDecoder decoder = PlainBuffer.decoder(legacyCharset);
+        ByteBuffer cipherBuffer = ByteBuffer.allocate(streamBufferSize);
+        ByteBuffer plainBuffer = PlainBuffer.allocate(streamBufferSize + 2 * blockSize);
+        CharBuffer charBuffer = CharBuffer.allocate(streamBufferSize);
+        // Plain text is never longer than the cipher text, so this avoids
+        // growing (and copying) the builder for single byte charsets.
+        StringBuilder text = new StringBuilder((int) Math.min(end - start, Integer.MAX_VALUE - 8));
+        try {
+            Cipher decryptor = CryptoEngine.cipher(cipherTransformation);
+            decryptor.init(Cipher.DECRYPT_MODE, key.getKeySpec(encryptionAlgorithm),
+                    new IvParameterSpec(currentFileIV));
+            long position = start;
+            MappedByteBuffer window = null;
+            boolean finished = false;
+            while (!finished) {
+                checkCancelled();
+                int length = (int) Math.min(streamBufferSize, end - position);
+                cipherBuffer.clear();
+                cipherBuffer.limit(length);
+                if (mapFile) {
+                    if (window == null || !window.hasRemaining()) {
+                        window = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                                Math.min(mappedWindowSize, end - position));
+                    }
+                    // The JCA ciphers allocate a temporary array on every
+                    // call when given a direct buffer, so copy each slice of
+                    // the mapping into the reusable heap buffer instead.
+                    window.get(cipherBuffer.array(), 0, length);
+                }
+                else {
+                    ChannelIO.readFully(channel, cipherBuffer, position);
+                    cipherBuffer.flip();
+                }
+                position += length;
+                finished = (position == end);
+                CryptoEngine.crypt(decryptor, cipherBuffer, plainBuffer, finished);
+                plainBuffer.flip();
+                decodeInto(decoder, plainBuffer, charBuffer, text, finished);
+                plainBuffer.compact();
+                reportProgress(position - start, end - start);
+            }
+        }
+        catch (BadPaddingException e) {
+            // Almost certainly an invalid password. See:
+            // http://stackoverflow.com/questions/8049872/given-final-block-not-properly-padded
+            key.destroy();
+            clearSessionKey();
+            throw new BadPasswordException();
+        }
+        catch (GeneralSecurityException e) {
+            e.printStackTrace();
+            System.exit(PMExitCode.JCA_ALGORITHM_ERROR);
+        }
+        catch (IOException e) {
+            key.destroy();
+            throw e;
+        }
+        finally {
+            PlainBuffer.wipe(plainBuffer);
+            PlainBuffer.wipe(charBuffer);
+        }
+        // The password was right, so hold on to the key for later saves.
+        setSessionKey(key);
+        return text;
+    }
+
+    /**
+     * Decode as many bytes as possible from a buffer and append the result to
+     * a string builder. Bytes of a partial character are left in the buffer.
+     * @param decoder for the text's character set
+     * @param bytes to decode
+     * @param chars scratch buffer for the decoded characters
+     * @param text the decoded characters are appended to
+     * @param endOfInput true if no more bytes will follow
+     */
+    private static void decodeInto(CharsetDecoder decoder, ByteBuffer bytes,
+            CharBuffer chars, StringBuilder text, boolean endOfInput) {
+        CoderResult result;
+        do {
+            result = decoder.decode(bytes, chars, endOfInput);
+            chars.flip();
+            text.append(chars);
+            chars.clear();
+        } while (result.isOverflow());
+        if (endOfInput) {
+            while (decoder.flush(chars).isOverflow()) {
+                chars.flip();
+                text.append(chars);
+                chars.clear();
+            }
+            chars.flip();
+            text.append(chars);
+            chars.clear();
+        }
+    }
+
+    /**
+     * Determine if a key for the current file is cached, meaning the file can
+     * be saved without asking the user for the password again.
+     * @return true if {@link #savePasswordFile(String)} can be used.
+     */
+    public boolean hasSessionKey() {
+        if (sessionKey == null || !sessionKey.isBoundTo(currentFileSalt)) {
+            return false;
+        }
+        // Version 1 files have no header field for the KDF cost, so they
+        // can only be written with a key derived at the fixed cost.
+        return formatVersion != LEGACY_FORMAT
+                || sessionKey.getKeyDerivation().equals(KeyDerivation.legacy());
+    }
+
+    /**
+     * Wipe the cached key for the current file. This should be called when
+     * the file is closed or before the PasswordManager is thrown away.
+     */
+    public void clearSessionKey() {
+        if (sessionKey != null) {
+            sessionKey.destroy();
+            sessionKey = null;
+        }
+    }
+
+    /**
+     * Get the format the current file will be saved in.
+     * @return {@link #LEGACY_FORMAT} or {@link #SEGMENTED_FORMAT}
+     */
+    public int getFormatVersion() {
+        return formatVersion;
+    }
+
+    /**
+     * Choose the format the current file will be saved in. Opening a file
+     * keeps that file's format, so this is how old files get upgraded.
+     * @param version {@link #LEGACY_FORMAT} or {@link #SEGMENTED_FORMAT}
+     */
+    public void setFormatVersion(int version) {
+        if (version != LEGACY_FORMAT && version != SEGMENTED_FORMAT) {
+            throw new IllegalArgumentException("Unknown file format version: " + version);
+        }
+        formatVersion = version;
+    }
+
+    /**
+     * Set the number of threads used to encrypt and decrypt the segments of
+     * {@link #SEGMENTED_FORMAT} files. By default one thread per processor
+     * is used, shared with every other PasswordManager.
+     * @param threads number of threads. 1 does everything on the calling
+     * thread.
+     */
+    public void setParallelism(int threads) {
+        if (threads == ParallelSegmentCipher.getShared().getParallelism()) {
+            segmentCipher = ParallelSegmentCipher.getShared();
+        }
+        else {
+            segmentCipher = new ParallelSegmentCipher(threads);
+        }
+    }
+
+    /**
+     * Choose the key derivation function and cost used the next time a
+     * password is given to save a segmented file. Benchmarks and tests use
+     * this to get results that don't depend on the machine.
+     * @param derivation to use, or null to use the cost calibrated for this
+     * machine
+     */
+    void setKeyDerivation(KeyDerivation derivation) {
+        newKeyDerivation = derivation;
+    }
+
+    /**
+     * Choose the engine that encrypts the current file the next time it's
+     * saved in the {@link #SEGMENTED_FORMAT}. Opening a file keeps that
+     * file's engine, and changing it makes the next save rewrite the whole
+     * file.
+     * @param engine {@link #AES_GCM_ENGINE} or {@link #AES_CTR_HMAC_ENGINE}
+     */
+    public void setCryptoEngine(int engine) {
+        cryptoEngine = CryptoEngine.forId(engine);
+    }
+
+    /**
+     * Get the engine that encrypts the current file in the
+     * {@link #SEGMENTED_FORMAT}.
+     * @return {@link #AES_GCM_ENGINE} or {@link #AES_CTR_HMAC_ENGINE}
+     */
+    public int getCryptoEngine() {
+        return cryptoEngine.getId();
+    }
+
+    /**
+     * Choose whether the current file gets a lookup index the next time it's
+     * saved in the {@link #SEGMENTED_FORMAT}, so single entries can be found
+     * by title without opening the whole file. Opening a file keeps whether
+     * that file had one.
+     * @param enabled true to write a lookup index
+     */
+    public void setLookupIndexEnabled(boolean enabled) {
+        lookupIndexEnabled = enabled;
+    }
+
+    /**
+     * Check if the current file gets a lookup index when it's saved.
+     * @return true if a lookup index will be written
+     */
+    public boolean isLookupIndexEnabled() {
+        return lookupIndexEnabled;
+    }
+
+    /**
+     * Choose whether the segments of the current file are compressed before
+     * they're encrypted the next time it's saved in the
+     * {@link #SEGMENTED_FORMAT}. Text usually shrinks to a fraction of its
+     * size, at some cost in save and open time. Opening a file keeps whether
+     * that file was compressed.
+     * @param enabled true to compress the segments
+     */
+    public void setCompressionEnabled(boolean enabled) {
+        compressionEnabled = enabled;
+    }
+
+    /**
+     * Check if the current file's segments are compressed when it's saved.
+     * @return true if the segments will be compressed
+     */
+    public boolean isCompressionEnabled() {
+        return compressionEnabled;
+    }
+
+    /**
+     * Choose the key derivation function used the next time a password is
+     * given to save a segmented file. Its cost is calibrated for this
+     * machine. Files opened later keep whichever function they were saved
+     * with.
+     * @param function {@link #PBKDF2_KDF} or {@link #ARGON2ID_KDF}
+     */
+    public void setKeyDerivationFunction(int function) {
+        if (function != PBKDF2_KDF && function != ARGON2ID_KDF) {
+            throw new IllegalArgumentException("Unknown key derivation function: " + function);
+        }
+        newKdfAlgorithm = function;
+        newKeyDerivation = null;
+    }
+
+    /**
+     * Get the key derivation function and cost for new keys.
+     * @return the chosen key derivation, or the calibrated one if none was
+     * chosen
+     */
+    private KeyDerivation getNewKeyDerivation() {
+        if (newKeyDerivation != null) {
+            return newKeyDerivation;
+        }
+        return KeyDerivation.calibrated(newKdfAlgorithm);
+    }
+
+    /**
+     * Set the listener told about the progress of opening and saving files.
+     * Opens can be cancelled by interrupting the thread running them; saves
+     * always run to the end so they can't leave a half written file.
+     * @param listener to be told, or null to stop reporting progress
+     */
+    public void setProgressListener(ProgressListener listener) {
+        progressListener = listener;
+    }
+
+    /**
+     * Pass progress on to the listener, if there is one.
+     * @param done amount of work finished so far
+     * @param total amount of work in the whole operation
+     */
+    private void reportProgress(long done, long total) {
+        if (progressListener != null && total > 0) {
+            progressListener.progressChanged(done, total);
+        }
+    }
+
+    /**
+     * Stop opening a file if the thread doing it has been interrupted.
+     * @throws InterruptedIOException if the current thread was interrupted.
+     */
+    private static void checkCancelled() throws InterruptedIOException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("Opening the file was cancelled.");
+        }
+    }
+
+    /**
+     * Get the entries of the current text, indexed for searching. The index
+     * is updated here rather than on every edit, and only reparses the
+     * entries that changed.
+     * @return the index
+     */
+    EntryIndex getEntryIndex() {
+        if (indexedText != currentFileText) {
+            entryIndex.update(currentFileText.toString());
+            indexedText = currentFileText;
+        }
+        return entryIndex;
+    }
+
+    /**
+     * Find the entries of the current text containing some text.
+     * @param query to look for in every field but the secret, ignoring case
+     * @return the matching entries in the order they appear
+     */
+    List<Entry> findEntries(String query) {
+        return getEntryIndex().search(query);
+    }
+
+    /**
+     * Get the user made text of the currently loaded file. The text is kept
+     * encrypted, so this decrypts all of it into a new string.
      * @return user's data
      */
     public String getText() {
-        return currentFileText;
+        return currentFileText.toString();
     }
 
     /**
@@ -308,7 +1552,22 @@ public class PasswordManager {
      * @param newText the user's text data.
      */
     public void setText(String newText) {
-        currentFileText = newText;
+        int[] edit = currentFileText.diff(newText);
+        if (segmentMap != null) {
+            segmentMap.applyEdit(edit[0], edit[1], edit[2]);
+        }
+        currentFileText = currentFileText.replace(edit[0], edit[0] + edit[1],
+                newText.subSequence(edit[0], edit[0] + edit[2]));
+    }
+
+    /**
+     * Replace the text with a newly loaded one, wiping the old text's cache
+     * and key.
+     * @param text the new text
+     */
+    private void replaceText(SealedText text) {
+        currentFileText.destroy();
+        currentFileText = text;
     }
 
     /**
@@ -319,6 +1578,62 @@ public class PasswordManager {
         byte[] salt = new byte[blockSize];
         rand.nextBytes(salt);
         currentFileSalt = salt;
+        // A key derived with the old salt is useless now, and so are any
+        // segments encrypted with it.
+        clearSessionKey();
+        forgetSavedFile();
+    }
+
+    /**
+     * Replace the cached key, wiping the previous one.
+     * @param key the new key to cache
+     */
+    private void setSessionKey(SessionKey key) {
+        if (sessionKey != key) {
+            clearSessionKey();
+        }
+        sessionKey = key;
+    }
+
+    /**
+     * Run the password based key derivation function.
+     * @param password to derive the key from. The password array will be
+     * cleared by this method.
+     * @param salt to add to the password
+     * @param derivation function and cost to use
+     * @return the derived key
+     * @throws InvalidPasswordFileException if there isn't enough memory for
+     * the derivation's memory cost.
+     */
+    private SessionKey deriveKey(char[] password, byte[] salt, KeyDerivation derivation)
+            throws InvalidPasswordFileException {
+        byte[] encoded;
+        try {
+            encoded = derivation.deriveKey(password, salt);
+        }
+        finally {
+            clearPasswordArray(password);
+        }
+        SessionKey key = new SessionKey(encoded, salt, derivation);
+        Arrays.fill(encoded, (byte) 0);
+        return key;
+    }
+
+    /**
+     * Derive a key from the current salt with the fixed cost of version 1
+     * files. PBKDF2 uses next to no memory, so this can't fail the way
+     * Argon2id can.
+     * @param password to derive the key from. The password array will be
+     * cleared by this method.
+     * @return the derived key
+     */
+    private SessionKey deriveLegacyKey(char[] password) {
+        try {
+            return deriveKey(password, currentFileSalt, KeyDerivation.legacy());
+        }
+        catch (InvalidPasswordFileException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
     }
 
     /**
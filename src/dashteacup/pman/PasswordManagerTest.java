@@ -1,12 +1,22 @@
 package dashteacup.pman;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
 
 import org.junit.Test;
 
@@ -131,4 +141,719 @@ public class PasswordManagerTest {
         }
     }
 
+    @Test
+    public void saveWithCachedKeyAfterOpen() {
+        String filename = "testfiles/cachedkey.pman";
+        String password = "keepme";
+        PasswordManager pm = new PasswordManager(shortText);
+        try {
+            pm.savePasswordFile(filename, password.toCharArray());
+            PasswordManager openpm = new PasswordManager();
+            openpm.openPasswordFile(filename, password.toCharArray());
+            assertTrue(openpm.hasSessionKey());
+            openpm.setText(midsizedText);
+            // No password needed the second time around.
+            openpm.savePasswordFile(filename);
+            PasswordManager reopenpm = new PasswordManager();
+            reopenpm.openPasswordFile(filename, password.toCharArray());
+            assertEquals(midsizedText, reopenpm.getText());
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void sessionKeyClearedOnRequest() {
+        String filename = "testfiles/clearedkey.pman";
+        PasswordManager pm = new PasswordManager(shortText);
+        assertFalse(pm.hasSessionKey());
+        try {
+            pm.savePasswordFile(filename, "clearme".toCharArray());
+            assertTrue(pm.hasSessionKey());
+            pm.clearSessionKey();
+            assertFalse(pm.hasSessionKey());
+            pm.savePasswordFile(filename);
+            fail("Saved without a cached key.");
+        }
+        catch (IllegalStateException e) {
+            assertTrue(true);
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void badPasswordDoesNotCacheKey() {
+        String filename = "testfiles/badcachedkey.pman";
+        PasswordManager pm = new PasswordManager(midsizedText);
+        // The key check of segmented files catches every wrong password,
+        // where a legacy file's padding lets about 1 in 256 through.
+        pm.setFormatVersion(PasswordManager.SEGMENTED_FORMAT);
+        PasswordManager openpm = new PasswordManager();
+        try {
+            pm.savePasswordFile(filename, "right".toCharArray());
+            openpm.openPasswordFile(filename, "wrong".toCharArray());
+            fail("Opened a file with the wrong password.");
+        }
+        catch (BadPasswordException e) {
+            assertFalse(openpm.hasSessionKey());
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void encryptAndDecryptAcrossStreamBuffers() {
+        String filename = "testfiles/multibyte.pman";
+        String password = "streams";
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < 200000) {
+            // Multi-byte characters end up split between buffers.
+            builder.append("h\u00e9llo w\u00f6rld \u2713 ");
+        }
+        // Segmented files are UTF-8 whatever the platform charset, so the
+        // text comes back exactly.
+        String text = builder.toString();
+        PasswordManager pm = new PasswordManager(text);
+        try {
+            pm.savePasswordFile(filename, password.toCharArray());
+            PasswordManager openpm = new PasswordManager();
+            openpm.openPasswordFile(filename, password.toCharArray());
+            assertEquals(text, openpm.getText());
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void truncatedFileIsInvalid() {
+        String filename = "testfiles/truncated.pman";
+        PasswordManager pm = new PasswordManager(midsizedText);
+        try {
+            pm.savePasswordFile(filename, "cut".toCharArray());
+            byte[] data = Files.readAllBytes(Paths.get(filename));
+            byte[] cut = new byte[data.length - 5];
+            System.arraycopy(data, 0, cut, 0, 64);
+            System.arraycopy(data, 69, cut, 64, cut.length - 64);
+            Files.write(Paths.get(filename), cut);
+            new PasswordManager().openPasswordFile(filename, "cut".toCharArray());
+            fail("Opened a truncated file.");
+        }
+        catch (InvalidPasswordFileException e) {
+            assertTrue(true);
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void openMappedLargeFile() {
+        String filename = "testfiles/mapped.pman";
+        String password = "mapit";
+        try {
+            byte[] rawInputFile = Files.readAllBytes(Paths.get("testfiles/largeTextFile.txt"));
+            PasswordManager pm = new PasswordManager(new String(rawInputFile));
+            // Mapping only applies to the single stream legacy layout.
+            pm.setFormatVersion(PasswordManager.LEGACY_FORMAT);
+            pm.savePasswordFile(filename, password.toCharArray());
+            PasswordManager openpm = new PasswordManager();
+            openpm.openPasswordFile(new File(filename), password.toCharArray(), true);
+            assertEquals(new String(rawInputFile), openpm.getText());
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void openMappedWithBadPassword() {
+        String filename = "testfiles/mappedbad.pman";
+        PasswordManager pm = new PasswordManager(midsizedText);
+        pm.setFormatVersion(PasswordManager.LEGACY_FORMAT);
+        try {
+            pm.savePasswordFile(filename, "right".toCharArray());
+            new PasswordManager().openPasswordFile(new File(filename), "wrong".toCharArray(), true);
+            fail("Opened a file with the wrong password.");
+        }
+        catch (BadPasswordException e) {
+            assertTrue(true);
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void segmentedFileWithHeadersAndFooters() {
+        String filename = "testfiles/segmented.pman";
+        PasswordManager pm = new PasswordManager(shortText);
+        assertEquals(PasswordManager.SEGMENTED_FORMAT, pm.getFormatVersion());
+        try {
+            pm.savePasswordFile(filename, "segments".toCharArray());
+            byte[] result = Files.readAllBytes(Paths.get(filename));
+            assertEquals("PMFileVer002.000", new String(Arrays.copyOfRange(result, 0, 16)));
+            assertEquals("PMBeginCipherTxt", new String(Arrays.copyOfRange(result, 64, 80)));
+            assertEquals("PMFileEndCipherT",
+                    new String(Arrays.copyOfRange(result, result.length - 16, result.length)));
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void encryptAndDecryptEmptySegmentedFile() {
+        String filename = "testfiles/emptysegmented.pman";
+        PasswordManager pm = new PasswordManager("");
+        try {
+            pm.savePasswordFile(filename, "empty".toCharArray());
+            PasswordManager openpm = new PasswordManager();
+            openpm.openPasswordFile(filename, "empty".toCharArray());
+            assertEquals("", openpm.getText());
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void legacyFileUpgradedToSegmented() {
+        String filename = "testfiles/upgrade.pman";
+        String password = "upgrade";
+        PasswordManager pm = new PasswordManager(midsizedText, salt16, iv16);
+        try {
+            pm.savePasswordFile(filename, password.toCharArray());
+            PasswordManager openpm = new PasswordManager();
+            openpm.openPasswordFile(filename, password.toCharArray());
+            assertEquals(PasswordManager.LEGACY_FORMAT, openpm.getFormatVersion());
+            openpm.setFormatVersion(PasswordManager.SEGMENTED_FORMAT);
+            openpm.savePasswordFile(filename);
+            PasswordManager reopenpm = new PasswordManager();
+            reopenpm.openPasswordFile(filename, password.toCharArray());
+            assertEquals(PasswordManager.SEGMENTED_FORMAT, reopenpm.getFormatVersion());
+            assertEquals(midsizedText, reopenpm.getText());
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void tamperedSegmentIsInvalid() {
+        String filename = "testfiles/tampered.pman";
+        PasswordManager pm = new PasswordManager(midsizedText);
+        try {
+            pm.savePasswordFile(filename, "tamper".toCharArray());
+            byte[] data = Files.readAllBytes(Paths.get(filename));
+            // Flip a bit in the first segment.
+            data[SegmentedFile.dataStart + 6] ^= 1;
+            Files.write(Paths.get(filename), data);
+            new PasswordManager().openPasswordFile(filename, "tamper".toCharArray());
+            fail("Opened a tampered file.");
+        }
+        catch (InvalidPasswordFileException e) {
+            assertTrue(true);
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void ctrHmacEngineRoundTrip() {
+        String filename = "testfiles/ctrhmac.pman";
+        String password = "counter";
+        PasswordManager pm = new PasswordManager(midsizedText);
+        pm.setCryptoEngine(PasswordManager.AES_CTR_HMAC_ENGINE);
+        try {
+            pm.savePasswordFile(filename, password.toCharArray());
+            ByteBuffer header = ByteBuffer.wrap(Files.readAllBytes(Paths.get(filename)));
+            assertEquals(PasswordManager.AES_CTR_HMAC_ENGINE, header.getInt(36) & 0xff);
+            PasswordManager openpm = new PasswordManager();
+            openpm.openPasswordFile(filename, password.toCharArray());
+            assertEquals(midsizedText, openpm.getText());
+            assertEquals(PasswordManager.AES_CTR_HMAC_ENGINE, openpm.getCryptoEngine());
+            // An in place update keeps the engine.
+            openpm.setText(midsizedText + "more");
+            openpm.savePasswordFile(filename);
+            PasswordManager reopenpm = new PasswordManager();
+            reopenpm.openPasswordFile(filename, password.toCharArray());
+            assertEquals(midsizedText + "more", reopenpm.getText());
+
+            byte[] data = Files.readAllBytes(Paths.get(filename));
+            data[SegmentedFile.dataStart + 6] ^= 1;
+            Files.write(Paths.get(filename), data);
+            new PasswordManager().openPasswordFile(filename, password.toCharArray());
+            fail("Opened a tampered file.");
+        }
+        catch (InvalidPasswordFileException e) {
+            assertTrue(true);
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void compressedSegmentsRoundTrip() {
+        String filename = "testfiles/compressed.pman";
+        String password = "deflate";
+        StringBuilder builder = new StringBuilder();
+        Random random = new Random(20);
+        while (builder.length() < 300000) {
+            builder.append("Site ").append(builder.length()).append("\npassword: ");
+            for (int i = 0; i < 40; i++) {
+                builder.append((char) (0x4e00 + random.nextInt(0x5000)));
+            }
+            builder.append("\n\n");
+        }
+        String text = builder.toString();
+        PasswordManager pm = new PasswordManager(text);
+        pm.setLookupIndexEnabled(true);
+        pm.setCompressionEnabled(true);
+        try {
+            pm.savePasswordFile(filename, password.toCharArray());
+            long compressedSize = new File(filename).length();
+            pm.setCompressionEnabled(false);
+            pm.savePasswordFile(filename);
+            assertTrue(new File(filename).length() > compressedSize);
+            pm.setCompressionEnabled(true);
+            pm.savePasswordFile(filename);
+            ByteBuffer header = ByteBuffer.wrap(Files.readAllBytes(Paths.get(filename)));
+            assertEquals(SegmentedFile.compressedFlag, header.getInt(36) & SegmentedFile.compressedFlag);
+
+            PasswordManager openpm = new PasswordManager();
+            openpm.openPasswordFile(filename, password.toCharArray());
+            assertEquals(text, openpm.getText());
+            assertTrue(openpm.isCompressionEnabled());
+            assertEquals(1, pm.lookupEntries(new File(filename), password.toCharArray(), "Site 5").size());
+            // An in place update keeps compressing.
+            openpm.setText("edited\n" + text);
+            openpm.savePasswordFile(filename);
+            PasswordManager reopenpm = new PasswordManager();
+            reopenpm.openPasswordFile(filename, password.toCharArray());
+            assertEquals("edited\n" + text, reopenpm.getText());
+
+            // Segments that don't compress are stored with one extra byte.
+            byte[] noise = new byte[1000];
+            random.nextBytes(noise);
+            for (int length : new int[] { 0, 1000 }) {
+                ByteBuffer segment = ByteBuffer.allocate(length + 1);
+                segment.put(noise, 0, length).flip();
+                SegmentCompressor.compress(segment);
+                assertEquals(length + 1, segment.remaining());
+                ByteBuffer plain = ByteBuffer.allocate(length + 1);
+                SegmentCompressor.decompress(segment, plain);
+                assertEquals(ByteBuffer.wrap(noise, 0, length), plain.flip());
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void lookupIndexFindsSingleEntries() {
+        String filename = "testfiles/lookup.pman";
+        String password = "lookup";
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            text.append("Site ").append(i).append("\nuser: person").append(i)
+                    .append("\npassword: secret").append(i).append("\n\n");
+        }
+        PasswordManager pm = new PasswordManager(text.toString());
+        pm.setLookupIndexEnabled(true);
+        try {
+            pm.savePasswordFile(filename, password.toCharArray());
+            File file = new File(filename);
+            List<Entry> found = pm.lookupEntries(file, password.toCharArray(), " site 123 ");
+            assertEquals(1, found.size());
+            assertEquals("person123", found.get(0).getUsername());
+            assertEquals("secret123", found.get(0).getSecret());
+            assertEquals(text.indexOf("Site 123\n"), found.get(0).getStart());
+            assertTrue(pm.lookupEntries(file, password.toCharArray(), "Site 300").isEmpty());
+
+            // An in place update rewrites the index.
+            PasswordManager openpm = new PasswordManager();
+            openpm.openPasswordFile(filename, password.toCharArray());
+            assertTrue(openpm.isLookupIndexEnabled());
+            openpm.setText(openpm.getText().replace("person7\n", "changed\n"));
+            openpm.savePasswordFile(filename);
+            found = pm.lookupEntries(file, password.toCharArray(), "Site 7");
+            assertEquals("changed", found.get(0).getUsername());
+
+            // Files without an index are searched the slow way.
+            openpm.setLookupIndexEnabled(false);
+            openpm.savePasswordFile(filename);
+            found = pm.lookupEntries(file, password.toCharArray(), "SITE 42");
+            assertEquals("person42", found.get(0).getUsername());
+            pm.lookupEntries(file, "wrong".toCharArray(), "Site 42");
+            fail("Looked up an entry with the wrong password.");
+        }
+        catch (BadPasswordException e) {
+            assertTrue(true);
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void wrongPasswordRejectedByKeyCheck() {
+        String filename = "testfiles/keycheck.pman";
+        PasswordManager pm = new PasswordManager(midsizedText);
+        try {
+            pm.savePasswordFile(filename, "right".toCharArray());
+            // Wreck the table so only the key check can tell bad passwords
+            // apart from a bad file.
+            byte[] data = Files.readAllBytes(Paths.get(filename));
+            data[data.length - 40] ^= 1;
+            Files.write(Paths.get(filename), data);
+            new PasswordManager().openPasswordFile(filename, "wrong".toCharArray());
+            fail("Opened a file with the wrong password.");
+        }
+        catch (BadPasswordException e) {
+            assertTrue(true);
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void keyCheckUsesDerivedKey() {
+        String filename = "testfiles/derivedcheck.pman";
+        PasswordManager pm = new PasswordManager(shortText);
+        pm.setKeyDerivation(new KeyDerivation(KeyDerivation.PBKDF2_SHA256, 1000));
+        try {
+            pm.savePasswordFile(filename, "derived".toCharArray());
+            ByteBuffer header = ByteBuffer.wrap(Files.readAllBytes(Paths.get(filename)));
+            int flags = header.getInt(36);
+            assertTrue((flags & SegmentedFile.derivedKeyCheckFlag) != 0);
+            // Written before the flag existed, with the check under the
+            // file's key itself.
+            PasswordManager oldpm = new PasswordManager();
+            oldpm.openPasswordFile("testfiles/directkeycheck.dat", "legacy".toCharArray());
+            assertEquals("Old key check\nuser: ann\n", oldpm.getText());
+            try {
+                new PasswordManager().openPasswordFile("testfiles/directkeycheck.dat",
+                        "wrong".toCharArray());
+                fail("Opened a file with the wrong password.");
+            }
+            catch (BadPasswordException e) {
+                assertTrue(true);
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void openReportsProgress() {
+        String filename = "testfiles/progress.pman";
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < 4 * SegmentedFile.defaultSegmentSize) {
+            builder.append(midsizedText);
+        }
+        PasswordManager pm = new PasswordManager(builder.toString());
+        final long[] last = new long[2];
+        ProgressListener listener = new ProgressListener() {
+            @Override
+            public void progressChanged(long done, long total) {
+                assertTrue(done >= last[0]);
+                last[0] = done;
+                last[1] = total;
+            }
+        };
+        try {
+            pm.setProgressListener(listener);
+            pm.savePasswordFile(filename, "progress".toCharArray());
+            assertEquals(builder.length(), last[0]);
+            assertEquals(last[0], last[1]);
+            last[0] = 0;
+            PasswordManager openpm = new PasswordManager();
+            openpm.setProgressListener(listener);
+            openpm.openPasswordFile(filename, "progress".toCharArray());
+            assertTrue(last[0] > 0);
+            assertEquals(last[0], last[1]);
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void interruptedOpenLeavesModelUnchanged() {
+        String filename = "testfiles/interrupted.pman";
+        PasswordManager pm = new PasswordManager(midsizedText);
+        try {
+            pm.savePasswordFile(filename, "interrupt".toCharArray());
+            PasswordManager openpm = new PasswordManager(shortText);
+            Thread.currentThread().interrupt();
+            try {
+                openpm.openPasswordFile(filename, "interrupt".toCharArray());
+                fail("Opened a file on an interrupted thread.");
+            }
+            catch (IOException e) {
+                assertTrue(Thread.interrupted());
+            }
+            assertEquals(shortText, openpm.getText());
+            assertFalse(openpm.hasSessionKey());
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+        finally {
+            Thread.interrupted();
+        }
+    }
+
+    @Test
+    public void keyDerivationCostStoredInHeader() {
+        String filename = "testfiles/kdfcost.pman";
+        String password = "cost";
+        PasswordManager pm = new PasswordManager(midsizedText);
+        pm.setKeyDerivation(new KeyDerivation(KeyDerivation.PBKDF2_SHA1, 7000));
+        try {
+            pm.savePasswordFile(filename, password.toCharArray());
+            ByteBuffer header = ByteBuffer.wrap(Files.readAllBytes(Paths.get(filename)));
+            assertEquals(KeyDerivation.PBKDF2_SHA1, header.getInt(40));
+            assertEquals(7000, header.getInt(44));
+            PasswordManager openpm = new PasswordManager();
+            openpm.openPasswordFile(filename, password.toCharArray());
+            assertEquals(midsizedText, openpm.getText());
+            assertTrue(openpm.hasSessionKey());
+            // Version 1 files can't record the cost, so the key can't be
+            // reused for one.
+            openpm.setFormatVersion(PasswordManager.LEGACY_FORMAT);
+            assertFalse(openpm.hasSessionKey());
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void argon2idFileRoundTrip() {
+        String filename = "testfiles/argon2id.pman";
+        String password = "memory hard";
+        PasswordManager pm = new PasswordManager(midsizedText);
+        KeyDerivation derivation = new KeyDerivation(KeyDerivation.ARGON2ID, 2, 1024, 2);
+        pm.setKeyDerivation(derivation);
+        try {
+            pm.savePasswordFile(filename, password.toCharArray());
+            ByteBuffer header = ByteBuffer.wrap(Files.readAllBytes(Paths.get(filename)));
+            assertEquals(derivation.getHeaderAlgorithm(), header.getInt(40));
+            assertEquals(2, header.getInt(44));
+            PasswordManager openpm = new PasswordManager();
+            openpm.openPasswordFile(filename, password.toCharArray());
+            assertEquals(midsizedText, openpm.getText());
+            assertTrue(openpm.hasSessionKey());
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+        try {
+            PasswordManager wrongpm = new PasswordManager();
+            wrongpm.openPasswordFile(filename, "memory soft".toCharArray());
+            fail("Opened an Argon2id file with the wrong password.");
+        }
+        catch (BadPasswordException e) {
+            // expected
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void encryptAndDecryptInParallel() {
+        String filename = "testfiles/parallel.pman";
+        String password = "threads";
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < 1000000) {
+            builder.append(midsizedText);
+        }
+        String text = builder.toString();
+        PasswordManager pm = new PasswordManager(text);
+        pm.setParallelism(4);
+        try {
+            pm.savePasswordFile(filename, password.toCharArray());
+            PasswordManager openpm = new PasswordManager();
+            openpm.setParallelism(3);
+            openpm.openPasswordFile(filename, password.toCharArray());
+            assertEquals(text, openpm.getText());
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void incrementalSaveKeepsUnchangedSegments() {
+        String filename = "testfiles/incremental.pman";
+        String password = "delta";
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < 300000) {
+            builder.append(midsizedText);
+        }
+        String text = builder.toString();
+        try {
+            new PasswordManager(text).savePasswordFile(filename, password.toCharArray());
+            byte[] before = Files.readAllBytes(Paths.get(filename));
+            PasswordManager openpm = new PasswordManager();
+            openpm.openPasswordFile(filename, password.toCharArray());
+            String edited = text.substring(0, 150000) + "X" + text.substring(150000);
+            openpm.setText(edited);
+            openpm.savePasswordFile(filename);
+            byte[] after = Files.readAllBytes(Paths.get(filename));
+            // The first segment is untouched and only about one segment's
+            // worth of new data is added.
+            assertTrue(Arrays.equals(Arrays.copyOfRange(before, 0, 65536),
+                    Arrays.copyOfRange(after, 0, 65536)));
+            assertTrue(after.length < before.length + 2 * 65536);
+            // Saving again without changes doesn't write anything.
+            openpm.savePasswordFile(filename);
+            assertTrue(Arrays.equals(after, Files.readAllBytes(Paths.get(filename))));
+            PasswordManager reopenpm = new PasswordManager();
+            reopenpm.openPasswordFile(filename, password.toCharArray());
+            assertEquals(edited, reopenpm.getText());
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void incrementalSavesAreCompacted() {
+        String filename = "testfiles/compacted.pman";
+        String password = "compact";
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < 300000) {
+            builder.append(midsizedText);
+        }
+        String text = builder.toString();
+        try {
+            PasswordManager pm = new PasswordManager(text);
+            pm.savePasswordFile(filename, password.toCharArray());
+            long original = Files.size(Paths.get(filename));
+            for (int i = 0; i < 20; i++) {
+                text = "edit " + i + text.substring(6) + i;
+                pm.setText(text);
+                pm.savePasswordFile(filename);
+                assertTrue(Files.size(Paths.get(filename)) < 3 * original);
+            }
+            PasswordManager openpm = new PasswordManager();
+            openpm.openPasswordFile(filename, password.toCharArray());
+            assertEquals(text, openpm.getText());
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void unfinishedIncrementalSaveLeavesFile() {
+        String filename = "testfiles/failedupdate.pman";
+        String password = "safe";
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < 300000) {
+            builder.append(midsizedText);
+        }
+        String text = builder.toString();
+        try {
+            PasswordManager pm = new PasswordManager(text);
+            pm.savePasswordFile(filename, password.toCharArray());
+            Set<PosixFilePermission> owner = PosixFilePermissions.fromString("rw-------");
+            Files.setPosixFilePermissions(Paths.get(filename), owner);
+            String edited = "X" + text;
+            pm.setText(edited);
+            pm.savePasswordFile(filename);
+            assertEquals(owner, Files.getPosixFilePermissions(Paths.get(filename)));
+
+            // An update cut off before its trailer was written, as by a
+            // crash, leaves the file as it was.
+            pm.setText("Y" + edited);
+            pm.savePasswordFile(filename);
+            byte[] data = Files.readAllBytes(Paths.get(filename));
+            Files.write(Paths.get(filename), Arrays.copyOf(data, data.length - 20));
+            PasswordManager openpm = new PasswordManager();
+            openpm.openPasswordFile(filename, password.toCharArray());
+            assertEquals(edited, openpm.getText());
+            long unreadable = openpm.getUnreadableLength();
+            assertTrue(unreadable > 0);
+
+            // It could be a damaged trailer instead, so the next save keeps
+            // a copy of the file and rewrites it.
+            Path copy = PasswordManager.damagedCopy(Paths.get(filename));
+            Files.deleteIfExists(copy);
+            openpm.setText("Z" + edited);
+            openpm.savePasswordFile(filename);
+            assertEquals(0, openpm.getUnreadableLength());
+            assertTrue(Arrays.equals(Arrays.copyOf(data, data.length - 20), Files.readAllBytes(copy)));
+            assertEquals(owner, Files.getPosixFilePermissions(Paths.get(filename)));
+            PasswordManager reopenpm = new PasswordManager();
+            reopenpm.openPasswordFile(filename, password.toCharArray());
+            assertEquals("Z" + edited, reopenpm.getText());
+            assertEquals(0, reopenpm.getUnreadableLength());
+            Files.delete(copy);
+
+            // Once the user agrees, the next update replaces what's left
+            // of the unfinished one.
+            reopenpm.setText("W" + edited);
+            reopenpm.savePasswordFile(filename);
+            long updated = Files.size(Paths.get(filename));
+            reopenpm.setText("V" + edited);
+            reopenpm.savePasswordFile(filename);
+            data = Files.readAllBytes(Paths.get(filename));
+            Files.write(Paths.get(filename), Arrays.copyOf(data, data.length - 20));
+            openpm = new PasswordManager();
+            openpm.openPasswordFile(filename, password.toCharArray());
+            assertEquals("W" + edited, openpm.getText());
+            assertEquals(data.length - 20 - updated, openpm.getUnreadableLength());
+            openpm.discardUnreadableEnd();
+            openpm.setText("U" + edited);
+            openpm.savePasswordFile(filename);
+            assertFalse(Files.exists(copy));
+            // Updated in place: the old segments are still at the front.
+            assertTrue(Files.size(Paths.get(filename)) > updated);
+            reopenpm = new PasswordManager();
+            reopenpm.openPasswordFile(filename, password.toCharArray());
+            assertEquals("U" + edited, reopenpm.getText());
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+    }
 }
@@ -0,0 +1,279 @@
+package dashteacup.pman;
+
+import java.util.Arrays;
+
+/**
+ * PBKDF2 with HMAC-SHA256 (RFC 8018), written out by hand so the iteration
+ * loop does as little work as possible. The JCA's version runs HMAC through
+ * the general purpose Mac and MessageDigest classes on every iteration.
+ * Here the HMAC key is hashed into the inner and outer pad states once, and
+ * each iteration is just two SHA-256 compressions of fixed size blocks held
+ * in int arrays, with nothing allocated inside the loop.
+ */
+final class Pbkdf2Sha256 {
+
+    /**
+     * Length of a SHA-256 hash in bytes.
+     */
+    static final int hashLength = 32;
+
+    /**
+     * Size of a SHA-256 message block in bytes.
+     */
+    private static final int blockLength = 64;
+
+    /**
+     * Length in bits of an HMAC inner or outer message during the
+     * iterations: one pad block followed by one hash.
+     */
+    private static final int iterationMessageBits = (blockLength + hashLength) * 8;
+
+    /**
+     * SHA-256 initial hash value (FIPS 180-4 section 5.3.3).
+     */
+    private static final int[] initialState = {
+        0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a,
+        0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19
+    };
+
+    /**
+     * SHA-256 round constants (FIPS 180-4 section 4.2.2).
+     */
+    private static final int[] roundConstants = {
+        0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+        0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+        0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+        0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+        0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+        0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+        0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+        0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+    };
+
+    /**
+     * Not instantiable.
+     */
+    private Pbkdf2Sha256() {
+    }
+
+    /**
+     * Derive a key from a password.
+     * @param password bytes of the password, used as the HMAC key
+     * @param salt to add to the password
+     * @param iterations number of HMAC iterations per output block
+     * @param keyLength length of the key to derive in bytes
+     * @return the derived key
+     */
+    static byte[] deriveKey(byte[] password, byte[] salt, int iterations, int keyLength) {
+        if (iterations < 1) {
+            throw new IllegalArgumentException("Need at least one iteration.");
+        }
+        if (keyLength < 1) {
+            throw new IllegalArgumentException("Key length must be positive.");
+        }
+        int[] innerState = new int[8];
+        int[] outerState = new int[8];
+        int[] schedule = new int[64];
+        padStates(password, innerState, outerState, schedule);
+
+        int[] state = new int[8];
+        int[] u = new int[8];
+        int[] t = new int[8];
+        byte[] saltBlock = Arrays.copyOf(salt, salt.length + 4);
+        byte[] key = new byte[keyLength];
+        int blocks = (keyLength + hashLength - 1) / hashLength;
+        for (int block = 1; block <= blocks; block++) {
+            // U1 = HMAC(password, salt || INT(block))
+            saltBlock[salt.length] = (byte) (block >>> 24);
+            saltBlock[salt.length + 1] = (byte) (block >>> 16);
+            saltBlock[salt.length + 2] = (byte) (block >>> 8);
+            saltBlock[salt.length + 3] = (byte) block;
+            System.arraycopy(innerState, 0, state, 0, 8);
+            hashMessage(state, saltBlock, blockLength, schedule);
+            System.arraycopy(outerState, 0, u, 0, 8);
+            compressHash(u, state, schedule);
+            System.arraycopy(u, 0, t, 0, 8);
+
+            // Uj = HMAC(password, Uj-1), T = U1 ^ U2 ^ ... ^ Uc
+            for (int i = 1; i < iterations; i++) {
+                System.arraycopy(innerState, 0, state, 0, 8);
+                compressHash(state, u, schedule);
+                System.arraycopy(outerState, 0, u, 0, 8);
+                compressHash(u, state, schedule);
+                for (int j = 0; j < 8; j++) {
+                    t[j] ^= u[j];
+                }
+            }
+
+            int offset = (block - 1) * hashLength;
+            for (int j = 0; j < 8 && offset < keyLength; j++) {
+                for (int shift = 24; shift >= 0 && offset < keyLength; shift -= 8) {
+                    key[offset++] = (byte) (t[j] >>> shift);
+                }
+            }
+        }
+        Arrays.fill(innerState, 0);
+        Arrays.fill(outerState, 0);
+        Arrays.fill(schedule, 0);
+        Arrays.fill(state, 0);
+        Arrays.fill(u, 0);
+        Arrays.fill(t, 0);
+        Arrays.fill(saltBlock, (byte) 0);
+        return key;
+    }
+
+    /**
+     * Hash the HMAC key XORed with the inner and outer pads. These two
+     * states are where every HMAC with the key starts from.
+     * @param password the HMAC key
+     * @param innerState receives the state after the inner pad block
+     * @param outerState receives the state after the outer pad block
+     * @param schedule scratch space for the message schedule
+     */
+    private static void padStates(byte[] password, int[] innerState,
+            int[] outerState, int[] schedule) {
+        byte[] key = new byte[blockLength];
+        if (password.length > blockLength) {
+            // Long keys are replaced by their hash.
+            int[] hashed = initialState.clone();
+            hashMessage(hashed, password, 0, schedule);
+            for (int j = 0; j < 8; j++) {
+                key[4 * j] = (byte) (hashed[j] >>> 24);
+                key[4 * j + 1] = (byte) (hashed[j] >>> 16);
+                key[4 * j + 2] = (byte) (hashed[j] >>> 8);
+                key[4 * j + 3] = (byte) hashed[j];
+            }
+            Arrays.fill(hashed, 0);
+        }
+        else {
+            System.arraycopy(password, 0, key, 0, password.length);
+        }
+        byte[] pad = new byte[blockLength];
+        for (int i = 0; i < blockLength; i++) {
+            pad[i] = (byte) (key[i] ^ 0x36);
+        }
+        System.arraycopy(initialState, 0, innerState, 0, 8);
+        loadBlock(pad, 0, schedule);
+        compress(innerState, schedule);
+        for (int i = 0; i < blockLength; i++) {
+            pad[i] = (byte) (key[i] ^ 0x5c);
+        }
+        System.arraycopy(initialState, 0, outerState, 0, 8);
+        loadBlock(pad, 0, schedule);
+        compress(outerState, schedule);
+        Arrays.fill(key, (byte) 0);
+        Arrays.fill(pad, (byte) 0);
+    }
+
+    /**
+     * Finish hashing a message of any length, padding included.
+     * @param state to continue from. Receives the hash.
+     * @param message bytes still to be hashed
+     * @param hashedBefore number of bytes already hashed into the state
+     * @param schedule scratch space for the message schedule
+     */
+    private static void hashMessage(int[] state, byte[] message, long hashedBefore,
+            int[] schedule) {
+        long totalBits = (hashedBefore + message.length) * 8;
+        int fullBlocks = message.length / blockLength;
+        for (int i = 0; i < fullBlocks; i++) {
+            loadBlock(message, i * blockLength, schedule);
+            compress(state, schedule);
+        }
+        int remaining = message.length - fullBlocks * blockLength;
+        // The rest of the message, a 1 bit, zeros and the length in bits.
+        byte[] last = new byte[(remaining + 9 <= blockLength) ? blockLength : 2 * blockLength];
+        System.arraycopy(message, fullBlocks * blockLength, last, 0, remaining);
+        last[remaining] = (byte) 0x80;
+        for (int i = 0; i < 8; i++) {
+            last[last.length - 1 - i] = (byte) (totalBits >>> (8 * i));
+        }
+        for (int offset = 0; offset < last.length; offset += blockLength) {
+            loadBlock(last, offset, schedule);
+            compress(state, schedule);
+        }
+        Arrays.fill(last, (byte) 0);
+    }
+
+    /**
+     * Compress a block holding just a hash, padded as the end of an HMAC
+     * inner or outer message. This is the whole of each iteration's work.
+     * @param state to continue from, after a pad block. Receives the hash.
+     * @param hash the block's data
+     * @param schedule scratch space for the message schedule
+     */
+    private static void compressHash(int[] state, int[] hash, int[] schedule) {
+        System.arraycopy(hash, 0, schedule, 0, 8);
+        schedule[8] = 0x80000000;
+        schedule[9] = 0;
+        schedule[10] = 0;
+        schedule[11] = 0;
+        schedule[12] = 0;
+        schedule[13] = 0;
+        schedule[14] = 0;
+        schedule[15] = iterationMessageBits;
+        compress(state, schedule);
+    }
+
+    /**
+     * Read a 64 byte block into the first 16 words of the message schedule.
+     * @param data holding the block
+     * @param offset of the block in the data
+     * @param schedule receives the words
+     */
+    private static void loadBlock(byte[] data, int offset, int[] schedule) {
+        for (int i = 0; i < 16; i++) {
+            int j = offset + 4 * i;
+            schedule[i] = (data[j] << 24) | ((data[j + 1] & 0xff) << 16)
+                    | ((data[j + 2] & 0xff) << 8) | (data[j + 3] & 0xff);
+        }
+    }
+
+    /**
+     * The SHA-256 compression function (FIPS 180-4 section 6.2.2).
+     * @param state the hash state to update
+     * @param w message schedule with the block in its first 16 words. The
+     * rest of the schedule is overwritten.
+     */
+    private static void compress(int[] state, int[] w) {
+        for (int i = 16; i < 64; i++) {
+            int w15 = w[i - 15];
+            int w2 = w[i - 2];
+            int s0 = Integer.rotateRight(w15, 7) ^ Integer.rotateRight(w15, 18) ^ (w15 >>> 3);
+            int s1 = Integer.rotateRight(w2, 17) ^ Integer.rotateRight(w2, 19) ^ (w2 >>> 10);
+            w[i] = w[i - 16] + s0 + w[i - 7] + s1;
+        }
+        int a = state[0];
+        int b = state[1];
+        int c = state[2];
+        int d = state[3];
+        int e = state[4];
+        int f = state[5];
+        int g = state[6];
+        int h = state[7];
+        for (int i = 0; i < 64; i++) {
+            int s1 = Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25);
+            int ch = (e & f) ^ (~e & g);
+            int temp1 = h + s1 + ch + roundConstants[i] + w[i];
+            int s0 = Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22);
+            int maj = (a & b) ^ (a & c) ^ (b & c);
+            int temp2 = s0 + maj;
+            h = g;
+            g = f;
+            f = e;
+            e = d + temp1;
+            d = c;
+            c = b;
+            b = a;
+            a = temp1 + temp2;
+        }
+        state[0] += a;
+        state[1] += b;
+        state[2] += c;
+        state[3] += d;
+        state[4] += e;
+        state[5] += f;
+        state[6] += g;
+        state[7] += h;
+    }
+}
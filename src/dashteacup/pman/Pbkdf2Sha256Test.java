@@ -0,0 +1,103 @@
+package dashteacup.pman;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Random;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import org.junit.Test;
+
+/**
+ * Tests for the hand written PBKDF2-HMAC-SHA256 in {@link Pbkdf2Sha256}.
+ */
+public class Pbkdf2Sha256Test {
+
+    /**
+     * Turn a hex string into bytes.
+     * @param hex string with an even number of digits
+     * @return the bytes
+     */
+    private static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    @Test
+    public void rfc7914SingleIteration() {
+        // RFC 7914 section 11, first PBKDF2-HMAC-SHA256 vector.
+        byte[] expected = fromHex("55ac046e56e3089fec1691c22544b605f94185216dde0465e68b9d57c20dacbc"
+                + "49ca9cccf179b645991664b39d77ef317c71b845b1e30bd509112041d3a19783");
+        byte[] key = Pbkdf2Sha256.deriveKey("passwd".getBytes(StandardCharsets.UTF_8),
+                "salt".getBytes(StandardCharsets.UTF_8), 1, 64);
+        assertArrayEquals(expected, key);
+    }
+
+    @Test
+    public void rfc7914ManyIterations() {
+        // RFC 7914 section 11, second PBKDF2-HMAC-SHA256 vector.
+        byte[] expected = fromHex("4ddcd8f60b98be21830cee5ef22701f9641a4418d04c0414aeff08876b34ab56"
+                + "a1d425a1225833549adb841b51c9b3176a272bdebba1d078478f62b397f33c8d");
+        byte[] key = Pbkdf2Sha256.deriveKey("Password".getBytes(StandardCharsets.UTF_8),
+                "NaCl".getBytes(StandardCharsets.UTF_8), 80000, 64);
+        assertArrayEquals(expected, key);
+    }
+
+    @Test
+    public void matchesJcaProvider() {
+        // Covers long passwords, salts spanning blocks and odd key lengths.
+        Random random = new Random(242);
+        int[] passwordLengths = { 0, 1, 55, 64, 65, 200 };
+        int[] saltLengths = { 16, 59, 60, 64, 130 };
+        int[] keyLengths = { 16, 32, 33, 100 };
+        try {
+            SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+            for (int passwordLength : passwordLengths) {
+                for (int saltLength : saltLengths) {
+                    for (int keyLength : keyLengths) {
+                        char[] password = new char[passwordLength];
+                        for (int i = 0; i < password.length; i++) {
+                            password[i] = (char) ('!' + random.nextInt(94));
+                        }
+                        byte[] salt = new byte[saltLength];
+                        random.nextBytes(salt);
+                        int iterations = 1 + random.nextInt(50);
+                        PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, keyLength * 8);
+                        byte[] expected = factory.generateSecret(spec).getEncoded();
+                        byte[] key = Pbkdf2Sha256.deriveKey(
+                                new String(password).getBytes(StandardCharsets.UTF_8),
+                                salt, iterations, keyLength);
+                        assertArrayEquals(expected, key);
+                    }
+                }
+            }
+        }
+        catch (GeneralSecurityException e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void keyDerivationMatchesJcaProvider() {
+        byte[] salt = "1234567890123456".getBytes();
+        try {
+            SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+            PBEKeySpec spec = new PBEKeySpec("p\u00e4ssw\u00f6rd".toCharArray(), salt, 1000, 256);
+            byte[] expected = factory.generateSecret(spec).getEncoded();
+            KeyDerivation derivation = new KeyDerivation(KeyDerivation.PBKDF2_SHA256, 1000);
+            assertArrayEquals(expected, derivation.deriveKey("p\u00e4ssw\u00f6rd".toCharArray(), salt));
+        }
+        catch (GeneralSecurityException | InvalidPasswordFileException e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+    }
+}
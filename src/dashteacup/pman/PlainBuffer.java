@@ -0,0 +1,100 @@
+package dashteacup.pman;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+/**
+ * Buffers for plain text on its way between the user's characters and the
+ * ciphers. Byte buffers are allocated outside the Java heap, so the garbage
+ * collector never moves them and leaves stale copies behind, and every
+ * buffer is overwritten as soon as it's done with rather than whenever its
+ * memory happens to be reused. Characters are encoded and decoded straight
+ * to and from these buffers, without byte arrays in between.
+ */
+class PlainBuffer {
+
+    /**
+     * Zeros copied over buffers to wipe them.
+     */
+    private static final ByteBuffer zeros = ByteBuffer.allocateDirect(8 * 1024);
+
+    /**
+     * Private constructor since this only has static methods.
+     */
+    private PlainBuffer() {}
+
+    /**
+     * Allocate a buffer for plain text bytes outside the heap.
+     * @param capacity in bytes
+     * @return the empty buffer
+     */
+    static ByteBuffer allocate(int capacity) {
+        return ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * Overwrite the whole of a buffer with zeros, whatever its position and
+     * limit. The position and limit aren't changed.
+     * @param buffer to wipe
+     */
+    static void wipe(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            Arrays.fill(buffer.array(), (byte) 0);
+            return;
+        }
+        ByteBuffer target = buffer.duplicate();
+        target.clear();
+        while (target.hasRemaining()) {
+            ByteBuffer source = zeros.duplicate();
+            source.limit(Math.min(source.capacity(), target.remaining()));
+            target.put(source);
+        }
+    }
+
+    /**
+     * Overwrite several buffers with zeros.
+     * @param buffers to wipe
+     */
+    static void wipe(ByteBuffer[] buffers) {
+        for (ByteBuffer buffer : buffers) {
+            wipe(buffer);
+        }
+    }
+
+    /**
+     * Overwrite the whole of an array backed character buffer.
+     * @param buffer to wipe
+     */
+    static void wipe(CharBuffer buffer) {
+        Arrays.fill(buffer.array(), '0');
+    }
+
+    /**
+     * Create an encoder that replaces anything it can't encode, the way
+     * every password file is written.
+     * @param charset to encode to
+     * @return the encoder
+     */
+    static CharsetEncoder encoder(Charset charset) {
+        return charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * Create a decoder that replaces anything it can't decode, the way
+     * every password file is read.
+     * @param charset to decode from
+     * @return the decoder
+     */
+    static CharsetDecoder decoder(Charset charset) {
+        return charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+}
@@ -0,0 +1,89 @@
+package dashteacup.pman;
+
+import java.awt.BorderLayout;
+import java.awt.FlowLayout;
+import java.awt.event.ActionListener;
+
+import javax.swing.BorderFactory;
+import javax.swing.JButton;
+import javax.swing.JDialog;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JProgressBar;
+import javax.swing.WindowConstants;
+
+/**
+ * Small window showing the progress of a file being opened or saved in the
+ * background. It doesn't block the main window's event handling, so the
+ * application keeps repainting while the work goes on.
+ */
+public class ProgressDialog {
+
+    /**
+     * The dialog window.
+     */
+    private JDialog dialog;
+
+    /**
+     * Bar showing how much of the work is done.
+     */
+    private JProgressBar progressBar;
+
+    /**
+     * Create a new progress dialog. It isn't shown until {@link #show()} is
+     * called.
+     * @param window the parent window this dialog is attached to.
+     * @param message describing the work being done.
+     * @param cancelAction run when the user presses the cancel button, or
+     * null if the work can't be cancelled.
+     */
+    public ProgressDialog(JFrame window, String message, ActionListener cancelAction) {
+        dialog = new JDialog(window, "Please Wait", false);
+        // Closing the dialog would only hide it, the work would go on.
+        dialog.setDefaultCloseOperation(WindowConstants.DO_NOTHING_ON_CLOSE);
+
+        progressBar = new JProgressBar(0, 100);
+        // Nothing is known about the progress until the key is derived.
+        progressBar.setIndeterminate(true);
+
+        JPanel panel = new JPanel(new BorderLayout(5, 5));
+        panel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
+        panel.add(new JLabel(message), BorderLayout.PAGE_START);
+        panel.add(progressBar, BorderLayout.CENTER);
+        if (cancelAction != null) {
+            JButton cancelButton = new JButton("Cancel");
+            cancelButton.addActionListener(cancelAction);
+            JPanel buttons = new JPanel(new FlowLayout(FlowLayout.TRAILING, 0, 0));
+            buttons.add(cancelButton);
+            panel.add(buttons, BorderLayout.PAGE_END);
+        }
+        dialog.add(panel);
+        dialog.pack();
+        dialog.setResizable(false);
+        dialog.setLocationRelativeTo(window);
+    }
+
+    /**
+     * Display the dialog.
+     */
+    public void show() {
+        dialog.setVisible(true);
+    }
+
+    /**
+     * Show how much of the work is done.
+     * @param percent of the work that's finished, from 0 to 100.
+     */
+    public void setProgress(int percent) {
+        progressBar.setIndeterminate(false);
+        progressBar.setValue(percent);
+    }
+
+    /**
+     * Hide the dialog and release its resources.
+     */
+    public void close() {
+        dialog.dispose();
+    }
+}
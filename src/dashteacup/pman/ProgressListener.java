@@ -0,0 +1,16 @@
+package dashteacup.pman;
+
+/**
+ * Receives progress updates while a {@link PasswordManager} opens or saves a
+ * password file. Updates are delivered on the thread doing the work, which
+ * is usually not the Swing event dispatch thread.
+ */
+public interface ProgressListener {
+
+    /**
+     * Called each time another part of the file has been processed.
+     * @param done amount of work finished so far
+     * @param total amount of work in the whole operation. Always positive.
+     */
+    void progressChanged(long done, long total);
+}
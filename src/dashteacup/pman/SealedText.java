@@ -0,0 +1,724 @@
+package dashteacup.pman;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Text kept encrypted in memory. It's split into records of whole lines,
+ * usually a few entries each, that are sealed with AES-GCM under a random
+ * key that never leaves this process. Reading a character decrypts the
+ * record holding it into a small cache of recently used records, and
+ * records pushed out of the cache are wiped, so however large the text is
+ * only the cache's worth of it is ever in memory as plain text. Bulk reads
+ * of longer ranges decrypt straight into the caller's buffer instead, so
+ * scanning the whole text doesn't flush the cache.
+ *
+ * Editing a text makes a new one sharing the key, cache and unchanged
+ * records of the old one, so an edit only seals the records it touched.
+ * Like a StringBuilder, a text must not be read by several threads at once,
+ * except through {@link #concurrentSubSequence}, which leaves the cache
+ * alone and decrypts through a buffer of the calling thread's own.
+ */
+final class SealedText implements CharSequence {
+
+    /**
+     * Number of characters records are cut at, at the next line break.
+     */
+    static final int recordTarget = 1024;
+
+    /**
+     * Most characters in a record, for text with very long lines.
+     */
+    static final int recordLimit = 4 * recordTarget;
+
+    /**
+     * Default number of plain text characters the cache holds.
+     */
+    static final int defaultCacheCapacity = 64 * 1024;
+
+    /**
+     * Engine sealing the records.
+     */
+    private static final CryptoEngine engine = CryptoEngine.forId(CryptoEngine.AES_GCM);
+
+    /**
+     * Additional data sealed with every record. Records aren't bound to a
+     * position, since unchanged ones are shared between edits.
+     */
+    private static final ByteBuffer noAdditionalData = ByteBuffer.allocate(0);
+
+    /**
+     * Off heap {@link PlainBuffer} each thread decrypts records through in
+     * {@link #concurrentSubSequence}, big enough for the largest record.
+     */
+    private static final ThreadLocal<ByteBuffer> readerScratch = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return PlainBuffer.allocate(2 * recordLimit + CryptoEngine.tagLength);
+        }
+    };
+
+    /**
+     * One sealed record.
+     */
+    private static final class Record {
+        /**
+         * Number of characters in the record.
+         */
+        final int length;
+
+        /**
+         * Nonce the record was sealed with.
+         */
+        final byte[] nonce;
+
+        /**
+         * The sealed UTF-16 characters and tag.
+         */
+        final byte[] sealed;
+
+        /**
+         * Create a record.
+         * @param length number of characters
+         * @param nonce the record was sealed with
+         * @param sealed cipher text and tag
+         */
+        Record(int length, byte[] nonce, byte[] sealed) {
+            this.length = length;
+            this.nonce = nonce;
+            this.sealed = sealed;
+        }
+    }
+
+    /**
+     * The plain text of a cached record.
+     */
+    private static final class Plain {
+        /**
+         * The record's characters, all zeros once wiped.
+         */
+        final char[] chars;
+
+        /**
+         * True once the characters have been wiped.
+         */
+        boolean wiped;
+
+        /**
+         * Wrap a record's characters.
+         * @param chars the plain text
+         */
+        Plain(char[] chars) {
+            this.chars = chars;
+        }
+
+        /**
+         * Overwrite the characters.
+         */
+        void wipe() {
+            Arrays.fill(chars, '0');
+            wiped = true;
+        }
+    }
+
+    /**
+     * The key, nonce counter and plain text cache shared by a text and
+     * every text edited from it.
+     */
+    private static final class Store {
+        /**
+         * The random key records are sealed with. Null once destroyed.
+         */
+        private volatile byte[] key;
+
+        /**
+         * Number of records sealed, which makes each nonce unique.
+         */
+        private long sealCount;
+
+        /**
+         * Plain text of recently used records, least recently used first.
+         */
+        private final LinkedHashMap<Record, Plain> cache;
+
+        /**
+         * Number of characters the cache may hold.
+         */
+        private final int capacity;
+
+        /**
+         * Number of characters in the cache.
+         */
+        private int cachedChars;
+
+        /**
+         * Off heap {@link PlainBuffer} records are encoded and decrypted
+         * through, big enough for the largest record.
+         */
+        final ByteBuffer scratch = PlainBuffer.allocate(2 * recordLimit + CryptoEngine.tagLength);
+
+        /**
+         * Create a store with a new key.
+         * @param capacity number of characters the cache may hold
+         */
+        Store(int capacity) {
+            key = new byte[32];
+            new SecureRandom().nextBytes(key);
+            cache = new LinkedHashMap<Record, Plain>(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        /**
+         * Get a key spec for sealing or opening records.
+         * @return the key
+         */
+        SecretKeySpec keySpec() {
+            byte[] current = key;
+            if (current == null) {
+                throw new IllegalStateException("Sealed text has been destroyed.");
+            }
+            return new SecretKeySpec(current, "AES");
+        }
+
+        /**
+         * Seal characters into a record.
+         * @param keySpec from {@link #keySpec}
+         * @param chars holding the characters
+         * @param start of the characters
+         * @param length number of characters
+         * @param scratch buffer of at least twice the length, usually
+         * {@link #scratch}, wiped by the caller
+         * @return the record
+         */
+        Record seal(SecretKeySpec keySpec, char[] chars, int start, int length, ByteBuffer scratch) {
+            byte[] nonce = ByteBuffer.allocate(CryptoEngine.nonceLength)
+                    .putLong(CryptoEngine.nonceLength - 8, ++sealCount).array();
+            scratch.clear();
+            scratch.asCharBuffer().put(chars, start, length);
+            scratch.limit(2 * length);
+            ByteBuffer sealed = ByteBuffer.allocate(2 * length + CryptoEngine.tagLength);
+            try {
+                engine.encrypt(keySpec, nonce, noAdditionalData, scratch, sealed);
+            }
+            catch (GeneralSecurityException e) {
+                e.printStackTrace();
+                System.exit(PMExitCode.JCA_ALGORITHM_ERROR);
+            }
+            return new Record(length, nonce, sealed.array());
+        }
+
+        /**
+         * Decrypt a record without caching it.
+         * @param keySpec from {@link #keySpec}
+         * @param record to decrypt
+         * @param scratch buffer of at least twice the record's length,
+         * usually {@link #scratch}, wiped by the caller
+         * @return the scratch buffer viewed as the record's characters
+         */
+        CharBuffer decrypt(SecretKeySpec keySpec, Record record, ByteBuffer scratch) {
+            scratch.clear();
+            try {
+                engine.decrypt(keySpec, record.nonce, noAdditionalData,
+                        ByteBuffer.wrap(record.sealed), scratch);
+            }
+            catch (AEADBadTagException e) {
+                throw new IllegalStateException("Sealed text record failed authentication.");
+            }
+            catch (GeneralSecurityException e) {
+                e.printStackTrace();
+                System.exit(PMExitCode.JCA_ALGORITHM_ERROR);
+            }
+            scratch.flip();
+            return scratch.asCharBuffer();
+        }
+
+        /**
+         * Get the plain text of a record, decrypting it into the cache if
+         * it isn't there, which may wipe the least recently used records.
+         * @param record to open
+         * @return the record's characters, valid until they're wiped
+         */
+        Plain open(Record record) {
+            Plain plain = cache.get(record);
+            if (plain != null) {
+                return plain;
+            }
+            char[] chars = new char[record.length];
+            try {
+                decrypt(keySpec(), record, scratch).get(chars);
+            }
+            finally {
+                PlainBuffer.wipe(scratch);
+            }
+            plain = new Plain(chars);
+            cache.put(record, plain);
+            cachedChars += record.length;
+            // Keep at least the record just opened.
+            Iterator<Map.Entry<Record, Plain>> eldest = cache.entrySet().iterator();
+            while (cachedChars > capacity && cache.size() > 1) {
+                Map.Entry<Record, Plain> entry = eldest.next();
+                cachedChars -= entry.getKey().length;
+                entry.getValue().wipe();
+                eldest.remove();
+            }
+            return plain;
+        }
+
+        /**
+         * Get a record's plain text if it's cached, without decrypting it.
+         * @param record to look for
+         * @return the cached plain text, or null
+         */
+        Plain peek(Record record) {
+            return cache.get(record);
+        }
+
+        /**
+         * Wipe a record that's no longer used from the cache.
+         * @param record to forget
+         */
+        void forget(Record record) {
+            Plain plain = cache.remove(record);
+            if (plain != null) {
+                cachedChars -= record.length;
+                plain.wipe();
+            }
+        }
+
+        /**
+         * Wipe the whole cache and the key.
+         */
+        void destroy() {
+            for (Plain plain : cache.values()) {
+                plain.wipe();
+            }
+            cache.clear();
+            cachedChars = 0;
+            PlainBuffer.wipe(scratch);
+            if (key != null) {
+                Arrays.fill(key, (byte) 0);
+                key = null;
+            }
+        }
+    }
+
+    /**
+     * Key, nonces and cache, shared with the texts this one was edited from
+     * or into.
+     */
+    private final Store store;
+
+    /**
+     * The records in order.
+     */
+    private final Record[] records;
+
+    /**
+     * Offset of each record in the text, plus the text's length at the end.
+     */
+    private final int[] starts;
+
+    /**
+     * Index of the record last read by {@link #charAt}, or -1.
+     */
+    private int cursor = -1;
+
+    /**
+     * Plain text of the {@link #cursor} record.
+     */
+    private Plain cursorPlain;
+
+    /**
+     * Seal text with a new key and the default cache size.
+     * @param text to seal
+     */
+    SealedText(CharSequence text) {
+        this(text, defaultCacheCapacity);
+    }
+
+    /**
+     * Seal text with a new key.
+     * @param text to seal
+     * @param cacheCapacity number of plain text characters to cache
+     */
+    SealedText(CharSequence text, int cacheCapacity) {
+        this(new Store(cacheCapacity), split(text));
+    }
+
+    /**
+     * Create a text from records sealed by a store.
+     * @param store the records were sealed by
+     * @param pieces the plain text to seal, in order. Each piece is wiped.
+     */
+    private SealedText(Store store, List<char[]> pieces) {
+        this(store, sealAll(store, pieces));
+    }
+
+    /**
+     * Create a text from sealed records.
+     * @param store the records were sealed by
+     * @param records in order
+     */
+    private SealedText(Store store, Record[] records) {
+        this.store = store;
+        this.records = records;
+        this.starts = new int[records.length + 1];
+        for (int i = 0; i < records.length; i++) {
+            starts[i + 1] = starts[i] + records[i].length;
+        }
+    }
+
+    @Override
+    public int length() {
+        return starts[records.length];
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (cursorPlain == null || cursorPlain.wiped
+                || index < starts[cursor] || index >= starts[cursor + 1]) {
+            if (index < 0 || index >= length()) {
+                throw new IndexOutOfBoundsException("Index " + index + " of " + length());
+            }
+            cursor = recordAt(index);
+            cursorPlain = store.open(records[cursor]);
+        }
+        return cursorPlain.chars[index - starts[cursor]];
+    }
+
+    @Override
+    public String subSequence(int start, int end) {
+        if (start < 0 || end > length() || start > end) {
+            throw new IndexOutOfBoundsException("Range " + start + " to " + end + " of " + length());
+        }
+        char[] copy = new char[end - start];
+        getChars(start, end, copy, 0);
+        String text = new String(copy);
+        Arrays.fill(copy, '0');
+        return text;
+    }
+
+    /**
+     * Copy a range of the text without using the cache, so several threads
+     * may call this at once. Every record in the range is decrypted, so it
+     * suits short ranges read by many threads, such as single entries. The
+     * text mustn't be destroyed while it runs.
+     * @param start of the range
+     * @param end of the range
+     * @return the characters
+     */
+    String concurrentSubSequence(int start, int end) {
+        if (start < 0 || end > length() || start > end) {
+            throw new IndexOutOfBoundsException("Range " + start + " to " + end + " of " + length());
+        }
+        SecretKeySpec keySpec = store.keySpec();
+        ByteBuffer scratch = readerScratch.get();
+        char[] copy = new char[end - start];
+        try {
+            int position = start;
+            while (position < end) {
+                int index = recordAt(position);
+                int count = Math.min(end, starts[index + 1]) - position;
+                CharBuffer chars = store.decrypt(keySpec, records[index], scratch);
+                chars.position(position - starts[index]);
+                chars.get(copy, position - start, count);
+                position += count;
+            }
+            return new String(copy);
+        }
+        finally {
+            PlainBuffer.wipe(scratch);
+            Arrays.fill(copy, '0');
+        }
+    }
+
+    /**
+     * Get the whole plain text. The caller is responsible for the copy.
+     * @return the text
+     */
+    @Override
+    public String toString() {
+        return subSequence(0, length());
+    }
+
+    /**
+     * Replace part of the text. Records wholly outside the replaced range
+     * are shared with the new text; the ones it touches are wiped from the
+     * cache and resealed.
+     * @param start of the range to replace
+     * @param end of the range to replace
+     * @param replacement for the range
+     * @return the edited text, or this text if nothing changed
+     */
+    SealedText replace(int start, int end, CharSequence replacement) {
+        if (start < 0 || end > length() || start > end) {
+            throw new IndexOutOfBoundsException("Range " + start + " to " + end + " of " + length());
+        }
+        if (start == end && replacement.length() == 0) {
+            return this;
+        }
+        // Reseal from the start of the first record touched to the end of
+        // the last one, so records keep ending at line breaks.
+        int first = (records.length == 0) ? 0 : recordAt(Math.min(start, length() - 1));
+        int last = (end > start) ? recordAt(end - 1) : first;
+        int resealStart = starts[first];
+        int resealEnd = starts[Math.min(last + 1, records.length)];
+        StringBuilder middle = new StringBuilder(resealEnd - resealStart
+                - (end - start) + replacement.length());
+        appendRange(middle, resealStart, start);
+        middle.append(replacement);
+        appendRange(middle, end, resealEnd);
+        List<char[]> pieces = split(middle);
+        wipe(middle);
+
+        int kept = records.length - Math.min(last + 1, records.length);
+        Record[] resealed = sealAll(store, pieces);
+        Record[] edited = new Record[first + resealed.length + kept];
+        System.arraycopy(records, 0, edited, 0, first);
+        System.arraycopy(resealed, 0, edited, first, resealed.length);
+        System.arraycopy(records, records.length - kept, edited, first + resealed.length, kept);
+        for (int i = first; i < records.length - kept; i++) {
+            store.forget(records[i]);
+        }
+        return new SealedText(store, edited);
+    }
+
+    /**
+     * Find the edit that turns this text into another by trimming the
+     * longest common prefix and suffix, comparing a buffer of decrypted
+     * characters at a time.
+     * @param newText text after the edit
+     * @return the start index, number of removed characters and number of
+     * inserted characters, in that order
+     */
+    int[] diff(CharSequence newText) {
+        int oldLength = length();
+        int newLength = newText.length();
+        int limit = Math.min(oldLength, newLength);
+        char[] chars = new char[16 * recordLimit];
+        try {
+            int prefix = 0;
+            scan:
+            while (prefix < limit) {
+                int count = Math.min(chars.length, limit - prefix);
+                getChars(prefix, prefix + count, chars, 0);
+                for (int i = 0; i < count; i++) {
+                    if (chars[i] != newText.charAt(prefix)) {
+                        break scan;
+                    }
+                    prefix++;
+                }
+            }
+            int suffix = 0;
+            scan:
+            while (suffix < limit - prefix) {
+                int count = Math.min(chars.length, limit - prefix - suffix);
+                int end = oldLength - suffix;
+                getChars(end - count, end, chars, 0);
+                for (int i = count - 1; i >= 0; i--) {
+                    if (chars[i] != newText.charAt(newLength - 1 - suffix)) {
+                        break scan;
+                    }
+                    suffix++;
+                }
+            }
+            return new int[] { prefix, oldLength - prefix - suffix, newLength - prefix - suffix };
+        }
+        finally {
+            Arrays.fill(chars, '0');
+        }
+    }
+
+    /**
+     * Copy characters into a buffer, as many as fit.
+     * @param start of the characters in the text
+     * @param end of the range to read, at most the text's length
+     * @param destination array backed buffer receiving the characters at
+     * its position
+     * @return the number of characters copied
+     */
+    int read(int start, int end, CharBuffer destination) {
+        int count = Math.min(end - start, destination.remaining());
+        getChars(start, start + count, destination.array(),
+                destination.arrayOffset() + destination.position());
+        destination.position(destination.position() + count);
+        return count;
+    }
+
+    /**
+     * Copy characters into an array, decrypting records that aren't cached
+     * straight into it.
+     * @param start of the characters in the text
+     * @param end of the characters in the text
+     * @param destination receives the characters
+     * @param offset of the first character in the destination
+     */
+    void getChars(int start, int end, char[] destination, int offset) {
+        if (start == end) {
+            return;
+        }
+        SecretKeySpec keySpec = store.keySpec();
+        boolean decrypted = false;
+        try {
+            int position = start;
+            while (position < end) {
+                int index = recordAt(position);
+                int from = position - starts[index];
+                int count = Math.min(end, starts[index + 1]) - position;
+                Plain plain = store.peek(records[index]);
+                if (plain != null) {
+                    System.arraycopy(plain.chars, from, destination, offset, count);
+                }
+                else {
+                    decrypted = true;
+                    CharBuffer chars = store.decrypt(keySpec, records[index], store.scratch);
+                    chars.position(from);
+                    chars.get(destination, offset, count);
+                }
+                position += count;
+                offset += count;
+            }
+        }
+        finally {
+            if (decrypted) {
+                PlainBuffer.wipe(store.scratch);
+            }
+        }
+    }
+
+    /**
+     * Wipe the cache and the key. Neither this text nor any text sharing its
+     * key can be read afterwards.
+     */
+    void destroy() {
+        store.destroy();
+        cursorPlain = null;
+    }
+
+    /**
+     * Get the number of records the text is sealed in.
+     * @return the record count
+     */
+    int recordCount() {
+        return records.length;
+    }
+
+    /**
+     * Get the number of plain text characters currently cached.
+     * @return the cached character count, at most the cache capacity unless
+     * a single record is larger
+     */
+    int cachedChars() {
+        return store.cachedChars;
+    }
+
+    /**
+     * Append characters to a builder.
+     * @param builder receiving the characters
+     * @param start of the characters in the text
+     * @param end of the characters in the text
+     */
+    private void appendRange(StringBuilder builder, int start, int end) {
+        int position = start;
+        while (position < end) {
+            int index = recordAt(position);
+            Plain plain = store.open(records[index]);
+            int count = Math.min(end, starts[index + 1]) - position;
+            builder.append(plain.chars, position - starts[index], count);
+            position += count;
+        }
+    }
+
+    /**
+     * Find the record holding a character.
+     * @param index of the character, less than the length
+     * @return the record's index
+     */
+    private int recordAt(int index) {
+        int found = Arrays.binarySearch(starts, 0, records.length, index);
+        if (found >= 0) {
+            // Empty records don't exist, so the exact match is unique.
+            return found;
+        }
+        return -found - 2;
+    }
+
+    /**
+     * Split text into record sized pieces of whole lines.
+     * @param text to split
+     * @return copies of the pieces' characters
+     */
+    private static List<char[]> split(CharSequence text) {
+        List<char[]> pieces = new ArrayList<char[]>(text.length() / recordTarget + 1);
+        int length = text.length();
+        int start = 0;
+        while (start < length) {
+            int end = Math.min(start + recordTarget, length);
+            int limit = Math.min(start + recordLimit, length);
+            while (end < limit && text.charAt(end - 1) != '\n') {
+                end++;
+            }
+            if (end < length && Character.isHighSurrogate(text.charAt(end - 1))) {
+                end--;
+            }
+            char[] piece = new char[end - start];
+            if (text instanceof String) {
+                ((String) text).getChars(start, end, piece, 0);
+            }
+            else if (text instanceof StringBuilder) {
+                ((StringBuilder) text).getChars(start, end, piece, 0);
+            }
+            else {
+                for (int i = 0; i < piece.length; i++) {
+                    piece[i] = text.charAt(start + i);
+                }
+            }
+            pieces.add(piece);
+            start = end;
+        }
+        return pieces;
+    }
+
+    /**
+     * Seal pieces of text, wiping each one once it's sealed.
+     * @param store to seal with
+     * @param pieces in order
+     * @return the records
+     */
+    private static Record[] sealAll(Store store, List<char[]> pieces) {
+        SecretKeySpec keySpec = store.keySpec();
+        Record[] sealed = new Record[pieces.size()];
+        try {
+            for (int i = 0; i < sealed.length; i++) {
+                char[] piece = pieces.get(i);
+                sealed[i] = store.seal(keySpec, piece, 0, piece.length, store.scratch);
+                Arrays.fill(piece, '0');
+            }
+        }
+        finally {
+            PlainBuffer.wipe(store.scratch);
+        }
+        return sealed;
+    }
+
+    /**
+     * Overwrite the characters of a builder.
+     * @param builder to wipe
+     */
+    static void wipe(StringBuilder builder) {
+        for (int i = 0; i < builder.length(); i++) {
+            builder.setCharAt(i, '0');
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package dashteacup.pman;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for keeping text encrypted in memory with {@link SealedText}.
+ */
+public class SealedTextTest {
+
+    /**
+     * Make a text of short entries with a very long line in the middle and
+     * some characters outside the BMP.
+     * @param entries number of entries
+     * @return the text
+     */
+    private static String sampleText(int entries) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < entries; i++) {
+            text.append("Site ").append(i).append("\nuser: person").append(i)
+                    .append("\npassword: \ud83d\udd11").append(i).append("\n\n");
+            if (i == entries / 2) {
+                for (int j = 0; j < 3 * SealedText.recordLimit; j++) {
+                    text.append((char) ('a' + j % 26));
+                }
+                text.append('\n');
+            }
+        }
+        return text.toString();
+    }
+
+    @Test
+    public void readsBackText() {
+        String text = sampleText(500);
+        SealedText sealed = new SealedText(text);
+        assertTrue(sealed.recordCount() > 1);
+        assertEquals(text.length(), sealed.length());
+        assertEquals(text, sealed.toString());
+        Random random = new Random(16);
+        for (int i = 0; i < 1000; i++) {
+            int index = random.nextInt(text.length());
+            assertEquals(text.charAt(index), sealed.charAt(index));
+        }
+        assertEquals(text.substring(1000, 9000), sealed.subSequence(1000, 9000));
+        char[] chars = new char[300];
+        sealed.getChars(5000, 5300, chars, 0);
+        assertArrayEquals(text.substring(5000, 5300).toCharArray(), chars);
+    }
+
+    @Test
+    public void editsMatchStrings() {
+        String text = sampleText(300);
+        SealedText sealed = new SealedText(text);
+        Random random = new Random(17);
+        for (int i = 0; i < 200; i++) {
+            int start = random.nextInt(text.length() + 1);
+            int end = Math.min(text.length(), start + random.nextInt(3000));
+            String insert = (i % 3 == 0) ? "" : "edit " + i + "\n";
+            String edited = text.substring(0, start) + insert + text.substring(end);
+            int[] edit = sealed.diff(edited);
+            assertEquals(edited, text.substring(0, edit[0]) + edited.substring(edit[0], edit[0] + edit[2])
+                    + text.substring(edit[0] + edit[1]));
+            sealed = sealed.replace(edit[0], edit[0] + edit[1],
+                    edited.substring(edit[0], edit[0] + edit[2]));
+            text = edited;
+            assertEquals(text.length(), sealed.length());
+        }
+        assertEquals(text, sealed.toString());
+        assertSame(sealed, sealed.replace(10, 10, ""));
+        assertEquals("", new SealedText("").replace(0, 0, "").toString());
+        assertEquals("new", new SealedText("").replace(0, 0, "new").toString());
+    }
+
+    @Test
+    public void concurrentReadsMatchText() {
+        final String text = sampleText(500);
+        final SealedText sealed = new SealedText(text);
+        final Throwable[] failure = new Throwable[1];
+        Thread[] readers = new Thread[4];
+        for (int t = 0; t < readers.length; t++) {
+            final Random random = new Random(19 + t);
+            readers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 500; i++) {
+                            int start = random.nextInt(text.length());
+                            int end = Math.min(text.length(),
+                                    start + random.nextInt(3 * SealedText.recordLimit));
+                            assertEquals(text.substring(start, end),
+                                    sealed.concurrentSubSequence(start, end));
+                        }
+                    }
+                    catch (Throwable e) {
+                        synchronized (failure) {
+                            failure[0] = e;
+                        }
+                    }
+                }
+            });
+            readers[t].start();
+        }
+        try {
+            for (Thread reader : readers) {
+                reader.join();
+            }
+        }
+        catch (InterruptedException e) {
+            fail(e.getMessage());
+        }
+        synchronized (failure) {
+            if (failure[0] != null) {
+                failure[0].printStackTrace();
+                fail(failure[0].toString());
+            }
+        }
+        // They don't go through the cache.
+        assertEquals(0, sealed.cachedChars());
+    }
+
+    @Test
+    public void cacheIsBoundedAndWiped() {
+        String text = sampleText(2000);
+        int capacity = 2 * SealedText.recordLimit;
+        SealedText sealed = new SealedText(text, capacity);
+        Random random = new Random(18);
+        for (int i = 0; i < 5000; i++) {
+            int index = random.nextInt(text.length());
+            assertEquals(text.charAt(index), sealed.charAt(index));
+            assertTrue(sealed.cachedChars() <= capacity);
+        }
+        // Bulk reads don't go through the cache.
+        int cached = sealed.cachedChars();
+        assertEquals(text, sealed.toString());
+        assertEquals(cached, sealed.cachedChars());
+
+        sealed.destroy();
+        assertEquals(0, sealed.cachedChars());
+        try {
+            sealed.charAt(text.length() / 2);
+            fail("Read a destroyed text.");
+        }
+        catch (IllegalStateException e) {
+            assertTrue(true);
+        }
+    }
+}
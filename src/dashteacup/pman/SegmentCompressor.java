@@ -0,0 +1,162 @@
+package dashteacup.pman;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses the plain text of segments before they're encrypted, for files
+ * with {@link SegmentedFile#compressedFlag} set. Each segment is compressed
+ * on its own with raw Deflate, so segments can still be read, reused and
+ * rewritten independently. A compressed segment starts with one byte giving
+ * the method: {@link #stored} if Deflate wouldn't make it smaller, which
+ * keeps a segment of text that doesn't compress to at most one byte more
+ * than its plain text, or {@link #deflated}.
+ *
+ * The Deflater and Inflater of each thread are kept and reused, since
+ * setting one up allocates its tables outside the heap.
+ */
+final class SegmentCompressor {
+
+    /**
+     * Method byte of a segment holding its plain text as is.
+     */
+    static final byte stored = 0;
+
+    /**
+     * Method byte of a segment holding raw Deflate data.
+     */
+    static final byte deflated = 1;
+
+    /**
+     * Each thread's compressor. Speed matters more than the last few
+     * percent of size, since segments are compressed on every save.
+     */
+    private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED, true);
+        }
+    };
+
+    /**
+     * Each thread's decompressor.
+     */
+    private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater(true);
+        }
+    };
+
+    /**
+     * Each thread's {@link PlainBuffer} segments are compressed into or
+     * decrypted into before they're decompressed.
+     */
+    private static final ThreadLocal<ByteBuffer> scratchBuffers = new ThreadLocal<ByteBuffer>();
+
+    /**
+     * Private constructor since this only has static methods.
+     */
+    private SegmentCompressor() {}
+
+    /**
+     * Compress a segment's plain text in place.
+     * @param buffer holding the plain text from its position to its limit,
+     * with room for at least one more byte. Left holding the compressed
+     * segment, ready to be read.
+     */
+    static void compress(ByteBuffer buffer) {
+        int length = buffer.remaining();
+        if (buffer.capacity() - buffer.position() <= length) {
+            throw new IllegalArgumentException("No room for the method byte.");
+        }
+        ByteBuffer packed = scratch(length + 1);
+        try {
+            Deflater deflater = deflaters.get();
+            deflater.reset();
+            deflater.setInput(buffer.duplicate());
+            deflater.finish();
+            packed.put(deflated);
+            // Give up as soon as the output is as long as the input.
+            packed.limit(Math.max(length, 1));
+            while (!deflater.finished() && packed.hasRemaining()) {
+                deflater.deflate(packed);
+            }
+            if (!deflater.finished()) {
+                packed.clear();
+                packed.put(stored);
+                packed.put(buffer.duplicate());
+            }
+            packed.flip();
+            int start = buffer.position();
+            buffer.limit(buffer.capacity());
+            buffer.put(packed);
+            buffer.limit(buffer.position());
+            buffer.position(start);
+        }
+        finally {
+            deflaters.get().reset();
+            PlainBuffer.wipe(packed);
+        }
+    }
+
+    /**
+     * Decompress a segment.
+     * @param segment the compressed segment, read to its limit
+     * @param plainBuffer receives the plain text at its position
+     * @throws InvalidPasswordFileException if the segment isn't valid
+     * compressed data or doesn't fit the buffer.
+     */
+    static void decompress(ByteBuffer segment, ByteBuffer plainBuffer)
+            throws InvalidPasswordFileException {
+        if (!segment.hasRemaining()) {
+            throw new InvalidPasswordFileException("Compressed segment is empty.");
+        }
+        byte method = segment.get();
+        if (method == stored) {
+            if (segment.remaining() > plainBuffer.remaining()) {
+                throw new InvalidPasswordFileException("Segment is larger than the segment size.");
+            }
+            plainBuffer.put(segment);
+            return;
+        }
+        if (method != deflated) {
+            throw new InvalidPasswordFileException("Unknown segment compression method.");
+        }
+        Inflater inflater = inflaters.get();
+        try {
+            inflater.reset();
+            inflater.setInput(segment);
+            while (!inflater.finished()) {
+                if (!plainBuffer.hasRemaining() || inflater.needsInput()) {
+                    throw new InvalidPasswordFileException("Compressed segment is truncated or too large.");
+                }
+                inflater.inflate(plainBuffer);
+            }
+        }
+        catch (DataFormatException e) {
+            throw new InvalidPasswordFileException("Compressed segment is corrupt.");
+        }
+        finally {
+            inflater.reset();
+        }
+    }
+
+    /**
+     * Get the current thread's scratch buffer, growing it if needed. It has
+     * to be wiped with {@link PlainBuffer#wipe(ByteBuffer)} after use.
+     * @param size the buffer needs to hold
+     * @return a cleared buffer with at least the given capacity
+     */
+    static ByteBuffer scratch(int size) {
+        ByteBuffer buffer = scratchBuffers.get();
+        if (buffer == null || buffer.capacity() < size) {
+            buffer = PlainBuffer.allocate(size);
+            scratchBuffers.set(buffer);
+        }
+        buffer.clear();
+        return buffer;
+    }
+}
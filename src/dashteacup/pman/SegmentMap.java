@@ -0,0 +1,156 @@
+package dashteacup.pman;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tracks which parts of the user's text still match a segment saved in the
+ * current {@link SegmentedFile}. The text is described as a list of pieces in
+ * order. A clean piece is exactly the characters of one saved segment; a
+ * changed piece is a run of characters that has been edited since the last
+ * save and still needs to be encrypted. Saving then only has to encrypt and
+ * write the changed pieces, keeping the clean segments where they are.
+ */
+class SegmentMap {
+
+    /**
+     * A run of characters of the user's text.
+     */
+    static class Piece {
+        /**
+         * Number of characters in the piece.
+         */
+        final int length;
+
+        /**
+         * The saved segment holding exactly these characters, or null if
+         * the characters have changed since the last save.
+         */
+        final SegmentedFile.Segment segment;
+
+        /**
+         * Create a piece.
+         * @param length number of characters
+         * @param segment holding the characters or null if changed
+         */
+        Piece(int length, SegmentedFile.Segment segment) {
+            this.length = length;
+            this.segment = segment;
+        }
+
+        /**
+         * Determine if this piece has changed since the last save.
+         * @return true if the characters need to be written again.
+         */
+        boolean isChanged() {
+            return segment == null;
+        }
+    }
+
+    /**
+     * The pieces making up the text, in order.
+     */
+    private final List<Piece> pieces;
+
+    /**
+     * Create an empty map.
+     */
+    SegmentMap() {
+        pieces = new ArrayList<Piece>();
+    }
+
+    /**
+     * Add a saved segment to the end of the text.
+     * @param length number of characters held by the segment
+     * @param segment the characters were saved in
+     */
+    void addSaved(int length, SegmentedFile.Segment segment) {
+        if (segment == null) {
+            throw new IllegalArgumentException("Saved pieces need a segment.");
+        }
+        if (length > 0) {
+            pieces.add(new Piece(length, segment));
+        }
+    }
+
+    /**
+     * Record an edit of the text. Every piece touched by the edit becomes
+     * part of a single changed piece.
+     * @param start index of the first changed character
+     * @param removed number of characters removed at the start index
+     * @param inserted number of characters inserted in their place
+     */
+    void applyEdit(int start, int removed, int inserted) {
+        if (removed == 0 && inserted == 0) {
+            return;
+        }
+        int end = start + removed;
+        List<Piece> edited = new ArrayList<Piece>(pieces.size() + 2);
+        int position = 0;
+        int changedLength = inserted - removed;
+        boolean changedAdded = false;
+        for (Piece piece : pieces) {
+            int pieceStart = position;
+            int pieceEnd = position + piece.length;
+            position = pieceEnd;
+            boolean before = pieceEnd < start || (pieceEnd == start && !piece.isChanged());
+            boolean after = pieceStart > end || (pieceStart == end && !piece.isChanged());
+            if (before || after) {
+                if (after && !changedAdded) {
+                    edited.add(new Piece(changedLength, null));
+                    changedAdded = true;
+                }
+                edited.add(piece);
+            }
+            else {
+                // Touched by the edit, or a changed piece right next to it.
+                changedLength += piece.length;
+            }
+        }
+        if (!changedAdded) {
+            edited.add(new Piece(changedLength, null));
+        }
+        pieces.clear();
+        for (Piece piece : edited) {
+            if (piece.length > 0 || !piece.isChanged()) {
+                pieces.add(piece);
+            }
+        }
+    }
+
+    /**
+     * Get the pieces making up the text.
+     * @return the pieces in text order
+     */
+    List<Piece> getPieces() {
+        return Collections.unmodifiableList(pieces);
+    }
+
+    /**
+     * Determine if any of the text has changed since the last save.
+     * @return true if at least one piece has changed.
+     */
+    boolean hasChanges() {
+        for (Piece piece : pieces) {
+            if (piece.isChanged()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the number of bytes of saved segments still in use.
+     * @return the total length of the clean pieces' segments
+     */
+    long savedBytes() {
+        long total = 0;
+        for (Piece piece : pieces) {
+            if (!piece.isChanged()) {
+                total += piece.segment.length;
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,1128 @@
+package dashteacup.pman;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Reads and writes the version 2 (.pman) password file layout. Instead of a
+ * single CBC stream, the user's data is split into fixed size segments that
+ * are each encrypted and authenticated under their own nonce by the file's
+ * {@link CryptoEngine}, AES-GCM unless another engine was chosen.
+ * An encrypted segment table at the end of the file records where each
+ * segment lives, so any segment can be read without touching the others.
+ *
+ * Layout of a version 2 file:
+ * <pre>
+ * PMFileVer002.000                   - 16 bytes
+ * [Salt]                             - 16 bytes
+ * [Parameters]                       - 16 bytes (segment size, flags with
+ *                                      the engine id, text encoding and
+ *                                      compression, KDF id, KDF iterations)
+ * [Key check]                        - 16 bytes
+ * PMBeginCipherTxt                   - 16 bytes
+ * [Segments]                         - each the segment's data + 16 byte tag
+ * [Lookup index buckets]             - optional, each 12 byte nonce +
+ *                                      32 bytes per record + 16
+ * [Index directory]                  - optional, 12 byte nonce + 12 bytes +
+ *                                      12 bytes per bucket + 16
+ * [Table nonce] [Encrypted table]    - 12 bytes + 24 bytes per segment + 16
+ * [Trailer]                          - 16 bytes (table offset, table length,
+ *                                      index directory length or 0)
+ * PMFileEndCipherT                   - 16 bytes
+ * </pre>
+ * The first three blocks are authenticated as additional data by the engine,
+ * so tampering with the salt or parameters is caught when decrypting. The
+ * key check block is a MAC of a fixed label under a key derived from the
+ * file's key (under the file's key itself in files without
+ * {@link #derivedKeyCheckFlag}), which lets a wrong password be rejected
+ * right after the key is derived, before any of the encrypted data is read.
+ *
+ * Segments of a file with {@link #compressedFlag} set hold their plain text
+ * compressed by {@link SegmentCompressor}, and hold at most one byte less
+ * than the segment size of text.
+ *
+ * The optional {@link LookupIndex} and its directory sit between the
+ * segments and the table, and are found through the trailer. A file without
+ * one has a directory length of 0.
+ *
+ * An update appends its new segments, lookup index, table, trailer and
+ * footer after the old footer, leaving everything before it as it was. The
+ * old index, table and trailer become unused space in the data area, like
+ * replaced segments, until the file is rewritten. If an update doesn't
+ * finish, the file doesn't end in a valid trailer, and reading it falls
+ * back to the last trailer that's complete: the file as it was before the
+ * update. A damaged trailer looks the same, so how much of the file was
+ * left unread is recorded ({@link #getUnreadableLength()}) for the caller
+ * to decide whether it can be cut off.
+ */
+class SegmentedFile {
+
+    /**
+     * Header identifying a version 2 .pman file. Always 16 characters long.
+     */
+    static final String fileHeader = "PMFileVer002.000";
+
+    /**
+     * Header marking the beginning of the encrypted segments. Always 16
+     * characters long.
+     */
+    static final String cipherTextHeader = "PMBeginCipherTxt";
+
+    /**
+     * Footer marking the valid end of the file. Always 16 characters long.
+     */
+    static final String fileFooter = "PMFileEndCipherT";
+
+    /**
+     * Size of the header fields, salt, parameters and trailer in bytes.
+     */
+    static final int blockSize = 16;
+
+    /**
+     * Offset of the first segment in the file.
+     */
+    static final int dataStart = 5 * blockSize;
+
+    /**
+     * Number of bytes of plain text put in each segment by default.
+     */
+    static final int defaultSegmentSize = 64 * 1024;
+
+    /**
+     * Largest segment size accepted when reading a file, so a corrupt
+     * parameter block can't make us allocate huge buffers.
+     */
+    static final int maximumSegmentSize = 16 * 1024 * 1024;
+
+    /**
+     * Length of the nonces in bytes.
+     */
+    static final int nonceLength = CryptoEngine.nonceLength;
+
+    /**
+     * Length of the authentication tags in bytes.
+     */
+    static final int tagLength = CryptoEngine.tagLength;
+
+    /**
+     * Bits of the flags holding the id of the file's {@link CryptoEngine}.
+     */
+    static final int engineMask = 0xff;
+
+    /**
+     * Flag set when the plain text is UTF-8. Files without it were written
+     * in the platform's default character set.
+     */
+    static final int utf8TextFlag = 0x100;
+
+    /**
+     * Flag set when each segment's plain text is compressed.
+     */
+    static final int compressedFlag = 0x200;
+
+    /**
+     * Flag set when the key check block is computed under a key derived
+     * from the file's key, rather than the file's key itself.
+     */
+    static final int derivedKeyCheckFlag = 0x400;
+
+    /**
+     * Every flag bit this version understands.
+     */
+    static final int knownFlags = engineMask | utf8TextFlag | compressedFlag
+            | derivedKeyCheckFlag;
+
+    /**
+     * MAC algorithm used to compute the key check block.
+     */
+    static final String keyCheckAlgorithm = "HmacSHA256";
+
+    /**
+     * Label MACed under the file's key to produce the key check block. Using
+     * the key for nothing but this label keeps the check value independent
+     * of anything encrypted with the key.
+     */
+    static final String keyCheckLabel = "PMKeyCheckValue1";
+
+    /**
+     * Label MACed under the file's key to derive the key the key check
+     * block is computed with.
+     */
+    static final String keyCheckKeyLabel = "PMKeyCheckKey001";
+
+    /**
+     * Size of an entry in the decrypted segment table: offset (8 bytes),
+     * length of the encrypted segment (4 bytes) and nonce (12 bytes).
+     */
+    static final int tableEntrySize = 8 + 4 + nonceLength;
+
+    /**
+     * Smallest possible version 2 file: header blocks, an empty table,
+     * trailer and footer.
+     */
+    static final int minimumFileSize = dataStart + nonceLength + tagLength + 2 * blockSize;
+
+    /**
+     * Size of the fixed part of the decrypted index directory: offset of the
+     * first bucket (8 bytes) and bucket count (4 bytes).
+     */
+    static final int directoryHeaderSize = 8 + 4;
+
+    /**
+     * Size of an entry in the decrypted index directory: offset (8 bytes) and
+     * length (4 bytes) of a bucket.
+     */
+    static final int directoryEntrySize = 8 + 4;
+
+    /**
+     * Number of bytes read at a time when searching a file for its last
+     * complete trailer.
+     */
+    private static final int trailerSearchSize = 64 * 1024;
+
+    /**
+     * Location and nonce of one encrypted segment.
+     */
+    static class Segment {
+        /**
+         * Offset of the segment's cipher text in the file.
+         */
+        final long offset;
+
+        /**
+         * Length of the segment's cipher text, including the tag.
+         */
+        final int length;
+
+        /**
+         * Nonce the segment was encrypted with.
+         */
+        final byte[] nonce;
+
+        /**
+         * Create a segment table entry.
+         * @param offset of the cipher text in the file
+         * @param length of the cipher text including the tag
+         * @param nonce the segment was encrypted with
+         */
+        Segment(long offset, int length, byte[] nonce) {
+            this.offset = offset;
+            this.length = length;
+            this.nonce = nonce;
+        }
+
+        /**
+         * Get the number of plain text bytes held by this segment, which
+         * are compressed in a compressed file.
+         * @return the plain text length
+         */
+        int plainLength() {
+            return length - tagLength;
+        }
+    }
+
+    /**
+     * Salt used when deriving the file's key.
+     */
+    private final byte[] salt;
+
+    /**
+     * Maximum number of plain text bytes in each segment.
+     */
+    private final int segmentSize;
+
+    /**
+     * Feature flags from the parameter block. The low byte is the id of the
+     * crypto engine, {@link #utf8TextFlag} gives the text encoding,
+     * {@link #compressedFlag} says if segments are compressed and
+     * {@link #derivedKeyCheckFlag} how the key check block is computed.
+     */
+    private final int flags;
+
+    /**
+     * Engine encrypting the segments and table.
+     */
+    private final CryptoEngine engine;
+
+    /**
+     * The three header blocks authenticated along with every segment.
+     */
+    private final byte[] headerBlocks;
+
+    /**
+     * Key check block read from the file, or null for a file that hasn't
+     * been written yet.
+     */
+    private byte[] keyCheck;
+
+    /**
+     * Key derivation function and cost the file's key is derived with.
+     */
+    private final KeyDerivation keyDerivation;
+
+    /**
+     * Offset of the table nonce and encrypted table.
+     */
+    private long tableOffset;
+
+    /**
+     * Length of the table nonce plus the encrypted table.
+     */
+    private int tableLength;
+
+    /**
+     * Offset of the first byte after the segments: the lookup index if the
+     * file has one, otherwise the table.
+     */
+    private long dataEnd;
+
+    /**
+     * Length of the nonce plus encrypted index directory, or 0 if the file
+     * has no lookup index.
+     */
+    private int directoryLength;
+
+    /**
+     * Offset of the first byte after the footer. Anything after it in the
+     * file was left by an update that didn't finish, or is a damaged
+     * trailer.
+     */
+    private long fileEnd;
+
+    /**
+     * Number of bytes after {@link #fileEnd} when the file was read.
+     */
+    private long unreadableLength;
+
+    /**
+     * True while an update started by {@link #beginUpdate} is being written.
+     */
+    private boolean updating;
+
+    /**
+     * Offsets of the encrypted lookup index buckets. Null if the file has no
+     * lookup index or the directory hasn't been read.
+     */
+    private long[] bucketOffsets;
+
+    /**
+     * Lengths of the encrypted lookup index buckets, including nonces.
+     */
+    private int[] bucketLengths;
+
+    /**
+     * The decrypted segment table. Null until {@link #readTable} is called.
+     */
+    private List<Segment> segments;
+
+    /**
+     * Source of nonces.
+     */
+    private final SecureRandom random;
+
+    /**
+     * Create the description of a new file that's about to be written,
+     * optionally compressing its segments.
+     * @param salt used when deriving the file's key
+     * @param segmentSize maximum number of plain text bytes per segment
+     * @param keyDerivation the file's key is derived with
+     * @param engine to encrypt the segments and table with
+     * @param compressed true to compress the segments
+     */
+    SegmentedFile(byte[] salt, int segmentSize, KeyDerivation keyDerivation,
+            CryptoEngine engine, boolean compressed) {
+        this(salt, segmentSize, engine.getId() | utf8TextFlag | derivedKeyCheckFlag
+                | (compressed ? compressedFlag : 0), keyDerivation);
+    }
+
+    /**
+     * Create a file description.
+     * @param salt used when deriving the file's key
+     * @param segmentSize maximum number of plain text bytes per segment
+     * @param flags from the parameter block
+     * @param keyDerivation the file's key is derived with
+     */
+    private SegmentedFile(byte[] salt, int segmentSize, int flags,
+            KeyDerivation keyDerivation) {
+        if (salt.length != blockSize) {
+            throw new IllegalArgumentException("Salt must be 16 bytes long.");
+        }
+        if (segmentSize <= 0 || (segmentSize == 1 && (flags & compressedFlag) != 0)) {
+            throw new IllegalArgumentException("Segment size must be positive.");
+        }
+        this.salt = salt.clone();
+        this.segmentSize = segmentSize;
+        this.flags = flags;
+        this.engine = CryptoEngine.forId(flags & engineMask);
+        this.keyDerivation = keyDerivation;
+        this.headerBlocks = buildHeaderBlocks();
+        this.segments = new ArrayList<Segment>();
+        this.random = new SecureRandom();
+    }
+
+    /**
+     * Read the unencrypted parts of a version 2 file: the header blocks and
+     * the trailer. The segment table is left for {@link #readTable}.
+     * @param channel open on the file
+     * @return the file's description
+     * @throws InvalidPasswordFileException if the file is improperly formatted.
+     * @throws IOException if the file can't be read.
+     */
+    static SegmentedFile readHeader(FileChannel channel)
+            throws InvalidPasswordFileException, IOException {
+        long fileSize = channel.size();
+        if (fileSize < minimumFileSize) {
+            throw new InvalidPasswordFileException("File is too small to be a valid .pman file");
+        }
+        ByteBuffer header = ByteBuffer.allocate(dataStart);
+        ChannelIO.readFully(channel, header, 0);
+        header.flip();
+        long fileEnd = fileSize;
+        if (readTrailer(channel, fileEnd) == null) {
+            fileEnd = findLastTrailer(channel, fileSize);
+        }
+        ByteBuffer end = ByteBuffer.allocate(2 * blockSize);
+        ChannelIO.readFully(channel, end, fileEnd - 2 * blockSize);
+        end.flip();
+
+        if (!ChannelIO.matchesMarker(header, fileHeader)) {
+            throw new InvalidPasswordFileException("Invalid file header field.");
+        }
+        byte[] salt = new byte[blockSize];
+        header.get(salt);
+        int segmentSize = header.getInt();
+        int flags = header.getInt();
+        int kdfAlgorithm = header.getInt();
+        int kdfIterations = header.getInt();
+        byte[] keyCheck = new byte[blockSize];
+        header.get(keyCheck);
+        if (!ChannelIO.matchesMarker(header, cipherTextHeader)) {
+            throw new InvalidPasswordFileException("Invalid cipher text header field.");
+        }
+        if (segmentSize <= 0 || segmentSize > maximumSegmentSize) {
+            throw new InvalidPasswordFileException("Invalid segment size.");
+        }
+        long tableOffset = end.getLong();
+        int tableLength = end.getInt();
+        int directoryLength = end.getInt();
+        if (!ChannelIO.matchesMarker(end, fileFooter)) {
+            throw new InvalidPasswordFileException("Invalid file footer field.");
+        }
+        long tableEnd = fileEnd - 2 * blockSize;
+        if (tableOffset < dataStart || tableLength < nonceLength + tagLength
+                || tableOffset + tableLength != tableEnd
+                || (tableLength - nonceLength - tagLength) % tableEntrySize != 0) {
+            throw new InvalidPasswordFileException("Invalid segment table location.");
+        }
+        if (directoryLength != 0 && (directoryLength < nonceLength + directoryHeaderSize + tagLength
+                || directoryLength > tableOffset - dataStart
+                || (directoryLength - nonceLength - directoryHeaderSize - tagLength)
+                        % directoryEntrySize != 0)) {
+            throw new InvalidPasswordFileException("Invalid lookup index location.");
+        }
+
+        if ((flags & ~knownFlags) != 0) {
+            throw new InvalidPasswordFileException("Unknown feature flags.");
+        }
+        try {
+            CryptoEngine.forId(flags & engineMask);
+        }
+        catch (IllegalArgumentException e) {
+            throw new InvalidPasswordFileException(e.getMessage());
+        }
+        KeyDerivation keyDerivation = KeyDerivation.fromHeader(kdfAlgorithm, kdfIterations);
+
+        SegmentedFile file = new SegmentedFile(salt, segmentSize, flags, keyDerivation);
+        file.keyCheck = keyCheck;
+        file.tableOffset = tableOffset;
+        file.tableLength = tableLength;
+        file.dataEnd = tableOffset - directoryLength;
+        file.directoryLength = directoryLength;
+        file.fileEnd = fileEnd;
+        file.unreadableLength = fileSize - fileEnd;
+        file.segments = null;
+        return file;
+    }
+
+    /**
+     * Read a trailer and footer if they end at the given offset and point at
+     * a table right before them.
+     * @param channel open on the file
+     * @param end offset of the first byte after the footer
+     * @return the trailer and footer ready to be read, or null if there
+     * isn't a trailer ending there.
+     * @throws IOException if the file can't be read.
+     */
+    private static ByteBuffer readTrailer(FileChannel channel, long end) throws IOException {
+        if (end < minimumFileSize) {
+            return null;
+        }
+        ByteBuffer trailer = ByteBuffer.allocate(2 * blockSize);
+        ChannelIO.readFully(channel, trailer, end - 2 * blockSize);
+        trailer.flip();
+        long tableOffset = trailer.getLong(0);
+        int tableLength = trailer.getInt(8);
+        trailer.position(blockSize);
+        boolean valid = ChannelIO.matchesMarker(trailer, fileFooter)
+                && tableOffset >= dataStart && tableLength >= nonceLength + tagLength
+                && tableOffset + tableLength == end - 2 * blockSize;
+        trailer.rewind();
+        return valid ? trailer : null;
+    }
+
+    /**
+     * Search a file that doesn't end in a valid trailer for the last one it
+     * has. An update that didn't finish leaves the trailer from before it
+     * in place, followed by part of the update.
+     * @param channel open on the file
+     * @param fileSize size of the file
+     * @return the offset of the first byte after the last valid footer
+     * @throws InvalidPasswordFileException if there's no valid trailer.
+     * @throws IOException if the file can't be read.
+     */
+    private static long findLastTrailer(FileChannel channel, long fileSize)
+            throws InvalidPasswordFileException, IOException {
+        byte[] footer = fileFooter.getBytes();
+        ByteBuffer buffer = ByteBuffer.allocate(trailerSearchSize);
+        long lowest = minimumFileSize - blockSize;
+        // Each read overlaps the one before it by a footer's length less
+        // one, so a footer split between them is still seen.
+        long limit = fileSize;
+        while (limit - lowest >= footer.length) {
+            long start = Math.max(lowest, limit - trailerSearchSize);
+            buffer.clear();
+            buffer.limit((int) (limit - start));
+            ChannelIO.readFully(channel, buffer, start);
+            byte[] bytes = buffer.array();
+            for (int i = buffer.limit() - footer.length; i >= 0; i--) {
+                if (bytes[i] == footer[0] && matchesAt(bytes, i, footer)
+                        && readTrailer(channel, start + i + blockSize) != null) {
+                    return start + i + blockSize;
+                }
+            }
+            limit = start + footer.length - 1;
+        }
+        throw new InvalidPasswordFileException("Invalid file footer field.");
+    }
+
+    /**
+     * Check if an array holds a marker at an index.
+     * @param bytes to check
+     * @param index of the first byte of the marker
+     * @param marker to look for
+     * @return true if the bytes at the index are the marker
+     */
+    private static boolean matchesAt(byte[] bytes, int index, byte[] marker) {
+        for (int i = 0; i < marker.length; i++) {
+            if (bytes[index + i] != marker[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Make sure a key matches the file's key check block. This only costs a
+     * MAC of one block, so it should be done before reading the table.
+     * @param key derived from the user's password and the file's salt
+     * @throws BadPasswordException if the key doesn't match.
+     */
+    void checkKey(SecretKeySpec key) throws BadPasswordException {
+        if (keyCheck == null) {
+            throw new IllegalStateException("File has no key check block.");
+        }
+        if (!MessageDigest.isEqual(keyCheck, computeKeyCheck(key))) {
+            throw new BadPasswordException();
+        }
+    }
+
+    /**
+     * Decrypt the segment table, and the lookup index directory if the file
+     * has one. The key should already have passed
+     * {@link #checkKey}, so a failure here means the file was tampered with
+     * (or the key check block was, and the password is wrong).
+     * @param channel open on the file
+     * @param key derived from the user's password and the file's salt
+     * @throws BadPasswordException if the table can't be authenticated.
+     * @throws InvalidPasswordFileException if the table describes segments
+     * outside the data area of the file.
+     * @throws IOException if the file can't be read.
+     */
+    void readTable(FileChannel channel, SecretKeySpec key)
+            throws BadPasswordException, InvalidPasswordFileException, IOException {
+        ByteBuffer table = unseal(channel, key, tableOffset, tableLength);
+        if (table == null) {
+            throw new BadPasswordException();
+        }
+        if (directoryLength != 0) {
+            readDirectory(channel, key);
+        }
+
+        List<Segment> entries = new ArrayList<Segment>(table.remaining() / tableEntrySize);
+        while (table.hasRemaining()) {
+            long offset = table.getLong();
+            int length = table.getInt();
+            byte[] segmentNonce = new byte[nonceLength];
+            table.get(segmentNonce);
+            if (offset < dataStart || length < tagLength
+                    || length - tagLength > segmentSize
+                    || offset + length > dataEnd) {
+                throw new InvalidPasswordFileException("Invalid segment table entry.");
+            }
+            entries.add(new Segment(offset, length, segmentNonce));
+        }
+        segments = entries;
+    }
+
+    /**
+     * Decrypt the lookup index directory and check that the buckets it
+     * lists lie between the segments and the directory.
+     * @param channel open on the file
+     * @param key the file's key
+     * @throws InvalidPasswordFileException if the directory is invalid.
+     * @throws IOException if the file can't be read.
+     */
+    private void readDirectory(FileChannel channel, SecretKeySpec key)
+            throws InvalidPasswordFileException, IOException {
+        long directoryOffset = tableOffset - directoryLength;
+        ByteBuffer directory = unseal(channel, key, directoryOffset, directoryLength);
+        if (directory == null) {
+            throw new InvalidPasswordFileException("Lookup index failed authentication.");
+        }
+        long indexStart = directory.getLong();
+        int bucketCount = directory.getInt();
+        if (indexStart < dataStart || indexStart > directoryOffset
+                || bucketCount != directory.remaining() / directoryEntrySize) {
+            throw new InvalidPasswordFileException("Invalid lookup index directory.");
+        }
+        long[] offsets = new long[bucketCount];
+        int[] lengths = new int[bucketCount];
+        for (int i = 0; i < bucketCount; i++) {
+            offsets[i] = directory.getLong();
+            lengths[i] = directory.getInt();
+            if (offsets[i] < indexStart || lengths[i] < nonceLength + tagLength
+                    || offsets[i] + lengths[i] > directoryOffset) {
+                throw new InvalidPasswordFileException("Invalid lookup index directory.");
+            }
+        }
+        bucketOffsets = offsets;
+        bucketLengths = lengths;
+        dataEnd = indexStart;
+    }
+
+    /**
+     * Get the number of bytes at the end of the file that were passed over
+     * because they don't end in a valid trailer. They're cut off by
+     * {@link #beginUpdate}.
+     * @return 0 unless the file was read from an earlier trailer
+     */
+    long getUnreadableLength() {
+        return unreadableLength;
+    }
+
+    /**
+     * Check if the file has a lookup index.
+     * @return true if the trailer points at a lookup index directory
+     */
+    boolean hasLookupIndex() {
+        return directoryLength != 0;
+    }
+
+    /**
+     * Find the lookup index records for a blinded name. Only the one bucket
+     * the name belongs in is read and decrypted.
+     * @param channel open on the file
+     * @param key the file's key
+     * @param blind the blinded name, see {@link LookupIndex#blind}
+     * @return the matching records, possibly none
+     * @throws InvalidPasswordFileException if the bucket is invalid.
+     * @throws IOException if the file can't be read.
+     * @throws IllegalStateException if the file has no lookup index or the
+     * table hasn't been read.
+     */
+    List<LookupIndex.Record> lookup(FileChannel channel, SecretKeySpec key, byte[] blind)
+            throws InvalidPasswordFileException, IOException {
+        if (bucketOffsets == null) {
+            throw new IllegalStateException("File has no lookup index.");
+        }
+        int bucket = LookupIndex.bucketOf(blind, bucketOffsets.length);
+        ByteBuffer records = unseal(channel, key, bucketOffsets[bucket], bucketLengths[bucket]);
+        if (records == null) {
+            throw new InvalidPasswordFileException("Lookup index failed authentication.");
+        }
+        return LookupIndex.find(records, blind);
+    }
+
+    /**
+     * Decrypt one segment into a buffer. Several threads may read different
+     * segments at once as long as each uses its own buffers.
+     * @param channel open on the file
+     * @param key the file's key
+     * @param index of the segment in the table
+     * @param cipherBuffer scratch buffer at least the segment's length
+     * @param plainBuffer receives the plain text at its position,
+     * decompressed if the file is compressed
+     * @throws InvalidPasswordFileException if the segment fails authentication.
+     * @throws IOException if the file can't be read.
+     */
+    void readSegment(FileChannel channel, SecretKeySpec key, int index,
+            ByteBuffer cipherBuffer, ByteBuffer plainBuffer)
+                    throws InvalidPasswordFileException, IOException {
+        Segment segment = segments.get(index);
+        cipherBuffer.clear();
+        cipherBuffer.limit(segment.length);
+        ChannelIO.readFully(channel, cipherBuffer, segment.offset);
+        cipherBuffer.flip();
+        ByteBuffer packed = isCompressed() ? SegmentCompressor.scratch(segment.plainLength()) : plainBuffer;
+        try {
+            engine.decrypt(key, segment.nonce, ByteBuffer.wrap(headerBlocks),
+                    cipherBuffer, packed);
+            if (packed != plainBuffer) {
+                packed.flip();
+                SegmentCompressor.decompress(packed, plainBuffer);
+            }
+        }
+        catch (AEADBadTagException e) {
+            throw new InvalidPasswordFileException("Segment " + index + " failed authentication.");
+        }
+        catch (GeneralSecurityException e) {
+            e.printStackTrace();
+            System.exit(PMExitCode.JCA_ALGORITHM_ERROR);
+        }
+        finally {
+            if (packed != plainBuffer) {
+                PlainBuffer.wipe(packed);
+            }
+        }
+    }
+
+    /**
+     * Write the header blocks at the start of the file. The segments should
+     * be added after this with {@link #reserveSegment} and
+     * {@link #writeSegment}.
+     * @param channel open for writing on an empty file
+     * @param key the file's key, used for the key check block
+     * @throws IOException if the write fails.
+     */
+    void writeHeader(FileChannel channel, SecretKeySpec key) throws IOException {
+        keyCheck = computeKeyCheck(key);
+        ByteBuffer header = ByteBuffer.allocate(dataStart);
+        header.put(headerBlocks);
+        header.put(keyCheck);
+        header.put(cipherTextHeader.getBytes());
+        header.flip();
+        channel.position(0);
+        ChannelIO.writeFully(channel, header);
+        segments = new ArrayList<Segment>();
+        clearLookupIndex();
+    }
+
+    /**
+     * Start updating a file that was just read or written. Nothing in the
+     * file is overwritten: the channel is left after the old footer, where
+     * the new segments go, and anything after the footer is cut off.
+     * Segments that are still good are put back in the table with
+     * {@link #keepSegment}, new ones are added as usual, and
+     * {@link #writeTable} finishes the update. The lookup index is dropped
+     * along with the table; {@link #writeIndex} writes a new one. If the
+     * update fails, {@link #abandonUpdate} cuts off what it wrote.
+     * @param channel open for reading and writing on the file
+     * @throws IOException if the file can't be truncated.
+     */
+    void beginUpdate(FileChannel channel) throws IOException {
+        if (tableOffset < dataStart) {
+            throw new IllegalStateException("File has no segment table to update.");
+        }
+        channel.truncate(fileEnd);
+        unreadableLength = 0;
+        channel.position(fileEnd);
+        segments = new ArrayList<Segment>();
+        clearLookupIndex();
+        updating = true;
+    }
+
+    /**
+     * Cut off what a failed update appended, leaving the file as it was.
+     * Even if that fails, the file's last complete trailer is still the one
+     * from before the update, so the file can be read.
+     * @param channel open for writing on the file
+     * @throws IOException if the file can't be truncated.
+     */
+    void abandonUpdate(FileChannel channel) throws IOException {
+        updating = false;
+        channel.truncate(fileEnd);
+    }
+
+    /**
+     * Add an existing segment to the end of the table during an update.
+     * @param segment from the table before the update
+     */
+    void keepSegment(Segment segment) {
+        if (segment.offset + segment.length > dataEnd) {
+            throw new IllegalArgumentException("Segment is not in the file's data area.");
+        }
+        segments.add(segment);
+    }
+
+    /**
+     * Add a segment to the end of the table without writing it. The
+     * segment's cipher text has to be written with {@link #writeSegment}
+     * before the table is written.
+     * @param offset the segment's cipher text will be written at
+     * @param plainLength number of plain text bytes in the segment
+     * @return the new table entry
+     */
+    Segment reserveSegment(long offset, int plainLength) {
+        if (plainLength > segmentSize) {
+            throw new IllegalArgumentException("Segment is larger than the segment size.");
+        }
+        Segment segment = new Segment(offset, plainLength + tagLength, newNonce());
+        segments.add(segment);
+        return segment;
+    }
+
+    /**
+     * Encrypt a reserved segment and write it at its offset. Several threads
+     * may write different segments at once as long as each uses its own
+     * buffers.
+     * @param channel open for writing
+     * @param key the file's key
+     * @param segment reserved with {@link #reserveSegment}
+     * @param plainBuffer the segment's plain text
+     * @param cipherBuffer scratch buffer at least the segment's length
+     * @throws IOException if the write fails.
+     */
+    void writeSegment(FileChannel channel, SecretKeySpec key, Segment segment,
+            ByteBuffer plainBuffer, ByteBuffer cipherBuffer) throws IOException {
+        if (plainBuffer.remaining() != segment.plainLength()) {
+            throw new IllegalArgumentException("Plain text doesn't match the reserved segment.");
+        }
+        cipherBuffer.clear();
+        try {
+            engine.encrypt(key, segment.nonce, ByteBuffer.wrap(headerBlocks),
+                    plainBuffer, cipherBuffer);
+        }
+        catch (GeneralSecurityException e) {
+            e.printStackTrace();
+            System.exit(PMExitCode.JCA_ALGORITHM_ERROR);
+        }
+        cipherBuffer.flip();
+        ChannelIO.writeFully(channel, cipherBuffer, segment.offset);
+    }
+
+    /**
+     * Encrypt and write a lookup index and its directory at the channel's
+     * current position. This has to come after the last segment and right
+     * before {@link #writeTable}.
+     * @param channel open for writing
+     * @param key the file's key
+     * @param records locating the entries in the segments about to be put
+     * in the table
+     * @throws IOException if the write fails.
+     */
+    void writeIndex(FileChannel channel, SecretKeySpec key, List<LookupIndex.Record> records)
+            throws IOException {
+        long indexStart = channel.position();
+        int bucketCount = LookupIndex.bucketCount(records.size());
+        ByteBuffer[] buckets = LookupIndex.encodeBuckets(records, bucketCount);
+        long[] offsets = new long[bucketCount];
+        int[] lengths = new int[bucketCount];
+        ByteBuffer directory = ByteBuffer.allocate(directoryHeaderSize
+                + bucketCount * directoryEntrySize);
+        directory.putLong(indexStart);
+        directory.putInt(bucketCount);
+        for (int i = 0; i < bucketCount; i++) {
+            ByteBuffer raw = seal(key, buckets[i]);
+            offsets[i] = channel.position();
+            lengths[i] = raw.remaining();
+            ChannelIO.writeFully(channel, raw);
+            directory.putLong(offsets[i]);
+            directory.putInt(lengths[i]);
+        }
+        directory.flip();
+        ByteBuffer raw = seal(key, directory);
+        directoryLength = raw.remaining();
+        ChannelIO.writeFully(channel, raw);
+        bucketOffsets = offsets;
+        bucketLengths = lengths;
+        dataEnd = indexStart;
+    }
+
+    /**
+     * Encrypt and write the segment table, trailer and footer at the
+     * channel's current position. This finishes the file.
+     * @param channel open for writing
+     * @param key the file's key
+     * @throws IOException if the write fails.
+     */
+    void writeTable(FileChannel channel, SecretKeySpec key) throws IOException {
+        ByteBuffer table = ByteBuffer.allocate(segments.size() * tableEntrySize);
+        for (Segment segment : segments) {
+            table.putLong(segment.offset);
+            table.putInt(segment.length);
+            table.put(segment.nonce);
+        }
+        table.flip();
+        ByteBuffer raw = seal(key, table);
+        tableOffset = channel.position();
+        if (directoryLength == 0) {
+            dataEnd = tableOffset;
+        }
+        tableLength = raw.remaining();
+        ChannelIO.writeFully(channel, raw);
+        if (updating) {
+            // The new trailer may only be seen once everything it points
+            // at is on disk.
+            channel.force(false);
+        }
+
+        ByteBuffer end = ByteBuffer.allocate(2 * blockSize);
+        end.putLong(tableOffset);
+        end.putInt(tableLength);
+        end.putInt(directoryLength);
+        end.put(fileFooter.getBytes());
+        end.flip();
+        ChannelIO.writeFully(channel, end);
+        fileEnd = channel.position();
+        channel.truncate(fileEnd);
+        if (updating) {
+            channel.force(false);
+            updating = false;
+        }
+    }
+
+    /**
+     * Get the salt used to derive the file's key.
+     * @return a copy of the salt
+     */
+    byte[] getSalt() {
+        return salt.clone();
+    }
+
+    /**
+     * Get the key derivation function and cost used for the file's key.
+     * @return the key derivation from the header
+     */
+    KeyDerivation getKeyDerivation() {
+        return keyDerivation;
+    }
+
+    /**
+     * Get the engine encrypting the file's segments and table.
+     * @return the engine named in the header
+     */
+    CryptoEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Get the character set of the file's plain text.
+     * @return UTF-8, or the platform default for files written before the
+     * encoding was recorded
+     */
+    Charset getTextCharset() {
+        return ((flags & utf8TextFlag) != 0) ? StandardCharsets.UTF_8 : Charset.defaultCharset();
+    }
+
+    /**
+     * Get the maximum number of plain text bytes in each segment.
+     * @return the segment size
+     */
+    int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * Determine if the file's segments are compressed.
+     * @return true if {@link #compressedFlag} is set
+     */
+    boolean isCompressed() {
+        return (flags & compressedFlag) != 0;
+    }
+
+    /**
+     * Get the number of bytes of text to put in each new segment, which
+     * leaves room for compression's method byte in a compressed file.
+     * @return the segment size, less one if segments are compressed
+     */
+    int getSegmentCapacity() {
+        return isCompressed() ? segmentSize - 1 : segmentSize;
+    }
+
+    /**
+     * Turn the text of a new segment into what's encrypted, compressing it
+     * in place if the file is compressed.
+     * @param buffer holding at most {@link #getSegmentCapacity()} bytes of
+     * text, ready to be read, in a buffer of at least the segment size.
+     * Left ready to be read.
+     */
+    void packSegment(ByteBuffer buffer) {
+        if (isCompressed()) {
+            SegmentCompressor.compress(buffer);
+        }
+    }
+
+    /**
+     * Get the segment table.
+     * @return the segments in plain text order
+     * @throws IllegalStateException if the table hasn't been read.
+     */
+    List<Segment> getSegments() {
+        if (segments == null) {
+            throw new IllegalStateException("Segment table has not been read.");
+        }
+        return Collections.unmodifiableList(segments);
+    }
+
+    /**
+     * Get the size of the file's data area, including segments no longer in
+     * the table.
+     * @return the number of bytes between the headers and the lookup index
+     * or table
+     */
+    long dataLength() {
+        return dataEnd - dataStart;
+    }
+
+    /**
+     * Get the total number of plain text bytes in the file.
+     * @return the sum of the segments' plain text lengths
+     */
+    long plainLength() {
+        long total = 0;
+        for (Segment segment : getSegments()) {
+            total += segment.plainLength();
+        }
+        return total;
+    }
+
+    /**
+     * Build the three header blocks authenticated as additional data.
+     * @return the blocks
+     */
+    private byte[] buildHeaderBlocks() {
+        ByteBuffer header = ByteBuffer.allocate(3 * blockSize);
+        header.put(fileHeader.getBytes());
+        header.put(salt);
+        header.putInt(segmentSize);
+        header.putInt(flags);
+        header.putInt(keyDerivation.getHeaderAlgorithm());
+        header.putInt(keyDerivation.getIterations());
+        return header.array();
+    }
+
+    /**
+     * Compute the key check block for a key. Files with
+     * {@link #derivedKeyCheckFlag} MAC the label under a key derived from
+     * the file's key, so the file's key is only ever used by the engine;
+     * older files MAC it under the file's key itself.
+     * @param key the file's key
+     * @return the first block of the MAC of {@link #keyCheckLabel}
+     */
+    private byte[] computeKeyCheck(SecretKeySpec key) {
+        byte[] check = null;
+        try {
+            Mac mac = CryptoEngine.mac(keyCheckAlgorithm);
+            if ((flags & derivedKeyCheckFlag) != 0) {
+                mac.init(FileKey.subkey(key, keyCheckKeyLabel, keyCheckAlgorithm));
+            }
+            else {
+                mac.init(key);
+            }
+            check = Arrays.copyOf(mac.doFinal(keyCheckLabel.getBytes()), blockSize);
+        }
+        catch (GeneralSecurityException e) {
+            e.printStackTrace();
+            System.exit(PMExitCode.JCA_ALGORITHM_ERROR);
+        }
+        return check;
+    }
+
+    /**
+     * Forget the lookup index, so the next table is written without one
+     * unless {@link #writeIndex} is called first.
+     */
+    private void clearLookupIndex() {
+        directoryLength = 0;
+        bucketOffsets = null;
+        bucketLengths = null;
+    }
+
+    /**
+     * Encrypt a block of data under a new nonce, for the parts of the file
+     * that aren't segments.
+     * @param key the file's key
+     * @param plain the data
+     * @return the nonce followed by the cipher text, ready to be written
+     */
+    private ByteBuffer seal(SecretKeySpec key, ByteBuffer plain) {
+        byte[] nonce = newNonce();
+        ByteBuffer raw = ByteBuffer.allocate(nonceLength + plain.remaining() + tagLength);
+        raw.put(nonce);
+        try {
+            engine.encrypt(key, nonce, ByteBuffer.wrap(headerBlocks), plain, raw);
+        }
+        catch (GeneralSecurityException e) {
+            e.printStackTrace();
+            System.exit(PMExitCode.JCA_ALGORITHM_ERROR);
+        }
+        raw.flip();
+        return raw;
+    }
+
+    /**
+     * Read and decrypt a block written by {@link #seal}.
+     * @param channel open on the file
+     * @param key the file's key
+     * @param offset of the nonce in the file
+     * @param length of the nonce plus cipher text
+     * @return the plain text ready to be read, or null if it fails
+     * authentication
+     * @throws IOException if the file can't be read.
+     */
+    private ByteBuffer unseal(FileChannel channel, SecretKeySpec key, long offset, int length)
+            throws IOException {
+        ByteBuffer raw = ByteBuffer.allocate(length);
+        ChannelIO.readFully(channel, raw, offset);
+        raw.flip();
+        byte[] nonce = new byte[nonceLength];
+        raw.get(nonce);
+        ByteBuffer plain = ByteBuffer.allocate(length - nonceLength - tagLength);
+        try {
+            engine.decrypt(key, nonce, ByteBuffer.wrap(headerBlocks), raw, plain);
+        }
+        catch (AEADBadTagException e) {
+            return null;
+        }
+        catch (GeneralSecurityException e) {
+            e.printStackTrace();
+            System.exit(PMExitCode.JCA_ALGORITHM_ERROR);
+        }
+        plain.flip();
+        return plain;
+    }
+
+    /**
+     * Generate a new random nonce.
+     * @return the nonce
+     */
+    private byte[] newNonce() {
+        byte[] nonce = new byte[nonceLength];
+        random.nextBytes(nonce);
+        return nonce;
+    }
+}
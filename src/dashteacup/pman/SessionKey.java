@@ -0,0 +1,104 @@
+package dashteacup.pman;
+
+import java.util.Arrays;
+
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Holds the key derived from the user's password for the currently open
+ * password file, so the file can be saved again without re-running the key
+ * derivation or asking for the password. The key is only valid for the salt
+ * it was derived with and should be destroyed as soon as the file is closed.
+ */
+class SessionKey {
+
+    /**
+     * Raw bytes of the derived key. Null once the key has been destroyed.
+     */
+    private byte[] keyBytes;
+
+    /**
+     * Sub-keys derived from the key so far, shared by the key specifications
+     * handed out.
+     */
+    private final FileKey.Subkeys subkeys = new FileKey.Subkeys();
+
+    /**
+     * Copy of the salt the key was derived with.
+     */
+    private final byte[] salt;
+
+    /**
+     * Key derivation function and cost the key was derived with.
+     */
+    private final KeyDerivation derivation;
+
+    /**
+     * Create a new session key. Both arrays are copied, so the caller should
+     * clear its own copy of the key once it's done with it.
+     * @param keyBytes raw bytes of the derived key.
+     * @param salt the key was derived with.
+     * @param derivation the key was derived with.
+     */
+    SessionKey(byte[] keyBytes, byte[] salt, KeyDerivation derivation) {
+        this.keyBytes = keyBytes.clone();
+        this.salt = salt.clone();
+        this.derivation = derivation;
+    }
+
+    /**
+     * Determine if this key was derived with the given salt.
+     * @param otherSalt salt of the file about to be written.
+     * @return true if the key can be used with the salt, false otherwise.
+     */
+    boolean isBoundTo(byte[] otherSalt) {
+        return !isDestroyed() && Arrays.equals(salt, otherSalt);
+    }
+
+    /**
+     * Get the key derivation function and cost the key was derived with.
+     * A file written with this key has to record them.
+     * @return the key derivation
+     */
+    KeyDerivation getKeyDerivation() {
+        return derivation;
+    }
+
+    /**
+     * Get a key specification usable by a {@link javax.crypto.Cipher}. A
+     * new one is made every time, since the copy of the key inside it can't
+     * be wiped; callers should only keep it for the one open or save. The
+     * sub-keys derived from it are kept for the life of this key.
+     * @param algorithm the key is meant for, such as "AES".
+     * @return the key specification.
+     * @throws IllegalStateException if the key has been destroyed.
+     */
+    synchronized SecretKeySpec getKeySpec(String algorithm) {
+        if (isDestroyed()) {
+            throw new IllegalStateException("Session key has been destroyed.");
+        }
+        return new FileKey(keyBytes, algorithm, subkeys);
+    }
+
+    /**
+     * Overwrite the key and its sub-keys in memory. The key can't be used
+     * after this. Key specifications already handed out still hold their
+     * own copies until they're garbage collected, but can't derive
+     * sub-keys any more.
+     */
+    synchronized void destroy() {
+        if (keyBytes != null) {
+            Arrays.fill(keyBytes, (byte) 0);
+            keyBytes = null;
+        }
+        subkeys.wipe();
+    }
+
+    /**
+     * Determine if this key has been destroyed.
+     * @return true if the key was destroyed, false otherwise.
+     */
+    synchronized boolean isDestroyed() {
+        return keyBytes == null;
+    }
+}
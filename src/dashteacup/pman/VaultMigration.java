@@ -0,0 +1,689 @@
+package dashteacup.pman;
+
+import java.io.BufferedWriter;
+import java.io.Console;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moves every password file under a directory to a new password, key
+ * derivation cost, engine or format version in one go. Files are found with
+ * the {@link PmanFileFilter} rules and migrated on a fixed number of worker
+ * threads, each running the key derivations and re-encryption of one file
+ * at a time, so however many files there are only that many are in memory.
+ *
+ * Each file is written to a temporary file next to it, flushed to disk and
+ * then moved over the original in one step, so an interrupted migration
+ * never leaves a half written file. The path of each migrated file is
+ * appended to a checkpoint file as soon as it's done, and a later run with
+ * the same checkpoint skips them, so an interrupted migration can simply be
+ * run again. Files that failed aren't recorded and are tried again. The
+ * checkpoint is deleted once a run migrates everything.
+ *
+ * Run it with something like:
+ * <pre>
+ * java -cp bin dashteacup.pman.VaultMigration DIRECTORY [OPTIONS]
+ *
+ *   --format 1|2              format version to save in
+ *   --kdf pbkdf2|argon2id     key derivation function for the new keys
+ *   --iterations N            PBKDF2 iterations or Argon2id passes (at most
+ *                             64), instead of the cost calibrated for this
+ *                             machine
+ *   --engine gcm|ctr          engine of version 2 files
+ *   --compress on|off         compression of version 2 files
+ *   --index on|off            lookup index of version 2 files, so entries
+ *                             can be read by title without decrypting the
+ *                             rest
+ *   --threads N               files migrated at once (default one per
+ *                             processor)
+ *   --checkpoint FILE         default DIRECTORY/pman-migration.checkpoint
+ * </pre>
+ * Anything not given is kept as each file has it. The files' password comes
+ * from the PMAN_PASSWORD environment variable, or is asked for on the
+ * terminal if it isn't set. The new password comes from PMAN_NEW_PASSWORD;
+ * without it the files keep their password but still get new keys. The exit
+ * status is 0 if every file was migrated.
+ */
+public class VaultMigration {
+
+    /**
+     * Name of the checkpoint file made in the directory if no other is given.
+     */
+    static final String defaultCheckpointName = "pman-migration.checkpoint";
+
+    /**
+     * Added to a file's name for the temporary file it's written to. The
+     * result never matches the {@link PmanFileFilter}.
+     */
+    static final String temporarySuffix = ".migrating";
+
+    /**
+     * Decides which files are password files.
+     */
+    private static final PmanFileFilter pmanFilter = new PmanFileFilter();
+
+    /**
+     * Password of the files before migration.
+     */
+    private final char[] password;
+
+    /**
+     * Password of the files after migration.
+     */
+    private final char[] newPassword;
+
+    /**
+     * Number of files migrated at once.
+     */
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Format version to save in, or 0 to keep each file's.
+     */
+    private int formatVersion;
+
+    /**
+     * Key derivation function for new keys, or 0 for the default.
+     */
+    private int kdfFunction;
+
+    /**
+     * Key derivation for new keys, or null for the calibrated one.
+     */
+    private KeyDerivation keyDerivation;
+
+    /**
+     * Iterations or passes of the key derivation function for new keys
+     * given on the command line, or 0 for the calibrated cost.
+     */
+    private int kdfIterations;
+
+    /**
+     * Engine to save version 2 files with, or null to keep each file's.
+     */
+    private Integer cryptoEngine;
+
+    /**
+     * Whether to compress version 2 files, or null to keep each file's
+     * setting.
+     */
+    private Boolean compression;
+
+    /**
+     * Whether to write a lookup index in version 2 files, or null to keep
+     * each file's setting.
+     */
+    private Boolean lookupIndex;
+
+    /**
+     * File listing the files already migrated, or null to put one in the
+     * directory being migrated.
+     */
+    private Path checkpoint;
+
+    /**
+     * Where progress and failures are reported, or null for silence.
+     */
+    private PrintStream log;
+
+    /**
+     * Create a migration.
+     * @param password the files are encrypted with now. The array is copied.
+     * @param newPassword to encrypt the files with. The array is copied.
+     */
+    VaultMigration(char[] password, char[] newPassword) {
+        this.password = password.clone();
+        this.newPassword = newPassword.clone();
+    }
+
+    /**
+     * Runner method
+     * @param args the directory and options
+     */
+    public static void main(String[] args) {
+        try {
+            if (args.length == 0 || args.length % 2 == 0) {
+                throw new IllegalArgumentException("Usage: VaultMigration DIRECTORY [--format 1|2] "
+                        + "[--kdf pbkdf2|argon2id] [--iterations N] [--engine gcm|ctr] "
+                        + "[--compress on|off] [--index on|off] [--threads N] [--checkpoint FILE]");
+            }
+            char[] password = readPassword(PMCommandLine.passwordVariable, "Password");
+            String newValue = System.getenv(PMCommandLine.newPasswordVariable);
+            char[] newPassword = (newValue != null) ? newValue.toCharArray() : password.clone();
+            VaultMigration migration = new VaultMigration(password, newPassword);
+            Arrays.fill(password, '0');
+            Arrays.fill(newPassword, '0');
+            migration.setLog(System.out);
+            for (int i = 1; i < args.length; i += 2) {
+                migration.setOption(args[i], args[i + 1]);
+            }
+            if (migration.kdfIterations != 0) {
+                migration.setKeyDerivation((migration.kdfFunction == PasswordManager.ARGON2ID_KDF)
+                        ? new KeyDerivation(KeyDerivation.ARGON2ID, migration.kdfIterations,
+                                KeyDerivation.defaultMemoryKiB, KeyDerivation.defaultLanes)
+                        : new KeyDerivation(KeyDerivation.PBKDF2_SHA256, migration.kdfIterations));
+            }
+            Report report = migration.migrate(Paths.get(args[0]));
+            migration.close();
+            System.exit(report.getFailures().isEmpty() ? 0 : PMExitCode.IO_ERROR);
+        }
+        catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(PMExitCode.USAGE_ERROR);
+        }
+        catch (IOException e) {
+            System.err.println("Migration stopped: " + e.getMessage());
+            System.exit(PMExitCode.IO_ERROR);
+        }
+    }
+
+    /**
+     * Get a password from the environment, or from the terminal if it isn't
+     * set there.
+     * @param variable holding the password
+     * @param prompt shown on the terminal
+     * @return the password
+     * @throws IllegalArgumentException if there's no password to be had.
+     */
+    private static char[] readPassword(String variable, String prompt) {
+        String value = System.getenv(variable);
+        if (value != null) {
+            return value.toCharArray();
+        }
+        Console console = System.console();
+        char[] password = (console == null) ? null : console.readPassword("%s: ", prompt);
+        if (password == null) {
+            throw new IllegalArgumentException("No password given. Set " + variable + ".");
+        }
+        return password;
+    }
+
+    /**
+     * Apply a command line option.
+     * @param name of the option
+     * @param value given for it
+     * @throws IllegalArgumentException if the option or value is unknown.
+     */
+    private void setOption(String name, String value) {
+        if (name.equals("--format")) {
+            setFormatVersion(Integer.parseInt(value));
+        }
+        else if (name.equals("--kdf") && value.matches("pbkdf2|argon2id")) {
+            kdfFunction = value.equals("pbkdf2") ? PasswordManager.PBKDF2_KDF
+                    : PasswordManager.ARGON2ID_KDF;
+        }
+        else if (name.equals("--iterations")) {
+            kdfIterations = Integer.parseInt(value);
+        }
+        else if (name.equals("--engine") && value.matches("gcm|ctr")) {
+            setCryptoEngine(value.equals("gcm") ? PasswordManager.AES_GCM_ENGINE
+                    : PasswordManager.AES_CTR_HMAC_ENGINE);
+        }
+        else if (name.equals("--compress") && value.matches("on|off")) {
+            setCompression(value.equals("on"));
+        }
+        else if (name.equals("--index") && value.matches("on|off")) {
+            setLookupIndex(value.equals("on"));
+        }
+        else if (name.equals("--threads")) {
+            setThreads(Integer.parseInt(value));
+        }
+        else if (name.equals("--checkpoint")) {
+            setCheckpoint(Paths.get(value));
+        }
+        else {
+            throw new IllegalArgumentException("Unknown option: " + name + " " + value);
+        }
+    }
+
+    /**
+     * Set the number of files migrated at once. Each one holds its file's
+     * text, and with Argon2id its memory cost, while it's being migrated.
+     * @param threads number of worker threads
+     */
+    void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Need at least one thread.");
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * Choose the format every file is saved in.
+     * @param version {@link PasswordManager#LEGACY_FORMAT} or
+     * {@link PasswordManager#SEGMENTED_FORMAT}
+     */
+    void setFormatVersion(int version) {
+        if (version != PasswordManager.LEGACY_FORMAT && version != PasswordManager.SEGMENTED_FORMAT) {
+            throw new IllegalArgumentException("Unknown file format version: " + version);
+        }
+        formatVersion = version;
+    }
+
+    /**
+     * Choose the key derivation function and cost of the new keys, rather
+     * than the cost calibrated for this machine.
+     * @param derivation to use
+     */
+    void setKeyDerivation(KeyDerivation derivation) {
+        keyDerivation = derivation;
+    }
+
+    /**
+     * Choose the engine version 2 files are saved with.
+     * @param engine {@link PasswordManager#AES_GCM_ENGINE} or
+     * {@link PasswordManager#AES_CTR_HMAC_ENGINE}
+     */
+    void setCryptoEngine(int engine) {
+        CryptoEngine.forId(engine);
+        cryptoEngine = engine;
+    }
+
+    /**
+     * Choose whether version 2 files are compressed.
+     * @param enabled true to compress them
+     */
+    void setCompression(boolean enabled) {
+        compression = enabled;
+    }
+
+    /**
+     * Choose whether version 2 files get a lookup index.
+     * @param enabled true to write one
+     */
+    void setLookupIndex(boolean enabled) {
+        lookupIndex = enabled;
+    }
+
+    /**
+     * Set the file recording which files have been migrated.
+     * @param file the checkpoint file
+     */
+    void setCheckpoint(Path file) {
+        checkpoint = file;
+    }
+
+    /**
+     * Set where progress and failures are reported.
+     * @param stream to print to, or null for silence
+     */
+    void setLog(PrintStream stream) {
+        log = stream;
+    }
+
+    /**
+     * Wipe the passwords. The migration can't be used after this.
+     */
+    void close() {
+        Arrays.fill(password, '0');
+        Arrays.fill(newPassword, '0');
+    }
+
+    /**
+     * Migrate every password file under a directory that the checkpoint
+     * doesn't list.
+     * @param root directory to search
+     * @return what was done
+     * @throws IOException if the directory can't be searched or the
+     * checkpoint can't be read or written. Failures of single files are
+     * reported instead.
+     */
+    Report migrate(Path root) throws IOException {
+        long startTime = System.nanoTime();
+        Path checkpointFile = (checkpoint != null) ? checkpoint : root.resolve(defaultCheckpointName);
+        Set<String> done = readCheckpoint(checkpointFile);
+        List<Path> files = findFiles(root);
+        final Report report = new Report();
+        final CheckpointWriter writer = new CheckpointWriter(checkpointFile);
+
+        // A bounded queue, and the caller running tasks when it's full, keep
+        // the number of files waiting in check however many there are.
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(2 * threads), new ThreadPoolExecutor.CallerRunsPolicy());
+        try {
+            for (final Path file : files) {
+                final String name = root.relativize(file).toString();
+                if (done.contains(name)) {
+                    report.skipped.incrementAndGet();
+                    continue;
+                }
+                pool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        migrateFile(file, name, report, writer);
+                    }
+                });
+            }
+            pool.shutdown();
+            while (!pool.awaitTermination(1, TimeUnit.SECONDS)) {
+                report(report.migrated.get() + " migrated, " + report.failures.size() + " failed");
+            }
+        }
+        catch (InterruptedException e) {
+            // Running migrations are left to finish, so none is cut off
+            // between replacing its file and recording it in the checkpoint.
+            // The queued ones are dropped and picked up from the checkpoint
+            // next time.
+            pool.getQueue().clear();
+            boolean finished = false;
+            while (!finished) {
+                try {
+                    finished = pool.awaitTermination(1, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException again) {
+                    // Still waiting for them.
+                }
+            }
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            writer.close();
+        }
+        report.elapsedNanos = System.nanoTime() - startTime;
+        if (report.failures.isEmpty() && !Thread.currentThread().isInterrupted()) {
+            Files.deleteIfExists(checkpointFile);
+        }
+        report(report.toString());
+        return report;
+    }
+
+    /**
+     * Migrate one file, recording the result.
+     * @param file to migrate
+     * @param name of the file in the checkpoint
+     * @param report to record the result in
+     * @param writer of the checkpoint
+     */
+    private void migrateFile(Path file, String name, Report report, CheckpointWriter writer) {
+        Path temporary = file.resolveSibling(file.getFileName() + temporarySuffix);
+        try {
+            long size = Files.size(file);
+            PasswordManager pm = new PasswordManager();
+            // The workers already keep the processors busy.
+            pm.setParallelism(1);
+            if (open(pm, file)) {
+                configure(pm);
+                pm.rekeyPasswordFile(temporary.toString(), newPassword.clone());
+                try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                    channel.force(true);
+                }
+                ChannelIO.copyPermissions(file, temporary);
+                Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+                report.migrated.incrementAndGet();
+                report.bytes.addAndGet(size);
+            }
+            else {
+                report.skipped.incrementAndGet();
+            }
+            writer.add(name);
+        }
+        catch (BadPasswordException e) {
+            fail(report, name, "wrong password");
+        }
+        catch (InvalidPasswordFileException e) {
+            fail(report, name, "not a password file: " + e.getMessage());
+        }
+        catch (IOException e) {
+            fail(report, name, e.toString());
+        }
+        catch (RuntimeException e) {
+            fail(report, name, e.toString());
+        }
+        finally {
+            try {
+                Files.deleteIfExists(temporary);
+            }
+            catch (IOException e) {
+                fail(report, name, "couldn't delete " + temporary + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Open a file to be migrated. A file that only the new password opens
+     * was migrated by a run that was stopped before it could record it.
+     * @param pm to open the file in
+     * @param file to open
+     * @return true if the file needs migrating, false if it was already
+     * migrated
+     * @throws BadPasswordException if neither password opens the file.
+     * @throws InvalidPasswordFileException if the file is improperly formatted.
+     * @throws IOException if the file can't be read.
+     */
+    private boolean open(PasswordManager pm, Path file)
+            throws BadPasswordException, InvalidPasswordFileException, IOException {
+        try {
+            pm.openPasswordFile(file.toFile(), password.clone());
+            return true;
+        }
+        catch (BadPasswordException e) {
+            if (Arrays.equals(password, newPassword)) {
+                throw e;
+            }
+            pm.openPasswordFile(file.toFile(), newPassword.clone());
+            return false;
+        }
+    }
+
+    /**
+     * Apply the chosen settings to an opened file.
+     * @param pm holding the file
+     */
+    private void configure(PasswordManager pm) {
+        if (formatVersion != 0) {
+            pm.setFormatVersion(formatVersion);
+        }
+        if (kdfFunction != 0) {
+            pm.setKeyDerivationFunction(kdfFunction);
+        }
+        if (keyDerivation != null) {
+            pm.setKeyDerivation(keyDerivation);
+        }
+        if (cryptoEngine != null) {
+            pm.setCryptoEngine(cryptoEngine);
+        }
+        if (compression != null) {
+            pm.setCompressionEnabled(compression);
+        }
+        if (lookupIndex != null) {
+            pm.setLookupIndexEnabled(lookupIndex);
+        }
+    }
+
+    /**
+     * Record a file that couldn't be migrated.
+     * @param report to record it in
+     * @param name of the file
+     * @param reason it failed
+     */
+    private void fail(Report report, String name, String reason) {
+        report.failures.put(name, reason);
+        report("Failed: " + name + ": " + reason);
+    }
+
+    /**
+     * Print a line to the log, if there is one.
+     * @param line to print
+     */
+    private void report(String line) {
+        if (log != null) {
+            log.println(line);
+        }
+    }
+
+    /**
+     * Find the password files under a directory, in a repeatable order.
+     * Temporary files left by an interrupted run are deleted.
+     * @param root directory to search
+     * @return the files
+     * @throws IOException if the directory can't be searched.
+     */
+    private static List<Path> findFiles(Path root) throws IOException {
+        final List<Path> files = new ArrayList<Path>();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes)
+                    throws IOException {
+                File plain = file.toFile();
+                if (attributes.isRegularFile() && pmanFilter.accept(plain)) {
+                    files.add(file);
+                }
+                else if (plain.getName().toLowerCase().endsWith(".pman" + temporarySuffix)) {
+                    Files.delete(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        Collections.sort(files);
+        return files;
+    }
+
+    /**
+     * Read the files a checkpoint lists.
+     * @param file the checkpoint
+     * @return the names of the files, empty if there's no checkpoint
+     * @throws IOException if the checkpoint can't be read.
+     */
+    private static Set<String> readCheckpoint(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return new HashSet<String>();
+        }
+        return new HashSet<String>(Files.readAllLines(file, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Appends the names of migrated files to a checkpoint, flushing each one
+     * so it survives the process being killed.
+     */
+    private static class CheckpointWriter {
+
+        /**
+         * Writer on the checkpoint file.
+         */
+        private final BufferedWriter writer;
+
+        /**
+         * Open a checkpoint for appending, creating it if needed.
+         * @param file the checkpoint
+         * @throws IOException if it can't be opened.
+         */
+        CheckpointWriter(Path file) throws IOException {
+            writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+
+        /**
+         * Record a file as migrated.
+         * @param name of the file
+         * @throws IOException if the checkpoint can't be written.
+         */
+        synchronized void add(String name) throws IOException {
+            writer.write(name);
+            writer.newLine();
+            writer.flush();
+        }
+
+        /**
+         * Close the checkpoint.
+         * @throws IOException if it can't be closed.
+         */
+        synchronized void close() throws IOException {
+            writer.close();
+        }
+    }
+
+    /**
+     * What a migration did. Counts are updated by the workers as they go.
+     */
+    static class Report {
+
+        /**
+         * Number of files migrated.
+         */
+        private final AtomicInteger migrated = new AtomicInteger();
+
+        /**
+         * Number of files already migrated by an earlier run.
+         */
+        private final AtomicInteger skipped = new AtomicInteger();
+
+        /**
+         * Total size of the files migrated before migration.
+         */
+        private final AtomicLong bytes = new AtomicLong();
+
+        /**
+         * Why each file that failed did, by name.
+         */
+        private final Map<String, String> failures =
+                Collections.synchronizedMap(new LinkedHashMap<String, String>());
+
+        /**
+         * How long the migration took.
+         */
+        private long elapsedNanos;
+
+        /**
+         * Get the number of files migrated.
+         * @return the count
+         */
+        int getMigrated() {
+            return migrated.get();
+        }
+
+        /**
+         * Get the number of files skipped because an earlier run migrated
+         * them.
+         * @return the count
+         */
+        int getSkipped() {
+            return skipped.get();
+        }
+
+        /**
+         * Get the files that couldn't be migrated.
+         * @return why each failed, by the file's path under the directory
+         */
+        Map<String, String> getFailures() {
+            return failures;
+        }
+
+        /**
+         * Summarize the migration, with its throughput.
+         * @return the summary
+         */
+        @Override
+        public String toString() {
+            double seconds = Math.max(elapsedNanos, 1) / 1e9;
+            return String.format("%d migrated, %d skipped, %d failed in %.1f s "
+                    + "(%.1f files/s, %.1f MB/s)", migrated.get(), skipped.get(),
+                    failures.size(), seconds, migrated.get() / seconds,
+                    bytes.get() / seconds / (1024 * 1024));
+        }
+    }
+}
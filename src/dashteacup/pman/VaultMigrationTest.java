@@ -0,0 +1,139 @@
+package dashteacup.pman;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Tests for migrating directories of password files with
+ * {@link VaultMigration}.
+ */
+public class VaultMigrationTest {
+
+    private static final Path directory = Paths.get("testfiles/migration");
+    private static final KeyDerivation cheapKeys = new KeyDerivation(KeyDerivation.PBKDF2_SHA256, 1000);
+
+    /**
+     * Save a password file for the migration to find.
+     * @param name of the file in the directory
+     * @param text of the file
+     * @param password of the file
+     * @param version format version of the file
+     * @throws IOException if the file can't be written.
+     */
+    private static void save(String name, String text, String password, int version)
+            throws IOException {
+        Path file = directory.resolve(name);
+        Files.createDirectories(file.getParent());
+        PasswordManager pm = new PasswordManager(text);
+        pm.setFormatVersion(version);
+        pm.setKeyDerivation(cheapKeys);
+        pm.savePasswordFile(file.toString(), password.toCharArray());
+    }
+
+    /**
+     * Open a migrated file.
+     * @param name of the file in the directory
+     * @param password of the file
+     * @return the opened file
+     * @throws Exception if it can't be opened.
+     */
+    private static PasswordManager open(String name, String password) throws Exception {
+        PasswordManager pm = new PasswordManager();
+        pm.openPasswordFile(directory.resolve(name).toFile(), password.toCharArray());
+        return pm;
+    }
+
+    /**
+     * Delete the test directory and everything in it.
+     */
+    private static void deleteDirectory() {
+        deleteAll(new File[] { directory.toFile() });
+    }
+
+    /**
+     * Delete files and directories, depth first.
+     * @param files to delete
+     */
+    private static void deleteAll(File[] files) {
+        for (File file : files) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                deleteAll(children);
+            }
+            file.delete();
+        }
+    }
+
+    @Test
+    public void migratesAndResumes() {
+        deleteDirectory();
+        try {
+            save("a.pman", "Mail\nuser: ann\n", "old", PasswordManager.LEGACY_FORMAT);
+            Set<PosixFilePermission> owner = PosixFilePermissions.fromString("rw-------");
+            Files.setPosixFilePermissions(directory.resolve("a.pman"), owner);
+            save("team/b.pman", "Bank\nuser: bob\n", "old", PasswordManager.SEGMENTED_FORMAT);
+            save("team/C.PMAN", "Shop\n", "old", PasswordManager.LEGACY_FORMAT);
+            save("team/other.pman", "Other\n", "someone else's", PasswordManager.LEGACY_FORMAT);
+            Files.write(directory.resolve("notes.txt"), "not a vault".getBytes());
+            // Left by a run that was killed while writing.
+            Files.write(directory.resolve("a.pman" + VaultMigration.temporarySuffix), new byte[10]);
+
+            VaultMigration migration = new VaultMigration("old".toCharArray(), "new".toCharArray());
+            migration.setThreads(3);
+            migration.setFormatVersion(PasswordManager.SEGMENTED_FORMAT);
+            migration.setCompression(true);
+            migration.setLookupIndex(true);
+            migration.setKeyDerivation(cheapKeys);
+            VaultMigration.Report report = migration.migrate(directory);
+            assertEquals(3, report.getMigrated());
+            assertEquals(0, report.getSkipped());
+            assertEquals(Arrays.asList("team" + File.separator + "other.pman"),
+                    Arrays.asList(report.getFailures().keySet().toArray()));
+            assertFalse(Files.exists(directory.resolve("a.pman" + VaultMigration.temporarySuffix)));
+            assertEquals(owner, Files.getPosixFilePermissions(directory.resolve("a.pman")));
+
+            PasswordManager pm = open("a.pman", "new");
+            assertEquals("Mail\nuser: ann\n", pm.getText());
+            assertEquals(PasswordManager.SEGMENTED_FORMAT, pm.getFormatVersion());
+            assertTrue(pm.isCompressionEnabled());
+            assertTrue(pm.isLookupIndexEnabled());
+            assertEquals("Bank\nuser: bob\n", open("team/b.pman", "new").getText());
+            assertEquals("Shop\n", open("team/C.PMAN", "new").getText());
+            assertEquals("notes.txt is left alone", "not a vault",
+                    new String(Files.readAllBytes(directory.resolve("notes.txt"))));
+
+            // The checkpoint skips what was done; a file migrated without
+            // being recorded is recognized by its new password.
+            Path checkpoint = directory.resolve(VaultMigration.defaultCheckpointName);
+            Files.write(checkpoint, "a.pman\n".getBytes());
+            save("team/other.pman", "Other\n", "old", PasswordManager.LEGACY_FORMAT);
+            report = migration.migrate(directory);
+            assertEquals(1, report.getMigrated());
+            assertEquals(3, report.getSkipped());
+            assertTrue(report.getFailures().isEmpty());
+            assertFalse(Files.exists(checkpoint));
+            assertEquals("Other\n", open("team/other.pman", "new").getText());
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+        finally {
+            deleteDirectory();
+        }
+    }
+}
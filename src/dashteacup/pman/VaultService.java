@@ -0,0 +1,491 @@
+package dashteacup.pman;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * One open vault shared by any number of threads. {@link PasswordManager}
+ * can only be used by one thread at a time, so this keeps one to itself on
+ * a writer thread and hands readers immutable {@link Snapshot snapshots} of
+ * the decrypted entries instead. Getting the current snapshot is a single
+ * volatile read, so readers never wait for each other or for the writer.
+ *
+ * Changes are queued and applied in order by the writer. Everything queued
+ * while it was busy is applied together and published as one new snapshot,
+ * the old ones staying as they were for whoever still holds them, and then
+ * the file is saved with the key cached when it was opened. A change is
+ * visible in {@link #snapshot()} once its future completes; {@link #flush()}
+ * waits for it to be on disk too. Each change is applied whole, so no
+ * snapshot ever has part of one.
+ */
+class VaultService {
+
+    /**
+     * A version of the vault. Nothing in it ever changes.
+     */
+    static final class Snapshot {
+
+        /**
+         * Number of times the vault had been changed when this was taken.
+         */
+        private final long version;
+
+        /**
+         * The vault's text.
+         */
+        private final String text;
+
+        /**
+         * The entries, in vault order.
+         */
+        private final List<Entry> entries;
+
+        /**
+         * Normalized title of each entry, in the same order.
+         */
+        private final String[] names;
+
+        /**
+         * The entries with each normalized title, in vault order.
+         */
+        private final Map<String, List<Entry>> titles;
+
+        /**
+         * Take a snapshot of a vault, parsing all of it.
+         * @param version number of changes made to the vault so far
+         * @param text of the vault
+         */
+        Snapshot(long version, String text) {
+            this.version = version;
+            this.text = text;
+            List<Entry> parsed = EntryIndex.parse(text);
+            this.entries = Collections.unmodifiableList(parsed);
+            this.names = new String[parsed.size()];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = LookupIndex.normalize(parsed.get(i).getTitle());
+            }
+            this.titles = mapTitles(entries, names);
+        }
+
+        /**
+         * Take a snapshot of an edited vault. Only the entries around the
+         * edit are parsed; the rest are shared with the previous snapshot,
+         * or copied to their new offsets if the edit moved them.
+         * @param previous snapshot of the vault before the edit
+         * @param version number of changes made to the vault so far
+         * @param text of the vault
+         */
+        Snapshot(Snapshot previous, long version, String text) {
+            this.version = version;
+            this.text = text;
+            List<Entry> oldEntries = previous.entries;
+            EntryIndex.Reparse edit = EntryIndex.reparse(previous.text, oldEntries, text);
+            List<Entry> found = new ArrayList<Entry>(oldEntries.size() + 1);
+            List<String> foundNames = new ArrayList<String>(oldEntries.size() + 1);
+            for (int i = 0; i < edit.kept; i++) {
+                found.add(oldEntries.get(i));
+                foundNames.add(previous.names[i]);
+            }
+            for (Entry entry : edit.parsed) {
+                found.add(entry);
+                foundNames.add(LookupIndex.normalize(entry.getTitle()));
+            }
+            for (int i = edit.reused; i < oldEntries.size(); i++) {
+                found.add(oldEntries.get(i).movedTo(oldEntries.get(i).getStart() + edit.delta));
+                foundNames.add(previous.names[i]);
+            }
+            this.entries = Collections.unmodifiableList(found);
+            this.names = foundNames.toArray(new String[foundNames.size()]);
+            this.titles = mapTitles(entries, names);
+        }
+
+        /**
+         * Group entries by title.
+         * @param entries in vault order
+         * @param names normalized title of each entry
+         * @return the entries with each title, in vault order
+         */
+        private static Map<String, List<Entry>> mapTitles(List<Entry> entries, String[] names) {
+            Map<String, List<Entry>> found = new HashMap<String, List<Entry>>(2 * names.length);
+            for (int i = 0; i < names.length; i++) {
+                List<Entry> named = found.get(names[i]);
+                if (named == null) {
+                    // Almost every title is unique.
+                    found.put(names[i], Collections.singletonList(entries.get(i)));
+                    continue;
+                }
+                List<Entry> more = new ArrayList<Entry>(named);
+                more.add(entries.get(i));
+                found.put(names[i], Collections.unmodifiableList(more));
+            }
+            return found;
+        }
+
+        /**
+         * Get the number of changes made to the vault before this snapshot.
+         * @return the version, counting up from 0 for the file as opened
+         */
+        long getVersion() {
+            return version;
+        }
+
+        /**
+         * Get the vault's text.
+         * @return the text
+         */
+        String getText() {
+            return text;
+        }
+
+        /**
+         * Get the entries.
+         * @return an unmodifiable list of the entries in vault order
+         */
+        List<Entry> getEntries() {
+            return entries;
+        }
+
+        /**
+         * Find the entries with a title.
+         * @param title ignoring case and surrounding white space
+         * @return an unmodifiable list of the entries in vault order,
+         * possibly empty
+         */
+        List<Entry> lookup(String title) {
+            List<Entry> found = titles.get(LookupIndex.normalize(title));
+            return (found == null) ? Collections.<Entry>emptyList() : found;
+        }
+    }
+
+    /**
+     * A change waiting for the writer.
+     */
+    private static final class Change {
+        /**
+         * Entries to put, by title, with null for entries to remove.
+         */
+        final Map<String, String> entries;
+
+        /**
+         * True if the change only waits for everything before it to be
+         * saved.
+         */
+        final boolean flush;
+
+        /**
+         * Completed with the first snapshot holding the change, or once
+         * it's saved for a flush.
+         */
+        final CompletableFuture<Snapshot> done = new CompletableFuture<Snapshot>();
+
+        /**
+         * Create a change.
+         * @param entries to put or remove
+         * @param flush true to wait for a save
+         */
+        Change(Map<String, String> entries, boolean flush) {
+            this.entries = entries;
+            this.flush = flush;
+        }
+    }
+
+    /**
+     * Queued for the writer to stop once it gets to it.
+     */
+    private static final Change stop = new Change(null, false);
+
+    /**
+     * The open file. Only used by the writer.
+     */
+    private final PasswordManager pm;
+
+    /**
+     * Path the file is saved to.
+     */
+    private final String fileName;
+
+    /**
+     * Changes waiting for the writer.
+     */
+    private final BlockingQueue<Change> changes = new LinkedBlockingQueue<Change>();
+
+    /**
+     * Thread applying changes and saving the file.
+     */
+    private final Thread writer;
+
+    /**
+     * Guards {@link #closed}, so nothing is queued once the writer is told
+     * to stop or has stopped.
+     */
+    private final Object lock = new Object();
+
+    /**
+     * True once no more changes are taken.
+     */
+    private boolean closed;
+
+    /**
+     * The latest snapshot.
+     */
+    private volatile Snapshot current;
+
+    /**
+     * Open a vault, deriving its key once.
+     * @param file to open
+     * @param password of the file. The array is cleared by this method.
+     * @throws BadPasswordException if the password is wrong.
+     * @throws InvalidPasswordFileException if the file is improperly formatted.
+     * @throws IOException if the file can't be read.
+     */
+    VaultService(File file, char[] password)
+            throws BadPasswordException, InvalidPasswordFileException, IOException {
+        pm = new PasswordManager();
+        pm.openPasswordFile(file, password);
+        fileName = file.getPath();
+        current = new Snapshot(0, pm.getText());
+        writer = new Thread("VaultService writer " + file.getName()) {
+            @Override
+            public void run() {
+                write();
+            }
+        };
+        writer.start();
+    }
+
+    /**
+     * Get the latest version of the vault. Never blocks.
+     * @return the current snapshot
+     */
+    Snapshot snapshot() {
+        return current;
+    }
+
+    /**
+     * Put an entry in the vault, replacing the first entry with the same
+     * title or adding one at the end.
+     * @param title of the entry
+     * @param lines of the entry after its title
+     * @return completed with the first snapshot holding the entry, or
+     * exceptionally with IllegalArgumentException if the entry isn't valid
+     */
+    Future<Snapshot> put(String title, String lines) {
+        return change(Collections.singletonMap(title, lines));
+    }
+
+    /**
+     * Take the first entry with a title out of the vault.
+     * @param title of the entry
+     * @return completed with the first snapshot without the entry
+     */
+    Future<Snapshot> remove(String title) {
+        return change(Collections.<String, String>singletonMap(title, null));
+    }
+
+    /**
+     * Put and remove several entries in one change, so every snapshot has
+     * either all of them or none.
+     * @param entries the lines of each entry to put by its title, or null
+     * for each entry to remove, applied in the map's order
+     * @return completed with the first snapshot holding the change, or
+     * exceptionally with IllegalArgumentException if an entry isn't valid,
+     * in which case none of it is applied
+     */
+    Future<Snapshot> change(Map<String, String> entries) {
+        return enqueue(new Change(new LinkedHashMap<String, String>(entries), false));
+    }
+
+    /**
+     * Wait until every change made so far is saved.
+     * @throws IOException if the latest save failed. The changes stay
+     * applied and the next save tries again.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     * @throws IllegalStateException if the service is closed, or closes
+     * before saving.
+     */
+    void flush() throws IOException, InterruptedException {
+        try {
+            enqueue(new Change(null, true)).get();
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Save what's left to save and stop the writer. The file's key is
+     * cleared and no more changes are taken.
+     * @throws IOException if the last save failed.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    void close() throws IOException, InterruptedException {
+        try {
+            flush();
+        }
+        finally {
+            synchronized (lock) {
+                if (!closed) {
+                    closed = true;
+                    changes.add(stop);
+                }
+            }
+            writer.join();
+        }
+    }
+
+    /**
+     * Queue a change for the writer.
+     * @param change to queue
+     * @return the change's future
+     * @throws IllegalStateException if the service has been closed.
+     */
+    private CompletableFuture<Snapshot> enqueue(Change change) {
+        synchronized (lock) {
+            if (closed) {
+                throw new IllegalStateException("The vault service is closed.");
+            }
+            changes.add(change);
+        }
+        return change.done;
+    }
+
+    /**
+     * Apply changes until told to stop. Runs on the writer thread.
+     */
+    private void write() {
+        long version = current.getVersion();
+        boolean unsaved = false;
+        List<Change> batch = new ArrayList<Change>();
+        try {
+            while (true) {
+                batch.clear();
+                batch.add(changes.take());
+                changes.drainTo(batch);
+                Snapshot working = current;
+                List<Change> applied = new ArrayList<Change>(batch.size());
+                boolean stopping = false;
+                for (Change change : batch) {
+                    if (change == stop) {
+                        stopping = true;
+                    }
+                    else if (change.entries != null) {
+                        try {
+                            working = apply(working, version + 1, change.entries);
+                            version++;
+                            applied.add(change);
+                        }
+                        catch (IllegalArgumentException e) {
+                            change.done.completeExceptionally(e);
+                        }
+                    }
+                }
+                if (working != current) {
+                    current = working;
+                    unsaved = true;
+                }
+                for (Change change : applied) {
+                    change.done.complete(current);
+                }
+                if (unsaved) {
+                    unsaved = !save(current.getText(), batch);
+                }
+                for (Change change : batch) {
+                    // Flushes after a failed save were completed by it.
+                    if (change.flush) {
+                        change.done.complete(current);
+                    }
+                }
+                if (stopping) {
+                    return;
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            // Nothing else interrupts the writer; stop as if closed.
+        }
+        finally {
+            synchronized (lock) {
+                closed = true;
+            }
+            pm.clearSessionKey();
+            pm.setText("");
+            // Nothing more is queued now. Fail whatever the writer didn't
+            // finish, including the batch it was on if it failed; completed
+            // futures are left as they are.
+            IllegalStateException stopped = new IllegalStateException("The vault service is closed.");
+            for (Change change : batch) {
+                change.done.completeExceptionally(stopped);
+            }
+            for (Change change : changes) {
+                change.done.completeExceptionally(stopped);
+            }
+        }
+    }
+
+    /**
+     * Apply one change to the vault. Entries are found through each
+     * snapshot's titles rather than by parsing the text again.
+     * @param snapshot of the vault
+     * @param version of the vault with the change
+     * @param entries to put or remove
+     * @return a snapshot with the change, or the same one if it changed
+     * nothing
+     * @throws IllegalArgumentException if an entry isn't valid.
+     */
+    private static Snapshot apply(Snapshot snapshot, long version, Map<String, String> entries) {
+        Snapshot changed = snapshot;
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            List<Entry> found = changed.lookup(entry.getKey());
+            int index = found.isEmpty() ? -1
+                    : EntryIndex.entryAt(changed.getEntries(), found.get(0).getStart());
+            String text = (entry.getValue() == null)
+                    ? EntryIndex.removeEntry(changed.getText(), changed.getEntries(), index)
+                    : EntryIndex.putEntry(changed.getText(), changed.getEntries(), index,
+                            entry.getKey(), entry.getValue());
+            if (!text.equals(changed.getText())) {
+                changed = new Snapshot(changed, version, text);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Save the vault, failing the batch's flushes if it can't be saved. An
+     * unexpected RuntimeException fails them too rather than the writer.
+     * @param text of the vault
+     * @param batch being applied
+     * @return true if the file was saved
+     */
+    private boolean save(String text, List<Change> batch) {
+        try {
+            pm.setText(text);
+            pm.savePasswordFile(fileName);
+            return true;
+        }
+        catch (IOException | RuntimeException e) {
+            for (Change change : batch) {
+                if (change.flush) {
+                    change.done.completeExceptionally(e);
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package dashteacup.pman;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Tests for sharing a vault between threads with {@link VaultService}.
+ */
+public class VaultServiceTest {
+
+    private static final int changes = 400;
+
+    /**
+     * Check that a snapshot is whole: both counters moved together and the
+     * entries match the text.
+     * @param snapshot to check
+     * @return the counters' value
+     */
+    private static int checkSnapshot(VaultService.Snapshot snapshot) {
+        List<Entry> first = snapshot.lookup("first counter");
+        List<Entry> second = snapshot.lookup("second counter");
+        assertEquals(1, first.size());
+        assertEquals(1, second.size());
+        assertEquals(first.get(0).getNotes(), second.get(0).getNotes());
+        checkEntries(snapshot);
+        return Integer.parseInt(first.get(0).getNotes());
+    }
+
+    /**
+     * Check that a snapshot's entries are the ones parsing its text gives.
+     * @param snapshot to check
+     */
+    private static void checkEntries(VaultService.Snapshot snapshot) {
+        List<Entry> parsed = EntryIndex.parse(snapshot.getText());
+        List<Entry> entries = snapshot.getEntries();
+        assertEquals(parsed.size(), entries.size());
+        for (int i = 0; i < parsed.size(); i++) {
+            assertEquals(parsed.get(i).getStart(), entries.get(i).getStart());
+            assertEquals(parsed.get(i).getSource(), entries.get(i).getSource());
+            assertEquals(parsed.get(i).getTitle(), entries.get(i).getTitle());
+        }
+    }
+
+    @Test
+    public void editedSnapshotsMatchParsing() {
+        String[] pieces = { "Mail\nuser: ann\n", "\n", "\n\n", "  \n", "Bank", "\nnote\n", "x", "" };
+        Random random = new Random(24);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            text.append(pieces[random.nextInt(pieces.length)]);
+        }
+        VaultService.Snapshot snapshot = new VaultService.Snapshot(0, text.toString());
+        for (int i = 1; i <= 500; i++) {
+            int start = random.nextInt(text.length() + 1);
+            int end = Math.min(text.length(), start + random.nextInt(20));
+            text.replace(start, end, pieces[random.nextInt(pieces.length)]);
+            snapshot = new VaultService.Snapshot(snapshot, i, text.toString());
+            checkEntries(snapshot);
+            for (Entry entry : snapshot.getEntries()) {
+                assertTrue(snapshot.lookup(entry.getTitle()).contains(entry));
+            }
+        }
+    }
+
+    @Test
+    public void readersNeverSeeTornChanges() {
+        String filename = "testfiles/vaultservice.pman";
+        PasswordManager pm = new PasswordManager("First counter\n0\n\nSecond counter\n0\n\nMail\nuser: ann\n");
+        pm.setKeyDerivation(new KeyDerivation(KeyDerivation.PBKDF2_SHA256, 1000));
+        try {
+            pm.savePasswordFile(filename, "shared".toCharArray());
+            final VaultService service = new VaultService(new File(filename), "shared".toCharArray());
+            final AtomicBoolean writing = new AtomicBoolean(true);
+            final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+            Thread[] readers = new Thread[4];
+            for (int r = 0; r < readers.length; r++) {
+                readers[r] = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            long lastVersion = -1;
+                            int lastValue = -1;
+                            while (writing.get()) {
+                                VaultService.Snapshot snapshot = service.snapshot();
+                                int value = checkSnapshot(snapshot);
+                                assertTrue(snapshot.getVersion() >= lastVersion);
+                                assertTrue(value >= lastValue);
+                                lastVersion = snapshot.getVersion();
+                                lastValue = value;
+                            }
+                        }
+                        catch (Throwable e) {
+                            failure.compareAndSet(null, e);
+                        }
+                    }
+                };
+                readers[r].start();
+            }
+
+            for (int i = 1; i <= changes; i++) {
+                Map<String, String> counters = new LinkedHashMap<String, String>();
+                counters.put("First counter", Integer.toString(i));
+                counters.put("Second counter", Integer.toString(i));
+                if (i % 2 == 0) {
+                    counters.put("Entry " + i, "user: person" + i);
+                }
+                else if (i > 1) {
+                    counters.put("Entry " + (i - 1), null);
+                }
+                service.change(counters);
+            }
+            try {
+                service.put("Broken", "one\n\ntwo").get();
+                fail("Put an entry with a blank line.");
+            }
+            catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalArgumentException);
+            }
+            service.close();
+            writing.set(false);
+            for (Thread reader : readers) {
+                reader.join();
+            }
+            if (failure.get() != null) {
+                throw new AssertionError(failure.get());
+            }
+            assertEquals(changes, checkSnapshot(service.snapshot()));
+            assertEquals(changes, service.snapshot().getVersion());
+
+            PasswordManager saved = new PasswordManager();
+            saved.openPasswordFile(filename, "shared".toCharArray());
+            assertEquals(service.snapshot().getText(), saved.getText());
+            assertEquals(1, service.snapshot().lookup("entry " + changes).size());
+            assertEquals(0, service.snapshot().lookup("entry 2").size());
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void changesRacingCloseAllComplete() {
+        String filename = "testfiles/vaultservice.pman";
+        PasswordManager pm = new PasswordManager("Mail\nuser: ann\n");
+        pm.setKeyDerivation(new KeyDerivation(KeyDerivation.PBKDF2_SHA256, 1000));
+        try {
+            pm.savePasswordFile(filename, "shared".toCharArray());
+            final VaultService service = new VaultService(new File(filename), "shared".toCharArray());
+            final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+            Thread[] writers = new Thread[4];
+            for (int w = 0; w < writers.length; w++) {
+                final int id = w;
+                writers[w] = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int i = 0; ; i++) {
+                                Future<VaultService.Snapshot> put;
+                                try {
+                                    put = service.put("Entry " + id, "value " + i);
+                                }
+                                catch (IllegalStateException e) {
+                                    return;
+                                }
+                                try {
+                                    // Every queued change finishes one way or
+                                    // the other; none is left waiting.
+                                    put.get(10, TimeUnit.SECONDS);
+                                }
+                                catch (ExecutionException e) {
+                                    assertTrue(e.getCause() instanceof IllegalStateException);
+                                }
+                            }
+                        }
+                        catch (Throwable e) {
+                            failure.compareAndSet(null, e);
+                        }
+                    }
+                };
+                writers[w].start();
+            }
+            Thread.sleep(50);
+            service.close();
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            if (failure.get() != null) {
+                throw new AssertionError(failure.get());
+            }
+            try {
+                service.remove("Mail");
+                fail("Changed a closed vault.");
+            }
+            catch (IllegalStateException e) {
+                // Expected.
+            }
+            // Closing again is refused like any other change.
+            try {
+                service.close();
+                fail("Closed a closed vault.");
+            }
+            catch (IllegalStateException e) {
+                // Expected.
+            }
+
+            PasswordManager saved = new PasswordManager();
+            saved.openPasswordFile(filename, "shared".toCharArray());
+            assertEquals(service.snapshot().getText(), saved.getText());
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package dashteacup.pman;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Opens several password files that share a password at once. Every file
+ * has its own salt, so each needs its own key derivation, and that's where
+ * nearly all the time of an open goes. Running them on separate threads
+ * lets a workspace of many vaults unlock in about the time one takes, given
+ * a processor for each.
+ *
+ * Each file is opened into its own {@link PasswordManager} and reported on
+ * its own: one with a different password, or that's damaged, doesn't stop
+ * the others from opening.
+ */
+class VaultUnlocker {
+
+    /**
+     * What happened to one file.
+     */
+    static final class Result {
+
+        /**
+         * The file.
+         */
+        private final File file;
+
+        /**
+         * The opened file, or null if it couldn't be opened.
+         */
+        private final PasswordManager model;
+
+        /**
+         * Why the file couldn't be opened, or null if it was.
+         */
+        private final Exception failure;
+
+        /**
+         * Record the result of opening a file.
+         * @param file that was opened
+         * @param model holding the file, or null
+         * @param failure why it couldn't be opened, or null
+         */
+        private Result(File file, PasswordManager model, Exception failure) {
+            this.file = file;
+            this.model = model;
+            this.failure = failure;
+        }
+
+        /**
+         * Get the file.
+         * @return the file
+         */
+        File getFile() {
+            return file;
+        }
+
+        /**
+         * Get the opened file. It holds the file's key, so it can be saved
+         * without the password.
+         * @return the model, or null if the file couldn't be opened
+         */
+        PasswordManager getModel() {
+            return model;
+        }
+
+        /**
+         * Get why the file couldn't be opened: a
+         * {@link BadPasswordException} if it has another password, an
+         * {@link InvalidPasswordFileException} if it isn't a password file
+         * or is damaged, otherwise the error reading it.
+         * @return the exception, or null if the file was opened
+         */
+        Exception getFailure() {
+            return failure;
+        }
+
+        /**
+         * Determine if the file was opened.
+         * @return true if it was, false otherwise.
+         */
+        boolean succeeded() {
+            return model != null;
+        }
+    }
+
+    /**
+     * Number of files opened at once.
+     */
+    private final int threads;
+
+    /**
+     * Create an unlocker with one thread per processor.
+     */
+    VaultUnlocker() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create an unlocker.
+     * @param threads number of files opened at once. Each holds its key
+     * derivation's memory, which is large for Argon2id, while it's opened.
+     */
+    VaultUnlocker(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Need at least one thread.");
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * Open files with one password.
+     * @param files to open
+     * @param password for the files. The array is cleared.
+     * @param listener told each time a file is done, with the number of
+     * files done out of all of them, or null. It's called from the threads
+     * opening the files.
+     * @return what happened to each file, in the order given
+     * @throws InterruptedException if the calling thread is interrupted.
+     * The files being opened are stopped and nothing opened is kept.
+     */
+    List<Result> openAll(List<File> files, final char[] password, final ProgressListener listener)
+            throws InterruptedException {
+        final int total = files.size();
+        int poolSize = Math.max(1, Math.min(threads, total));
+        // With a file per thread the processors are already busy, so the
+        // segments of each file are decrypted on its own thread.
+        final boolean ownThread = total >= threads;
+        final AtomicInteger done = new AtomicInteger();
+        final List<PasswordManager> opened = new ArrayList<PasswordManager>(total);
+        final boolean[] abandoned = new boolean[1];
+        ExecutorService pool = Executors.newFixedThreadPool(poolSize);
+        List<Future<Result>> futures = new ArrayList<Future<Result>>(total);
+        try {
+            for (final File file : files) {
+                futures.add(pool.submit(new Callable<Result>() {
+                    @Override
+                    public Result call() {
+                        char[] copy;
+                        synchronized (opened) {
+                            if (abandoned[0]) {
+                                return null;
+                            }
+                            // Opening clears the password it's given.
+                            copy = password.clone();
+                        }
+                        Result result = open(file, copy, ownThread);
+                        synchronized (opened) {
+                            if (abandoned[0] && result.succeeded()) {
+                                result.getModel().clearSessionKey();
+                            }
+                            opened.add(result.getModel());
+                        }
+                        if (listener != null) {
+                            listener.progressChanged(done.incrementAndGet(), total);
+                        }
+                        return result;
+                    }
+                }));
+            }
+            List<Result> results = new ArrayList<Result>(total);
+            for (Future<Result> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        }
+        catch (InterruptedException e) {
+            // Files still being opened stop at their next segment, any that
+            // finish anyway wipe their keys themselves, and the rest never
+            // start.
+            pool.shutdownNow();
+            synchronized (opened) {
+                abandoned[0] = true;
+                for (PasswordManager model : opened) {
+                    if (model != null) {
+                        model.clearSessionKey();
+                    }
+                }
+            }
+            throw e;
+        }
+        catch (ExecutionException e) {
+            // open() catches everything a file can throw.
+            throw new IllegalStateException(e.getCause());
+        }
+        finally {
+            pool.shutdown();
+            synchronized (opened) {
+                Arrays.fill(password, '0');
+            }
+        }
+    }
+
+    /**
+     * Open one file.
+     * @param file to open
+     * @param password for the file. The array is cleared.
+     * @param ownThread true to decrypt all of the file on the calling thread
+     * @return the result
+     */
+    private static Result open(File file, char[] password, boolean ownThread) {
+        PasswordManager model = new PasswordManager();
+        if (ownThread) {
+            model.setParallelism(1);
+        }
+        try {
+            model.openPasswordFile(file, password);
+            return new Result(file, model, null);
+        }
+        catch (Exception e) {
+            model.clearSessionKey();
+            return new Result(file, null, e);
+        }
+        finally {
+            Arrays.fill(password, '0');
+        }
+    }
+}
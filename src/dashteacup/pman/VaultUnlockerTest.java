@@ -0,0 +1,80 @@
+package dashteacup.pman;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+/**
+ * Tests for opening several password files at once with
+ * {@link VaultUnlocker}.
+ */
+public class VaultUnlockerTest {
+
+    @Test
+    public void reportsEachFile() {
+        KeyDerivation cheapKeys = new KeyDerivation(KeyDerivation.PBKDF2_SHA256, 1000);
+        List<File> files = new ArrayList<File>();
+        try {
+            for (int i = 0; i < 5; i++) {
+                File file = new File("testfiles/unlock" + i + ".pman");
+                PasswordManager pm = new PasswordManager("Vault " + i + "\nuser: ann\n");
+                pm.setKeyDerivation(cheapKeys);
+                pm.setFormatVersion((i == 1) ? PasswordManager.LEGACY_FORMAT
+                        : PasswordManager.SEGMENTED_FORMAT);
+                pm.savePasswordFile(file.getPath(), ((i == 3) ? "other" : "shared").toCharArray());
+                files.add(file);
+            }
+            File broken = new File("testfiles/unlockbroken.pman");
+            Files.write(broken.toPath(), "not a password file".getBytes(StandardCharsets.US_ASCII));
+            files.add(2, broken);
+
+            final AtomicLong done = new AtomicLong();
+            char[] password = "shared".toCharArray();
+            List<VaultUnlocker.Result> results = new VaultUnlocker(2).openAll(files, password,
+                    new ProgressListener() {
+                        @Override
+                        public void progressChanged(long filesDone, long total) {
+                            assertEquals(6, total);
+                            done.incrementAndGet();
+                        }
+                    });
+            assertEquals(6, done.get());
+            assertEquals("000000", new String(password));
+            assertEquals(files.size(), results.size());
+            for (int i = 0; i < results.size(); i++) {
+                VaultUnlocker.Result result = results.get(i);
+                assertEquals(files.get(i), result.getFile());
+                String name = files.get(i).getName();
+                if (name.equals("unlockbroken.pman")) {
+                    assertFalse(result.succeeded());
+                    assertTrue(result.getFailure() instanceof InvalidPasswordFileException);
+                }
+                else if (name.equals("unlock3.pman")) {
+                    assertFalse(result.succeeded());
+                    assertTrue(result.getFailure() instanceof BadPasswordException);
+                }
+                else {
+                    assertNull(result.getFailure());
+                    assertTrue(result.getModel().hasSessionKey());
+                    assertEquals("Vault " + name.charAt(6) + "\nuser: ann\n",
+                            result.getModel().getText());
+                }
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+    }
+}